@@ -37,8 +37,46 @@ function Room(kurento, options) {
     var subscribeToStreams = options.subscribeToStreams || true;
     var updateSpeakerInterval = options.updateSpeakerInterval || 1500;
     var thresholdSpeaker = options.thresholdSpeaker || -50;
-
-    setInterval(updateMainSpeaker, updateSpeakerInterval);
+    // the server picks the main speaker from the level of each local stream,
+    // instead of every browser analysing all the remote streams
+    var serverSpeakerDetection = options.serverSpeakerDetection || false;
+    var audioLevelInterval = options.audioLevelInterval || 500;
+    // set when the server mixes the room's media, announced as the stream
+    // of a virtual publisher before the response to joinRoom
+    var mixMode;
+    // viewers only receive the streams of the publishers, the other
+    // participants are not announced to them (only their number)
+    var viewer = options.viewer || false;
+    // set while the media is exchanged directly with the other participant,
+    // announced before the response to joinRoom (with the peer to connect
+    // to, if there's one already)
+    var peerToPeer = false;
+    var peerName;
+    var localPeerStream;
+    var pendingPeerCandidates = [];
+
+    that.thresholdSpeaker = thresholdSpeaker;
+
+    if (!serverSpeakerDetection) {
+        setInterval(updateMainSpeaker, updateSpeakerInterval);
+    }
+
+    // in a composite room all the media is received through the mix
+    function isSubscribable(participant) {
+        return subscribeToStreams &&
+            (mixMode !== 'composite' || participant.isMix());
+    }
+
+    // in a mixed_audio room only the video of the publishers is received,
+    // their audio comes with the mix
+    function applyMixMode(participantOptions) {
+        if (mixMode === 'mixed_audio' && participantOptions.mix === undefined &&
+            participantOptions.streams) {
+            participantOptions.streams.forEach(function (streamOptions) {
+                streamOptions.recvAudio = false;
+            });
+        }
+    }
 
     function updateMainSpeaker() {
         if (participantsSpeaking.length > 0) {
@@ -52,6 +90,14 @@ function Room(kurento, options) {
         return localParticipant;
     }
 
+    this.isServerSpeakerDetection = function () {
+        return serverSpeakerDetection;
+    }
+
+    this.getAudioLevelInterval = function () {
+        return audioLevelInterval;
+    }
+
     this.addEventListener = function (eventName, listener) {
         ee.addListener(eventName, listener);
     }
@@ -65,6 +111,9 @@ function Room(kurento, options) {
             user: options.user,
             room: options.room
         };
+        if (viewer) {
+            joinParams.viewer = true;
+        }
         if (localParticipant) {
             if (Object.keys(localParticipant.getStreams()).some(function (streamId) {
                     return streams[streamId].isDataChannelEnabled();
@@ -92,6 +141,7 @@ function Room(kurento, options) {
                 var length = exParticipants.length;
                 for (var i = 0; i < length; i++) {
 
+                    applyMixMode(exParticipants[i]);
                     var participant = new Participant(kurento, false, that,
                         exParticipants[i]);
 
@@ -102,13 +152,91 @@ function Room(kurento, options) {
                     var streams = participant.getStreams();
                     for (var key in streams) {
                         roomEvent.streams.push(streams[key]);
-                        if (subscribeToStreams) {
+                        if (isSubscribable(participant)) {
                             streams[key].subscribe();
                         }
                     }
                 }
 
                 ee.emitEvent('room-connected', [roomEvent]);
+
+                if (response.next !== undefined) {
+                    fetchRoster(response.next, response.rosterVersion);
+                }
+            }
+        });
+    }
+
+    this.getParticipants = function (after, sinceVersion, callback) {
+        var params = {};
+        if (after !== undefined && after !== null) {
+            params.after = after;
+        }
+        if (sinceVersion >= 0) {
+            params.sinceVersion = sinceVersion;
+        }
+        kurento.sendRequest('getParticipants', params, callback);
+    }
+
+    // In very large rooms the server sends only the first page of the
+    // roster when joining. The next pages (the peers named after the last
+    // one received) are requested one after another and then the changes
+    // done in the roster meanwhile.
+    function fetchRoster(after, rosterVersion) {
+        if (after === undefined) {
+            that.getParticipants(null, rosterVersion, function (error, response) {
+                if (error) {
+                    console.warn('Unable to get the roster changes', error);
+                    return;
+                }
+                if (response.changes !== undefined) {
+                    applyRosterChanges(response.changes);
+                }
+            });
+            return;
+        }
+        that.getParticipants(after, -1, function (error, response) {
+            if (error) {
+                console.warn('Unable to get the roster page after ' + after, error);
+                return;
+            }
+            response.value.forEach(function (peer) {
+                if (peer.streams !== undefined && peer.streams.length > 0) {
+                    that.onParticipantPublished(peer);
+                } else {
+                    that.onParticipantJoined(peer);
+                }
+            });
+            fetchRoster(response.next, rosterVersion);
+        });
+    }
+
+    // the changes can overlap with the pages already received
+    function applyRosterChanges(changes) {
+        changes.forEach(function (change) {
+            var name = change.name;
+            if (name === options.user) {
+                return;
+            }
+            var participant = participants[name];
+            switch (change.type) {
+                case 'joined':
+                    if (participant === undefined) {
+                        that.onParticipantJoined({id: name});
+                    }
+                    break;
+                case 'published':
+                    if (participant === undefined ||
+                        Object.keys(participant.getStreams()).length === 0) {
+                        that.onParticipantPublished({id: name, streams: [{id: 'webcam'}]});
+                    }
+                    break;
+                case 'left':
+                case 'unpublished':
+                    if (participant !== undefined) {
+                        that.onParticipantLeft({name: name});
+                    }
+                    break;
             }
         });
     }
@@ -120,6 +248,11 @@ function Room(kurento, options) {
 
     this.onParticipantPublished = function (options) {
 
+        if (options.mix !== undefined) {
+            mixMode = options.mix;
+        }
+        applyMixMode(options);
+
         var participant = new Participant(kurento, false, that, options);
 
         var pid = participant.getID();
@@ -139,7 +272,7 @@ function Room(kurento, options) {
         for (var key in streams) {
             var stream = streams[key];
 
-            if (subscribeToStreams) {
+            if (isSubscribable(participant)) {
                 stream.subscribe();
                 ee.emitEvent('stream-added', [{
                     stream: stream
@@ -192,6 +325,126 @@ function Room(kurento, options) {
         }
     };
 
+    this.onDominantSpeakerChanged = function (msg) {
+        var participant = localParticipant && localParticipant.getID() === msg.name ?
+            localParticipant : participants[msg.name];
+        if (participant === undefined) {
+            console.warn("Dominant speaker " + msg.name + " unknown");
+            return;
+        }
+        ee.emitEvent('dominant-speaker-changed', [{
+            participant: participant
+        }]);
+        var streams = participant.getStreams();
+        for (var key in streams) {
+            ee.emitEvent('update-main-speaker', [{
+                participantId: streams[key].getGlobalID()
+            }]);
+            break;
+        }
+    };
+
+    this.isPeerToPeer = function () {
+        return peerToPeer;
+    }
+
+    this.onPeerToPeer = function (msg) {
+        peerToPeer = true;
+        peerName = msg.peer;
+    }
+
+    function getPeerStream(peer) {
+        var peerStreams = peer.getStreams();
+        for (var key in peerStreams) {
+            return peerStreams[key];
+        }
+        var stream = new Stream(kurento, false, that, {
+            id: 'webcam',
+            participant: peer,
+            recvVideo: true,
+            recvAudio: true
+        });
+        peer.addStream(stream);
+        ee.emitEvent('stream-added', [{
+            stream: stream
+        }]);
+        return stream;
+    }
+
+    // the local stream is sent to the peer instead of the server, the
+    // participant that joined last sends the offer
+    this.connectPeer = function (localStream) {
+        localPeerStream = localStream;
+        if (peerName === undefined) {
+            return;
+        }
+        var peer = participants[peerName];
+        if (!peer) {
+            console.warn("Peer " + peerName + " not found, waiting for its offer");
+            return;
+        }
+        getPeerStream(peer).connectPeer(localStream);
+    }
+
+    this.onPeerSdp = function (msg) {
+        var peer = participants[msg.name];
+        if (!peer) {
+            console.error("Peer " + msg.name + " not found, SDP " + msg.type
+                + " will be ignored");
+            return;
+        }
+        if (msg.type === 'offer') {
+            peerName = msg.name;
+            var localStream = localPeerStream;
+            if (!localStream) {
+                var localStreams = localParticipant.getStreams();
+                for (var key in localStreams) {
+                    localStream = localStreams[key];
+                }
+            }
+            getPeerStream(peer).answerPeer(localStream, msg.sdp, pendingPeerCandidates);
+            pendingPeerCandidates = [];
+        } else {
+            getPeerStream(peer).processSdpAnswer(msg.sdp);
+        }
+    }
+
+    // a third participant has joined, the direct connection is replaced by
+    // the usual publishing and subscribing through the server
+    this.onPeerToPeerEnded = function (msg) {
+        peerToPeer = false;
+        peerName = undefined;
+        pendingPeerCandidates = [];
+        for (var pid in participants) {
+            var participant = participants[pid];
+            if (participant === localParticipant) {
+                continue;
+            }
+            var peerStreams = participant.getStreams();
+            for (var key in peerStreams) {
+                ee.emitEvent('stream-removed', [{
+                    stream: peerStreams[key]
+                }]);
+            }
+            participant.dispose();
+            participants[pid] = new Participant(kurento, false, that, {id: pid});
+        }
+        if (localPeerStream) {
+            localPeerStream.publish();
+            localPeerStream = undefined;
+        }
+    }
+
+    this.isViewer = function () {
+        return viewer;
+    }
+
+    this.onViewerCount = function (msg) {
+        ee.emitEvent('viewer-count', [{
+            count: msg.count
+        }]);
+    };
+
     this.onParticipantEvicted = function (msg) {
         ee.emitEvent('participant-evicted', [{
             localParticipant: localParticipant
@@ -229,6 +482,11 @@ function Room(kurento, options) {
             return false;
         }
         var streams = participant.getStreams();
+        if (peerToPeer && Object.keys(streams).length === 0) {
+            // the peer's offer hasn't been processed yet
+            pendingPeerCandidates.push(candidate);
+            return;
+        }
         for (var key in streams) {
             var stream = streams[key];
             stream.getWebRtcPeer().addIceCandidate(candidate, function (error) {
@@ -376,6 +634,8 @@ function Participant(kurento, local, room, options) {
 
     var that = this;
     var id = options.id;
+    // the virtual publisher of the room's mix
+    var mix = options.mix !== undefined;
 
     var streams = {};
     var streamsOpts = [];
@@ -400,6 +660,10 @@ function Participant(kurento, local, room, options) {
         id = newId;
     }
 
+    that.isMix = function () {
+        return mix;
+    }
+
     function addStream(stream) {
         streams[stream.getID()] = stream;
         room.getStreams()[stream.getID()] = stream;
@@ -424,16 +688,11 @@ function Participant(kurento, local, room, options) {
     this.sendIceCandidate = function (candidate) {
         console.debug((local ? "Local" : "Remote"), "candidate for",
             that.getID(), JSON.stringify(candidate));
-        kurento.sendRequest("onIceCandidate", {
+        kurento.sendIceCandidate({
             endpointName: that.getID(),
             candidate: candidate.candidate,
             sdpMid: candidate.sdpMid,
             sdpMLineIndex: candidate.sdpMLineIndex
-        }, function (error, response) {
-            if (error) {
-                console.error("Error sending ICE candidate: "
-                    + JSON.stringify(error));
-            }
         });
     }
 }
@@ -471,6 +730,10 @@ function Stream(kurento, local, room, options) {
 
     var speechEvent;
 
+    // set when the media is exchanged directly with the remote participant,
+    // the same peer connection sends this local media
+    var localPeerMedia;
+
     var recvVideo = options.recvVideo;
     this.getRecvVideo = function () {
         return recvVideo;
@@ -675,6 +938,9 @@ function Stream(kurento, local, room, options) {
                     stream: that
                 }])
                 that.processSdpAnswer(response.sdpAnswer);
+                if (that.room.isServerSpeakerDetection()) {
+                    reportAudioLevel();
+                }
             }
         });
     }
@@ -698,6 +964,27 @@ function Stream(kurento, local, room, options) {
         });
     }
 
+    // sends the level of the local audio while it's above the threshold, and
+    // once more when it drops, at most once per interval (the server ignores
+    // the levels sent more often, and only uses them as a hint)
+    function reportAudioLevel() {
+        var lastReport = 0;
+        var loud = false;
+        speechEvent = kurentoUtils.WebRtcPeer.hark(wrStream, {threshold: that.room.thresholdSpeaker});
+        speechEvent.on('volume_change', function (volume, threshold) {
+            var now = Date.now();
+            if ((volume > threshold || loud) && now - lastReport >= that.room.getAudioLevelInterval()) {
+                loud = volume > threshold;
+                lastReport = now;
+                kurento.sendRequest('audioLevel', {level: volume}, function (error, response) {
+                    if (error) {
+                        console.warn("Error on audioLevel: " + JSON.stringify(error));
+                    }
+                });
+            }
+        });
+    }
+
     function initWebRtcPeer(sdpOfferCallback) {
         if (local) {
             var options = {
@@ -753,6 +1040,14 @@ function Stream(kurento, local, room, options) {
 
     this.publish = function () {
 
+        if (that.room.isPeerToPeer()) {
+            that.room.emitEvent('stream-published', [{
+                stream: that
+            }]);
+            that.room.connectPeer(that);
+            return;
+        }
+
         // FIXME: Throw error when stream is not local
 
         initWebRtcPeer(that.publishVideoCallback);
@@ -772,6 +1067,63 @@ function Stream(kurento, local, room, options) {
         initWebRtcPeer(that.startVideoCallback);
     }
 
+    function sendPeerSdp(type, sdp) {
+        console.log("Sending SDP " + type + " to peer " + participant.getID(), sdp);
+        kurento.sendRequest('sendPeerSdp', {
+            peer: participant.getID(),
+            type: type,
+            sdp: sdp
+        }, function (error, response) {
+            if (error) {
+                console.error("Error on sendPeerSdp: " + JSON.stringify(error));
+            }
+        });
+    }
+
+    function initPeerConnection(localStream, callback) {
+        localPeerMedia = localStream.getWrStream();
+        var options = {
+            videoStream: localPeerMedia,
+            onicecandidate: participant.sendIceCandidate.bind(participant)
+        };
+        wp = new kurentoUtils.WebRtcPeer.WebRtcPeerSendrecv(options, function (error) {
+            if (error) {
+                return console.error(error);
+            }
+            callback.call(this);
+        });
+    }
+
+    // direct connection with a remote participant, sending it the offer
+    this.connectPeer = function (localStream) {
+        initPeerConnection(localStream, function () {
+            this.generateOffer(function (error, sdpOffer) {
+                if (error) {
+                    return console.error("(peer) SDP offer error: "
+                        + JSON.stringify(error));
+                }
+                sendPeerSdp('offer', sdpOffer);
+            });
+        });
+    }
+
+    // direct connection with a remote participant that has sent an offer
+    this.answerPeer = function (localStream, sdpOffer, candidates) {
+        initPeerConnection(localStream, function () {
+            this.processOffer(sdpOffer, function (error, sdpAnswer) {
+                if (error) {
+                    return console.error("(peer) SDP answer error: "
+                        + JSON.stringify(error));
+                }
+                sendPeerSdp('answer', sdpAnswer);
+                candidates.forEach(function (candidate) {
+                    wp.addIceCandidate(candidate);
+                });
+                showRemoteStream();
+            });
+        });
+    }
+
     this.processSdpAnswer = function (sdpAnswer) {
         var answer = new RTCSessionDescription({
             type: 'answer',
@@ -779,42 +1131,12 @@ function Stream(kurento, local, room, options) {
         });
         console.log(that.getGlobalID() + ": set peer connection with recvd SDP answer",
             sdpAnswer);
-        var participantId = that.getGlobalID();
         var pc = wp.peerConnection;
         pc.setRemoteDescription(answer, function () {
             // Avoids to subscribe to your own stream remotely 
             // except when showMyRemote is true
             if (!local || that.displayMyRemote()) {
-                wrStream = pc.getRemoteStreams()[0];
-                console.log("Peer remote stream", wrStream);
-                if (wrStream != undefined) {
-                    speechEvent = kurentoUtils.WebRtcPeer.hark(wrStream, {threshold: that.room.thresholdSpeaker});
-                    speechEvent.on('speaking', function () {
-                        that.room.addParticipantSpeaking(participantId);
-                        that.room.emitEvent('stream-speaking', [{
-                            participantId: participantId
-                        }]);
-                    });
-                    speechEvent.on('stopped_speaking', function () {
-                        that.room.removeParticipantSpeaking(participantId);
-                        that.room.emitEvent('stream-stopped-speaking', [{
-                            participantId: participantId
-                        }]);
-                    });
-                }
-                for (i = 0; i < videoElements.length; i++) {
-                    var thumbnailId = videoElements[i].thumb;
-                    var video = videoElements[i].video;
-                    video.src = URL.createObjectURL(wrStream);
-                    video.onplay = function () {
-                        console.log(that.getGlobalID() + ': ' + 'Video playing');
-                        $(jq(thumbnailId)).show();
-                        hideSpinner(that.getGlobalID());
-                    };
-                }
-                that.room.emitEvent('stream-subscribed', [{
-                    stream: that
-                }]);
+                showRemoteStream();
             }
         }, function (error) {
             console.error(that.getGlobalID() + ": Error setting SDP to the peer connection: "
@@ -822,6 +1144,41 @@ function Stream(kurento, local, room, options) {
         });
     }
 
+    function showRemoteStream() {
+        var participantId = that.getGlobalID();
+        var pc = wp.peerConnection;
+        wrStream = pc.getRemoteStreams()[0];
+        console.log("Peer remote stream", wrStream);
+        if (wrStream != undefined && !that.room.isServerSpeakerDetection()) {
+            speechEvent = kurentoUtils.WebRtcPeer.hark(wrStream, {threshold: that.room.thresholdSpeaker});
+            speechEvent.on('speaking', function () {
+                that.room.addParticipantSpeaking(participantId);
+                that.room.emitEvent('stream-speaking', [{
+                    participantId: participantId
+                }]);
+            });
+            speechEvent.on('stopped_speaking', function () {
+                that.room.removeParticipantSpeaking(participantId);
+                that.room.emitEvent('stream-stopped-speaking', [{
+                    participantId: participantId
+                }]);
+            });
+        }
+        for (i = 0; i < videoElements.length; i++) {
+            var thumbnailId = videoElements[i].thumb;
+            var video = videoElements[i].video;
+            video.src = URL.createObjectURL(wrStream);
+            video.onplay = function () {
+                console.log(that.getGlobalID() + ': ' + 'Video playing');
+                $(jq(thumbnailId)).show();
+                hideSpinner(that.getGlobalID());
+            };
+        }
+        that.room.emitEvent('stream-subscribed', [{
+            stream: that
+        }]);
+    }
+
     this.unpublish = function () {
         if (wp) {
             wp.dispose();
@@ -861,7 +1218,10 @@ function Stream(kurento, local, room, options) {
 
         disposeElement("progress-" + that.getGlobalID());
 
-        if (wp) {
+        if (wp && localPeerMedia) {
+            // the local media is still used by the local stream
+            wp.peerConnection.close();
+        } else if (wp) {
             wp.dispose();
         } else {
             if (wrStream) {
@@ -916,9 +1276,16 @@ function KurentoRoom(wsUri, callback) {
                 participantPublished: onParticipantPublished,
                 participantUnpublished: onParticipantLeft,
                 participantLeft: onParticipantLeft,
+                participantsChanged: onParticipantsChanged,
                 participantEvicted: onParticipantEvicted,
+                dominantSpeakerChanged: onDominantSpeakerChanged,
+                viewerCount: onViewerCount,
+                peerToPeer: onPeerToPeer,
+                peerSdp: onPeerSdp,
+                peerToPeerEnded: onPeerToPeerEnded,
                 sendMessage: onNewMessage,
                 iceCandidate: iceCandidateEvent,
+                iceCandidates: iceCandidatesEvent,
                 mediaError: onMediaError,
                 custonNotification: customNotification
             }
@@ -991,12 +1358,54 @@ function KurentoRoom(wsUri, callback) {
         }
     }
 
+    // merged roster changes, the departures are applied first
+    function onParticipantsChanged(params) {
+        if (isRoomAvailable()) {
+            params.removed.forEach(function (name) {
+                room.onParticipantLeft({name: name});
+            });
+            params.added.forEach(function (id) {
+                room.onParticipantJoined({id: id});
+            });
+        }
+    }
+
     function onParticipantEvicted(params) {
         if (isRoomAvailable()) {
             room.onParticipantEvicted(params);
         }
     }
 
+    function onDominantSpeakerChanged(params) {
+        if (isRoomAvailable()) {
+            room.onDominantSpeakerChanged(params);
+        }
+    }
+
+    function onViewerCount(params) {
+        if (isRoomAvailable()) {
+            room.onViewerCount(params);
+        }
+    }
+
+    function onPeerToPeer(params) {
+        if (isRoomAvailable()) {
+            room.onPeerToPeer(params);
+        }
+    }
+
+    function onPeerSdp(params) {
+        if (isRoomAvailable()) {
+            room.onPeerSdp(params);
+        }
+    }
+
+    function onPeerToPeerEnded(params) {
+        if (isRoomAvailable()) {
+            room.onPeerToPeerEnded(params);
+        }
+    }
+
     function onNewMessage(params) {
         if (isRoomAvailable()) {
             room.onNewMessage(params);
@@ -1009,6 +1418,15 @@ function KurentoRoom(wsUri, callback) {
         }
     }
 
+    // batch of candidates, each one with the same params as in iceCandidate
+    function iceCandidatesEvent(params) {
+        if (isRoomAvailable()) {
+            params.candidates.forEach(function (candidate) {
+                room.recvIceCandidate(candidate);
+            });
+        }
+    }
+
     function onRoomClosed(params) {
         if (isRoomAvailable()) {
             room.onRoomClosed(params);
@@ -1046,6 +1464,46 @@ function KurentoRoom(wsUri, callback) {
         jsonRpcClient.send(method, params, callback);
     };
 
+    // trickle ICE candidates gathered within this window (ms) are sent
+    // together in a single onIceCandidates request (0 disables it)
+    var iceCandidatesWindow = 20;
+    var pendingIceCandidates = [];
+    var iceCandidatesTimer;
+
+    this.setIceCandidatesWindow = function (millis) {
+        iceCandidatesWindow = millis;
+    }
+
+    this.sendIceCandidate = function (params) {
+        if (!iceCandidatesWindow) {
+            this.sendRequest("onIceCandidate", params, iceCandidatesCallback);
+            return;
+        }
+        pendingIceCandidates.push(params);
+        if (!iceCandidatesTimer) {
+            iceCandidatesTimer = setTimeout(flushIceCandidates, iceCandidatesWindow);
+        }
+    }
+
+    function flushIceCandidates() {
+        var candidates = pendingIceCandidates;
+        pendingIceCandidates = [];
+        iceCandidatesTimer = undefined;
+        if (candidates.length == 1) {
+            that.sendRequest("onIceCandidate", candidates[0], iceCandidatesCallback);
+        } else if (candidates.length > 1) {
+            that.sendRequest("onIceCandidates", {
+                candidates: candidates
+            }, iceCandidatesCallback);
+        }
+    }
+
+    function iceCandidatesCallback(error, response) {
+        if (error) {
+            console.error("Error sending ICE candidate: " + JSON.stringify(error));
+        }
+    }
+
     this.close = function (forced) {
         if (isRoomAvailable()) {
             room.leave(forced, jsonRpcClient);
@@ -16,12 +16,25 @@
 
 package org.kurento.room.client;
 
+import static org.kurento.room.internal.ProtocolElements.AUDIOLEVEL_LEVEL_PARAM;
+import static org.kurento.room.internal.ProtocolElements.AUDIOLEVEL_METHOD;
 import static org.kurento.room.internal.ProtocolElements.CUSTOMREQUEST_METHOD;
+import static org.kurento.room.internal.ProtocolElements.GETPARTICIPANTS_AFTER_PARAM;
+import static org.kurento.room.internal.ProtocolElements.GETPARTICIPANTS_CHANGENAME_PARAM;
+import static org.kurento.room.internal.ProtocolElements.GETPARTICIPANTS_CHANGES_PARAM;
+import static org.kurento.room.internal.ProtocolElements.GETPARTICIPANTS_CHANGETYPE_PARAM;
+import static org.kurento.room.internal.ProtocolElements.GETPARTICIPANTS_METHOD;
+import static org.kurento.room.internal.ProtocolElements.GETPARTICIPANTS_NEXT_PARAM;
+import static org.kurento.room.internal.ProtocolElements.GETPARTICIPANTS_PEERS_PARAM;
+import static org.kurento.room.internal.ProtocolElements.GETPARTICIPANTS_SINCEVERSION_PARAM;
 import static org.kurento.room.internal.ProtocolElements.JOINROOM_DATACHANNELS_PARAM;
 import static org.kurento.room.internal.ProtocolElements.JOINROOM_METHOD;
 import static org.kurento.room.internal.ProtocolElements.JOINROOM_PEERID_PARAM;
 import static org.kurento.room.internal.ProtocolElements.JOINROOM_PEERSTREAMID_PARAM;
+import static org.kurento.room.internal.ProtocolElements.JOINROOM_NEXT_PARAM;
 import static org.kurento.room.internal.ProtocolElements.JOINROOM_PEERSTREAMS_PARAM;
+import static org.kurento.room.internal.ProtocolElements.JOINROOM_PEERS_PARAM;
+import static org.kurento.room.internal.ProtocolElements.JOINROOM_ROSTERVERSION_PARAM;
 import static org.kurento.room.internal.ProtocolElements.JOINROOM_ROOM_PARAM;
 import static org.kurento.room.internal.ProtocolElements.JOINROOM_USER_PARAM;
 import static org.kurento.room.internal.ProtocolElements.LEAVEROOM_METHOD;
@@ -30,6 +43,8 @@ import static org.kurento.room.internal.ProtocolElements.ONICECANDIDATE_EPNAME_P
 import static org.kurento.room.internal.ProtocolElements.ONICECANDIDATE_METHOD;
 import static org.kurento.room.internal.ProtocolElements.ONICECANDIDATE_SDPMIDPARAM;
 import static org.kurento.room.internal.ProtocolElements.ONICECANDIDATE_SDPMLINEINDEX_PARAM;
+import static org.kurento.room.internal.ProtocolElements.ONICECANDIDATES_CANDIDATES_PARAM;
+import static org.kurento.room.internal.ProtocolElements.ONICECANDIDATES_METHOD;
 import static org.kurento.room.internal.ProtocolElements.PUBLISHVIDEO_DOLOOPBACK_PARAM;
 import static org.kurento.room.internal.ProtocolElements.PUBLISHVIDEO_METHOD;
 import static org.kurento.room.internal.ProtocolElements.PUBLISHVIDEO_SDPANSWER_PARAM;
@@ -54,6 +69,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.client.JsonRpcClient;
 import org.kurento.jsonrpc.client.JsonRpcClientWebSocket;
 import org.kurento.jsonrpc.client.JsonRpcWSConnectionListener;
@@ -132,29 +148,107 @@ public class KurentoRoomClient {
     }
     JsonElement result = client.sendRequest(JOINROOM_METHOD, params);
     Map<String, List<String>> peers = new HashMap<String, List<String>>();
-    JsonArray jsonPeers = JsonRoomUtils.getResponseProperty(result, "value", JsonArray.class);
-    if (jsonPeers.size() > 0) {
-      Iterator<JsonElement> peerIt = jsonPeers.iterator();
-      while (peerIt.hasNext()) {
-        JsonElement peer = peerIt.next();
-        String peerId = JsonRoomUtils
-            .getResponseProperty(peer, JOINROOM_PEERID_PARAM, String.class);
-        List<String> streams = new ArrayList<String>();
-        JsonArray jsonStreams = JsonRoomUtils.getResponseProperty(peer, JOINROOM_PEERSTREAMS_PARAM,
-            JsonArray.class, true);
-        if (jsonStreams != null) {
-          Iterator<JsonElement> streamIt = jsonStreams.iterator();
-          while (streamIt.hasNext()) {
-            streams.add(JsonRoomUtils.getResponseProperty(streamIt.next(),
-                JOINROOM_PEERSTREAMID_PARAM, String.class));
-          }
-        }
-        peers.put(peerId, streams);
+    addPeers(peers, JsonRoomUtils.getResponseProperty(result, JOINROOM_PEERS_PARAM,
+        JsonArray.class));
+    String next = JsonRoomUtils.getResponseProperty(result, JOINROOM_NEXT_PARAM, String.class,
+        true);
+    if (next != null) {
+      // paged roster, fetch the rest of it and catch up with the changes done meanwhile
+      long rosterVersion = JsonRoomUtils.getResponseProperty(result,
+          JOINROOM_ROSTERVERSION_PARAM, Long.class);
+      while (next != null) {
+        JsonObject page = getParticipants(next, -1);
+        addPeers(peers, JsonRoomUtils.getResponseProperty(page, GETPARTICIPANTS_PEERS_PARAM,
+            JsonArray.class));
+        next = JsonRoomUtils.getResponseProperty(page, GETPARTICIPANTS_NEXT_PARAM, String.class,
+            true);
+      }
+      JsonArray changes = JsonRoomUtils.getResponseProperty(getParticipants(null, rosterVersion),
+          GETPARTICIPANTS_CHANGES_PARAM, JsonArray.class, true);
+      if (changes != null) {
+        applyChanges(peers, changes, userName);
       }
     }
     return peers;
   }
 
+  /**
+   * Requests the roster of the room, used when the server sends it in pages to the new
+   * participants.
+   *
+   * @param after
+   *          name of the last peer of the previous page (as sent by the server), null for the first
+   *          page
+   * @param sinceVersion
+   *          roster version already known, or a negative value to request the page
+   * @return the server's response, either with the roster changes since the given version or with
+   *         the peers of the requested page
+   */
+  public JsonObject getParticipants(String after, long sinceVersion) throws IOException {
+    JsonObject params = new JsonObject();
+    if (after != null) {
+      params.addProperty(GETPARTICIPANTS_AFTER_PARAM, after);
+    }
+    if (sinceVersion >= 0) {
+      params.addProperty(GETPARTICIPANTS_SINCEVERSION_PARAM, sinceVersion);
+    }
+    return client.sendRequest(GETPARTICIPANTS_METHOD, params).getAsJsonObject();
+  }
+
+  private static void addPeers(Map<String, List<String>> peers, JsonArray jsonPeers) {
+    Iterator<JsonElement> peerIt = jsonPeers.iterator();
+    while (peerIt.hasNext()) {
+      JsonElement peer = peerIt.next();
+      String peerId = JsonRoomUtils.getResponseProperty(peer, JOINROOM_PEERID_PARAM, String.class);
+      List<String> streams = new ArrayList<String>();
+      JsonArray jsonStreams = JsonRoomUtils.getResponseProperty(peer, JOINROOM_PEERSTREAMS_PARAM,
+          JsonArray.class, true);
+      if (jsonStreams != null) {
+        Iterator<JsonElement> streamIt = jsonStreams.iterator();
+        while (streamIt.hasNext()) {
+          streams.add(JsonRoomUtils.getResponseProperty(streamIt.next(),
+              JOINROOM_PEERSTREAMID_PARAM, String.class));
+        }
+      }
+      peers.put(peerId, streams);
+    }
+  }
+
+  private static void applyChanges(Map<String, List<String>> peers, JsonArray changes,
+      String userName) {
+    for (JsonElement change : changes) {
+      String type = JsonRoomUtils.getResponseProperty(change, GETPARTICIPANTS_CHANGETYPE_PARAM,
+          String.class);
+      String name = JsonRoomUtils.getResponseProperty(change, GETPARTICIPANTS_CHANGENAME_PARAM,
+          String.class);
+      if (userName.equals(name)) {
+        continue;
+      }
+      switch (type) {
+        case "joined" :
+          if (!peers.containsKey(name)) {
+            peers.put(name, new ArrayList<String>());
+          }
+          break;
+        case "left" :
+          peers.remove(name);
+          break;
+        case "published" :
+          List<String> streams = new ArrayList<String>();
+          streams.add("webcam");
+          peers.put(name, streams);
+          break;
+        case "unpublished" :
+          if (peers.containsKey(name)) {
+            peers.put(name, new ArrayList<String>());
+          }
+          break;
+        default :
+          log.warn("Unknown roster change type {}", type);
+      }
+    }
+  }
+
   public void leaveRoom() throws IOException {
     client.sendRequest(LEAVEROOM_METHOD, new JsonObject());
   }
@@ -197,6 +291,30 @@ public class KurentoRoomClient {
     client.sendRequest(ONICECANDIDATE_METHOD, params);
   }
 
+  /**
+   * Sends several ICE candidates in a single request.
+   *
+   * @param candidates
+   *          the candidates, grouped by the name of their endpoint
+   */
+  public void onIceCandidates(Map<String, List<IceCandidate>> candidates) throws IOException {
+    JsonArray jsonCandidates = new JsonArray();
+    for (Map.Entry<String, List<IceCandidate>> endpointCandidates : candidates.entrySet()) {
+      for (IceCandidate candidate : endpointCandidates.getValue()) {
+        JsonObject jsonCandidate = new JsonObject();
+        jsonCandidate.addProperty(ONICECANDIDATE_EPNAME_PARAM, endpointCandidates.getKey());
+        jsonCandidate.addProperty(ONICECANDIDATE_CANDIDATE_PARAM, candidate.getCandidate());
+        jsonCandidate.addProperty(ONICECANDIDATE_SDPMIDPARAM, candidate.getSdpMid());
+        jsonCandidate.addProperty(ONICECANDIDATE_SDPMLINEINDEX_PARAM,
+            candidate.getSdpMLineIndex());
+        jsonCandidates.add(jsonCandidate);
+      }
+    }
+    JsonObject params = new JsonObject();
+    params.add(ONICECANDIDATES_CANDIDATES_PARAM, jsonCandidates);
+    client.sendRequest(ONICECANDIDATES_METHOD, params);
+  }
+
   public void sendMessage(String userName, String roomName, String message) throws IOException {
     JsonObject params = new JsonObject();
     params.addProperty(SENDMESSAGE_USER_PARAM, userName);
@@ -205,6 +323,19 @@ public class KurentoRoomClient {
     client.sendRequest(SENDMESSAGE_ROOM_METHOD, params);
   }
 
+  /**
+   * Reports the audio level of the published stream, used by the server to detect the dominant
+   * speaker of the room.
+   *
+   * @param level
+   *          audio level, in dBov
+   */
+  public void audioLevel(double level) throws IOException {
+    JsonObject params = new JsonObject();
+    params.addProperty(AUDIOLEVEL_LEVEL_PARAM, level);
+    client.sendRequest(AUDIOLEVEL_METHOD, params);
+  }
+
   public JsonElement customRequest(JsonObject customReqParams) throws IOException {
     return client.sendRequest(CUSTOMREQUEST_METHOD, customReqParams);
   }
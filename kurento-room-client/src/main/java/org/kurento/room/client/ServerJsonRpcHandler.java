@@ -26,6 +26,7 @@ import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.DefaultJsonRpcHandler;
 import org.kurento.jsonrpc.Transaction;
 import org.kurento.jsonrpc.message.Request;
+import org.kurento.room.client.internal.DominantSpeakerChangedInfo;
 import org.kurento.room.client.internal.IceCandidateInfo;
 import org.kurento.room.client.internal.JsonRoomUtils;
 import org.kurento.room.client.internal.MediaErrorInfo;
@@ -64,6 +65,12 @@ public class ServerJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
         case ProtocolElements.ICECANDIDATE_METHOD :
           notif = iceCandidate(transaction, request);
           break;
+        case ProtocolElements.ICECANDIDATES_METHOD :
+          // each candidate of the batch is enqueued as a regular notification
+          for (IceCandidateInfo candidateInfo : iceCandidates(transaction, request)) {
+            enqueue(candidateInfo);
+          }
+          break;
         case ProtocolElements.MEDIAERROR_METHOD :
           notif = mediaError(transaction, request);
           break;
@@ -73,6 +80,12 @@ public class ServerJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
         case ProtocolElements.PARTICIPANTLEFT_METHOD :
           notif = participantLeft(transaction, request);
           break;
+        case ProtocolElements.PARTICIPANTSCHANGED_METHOD :
+          // enqueued as the equivalent departures and joins
+          for (Notification change : participantsChanged(transaction, request)) {
+            enqueue(change);
+          }
+          break;
         case ProtocolElements.PARTICIPANTEVICTED_METHOD :
           notif = participantEvicted(transaction, request);
           break;
@@ -88,6 +101,9 @@ public class ServerJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
         case ProtocolElements.PARTICIPANTSENDMESSAGE_METHOD :
           notif = participantSendMessage(transaction, request);
           break;
+        case ProtocolElements.DOMINANTSPEAKERCHANGED_METHOD :
+          notif = dominantSpeakerChanged(transaction, request);
+          break;
         default :
           throw new Exception("Unrecognized request " + request.getMethod());
       }
@@ -97,12 +113,16 @@ public class ServerJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
       return;
     }
     if (notif != null) {
-      try {
-        notifications.put(notif);
-        log.debug("Enqueued notification {}", notif);
-      } catch (InterruptedException e) {
-        log.warn("Interrupted when enqueuing notification {}", notif, e);
-      }
+      enqueue(notif);
+    }
+  }
+
+  private void enqueue(Notification notif) {
+    try {
+      notifications.put(notif);
+      log.debug("Enqueued notification {}", notif);
+    } catch (InterruptedException e) {
+      log.warn("Interrupted when enqueuing notification {}", notif, e);
     }
   }
 
@@ -164,6 +184,32 @@ public class ServerJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
     return eventInfo;
   }
 
+  private Notification dominantSpeakerChanged(Transaction transaction,
+      Request<JsonObject> request) {
+    String name = JsonRoomUtils.getRequestParam(request,
+        ProtocolElements.DOMINANTSPEAKERCHANGED_NAME_PARAM, String.class);
+    DominantSpeakerChangedInfo eventInfo = new DominantSpeakerChangedInfo(name);
+    log.debug("Recvd dominant speaker changed event {}", eventInfo);
+    return eventInfo;
+  }
+
+  private List<Notification> participantsChanged(Transaction transaction,
+      Request<JsonObject> request) {
+    JsonArray removed = JsonRoomUtils.getRequestParam(request,
+        ProtocolElements.PARTICIPANTSCHANGED_REMOVED_PARAM, JsonArray.class);
+    JsonArray added = JsonRoomUtils.getRequestParam(request,
+        ProtocolElements.PARTICIPANTSCHANGED_ADDED_PARAM, JsonArray.class);
+    List<Notification> changes = new ArrayList<Notification>();
+    for (JsonElement name : removed) {
+      changes.add(new ParticipantLeftInfo(name.getAsString()));
+    }
+    for (JsonElement id : added) {
+      changes.add(new ParticipantJoinedInfo(id.getAsString()));
+    }
+    log.debug("Recvd participants changed event {}", changes);
+    return changes;
+  }
+
   private Notification participantJoined(Transaction transaction, Request<JsonObject> request) {
     String id = JsonRoomUtils.getRequestParam(request,
         ProtocolElements.PARTICIPANTJOINED_USER_PARAM, String.class);
@@ -200,6 +246,29 @@ public class ServerJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
     return eventInfo;
   }
 
+  private List<IceCandidateInfo> iceCandidates(Transaction transaction,
+      Request<JsonObject> request) {
+
+    JsonArray jsonCandidates = JsonRoomUtils.getRequestParam(request,
+        ProtocolElements.ICECANDIDATES_CANDIDATES_PARAM, JsonArray.class);
+    List<IceCandidateInfo> candidates = new ArrayList<IceCandidateInfo>();
+    for (JsonElement jsonCandidate : jsonCandidates) {
+      String candidate = JsonRoomUtils.getResponseProperty(jsonCandidate,
+          ProtocolElements.ICECANDIDATE_CANDIDATE_PARAM, String.class);
+      String sdpMid = JsonRoomUtils.getResponseProperty(jsonCandidate,
+          ProtocolElements.ICECANDIDATE_SDPMID_PARAM, String.class);
+      int sdpMLineIndex = JsonRoomUtils.getResponseProperty(jsonCandidate,
+          ProtocolElements.ICECANDIDATE_SDPMLINEINDEX_PARAM, Integer.class);
+      String endpoint = JsonRoomUtils.getResponseProperty(jsonCandidate,
+          ProtocolElements.ICECANDIDATE_EPNAME_PARAM, String.class);
+      candidates.add(new IceCandidateInfo(new IceCandidate(candidate, sdpMid, sdpMLineIndex),
+          endpoint));
+    }
+    log.debug("Recvd batch of {} ICE candidates", candidates.size());
+
+    return candidates;
+  }
+
   /**
    * Blocks until an element is available and then returns it by removing it from the queue.
    *
@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.client.internal;
+
+import org.kurento.room.internal.ProtocolElements;
+
+/**
+ * @see Notification
+ */
+public class DominantSpeakerChangedInfo extends Notification {
+
+  private String name;
+
+  public DominantSpeakerChangedInfo(String name) {
+    super(ProtocolElements.DOMINANTSPEAKERCHANGED_METHOD);
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("[");
+    if (getMethod() != null) {
+      builder.append("method=").append(getMethod()).append(", ");
+    }
+    if (name != null) {
+      builder.append("name=").append(name);
+    }
+    builder.append("]");
+    return builder.toString();
+  }
+}
@@ -94,6 +94,12 @@ public class JsonRoomUtils {
       }
     }
 
+    if (type == Long.class) {
+      if (paramValue.isJsonPrimitive()) {
+        return (T) Long.valueOf(paramValue.getAsLong());
+      }
+    }
+
     if (type == JsonArray.class) {
       if (paramValue.isJsonArray()) {
         return (T) paramValue.getAsJsonArray();
@@ -98,7 +98,7 @@ public class KurentoRoomDemoApp extends KurentoRoomServerApp {
     FixedNKmsManager fixedKmsManager = new FixedNKmsManager(kmsWsUris, DEMO_KMS_NODE_LIMIT);
     fixedKmsManager.setAuthRegex(DEMO_AUTH_REGEX);
     log.debug("Authorization regex for new rooms: {}", DEMO_AUTH_REGEX);
-    return fixedKmsManager;
+    return configurePipelinePools(fixedKmsManager);
   }
 
   @Override
@@ -142,7 +142,12 @@ public class KurentoRoomDemoApp extends KurentoRoomServerApp {
       default:
     }
 
-    return new NotificationRoomManager(notificationRoomHandler, kmsManager());
+    configureNotifications(notificationRoomHandler);
+
+    NotificationRoomManager roomManager =
+        new NotificationRoomManager(notificationRoomHandler, kmsManager());
+    roomManager.getRoomManager().setDefaultRoomSettings(defaultRoomSettings());
+    return roomManager;
   }
 
   private void getMarkerUrls(SortedMap<Integer, String> sortedUrls) {
@@ -17,8 +17,14 @@
 package org.kurento.room;
 
 import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+import org.kurento.client.IceCandidate;
 import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.MediaType;
@@ -28,11 +34,16 @@ import org.kurento.room.api.MutedMediaType;
 import org.kurento.room.api.NotificationRoomHandler;
 import org.kurento.room.api.UserNotificationService;
 import org.kurento.room.api.pojo.ParticipantRequest;
+import org.kurento.room.api.pojo.RoomSettings;
+import org.kurento.room.api.pojo.RosterChange;
 import org.kurento.room.api.pojo.UserParticipant;
+import org.kurento.room.endpoint.SdpType;
 import org.kurento.room.exception.RoomException;
 import org.kurento.room.exception.RoomException.Code;
+import org.kurento.room.internal.ContinuationFutures;
 import org.kurento.room.internal.DefaultKurentoClientSessionInfo;
 import org.kurento.room.internal.DefaultNotificationRoomHandler;
+import org.kurento.room.internal.Room;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -98,6 +109,7 @@ public class NotificationRoomManager {
   public void joinRoom(String userName, String roomName, boolean dataChannels,
       boolean webParticipant, ParticipantRequest request) {
     Set<UserParticipant> existingParticipants = null;
+    long rosterVersion = getRosterVersion(roomName);
     try {
       KurentoClientSessionInfo kcSessionInfo =
           new DefaultKurentoClientSessionInfo(request.getParticipantId(), roomName);
@@ -106,11 +118,137 @@ public class NotificationRoomManager {
               request.getParticipantId());
     } catch (RoomException e) {
       log.warn("PARTICIPANT {}: Error joining/creating room {}", userName, roomName, e);
-      notificationRoomHandler.onParticipantJoined(request, roomName, userName, null, e);
+      notificationRoomHandler.onParticipantJoined(request, roomName, userName, null,
+          rosterVersion, e);
     }
     if (existingParticipants != null) {
-      notificationRoomHandler
-          .onParticipantJoined(request, roomName, userName, existingParticipants, null);
+      notifyMix(roomName, request.getParticipantId());
+      notifyPeerToPeer(roomName, request.getParticipantId(), existingParticipants);
+      notificationRoomHandler.onParticipantJoined(request, roomName, userName,
+          existingParticipants, rosterVersion, null);
+    }
+  }
+
+  /**
+   * Non-blocking version of
+   * {@link #joinRoom(String, String, boolean, boolean, ParticipantRequest)}, the room event handler
+   * is invoked from the thread that completes the operation.
+   *
+   * @return future completed after the handler has been notified
+   * @see RoomManager#joinRoomAsync(String, String, boolean, boolean, KurentoClientSessionInfo,
+   * String)
+   */
+  public CompletableFuture<Void> joinRoomAsync(final String userName, final String roomName,
+      boolean dataChannels, boolean webParticipant, final ParticipantRequest request) {
+    KurentoClientSessionInfo kcSessionInfo =
+        new DefaultKurentoClientSessionInfo(request.getParticipantId(), roomName);
+    final long rosterVersion = getRosterVersion(roomName);
+    return internalManager.joinRoomAsync(userName, roomName, dataChannels, webParticipant,
+        kcSessionInfo, request.getParticipantId()).handle((existingParticipants, error) -> {
+          if (error != null) {
+            RoomException e = ContinuationFutures.toRoomException(error);
+            log.warn("PARTICIPANT {}: Error joining/creating room {}", userName, roomName, e);
+            notificationRoomHandler.onParticipantJoined(request, roomName, userName, null,
+                rosterVersion, e);
+          } else {
+            notifyMix(roomName, request.getParticipantId());
+            notifyPeerToPeer(roomName, request.getParticipantId(), existingParticipants);
+            notificationRoomHandler.onParticipantJoined(request, roomName, userName,
+                existingParticipants, rosterVersion, null);
+          }
+          return null;
+        });
+  }
+
+  /**
+   * Calls {@link RoomManager#joinRoomAsViewer(String, String, KurentoClientSessionInfo, String)}
+   * with a {@link DefaultKurentoClientSessionInfo} bean as implementation of the
+   * {@link KurentoClientSessionInfo}.
+   *
+   * @param request instance of {@link ParticipantRequest} POJO containing the viewer's id and a
+   *                request id (optional identifier of the request at the communications level,
+   *                included when responding back to the client)
+   * @see RoomManager#joinRoomAsViewer(String, String, KurentoClientSessionInfo, String)
+   */
+  public void joinRoomAsViewer(String userName, String roomName, ParticipantRequest request) {
+    Set<UserParticipant> publishers = null;
+    try {
+      KurentoClientSessionInfo kcSessionInfo =
+          new DefaultKurentoClientSessionInfo(request.getParticipantId(), roomName);
+      publishers = internalManager.joinRoomAsViewer(userName, roomName, kcSessionInfo,
+          request.getParticipantId());
+    } catch (RoomException e) {
+      log.warn("VIEWER {}: Error joining/creating room {}", userName, roomName, e);
+      notificationRoomHandler.onViewerJoined(request, roomName, userName, null, e);
+    }
+    if (publishers != null) {
+      notifyMix(roomName, request.getParticipantId());
+      notificationRoomHandler.onViewerJoined(request, roomName, userName, publishers, null);
+    }
+  }
+
+  private void notifyMix(String roomName, String participantId) {
+    try {
+      RoomSettings settings = internalManager.getRoomSettings(roomName);
+      if (settings.getMode() != RoomSettings.Mode.SFU) {
+        notificationRoomHandler.onMixPublished(participantId, Room.MIX_NAME, settings.getMode());
+      }
+    } catch (RoomException e) {
+      log.warn("PARTICIPANT {}: Error notifying the mix of room {}", participantId, roomName, e);
+    }
+  }
+
+  private void notifyPeerToPeer(String roomName, String participantId,
+      Set<UserParticipant> existingParticipants) {
+    try {
+      if (internalManager.isPeerToPeer(roomName)) {
+        String peerName = null;
+        if (!existingParticipants.isEmpty()) {
+          peerName = existingParticipants.iterator().next().getUserName();
+        }
+        notificationRoomHandler.onPeerToPeer(participantId, peerName);
+      }
+    } catch (RoomException e) {
+      log.warn("PARTICIPANT {}: Error notifying the peer in room {}", participantId, roomName, e);
+    }
+  }
+
+  /**
+   * Used by clients to fetch the roster of their room, either a page of it or only its changes
+   * since a version they already know of (from the response to their join request or to a
+   * previous call of this method).<br/>
+   * <strong>Side effects:</strong> The room event handler should respond to the client with the
+   * changes if they are still available, otherwise with the requested page of the roster.
+   *
+   * @param after        name of the last peer of the previous page, null for the first page (used
+   *                     if the changes aren't available)
+   * @param sinceVersion roster version known by the client, a negative value to request the page
+   * @param request      instance of {@link ParticipantRequest} POJO
+   * @see RoomManager#getRosterChanges(String, long)
+   */
+  public void getParticipants(String after, long sinceVersion, ParticipantRequest request) {
+    log.debug("Request [GET_PARTICIPANTS] after={}, sinceVersion={} ({})", after, sinceVersion,
+        request);
+    try {
+      String roomName = internalManager.getRoomName(request.getParticipantId());
+      long rosterVersion = internalManager.getRosterVersion(roomName);
+      List<RosterChange> changes = null;
+      if (sinceVersion >= 0) {
+        changes = internalManager.getRosterChanges(roomName, sinceVersion);
+      }
+      Set<UserParticipant> participants = null;
+      if (changes != null) {
+        rosterVersion = changes.isEmpty() ? sinceVersion
+            : changes.get(changes.size() - 1).getVersion();
+      } else {
+        participants = internalManager.getParticipants(roomName);
+      }
+      notificationRoomHandler.onGetParticipants(request, after, participants, rosterVersion,
+          changes, null);
+    } catch (RoomException e) {
+      log.warn("PARTICIPANT {}: Error getting the roster (after={}, sinceVersion={})",
+          request.getParticipantId(), after, sinceVersion, e);
+      notificationRoomHandler.onGetParticipants(request, after, null, -1, null, e);
     }
   }
 
@@ -126,7 +264,16 @@ public class NotificationRoomManager {
     try {
       roomName = internalManager.getRoomName(pid);
       userName = internalManager.getParticipantName(pid);
+      boolean viewer = internalManager.isViewer(pid);
+      boolean streaming = internalManager.isPublisherStreaming(pid);
       remainingParticipants = internalManager.leaveRoom(pid);
+      if (viewer) {
+        // nobody is notified about a single viewer
+        remainingParticipants = Collections.emptySet();
+      } else if (streaming) {
+        // the viewers must drop the stream of the departing publisher
+        remainingParticipants = withViewers(roomName, remainingParticipants);
+      }
     } catch (RoomException e) {
       log.warn("PARTICIPANT {}: Error leaving room {}", userName, roomName, e);
       notificationRoomHandler.onParticipantLeft(request, null, null, e);
@@ -153,7 +300,7 @@ public class NotificationRoomManager {
       sdpAnswer = internalManager
           .publishMedia(request.getParticipantId(), isOffer, sdp, loopbackAlternativeSrc,
               loopbackConnectionType, doLoopback, mediaElements);
-      participants = internalManager.getParticipants(internalManager.getRoomName(pid));
+      participants = getAudience(pid);
     } catch (RoomException e) {
       log.warn("PARTICIPANT {}: Error publishing media", userName, e);
       notificationRoomHandler.onPublishMedia(request, null, null, null, e);
@@ -163,6 +310,51 @@ public class NotificationRoomManager {
     }
   }
 
+  /**
+   * Non-blocking version of
+   * {@link #publishMedia(ParticipantRequest, boolean, String, MediaElement, MediaType, boolean, MediaElement...)}
+   * .
+   *
+   * @return future completed after the handler has been notified
+   * @see RoomManager#publishMediaAsync(String, boolean, String, MediaElement, MediaType, boolean,
+   * MediaElement...)
+   */
+  public CompletableFuture<Void> publishMediaAsync(final ParticipantRequest request,
+      boolean isOffer, String sdp, MediaElement loopbackAlternativeSrc,
+      MediaType loopbackConnectionType, boolean doLoopback, MediaElement... mediaElements) {
+    final String pid = request.getParticipantId();
+    final String userName;
+    try {
+      userName = internalManager.getParticipantName(pid);
+    } catch (RoomException e) {
+      log.warn("PARTICIPANT {}: Error publishing media", pid, e);
+      notificationRoomHandler.onPublishMedia(request, null, null, null, e);
+      return CompletableFuture.completedFuture(null);
+    }
+    return internalManager.publishMediaAsync(pid, isOffer, sdp, loopbackAlternativeSrc,
+        loopbackConnectionType, doLoopback, mediaElements).handle((sdpAnswer, error) -> {
+          Set<UserParticipant> participants = null;
+          RoomException e = null;
+          if (error != null) {
+            e = ContinuationFutures.toRoomException(error);
+          } else {
+            try {
+              participants = getAudience(pid);
+            } catch (RoomException re) {
+              e = re;
+            }
+          }
+          if (e != null) {
+            log.warn("PARTICIPANT {}: Error publishing media", userName, e);
+            notificationRoomHandler.onPublishMedia(request, null, null, null, e);
+          } else {
+            notificationRoomHandler.onPublishMedia(request, userName, sdpAnswer, participants,
+                null);
+          }
+          return null;
+        });
+  }
+
   /**
    * @param request instance of {@link ParticipantRequest} POJO
    * @see RoomManager#publishMedia(String, String, boolean, MediaElement...)
@@ -185,7 +377,7 @@ public class NotificationRoomManager {
       userName = internalManager.getParticipantName(pid);
       internalManager.unpublishMedia(pid);
       unpublished = true;
-      participants = internalManager.getParticipants(internalManager.getRoomName(pid));
+      participants = getAudience(pid);
     } catch (RoomException e) {
       log.warn("PARTICIPANT {}: Error unpublishing media", userName, e);
       notificationRoomHandler.onUnpublishMedia(request, null, null, e);
@@ -215,6 +407,28 @@ public class NotificationRoomManager {
     }
   }
 
+  /**
+   * Non-blocking version of {@link #subscribe(String, String, ParticipantRequest)}.
+   *
+   * @return future completed after the handler has been notified
+   * @see RoomManager#subscribeAsync(String, String, String)
+   */
+  public CompletableFuture<Void> subscribeAsync(final String remoteName, String sdpOffer,
+      final ParticipantRequest request) {
+    final String pid = request.getParticipantId();
+    return internalManager.subscribeAsync(remoteName, sdpOffer, pid)
+        .handle((sdpAnswer, error) -> {
+          if (error != null) {
+            RoomException e = ContinuationFutures.toRoomException(error);
+            log.warn("PARTICIPANT {}: Error subscribing to {}", pid, remoteName, e);
+            notificationRoomHandler.onSubscribe(request, null, e);
+          } else {
+            notificationRoomHandler.onSubscribe(request, sdpAnswer, null);
+          }
+          return null;
+        });
+  }
+
   /**
    * @param request instance of {@link ParticipantRequest} POJO
    * @see RoomManager#unsubscribe(String, String)
@@ -255,6 +469,73 @@ public class NotificationRoomManager {
     }
   }
 
+  /**
+   * Used by the participants of a peer-to-peer room to negotiate their connection.<br/>
+   * <strong>Side effects:</strong> The room event handler should acknowledge the client's request
+   * and send the SDP to the peer.
+   *
+   * @param peerName name of the participant that has to receive the SDP
+   * @param type     whether the SDP is an offer or an answer
+   * @param sdp      the SDP generated by the client's WebRTC peer
+   * @param request  instance of {@link ParticipantRequest} POJO
+   * @see RoomManager#relayPeerSdp(String, SdpType, String, String)
+   */
+  public void sendPeerSdp(String peerName, SdpType type, String sdp, ParticipantRequest request) {
+    String pid = request.getParticipantId();
+    String userName = null;
+    UserParticipant peer = null;
+    try {
+      userName = internalManager.getParticipantName(pid);
+      peer = internalManager.relayPeerSdp(peerName, type, sdp, pid);
+    } catch (RoomException e) {
+      log.warn("PARTICIPANT {}: Error sending SDP {} to peer {}", userName, type, peerName, e);
+      notificationRoomHandler.onPeerSdp(request, userName, null, type, sdp, e);
+    }
+    if (peer != null) {
+      notificationRoomHandler.onPeerSdp(request, userName, peer, type, sdp, null);
+    }
+  }
+
+  /**
+   * Used by the publishers to report the audio level of their stream, so that the server detects
+   * the dominant speaker of the room. The levels can't be verified by the server, so they're only
+   * advisory (see {@link RoomSettings#getSpeakerThreshold()}).<br/>
+   * <strong>Side effects:</strong> The room event handler should acknowledge the client's request
+   * and, if the dominant speaker changes, notify all the participants in the room.
+   *
+   * @param level   audio level, in dBov
+   * @param request instance of {@link ParticipantRequest} POJO
+   * @see RoomManager#updateAudioLevel(String, double)
+   */
+  public void updateAudioLevel(double level, ParticipantRequest request) {
+    String pid = request.getParticipantId();
+    try {
+      internalManager.updateAudioLevel(pid, level);
+      notificationRoomHandler.onRecvAudioLevel(request, null);
+    } catch (RoomException e) {
+      log.debug("PARTICIPANT {}: Error updating the audio level ({})", pid, e.getMessage());
+      notificationRoomHandler.onRecvAudioLevel(request, e);
+    }
+  }
+
+  /**
+   * @see RoomManager#onIceCandidates(Map, String)
+   */
+  public void onIceCandidates(Map<String, List<IceCandidate>> candidates,
+      ParticipantRequest request) {
+    String pid = request.getParticipantId();
+    String userName = null;
+    try {
+      userName = internalManager.getParticipantName(pid);
+      internalManager.onIceCandidates(candidates, pid);
+      notificationRoomHandler.onRecvIceCandidate(request, null);
+    } catch (RoomException e) {
+      log.warn("PARTICIPANT {}: Error receiving ICE candidates (epNames={})", userName,
+          candidates.keySet(), e);
+      notificationRoomHandler.onRecvIceCandidate(request, e);
+    }
+  }
+
   /**
    * Used by clients to send written messages to all other participants in the room.<br/>
    * <strong>Side effects:</strong> The room event handler should acknowledge the client's request
@@ -294,8 +575,10 @@ public class NotificationRoomManager {
   @PreDestroy
   public void close() {
     if (!internalManager.isClosed()) {
-      internalManager.close();
+      internalManager.close(
+          (roomName, participants) -> notificationRoomHandler.onRoomClosed(roomName, participants));
     }
+    notificationRoomHandler.close();
   }
 
   /**
@@ -312,6 +595,13 @@ public class NotificationRoomManager {
     return internalManager.getParticipants(roomName);
   }
 
+  /**
+   * @see RoomManager#containsParticipant(String, String)
+   */
+  public boolean containsParticipant(String roomName, String participantId) {
+    return internalManager.containsParticipant(roomName, participantId);
+  }
+
   /**
    * @see RoomManager#getPublishers(String)
    */
@@ -340,6 +630,20 @@ public class NotificationRoomManager {
     return internalManager.getPeerSubscribers(participantId);
   }
 
+  /**
+   * @see RoomManager#dumpSubscriptions(String)
+   */
+  public String dumpSubscriptions(String roomName) throws RoomException {
+    return internalManager.dumpSubscriptions(roomName);
+  }
+
+  /**
+   * @see RoomManager#onActiveSpeaker(String)
+   */
+  public boolean onActiveSpeaker(String participantId) throws RoomException {
+    return internalManager.onActiveSpeaker(participantId);
+  }
+
   /**
    * @see RoomManager#createRoom(KurentoClientSessionInfo)
    */
@@ -347,6 +651,14 @@ public class NotificationRoomManager {
     internalManager.createRoom(kcSessionInfo);
   }
 
+  /**
+   * @see RoomManager#createRoom(KurentoClientSessionInfo, RoomSettings)
+   */
+  public void createRoom(KurentoClientSessionInfo kcSessionInfo, RoomSettings settings)
+      throws RoomException {
+    internalManager.createRoom(kcSessionInfo, settings);
+  }
+
   /**
    * @see RoomManager#getPipeline(String)
    */
@@ -364,7 +676,11 @@ public class NotificationRoomManager {
    */
   public void evictParticipant(String participantId) throws RoomException {
     UserParticipant participant = internalManager.getParticipantInfo(participantId);
+    boolean viewer = internalManager.isViewer(participantId);
     Set<UserParticipant> remainingParticipants = internalManager.leaveRoom(participantId);
+    if (viewer) {
+      remainingParticipants = Collections.emptySet();
+    }
     notificationRoomHandler.onParticipantLeft(participant.getUserName(), remainingParticipants);
     notificationRoomHandler.onParticipantEvicted(participant);
   }
@@ -443,4 +759,42 @@ public class NotificationRoomManager {
   public void updateFilter(String roomId, String filterId) {
     internalManager.updateFilter(roomId, filterId);
   }
+
+  /**
+   * @return the participants and viewers of the participant's room, who are notified about the
+   *         streams that are published or unpublished
+   */
+  private Set<UserParticipant> getAudience(String participantId) {
+    String roomName = internalManager.getRoomName(participantId);
+    return withViewers(roomName, internalManager.getParticipants(roomName));
+  }
+
+  private Set<UserParticipant> withViewers(String roomName, Set<UserParticipant> participants) {
+    Set<UserParticipant> viewers;
+    try {
+      viewers = internalManager.getViewers(roomName);
+    } catch (RoomException e) {
+      // the room has been closed
+      return participants;
+    }
+    if (viewers.isEmpty()) {
+      return participants;
+    }
+    Set<UserParticipant> audience = new HashSet<UserParticipant>(participants);
+    audience.addAll(viewers);
+    return audience;
+  }
+
+  /**
+   * Reads the roster version before joining, so that the new participant can't miss any change
+   * done after its set of existing peers was built. A room that doesn't exist yet starts with
+   * version 0.
+   */
+  private long getRosterVersion(String roomName) {
+    try {
+      return internalManager.getRosterVersion(roomName);
+    } catch (RoomException e) {
+      return 0;
+    }
+  }
 }
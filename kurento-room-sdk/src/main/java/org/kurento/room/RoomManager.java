@@ -17,12 +17,24 @@
 package org.kurento.room;
 
 import javax.annotation.PreDestroy;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
 
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
@@ -35,10 +47,14 @@ import org.kurento.room.api.KurentoClientProvider;
 import org.kurento.room.api.KurentoClientSessionInfo;
 import org.kurento.room.api.MutedMediaType;
 import org.kurento.room.api.RoomHandler;
+import org.kurento.room.api.pojo.RoomSettings;
+import org.kurento.room.api.pojo.RosterChange;
 import org.kurento.room.api.pojo.UserParticipant;
 import org.kurento.room.endpoint.SdpType;
 import org.kurento.room.exception.RoomException;
 import org.kurento.room.exception.RoomException.Code;
+import org.kurento.room.internal.ContinuationFutures;
+import org.kurento.room.internal.LatencyStats;
 import org.kurento.room.internal.Participant;
 import org.kurento.room.internal.Room;
 import org.slf4j.Logger;
@@ -62,8 +78,46 @@ public class RoomManager {
 
   private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
 
+  /**
+   * Rooms being created at this moment, used to collapse concurrent creation requests.
+   */
+  private final ConcurrentMap<String, CompletableFuture<Room>> roomCreations =
+      new ConcurrentHashMap<String, CompletableFuture<Room>>();
+
+  /**
+   * Index of all the participants on this node by their identifier, avoids scanning every room
+   * when resolving the participant of a request.
+   */
+  private final ConcurrentMap<String, Participant> participants =
+      new ConcurrentHashMap<String, Participant>();
+
   private volatile boolean closed = false;
 
+  private volatile RoomSettings defaultRoomSettings = new RoomSettings();
+
+  private int closeRoomsConcurrency = 8;
+
+  // created on first use, unless replaced before by setFanOutExecutor()
+  private volatile ExecutorService fanOutExecutor;
+  private final LatencyStats fanOutStats = new LatencyStats("publisherFanOut");
+
+  // replaced by the tests that need to control the time
+  private volatile LongSupplier clock = System::currentTimeMillis;
+
+  // runs the mailboxes of the rooms in serial execution mode (the media server's responses are
+  // awaited without holding these threads, see Room#serializeAsync)
+  private final ExecutorService roomExecutor = Executors.newFixedThreadPool(
+      Math.max(4, 2 * Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+        private final AtomicInteger threads = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "room-mailbox-" + threads.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
   /**
    * Provides an instance of the room manager by setting a room handler and the
    * {@link KurentoClient} provider.
@@ -79,7 +133,8 @@ public class RoomManager {
 
   /**
    * Represents a client's request to join a room. The room must exist in order to perform the
-   * join.<br/>
+   * join. In a peer-to-peer room, the third participant to join makes the room create its
+   * pipeline (see {@link RoomHandler#onPeerToPeerEnded(String, Set)}).<br/>
    * <strong>Dev advice:</strong> Send notifications to the existing participants in the room to
    * inform about the new peer.
    *
@@ -108,42 +163,122 @@ public class RoomManager {
     log.debug("Request [JOIN_ROOM] user={}, room={}, web={} " + "kcSessionInfo.room={} ({})",
         userName, roomName, webParticipant,
         kcSessionInfo != null ? kcSessionInfo.getRoomName() : null, participantId);
-    Room room = rooms.get(roomName);
-    if (room == null && kcSessionInfo != null) {
-      createRoom(kcSessionInfo);
+    final Room room = getOrCreateRoom(userName, roomName, kcSessionInfo);
+    if (room.isSerialExecution()) {
+      // the pipeline is created without holding the room's mailbox
+      return await(joinRoomAsync(room, userName, dataChannels, webParticipant, kcSessionInfo,
+          participantId));
     }
-    room = rooms.get(roomName);
-    if (room == null) {
-      log.warn("Room '{}' not found");
-      throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE,
-          "Room '" + roomName + "' was not found, must be created before '" + userName
-              + "' can join");
-    }
-    if (room.isClosed()) {
-      log.warn("'{}' is trying to join room '{}' but it is closing", userName, roomName);
-      throw new RoomException(Code.ROOM_CLOSED_ERROR_CODE,
-          "'" + userName + "' is trying to join room '" + roomName + "' but it is closing");
+    return addParticipant(room, userName, dataChannels, webParticipant, kcSessionInfo,
+        participantId);
+  }
+
+  private Set<UserParticipant> addParticipant(Room room, String userName, boolean dataChannels,
+      boolean webParticipant, KurentoClientSessionInfo kcSessionInfo, String participantId) {
+    Set<UserParticipant> existingParticipants = getParticipants(room.getName());
+    room.join(participantId, userName, dataChannels, webParticipant,
+        placeParticipant(room, kcSessionInfo));
+    Participant participant = room.getParticipant(participantId);
+    if (participant != null) {
+      participants.put(participantId, participant);
     }
-    Set<UserParticipant> existingParticipants = getParticipants(roomName);
-    room.join(participantId, userName, dataChannels, webParticipant);
     return existingParticipants;
   }
 
+  /**
+   * Non-blocking version of
+   * {@link #joinRoom(String, String, boolean, boolean, KurentoClientSessionInfo, String)}. The
+   * calling thread doesn't wait for the room's media pipeline to be created (nor is it created,
+   * if the participant joins a peer-to-peer room).
+   *
+   * @return future completed with the set of existing peers
+   */
+  public CompletableFuture<Set<UserParticipant>> joinRoomAsync(final String userName,
+      final String roomName, final boolean dataChannels, final boolean webParticipant,
+      final KurentoClientSessionInfo kcSessionInfo, final String participantId) {
+    log.debug("Request [JOIN_ROOM_ASYNC] user={}, room={}, web={} " + "kcSessionInfo.room={} ({})",
+        userName, roomName, webParticipant,
+        kcSessionInfo != null ? kcSessionInfo.getRoomName() : null, participantId);
+    try {
+      Room room = getOrCreateRoom(userName, roomName, kcSessionInfo);
+      return joinRoomAsync(room, userName, dataChannels, webParticipant, kcSessionInfo,
+          participantId);
+    } catch (RoomException e) {
+      return ContinuationFutures.failed(e);
+    }
+  }
+
+  private CompletableFuture<Set<UserParticipant>> joinRoomAsync(final Room room,
+      final String userName, final boolean dataChannels, final boolean webParticipant,
+      final KurentoClientSessionInfo kcSessionInfo, final String participantId) {
+    CompletableFuture<?> media = room.isPeerToPeer() ? CompletableFuture.completedFuture(null)
+        : room.createPipelineAsync();
+    return media.thenCompose(pipeline -> room.serializeAsync(() -> CompletableFuture
+        .completedFuture(addParticipant(room, userName, dataChannels, webParticipant,
+            kcSessionInfo, participantId))));
+  }
+
+  /**
+   * Represents a client's request to join a room as a viewer, a participant that can only receive
+   * the media of the publishers. Viewers don't get a publisher endpoint, aren't part of the room's
+   * roster (see {@link #getParticipants(String)}) and the subscriber endpoints they need are only
+   * created when they subscribe. In rooms spread over several media servers, they're placed like
+   * any other participant and receive the media through the relays between the servers. A viewer
+   * can join (or create) a room before any presenter, and the room isn't closed while it has
+   * viewers, even if all its presenters are gone: they keep waiting for the presenters to come
+   * back, until the last of them leaves or the room is closed.<br/>
+   * <strong>Dev advice:</strong> Don't notify the other participants about the new viewer, only
+   * about the number of viewers (see
+   * {@link RoomHandler#onViewerCountChanged(String, int, java.util.function.Supplier)}).
+   *
+   * @param userName      name or identifier of the viewer in the room
+   * @param roomName      name or identifier of the room
+   * @param kcSessionInfo sessionInfo bean to be used to create the room in case it doesn't exist
+   *                      (if null, the room will not be created)
+   * @param participantId identifier of the viewer
+   * @return set of the room's publishers, the viewer can subscribe to their streams
+   * @throws RoomException on error while joining (like the room is not found or is closing)
+   */
+  public Set<UserParticipant> joinRoomAsViewer(String userName, String roomName,
+      KurentoClientSessionInfo kcSessionInfo, String participantId) throws RoomException {
+    log.debug("Request [JOIN_ROOM_AS_VIEWER] user={}, room={} kcSessionInfo.room={} ({})",
+        userName, roomName, kcSessionInfo != null ? kcSessionInfo.getRoomName() : null,
+        participantId);
+    final Room room = getOrCreateRoom(userName, roomName, kcSessionInfo);
+    if (room.isSerialExecution()) {
+      // the pipeline is created without holding the room's mailbox
+      await(room.createPipelineAsync());
+    }
+    return room.serialize(() -> {
+      room.joinAsViewer(participantId, userName, placeParticipant(room, kcSessionInfo));
+      Participant viewer = room.getParticipant(participantId);
+      if (viewer != null) {
+        participants.put(participantId, viewer);
+      }
+      return getPublishers(roomName);
+    });
+  }
+
   /**
    * Represents a client's notification that she's leaving the room. Will also close the room if
-   * there're no more peers.<br/>
+   * there're no more peers (nor viewers).<br/>
    * <strong>Dev advice:</strong> Send notifications to the other participants in the room to inform
    * about the one that's just left.
    *
    * @param participantId identifier of the participant
-   * @return set of remaining peers of type {@link UserParticipant}, if empty this method has closed
-   * the room
+   * @return set of remaining peers of type {@link UserParticipant} (viewers excluded), if empty
+   * and the room has no viewers this method has closed the room
    * @throws RoomException on error leaving the room
    */
   public Set<UserParticipant> leaveRoom(String participantId) throws RoomException {
     log.debug("Request [LEAVE_ROOM] ({})", participantId);
-    Participant participant = getParticipant(participantId);
-    Room room = participant.getRoom();
+    final Participant participant = getParticipant(participantId);
+    final Room room = participant.getRoom();
+    return room.serialize(() -> leaveRoom(participant, room));
+  }
+
+  private Set<UserParticipant> leaveRoom(Participant participant, Room room) {
+    String participantId = participant.getId();
     String roomName = room.getName();
     if (room.isClosed()) {
       log.warn("'{}' is trying to leave from room '{}' but it is closing", participant.getName(),
@@ -152,7 +287,11 @@ public class RoomManager {
           "'" + participant.getName() + "' is trying to leave from room '" + roomName
               + "' but it is closing");
     }
-    room.leave(participantId);
+    try {
+      room.leave(participantId);
+    } finally {
+      participants.remove(participantId, participant);
+    }
     Set<UserParticipant> remainingParticipants = null;
     try {
       remainingParticipants = getParticipants(roomName);
@@ -160,7 +299,7 @@ public class RoomManager {
       log.debug("Possible collision when closing the room '{}' (not found)");
       remainingParticipants = Collections.emptySet();
     }
-    if (remainingParticipants.isEmpty()) {
+    if (remainingParticipants.isEmpty() && room.getViewerCount() == 0) {
       log.debug("No more participants in room '{}', removing it and closing it", roomName);
       room.close();
       rooms.remove(roomName);
@@ -208,26 +347,81 @@ public class RoomManager {
         loopbackAlternativeSrc == null, loopbackConnectionType, doLoopback, mediaElements,
         participantId);
 
-    SdpType sdpType = isOffer ? SdpType.OFFER : SdpType.ANSWER;
-    Participant participant = getParticipant(participantId);
-    String name = participant.getName();
-    Room room = participant.getRoom();
+    final SdpType sdpType = isOffer ? SdpType.OFFER : SdpType.ANSWER;
+    final Participant participant = getParticipant(participantId);
+    final String name = participant.getName();
+    final Room room = participant.getRoom();
 
-    participant.createPublishingEndpoint();
-
-    for (MediaElement elem : mediaElements) {
-      participant.getPublisher().apply(elem);
+    if (room.isSerialExecution()) {
+      // the mailbox isn't held while the media server processes the SDP
+      return await(publishMediaAsync(participantId, isOffer, sdp, loopbackAlternativeSrc,
+          loopbackConnectionType, doLoopback, mediaElements));
     }
+    return room.serialize(() -> {
+      participant.createPublishingEndpoint();
 
-    String sdpResponse = participant
-        .publishToRoom(sdpType, sdp, doLoopback, loopbackAlternativeSrc, loopbackConnectionType);
-    if (sdpResponse == null) {
-      throw new RoomException(Code.MEDIA_SDP_ERROR_CODE,
-          "Error generating SDP response for publishing user " + name);
+      for (MediaElement elem : mediaElements) {
+        participant.getPublisher().apply(elem);
+      }
+
+      String sdpResponse = participant
+          .publishToRoom(sdpType, sdp, doLoopback, loopbackAlternativeSrc, loopbackConnectionType);
+      if (sdpResponse == null) {
+        throw new RoomException(Code.MEDIA_SDP_ERROR_CODE,
+            "Error generating SDP response for publishing user " + name);
+      }
+
+      room.newPublisher(participant);
+      return sdpResponse;
+    });
+  }
+
+  /**
+   * Non-blocking version of
+   * {@link #publishMedia(String, boolean, String, MediaElement, MediaType, boolean, MediaElement...)}
+   * . The creation of the publisher endpoint, the registration of its ICE listener and the SDP
+   * processing are performed using the asynchronous API of the Kurento Client, so the calling
+   * thread is released right away. Only the given media elements are connected synchronously,
+   * by the thread that completes the creation of the endpoint. In serial execution mode, the
+   * room's mailbox runs no other request until the publication is done, but no thread is kept
+   * waiting for the media server (see {@link Room#serializeAsync(java.util.function.Supplier)}).
+   *
+   * @return future completed with the SDP response generated by the WebRTC endpoint on the server
+   */
+  public CompletableFuture<String> publishMediaAsync(String participantId, boolean isOffer,
+      final String sdp, final MediaElement loopbackAlternativeSrc,
+      final MediaType loopbackConnectionType, final boolean doLoopback,
+      final MediaElement... mediaElements) {
+    log.debug("Request [PUBLISH_MEDIA_ASYNC] isOffer={} sdp={} "
+            + "loopbackAltSrc={} lpbkConnType={} doLoopback={} mediaElements={} ({})", isOffer, sdp,
+        loopbackAlternativeSrc == null, loopbackConnectionType, doLoopback, mediaElements,
+        participantId);
+
+    final SdpType sdpType = isOffer ? SdpType.OFFER : SdpType.ANSWER;
+    final Participant participant;
+    try {
+      participant = getParticipant(participantId);
+    } catch (RoomException e) {
+      return ContinuationFutures.failed(e);
     }
+    final String name = participant.getName();
+    final Room room = participant.getRoom();
 
-    room.newPublisher(participant);
-    return sdpResponse;
+    return room.serializeAsync(() -> participant.createPublishingEndpointAsync()
+        .thenCompose(publisher -> {
+          for (MediaElement elem : mediaElements) {
+            publisher.apply(elem);
+          }
+          return participant.publishToRoomAsync(sdpType, sdp, doLoopback,
+              loopbackAlternativeSrc, loopbackConnectionType);
+        }).thenApply(sdpResponse -> {
+          if (sdpResponse == null) {
+            throw new RoomException(Code.MEDIA_SDP_ERROR_CODE,
+                "Error generating SDP response for publishing user " + name);
+          }
+          room.newPublisher(participant);
+          return sdpResponse;
+        }));
   }
 
   /**
@@ -268,16 +462,26 @@ public class RoomManager {
   public String generatePublishOffer(String participantId) throws RoomException {
     log.debug("Request [GET_PUBLISH_SDP_OFFER] ({})", participantId);
 
-    Participant participant = getParticipant(participantId);
-    String name = participant.getName();
-    Room room = participant.getRoom();
+    final Participant participant = getParticipant(participantId);
+    final String name = participant.getName();
+    final Room room = participant.getRoom();
 
-    participant.createPublishingEndpoint();
+    if (room.isSerialExecution()) {
+      // the mailbox isn't held while the publisher endpoint is created
+      return await(room.serializeAsync(() -> participant.createPublishingEndpointAsync()
+          .thenApply(publisher -> prepareToPublish(participant, room))));
+    }
+    return room.serialize(() -> {
+      participant.createPublishingEndpoint();
+      return prepareToPublish(participant, room);
+    });
+  }
 
+  private String prepareToPublish(Participant participant, Room room) {
     String sdpOffer = participant.preparePublishConnection();
     if (sdpOffer == null) {
       throw new RoomException(Code.MEDIA_SDP_ERROR_CODE,
-          "Error generating SDP offer for publishing user " + name);
+          "Error generating SDP offer for publishing user " + participant.getName());
     }
 
     room.newPublisher(participant);
@@ -296,14 +500,17 @@ public class RoomManager {
    */
   public void unpublishMedia(String participantId) throws RoomException {
     log.debug("Request [UNPUBLISH_MEDIA] ({})", participantId);
-    Participant participant = getParticipant(participantId);
-    if (!participant.isStreaming()) {
-      throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
-          "Participant '" + participant.getName() + "' is not streaming media");
-    }
-    Room room = participant.getRoom();
-    participant.unpublishMedia();
-    room.cancelPublisher(participant);
+    final Participant participant = getParticipant(participantId);
+    final Room room = participant.getRoom();
+    room.serialize(() -> {
+      if (!participant.isStreaming()) {
+        throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
+            "Participant '" + participant.getName() + "' is not streaming media");
+      }
+      participant.unpublishMedia();
+      room.cancelPublisher(participant);
+      return null;
+    });
   }
 
   /**
@@ -323,31 +530,70 @@ public class RoomManager {
       throws RoomException {
     log.debug("Request [SUBSCRIBE] remoteParticipant={} sdpOffer={} ({})", remoteName, sdpOffer,
         participantId);
-    Participant participant = getParticipant(participantId);
-    String name = participant.getName();
-
-    Room room = participant.getRoom();
+    final Participant participant = getParticipant(participantId);
+    final String name = participant.getName();
 
-    Participant senderParticipant = room.getParticipantByName(remoteName);
-    if (senderParticipant == null) {
-      log.warn("PARTICIPANT {}: Requesting to recv media from user {} "
-          + "in room {} but user could not be found", name, remoteName, room.getName());
-      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
-          "User '" + remoteName + " not found in room '" + room.getName() + "'");
-    }
-    if (!senderParticipant.isStreaming()) {
-      log.warn("PARTICIPANT {}: Requesting to recv media from user {} "
-          + "in room {} but user is not streaming media", name, remoteName, room.getName());
-      throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
-          "User '" + remoteName + " not streaming media in room '" + room.getName() + "'");
+    if (participant.getRoom().isSerialExecution()) {
+      // the mailbox isn't held while the media server processes the SDP
+      return await(subscribeAsync(remoteName, sdpOffer, participantId));
     }
+    return participant.getRoom().serialize(() -> {
+      String sdpAnswer;
+      if (isMix(participant.getRoom(), remoteName)) {
+        sdpAnswer = participant.receiveMix(sdpOffer);
+      } else {
+        Participant senderParticipant = getStreamingSender(participant, remoteName);
+        sdpAnswer = participant.receiveMediaFrom(senderParticipant, sdpOffer);
+      }
+      if (sdpAnswer == null) {
+        throw new RoomException(Code.MEDIA_SDP_ERROR_CODE,
+            "Unable to generate SDP answer when subscribing '" + name + "' to '" + remoteName
+                + "'");
+      }
+      return sdpAnswer;
+    });
+  }
 
-    String sdpAnswer = participant.receiveMediaFrom(senderParticipant, sdpOffer);
-    if (sdpAnswer == null) {
-      throw new RoomException(Code.MEDIA_SDP_ERROR_CODE,
-          "Unable to generate SDP answer when subscribing '" + name + "' to '" + remoteName + "'");
+  /**
+   * Non-blocking version of {@link #subscribe(String, String, String)}. The subscriber endpoint is
+   * created and negotiated using the asynchronous API of the Kurento Client, as is the relay
+   * between both servers when a cascaded room's publisher is placed in another one. Only the first
+   * subscription to the room's mix still makes synchronous calls (the thread that completes the
+   * SDP negotiation creates the participant's port of the mixer). In serial execution mode, the
+   * room's mailbox runs no other request until the subscription is done, but no thread is kept
+   * waiting for the media server.
+   *
+   * @return future completed with the SDP answer generated by the receiving WebRTC endpoint on the
+   * server
+   */
+  public CompletableFuture<String> subscribeAsync(final String remoteName, String sdpOffer,
+      String participantId) {
+    log.debug("Request [SUBSCRIBE_ASYNC] remoteParticipant={} sdpOffer={} ({})", remoteName,
+        sdpOffer, participantId);
+    final Participant participant;
+    try {
+      participant = getParticipant(participantId);
+    } catch (RoomException e) {
+      return ContinuationFutures.failed(e);
     }
-    return sdpAnswer;
+    final String name = participant.getName();
+    return participant.getRoom().serializeAsync(() -> {
+      CompletableFuture<String> subscription;
+      if (isMix(participant.getRoom(), remoteName)) {
+        subscription = participant.receiveMixAsync(sdpOffer);
+      } else {
+        Participant senderParticipant = getStreamingSender(participant, remoteName);
+        subscription = participant.receiveMediaFromAsync(senderParticipant, sdpOffer);
+      }
+      return subscription.thenApply(sdpAnswer -> {
+        if (sdpAnswer == null) {
+          throw new RoomException(Code.MEDIA_SDP_ERROR_CODE,
+              "Unable to generate SDP answer when subscribing '" + name + "' to '" + remoteName
+                  + "'");
+        }
+        return sdpAnswer;
+      });
+    });
   }
 
   /**
@@ -360,17 +606,24 @@ public class RoomManager {
    */
   public void unsubscribe(String remoteName, String participantId) throws RoomException {
     log.debug("Request [UNSUBSCRIBE] remoteParticipant={} ({})", remoteName, participantId);
-    Participant participant = getParticipant(participantId);
-    String name = participant.getName();
-    Room room = participant.getRoom();
-    Participant senderParticipant = room.getParticipantByName(remoteName);
-    if (senderParticipant == null) {
-      log.warn("PARTICIPANT {}: Requesting to unsubscribe from user {} "
-          + "in room {} but user could not be found", name, remoteName, room.getName());
-      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
-          "User " + remoteName + " not found in room " + room.getName());
-    }
-    participant.cancelReceivingMedia(remoteName);
+    final Participant participant = getParticipant(participantId);
+    final String name = participant.getName();
+    final Room room = participant.getRoom();
+    room.serialize(() -> {
+      if (isMix(room, remoteName)) {
+        participant.cancelReceivingMix();
+        return null;
+      }
+      Participant senderParticipant = room.getParticipantByName(remoteName);
+      if (senderParticipant == null) {
+        log.warn("PARTICIPANT {}: Requesting to unsubscribe from user {} "
+            + "in room {} but user could not be found", name, remoteName, room.getName());
+        throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
+            "User " + remoteName + " not found in room " + room.getName());
+      }
+      participant.cancelReceivingMedia(remoteName);
+      return null;
+    });
   }
 
   /**
@@ -393,8 +646,73 @@ public class RoomManager {
       String sdpMid, String participantId) throws RoomException {
     log.debug("Request [ICE_CANDIDATE] endpoint={} candidate={} " + "sdpMLineIdx={} sdpMid={} ({})",
         endpointName, candidate, sdpMLineIndex, sdpMid, participantId);
-    Participant participant = getParticipant(participantId);
-    participant.addIceCandidate(endpointName, new IceCandidate(candidate, sdpMid, sdpMLineIndex));
+    final Participant participant = getParticipant(participantId);
+    final IceCandidate iceCandidate = new IceCandidate(candidate, sdpMid, sdpMLineIndex);
+    participant.getRoom().serialize(() -> {
+      if (participant.isPeerToPeer()) {
+        participant.getRoom().relayIceCandidate(participant, endpointName, iceCandidate);
+      } else {
+        participant.addIceCandidate(endpointName, iceCandidate);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Batched version of {@link #onIceCandidate(String, String, int, String, String)}: adds the ICE
+   * candidates gathered by the client for one or more of its endpoints (or relays them to its
+   * peer), resolving the participant only once.
+   *
+   * @param candidates    the candidates, grouped by the name of the peer whose endpoint gathered
+   *                      them
+   * @param participantId identifier of the participant
+   * @throws RoomException on error
+   */
+  public void onIceCandidates(final Map<String, List<IceCandidate>> candidates,
+      String participantId) throws RoomException {
+    log.debug("Request [ICE_CANDIDATES] endpoints={} ({})", candidates.keySet(), participantId);
+    final Participant participant = getParticipant(participantId);
+    participant.getRoom().serialize(() -> {
+      for (Entry<String, List<IceCandidate>> endpointCandidates : candidates.entrySet()) {
+        if (participant.isPeerToPeer()) {
+          for (IceCandidate candidate : endpointCandidates.getValue()) {
+            participant.getRoom().relayIceCandidate(participant, endpointCandidates.getKey(),
+                candidate);
+          }
+        } else {
+          participant.addIceCandidates(endpointCandidates.getKey(), endpointCandidates.getValue());
+        }
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Represents a client's request to send its SDP offer or answer to the other participant of a
+   * peer-to-peer room (see {@link RoomSettings#isPeerToPeer()}). The server doesn't process the
+   * SDP, the peers negotiate their connection with each other and their ICE candidates are relayed
+   * by {@link #onIceCandidate(String, String, int, String, String)}, using the peer's name as
+   * endpoint name.<br/>
+   * <strong>Dev advice:</strong> Send the SDP to the peer, with the name of the sender.
+   *
+   * @param peerName      name of the participant that has to receive the SDP
+   * @param type          whether the SDP is an offer or an answer
+   * @param sdp           the SDP generated by the client's WebRTC peer
+   * @param participantId identifier of the sender
+   * @return the peer that has to receive the SDP
+   * @throws RoomException in case the participant doesn't exist, the peer is not found or the
+   *                       room's media is no longer exchanged peer-to-peer
+   */
+  public UserParticipant relayPeerSdp(String peerName, SdpType type, String sdp,
+      String participantId) throws RoomException {
+    log.debug("Request [PEER_SDP] peer={} type={} sdp={} ({})", peerName, type, sdp,
+        participantId);
+    final Participant participant = getParticipant(participantId);
+    final Room room = participant.getRoom();
+    return room.serialize(() -> {
+      Participant peer = room.getPeer(participant, peerName);
+      return new UserParticipant(peer.getId(), peer.getName());
+    });
   }
 
   /**
@@ -429,13 +747,15 @@ public class RoomManager {
       throws RoomException {
     log.debug("Add media element {} (connection type: {}) to participant {}", element.getId(), type,
         participantId);
-    Participant participant = getParticipant(participantId);
-    String name = participant.getName();
-    if (participant.isClosed()) {
-      throw new RoomException(Code.USER_CLOSED_ERROR_CODE,
-          "Participant '" + name + "' has been closed");
-    }
-    participant.shapePublisherMedia(element, type);
+    final Participant participant = getParticipant(participantId);
+    participant.getRoom().serialize(() -> {
+      if (participant.isClosed()) {
+        throw new RoomException(Code.USER_CLOSED_ERROR_CODE,
+            "Participant '" + participant.getName() + "' has been closed");
+      }
+      participant.shapePublisherMedia(element, type);
+      return null;
+    });
   }
 
   /**
@@ -449,13 +769,15 @@ public class RoomManager {
    */
   public void removeMediaElement(String participantId, MediaElement element) throws RoomException {
     log.debug("Remove media element {} from participant {}", element.getId(), participantId);
-    Participant participant = getParticipant(participantId);
-    String name = participant.getName();
-    if (participant.isClosed()) {
-      throw new RoomException(Code.USER_CLOSED_ERROR_CODE,
-          "Participant '" + name + "' has been closed");
-    }
-    participant.getPublisher().revert(element);
+    final Participant participant = getParticipant(participantId);
+    participant.getRoom().serialize(() -> {
+      if (participant.isClosed()) {
+        throw new RoomException(Code.USER_CLOSED_ERROR_CODE,
+            "Participant '" + participant.getName() + "' has been closed");
+      }
+      participant.getPublisher().revert(element);
+      return null;
+    });
   }
 
   /**
@@ -470,17 +792,20 @@ public class RoomManager {
   public void mutePublishedMedia(MutedMediaType muteType, String participantId)
       throws RoomException {
     log.debug("Request [MUTE_PUBLISHED] muteType={} ({})", muteType, participantId);
-    Participant participant = getParticipant(participantId);
-    String name = participant.getName();
-    if (participant.isClosed()) {
-      throw new RoomException(Code.USER_CLOSED_ERROR_CODE,
-          "Participant '" + name + "' has been closed");
-    }
-    if (!participant.isStreaming()) {
-      throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
-          "Participant '" + name + "' is not streaming media");
-    }
-    participant.mutePublishedMedia(muteType);
+    final Participant participant = getParticipant(participantId);
+    final String name = participant.getName();
+    participant.getRoom().serialize(() -> {
+      if (participant.isClosed()) {
+        throw new RoomException(Code.USER_CLOSED_ERROR_CODE,
+            "Participant '" + name + "' has been closed");
+      }
+      if (!participant.isStreaming()) {
+        throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
+            "Participant '" + name + "' is not streaming media");
+      }
+      participant.mutePublishedMedia(muteType);
+      return null;
+    });
   }
 
   /**
@@ -493,17 +818,20 @@ public class RoomManager {
    */
   public void unmutePublishedMedia(String participantId) throws RoomException {
     log.debug("Request [UNMUTE_PUBLISHED] muteType={} ({})", participantId);
-    Participant participant = getParticipant(participantId);
-    String name = participant.getName();
-    if (participant.isClosed()) {
-      throw new RoomException(Code.USER_CLOSED_ERROR_CODE,
-          "Participant '" + name + "' has been closed");
-    }
-    if (!participant.isStreaming()) {
-      throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
-          "Participant '" + name + "' is not streaming media");
-    }
-    participant.unmutePublishedMedia();
+    final Participant participant = getParticipant(participantId);
+    final String name = participant.getName();
+    participant.getRoom().serialize(() -> {
+      if (participant.isClosed()) {
+        throw new RoomException(Code.USER_CLOSED_ERROR_CODE,
+            "Participant '" + name + "' has been closed");
+      }
+      if (!participant.isStreaming()) {
+        throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
+            "Participant '" + name + "' is not streaming media");
+      }
+      participant.unmutePublishedMedia();
+      return null;
+    });
   }
 
   /**
@@ -521,23 +849,26 @@ public class RoomManager {
       throws RoomException {
     log.debug("Request [MUTE_SUBSCRIBED] remoteParticipant={} muteType={} ({})", remoteName,
         muteType, participantId);
-    Participant participant = getParticipant(participantId);
-    String name = participant.getName();
-    Room room = participant.getRoom();
-    Participant senderParticipant = room.getParticipantByName(remoteName);
-    if (senderParticipant == null) {
-      log.warn("PARTICIPANT {}: Requesting to mute streaming from {} "
-          + "in room {} but user could not be found", name, remoteName, room.getName());
-      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
-          "User " + remoteName + " not found in room " + room.getName());
-    }
-    if (!senderParticipant.isStreaming()) {
-      log.warn("PARTICIPANT {}: Requesting to mute streaming from {} "
-          + "in room {} but user is not streaming media", name, remoteName, room.getName());
-      throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
-          "User '" + remoteName + " not streaming media in room '" + room.getName() + "'");
-    }
-    participant.muteSubscribedMedia(senderParticipant, muteType);
+    final Participant participant = getParticipant(participantId);
+    final String name = participant.getName();
+    final Room room = participant.getRoom();
+    room.serialize(() -> {
+      Participant senderParticipant = room.getParticipantByName(remoteName);
+      if (senderParticipant == null) {
+        log.warn("PARTICIPANT {}: Requesting to mute streaming from {} "
+            + "in room {} but user could not be found", name, remoteName, room.getName());
+        throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
+            "User " + remoteName + " not found in room " + room.getName());
+      }
+      if (!senderParticipant.isStreaming()) {
+        log.warn("PARTICIPANT {}: Requesting to mute streaming from {} "
+            + "in room {} but user is not streaming media", name, remoteName, room.getName());
+        throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
+            "User '" + remoteName + " not streaming media in room '" + room.getName() + "'");
+      }
+      participant.muteSubscribedMedia(senderParticipant, muteType);
+      return null;
+    });
   }
 
   /**
@@ -552,23 +883,26 @@ public class RoomManager {
    */
   public void unmuteSubscribedMedia(String remoteName, String participantId) throws RoomException {
     log.debug("Request [UNMUTE_SUBSCRIBED] remoteParticipant={} ({})", remoteName, participantId);
-    Participant participant = getParticipant(participantId);
-    String name = participant.getName();
-    Room room = participant.getRoom();
-    Participant senderParticipant = room.getParticipantByName(remoteName);
-    if (senderParticipant == null) {
-      log.warn("PARTICIPANT {}: Requesting to unmute streaming from {} "
-          + "in room {} but user could not be found", name, remoteName, room.getName());
-      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
-          "User " + remoteName + " not found in room " + room.getName());
-    }
-    if (!senderParticipant.isStreaming()) {
-      log.warn("PARTICIPANT {}: Requesting to unmute streaming from {} "
-          + "in room {} but user is not streaming media", name, remoteName, room.getName());
-      throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
-          "User '" + remoteName + " not streaming media in room '" + room.getName() + "'");
-    }
-    participant.unmuteSubscribedMedia(senderParticipant);
+    final Participant participant = getParticipant(participantId);
+    final String name = participant.getName();
+    final Room room = participant.getRoom();
+    room.serialize(() -> {
+      Participant senderParticipant = room.getParticipantByName(remoteName);
+      if (senderParticipant == null) {
+        log.warn("PARTICIPANT {}: Requesting to unmute streaming from {} "
+            + "in room {} but user could not be found", name, remoteName, room.getName());
+        throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
+            "User " + remoteName + " not found in room " + room.getName());
+      }
+      if (!senderParticipant.isStreaming()) {
+        log.warn("PARTICIPANT {}: Requesting to unmute streaming from {} "
+            + "in room {} but user is not streaming media", name, remoteName, room.getName());
+        throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
+            "User '" + remoteName + " not streaming media in room '" + room.getName() + "'");
+      }
+      participant.unmuteSubscribedMedia(senderParticipant);
+      return null;
+    });
   }
 
   // ----------------- ADMIN (DIRECT or SERVER-SIDE) REQUESTS ------------
@@ -584,17 +918,146 @@ public class RoomManager {
    */
   @PreDestroy
   public void close() {
+    close(null);
+  }
+
+  /**
+   * Same as {@link #close()}, but the provided callback is invoked after each room is closed, so
+   * that its participants can be notified.
+   *
+   * @param onRoomClosed receives the name of the closed room and its participants (can be null)
+   */
+  public void close(final BiConsumer<String, Set<UserParticipant>> onRoomClosed) {
     closed = true;
-    log.info("Closing all rooms");
-    for (String roomName : rooms.keySet()) {
-      try {
-        closeRoom(roomName);
-      } catch (Exception e) {
-        log.warn("Error closing room '{}'", roomName, e);
+    Set<String> roomNames = getRooms();
+    log.info("Closing all rooms ({})", roomNames.size());
+    if (roomNames.isEmpty()) {
+      shutdownFanOutExecutor();
+      roomExecutor.shutdown();
+      return;
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(closeRoomsConcurrency, roomNames.size()));
+    for (final String roomName : roomNames) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Set<UserParticipant> participants = closeRoom(roomName);
+            if (onRoomClosed != null) {
+              onRoomClosed.accept(roomName, participants);
+            }
+          } catch (Exception e) {
+            log.warn("Error closing room '{}'", roomName, e);
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(Room.ASYNC_LATCH_TIMEOUT, TimeUnit.SECONDS)) {
+        log.warn("Timeout reached while closing the rooms, {} still open", rooms.size());
+      }
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while closing the rooms", e);
+      Thread.currentThread().interrupt();
+    }
+    shutdownFanOutExecutor();
+    roomExecutor.shutdown();
+  }
+
+  /**
+   * Replaces the executor used to notify the other participants of a room about a publisher that
+   * has started or stopped streaming (in rooms that aren't in serial execution mode, whose tasks go
+   * through their mailbox). The replaced executor is shut down once its pending tasks are done, the
+   * new one is shut down when the manager is closed.
+   *
+   * @param fanOutExecutor a bounded executor
+   */
+  public void setFanOutExecutor(ExecutorService fanOutExecutor) {
+    ExecutorService replaced;
+    synchronized (this) {
+      replaced = this.fanOutExecutor;
+      this.fanOutExecutor = fanOutExecutor;
+    }
+    if (replaced != null) {
+      replaced.shutdown();
+    }
+  }
+
+  /**
+   * @param clock source of the current time (in milliseconds) for the rooms created afterwards
+   * @see Room#setClock(LongSupplier)
+   */
+  void setClock(LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  private ExecutorService getFanOutExecutor() {
+    ExecutorService executor = fanOutExecutor;
+    if (executor != null) {
+      return executor;
+    }
+    synchronized (this) {
+      if (fanOutExecutor == null) {
+        if (closed) {
+          throw new RejectedExecutionException("The room manager has been closed");
+        }
+        fanOutExecutor = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+              private final AtomicInteger threads = new AtomicInteger();
+
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "room-fanout-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
       }
+      return fanOutExecutor;
+    }
+  }
+
+  /**
+   * Runs a fan-out task in the current executor, which might have been replaced after the task
+   * was submitted to the previous one.
+   */
+  private void fanOut(Runnable task) {
+    ExecutorService executor = getFanOutExecutor();
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      if (closed || executor == fanOutExecutor) {
+        throw e;
+      }
+      getFanOutExecutor().execute(task);
+    }
+  }
+
+  private synchronized void shutdownFanOutExecutor() {
+    if (fanOutExecutor != null) {
+      fanOutExecutor.shutdown();
     }
   }
 
+  /**
+   * @return the time taken to update the subscribers after a publisher started or stopped
+   * streaming (measured after the publisher has been answered)
+   */
+  public LatencyStats getFanOutStats() {
+    return fanOutStats;
+  }
+
+  /**
+   * Sets the maximum number of rooms that are closed at the same time by {@link #close()}.
+   *
+   * @param closeRoomsConcurrency number of threads used to close the rooms
+   */
+  public void setCloseRoomsConcurrency(int closeRoomsConcurrency) {
+    this.closeRoomsConcurrency = Math.max(1, closeRoomsConcurrency);
+  }
+
   /**
    * @return true after {@link #close()} has been called
    */
@@ -615,8 +1078,8 @@ public class RoomManager {
    * Returns all the participants inside a room.
    *
    * @param roomName name or identifier of the room
-   * @return set of {@link UserParticipant} POJOS (an instance contains the participant's identifier
-   * and her user name)
+   * @return unmodifiable set of {@link UserParticipant} POJOS (an instance contains the
+   * participant's identifier and her user name)
    * @throws RoomException in case the room doesn't exist
    */
   public Set<UserParticipant> getParticipants(String roomName) throws RoomException {
@@ -624,21 +1087,39 @@ public class RoomManager {
     if (room == null) {
       throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE, "Room '" + roomName + "' not found");
     }
-    Collection<Participant> participants = room.getParticipants();
-    Set<UserParticipant> userParts = new HashSet<UserParticipant>();
-    for (Participant p : participants) {
-      if (!p.isClosed()) {
-        userParts.add(new UserParticipant(p.getId(), p.getName(), p.isStreaming()));
-      }
+    return room.getRosterSnapshot().getParticipants();
+  }
+
+  /**
+   * Returns the viewers of a room, which aren't included in {@link #getParticipants(String)}.
+   *
+   * @param roomName name or identifier of the room
+   * @return set of {@link UserParticipant} POJOS representing the viewers
+   * @throws RoomException in case the room doesn't exist
+   * @see #joinRoomAsViewer(String, String, KurentoClientSessionInfo, String)
+   */
+  public Set<UserParticipant> getViewers(String roomName) throws RoomException {
+    Room room = rooms.get(roomName);
+    if (room == null) {
+      throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE, "Room '" + roomName + "' not found");
     }
-    return userParts;
+    return room.getViewers();
+  }
+
+  /**
+   * @param participantId identifier of the participant
+   * @return true if the participant joined its room as a viewer
+   * @throws RoomException in case the participant doesn't exist
+   */
+  public boolean isViewer(String participantId) throws RoomException {
+    return getParticipant(participantId).isViewer();
   }
 
   /**
    * Returns all the publishers (participants streaming their media) inside a room.
    *
    * @param roomName name or identifier of the room
-   * @return set of {@link UserParticipant} POJOS representing the existing publishers
+   * @return unmodifiable set of {@link UserParticipant} POJOS representing the existing publishers
    * @throws RoomException in case the room doesn't exist
    */
   public Set<UserParticipant> getPublishers(String roomName) throws RoomException {
@@ -646,14 +1127,7 @@ public class RoomManager {
     if (r == null) {
       throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE, "Room '" + roomName + "' not found");
     }
-    Collection<Participant> participants = r.getParticipants();
-    Set<UserParticipant> userParts = new HashSet<UserParticipant>();
-    for (Participant p : participants) {
-      if (!p.isClosed() && p.isStreaming()) {
-        userParts.add(new UserParticipant(p.getId(), p.getName(), true));
-      }
-    }
-    return userParts;
+    return r.getRosterSnapshot().getPublishers();
   }
 
   /**
@@ -663,7 +1137,8 @@ public class RoomManager {
    * stream.
    *
    * @param roomName name or identifier of the room
-   * @return set of {@link UserParticipant} POJOS representing the existing subscribers
+   * @return unmodifiable set of {@link UserParticipant} POJOS representing the existing
+   * subscribers
    * @throws RoomException in case the room doesn't exist
    */
   public Set<UserParticipant> getSubscribers(String roomName) throws RoomException {
@@ -671,14 +1146,43 @@ public class RoomManager {
     if (r == null) {
       throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE, "Room '" + roomName + "' not found");
     }
-    Collection<Participant> participants = r.getParticipants();
-    Set<UserParticipant> userParts = new HashSet<UserParticipant>();
-    for (Participant p : participants) {
-      if (!p.isClosed() && p.isSubscribed()) {
-        userParts.add(new UserParticipant(p.getId(), p.getName(), p.isStreaming()));
-      }
+    return r.getRosterSnapshot().getSubscribers();
+  }
+
+  /**
+   * Returns the version of the room's roster, which changes whenever a participant joins or leaves
+   * the room, or starts or stops publishing.
+   *
+   * @param roomName name or identifier of the room
+   * @return the current roster version
+   * @throws RoomException in case the room doesn't exist
+   * @see #getRosterChanges(String, long)
+   */
+  public long getRosterVersion(String roomName) throws RoomException {
+    Room r = rooms.get(roomName);
+    if (r == null) {
+      throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE, "Room '" + roomName + "' not found");
     }
-    return userParts;
+    return r.getRosterVersion();
+  }
+
+  /**
+   * Returns the changes in the room's roster after the given version, so that a peer that knows
+   * the roster at that version doesn't have to fetch it again.
+   *
+   * @param roomName     name or identifier of the room
+   * @param sinceVersion roster version already known by the caller
+   * @return ordered list of {@link RosterChange} POJOS, or null if the version is too old (or
+   * unknown) and the whole roster should be requested instead
+   * @throws RoomException in case the room doesn't exist
+   */
+  public List<RosterChange> getRosterChanges(String roomName, long sinceVersion)
+      throws RoomException {
+    Room r = rooms.get(roomName);
+    if (r == null) {
+      throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE, "Room '" + roomName + "' not found");
+    }
+    return r.getRosterChanges(sinceVersion);
   }
 
   /**
@@ -692,16 +1196,13 @@ public class RoomManager {
    */
   public Set<UserParticipant> getPeerPublishers(String participantId) throws RoomException {
     Participant participant = getParticipant(participantId);
-    if (participant == null) {
-      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
-          "No participant with id '" + participantId + "' was found");
-    }
-    Set<String> subscribedEndpoints = participant.getConnectedSubscribedEndpoints();
     Room room = participant.getRoom();
     Set<UserParticipant> userParts = new HashSet<UserParticipant>();
-    for (String epName : subscribedEndpoints) {
-      Participant p = room.getParticipantByName(epName);
-      userParts.add(new UserParticipant(p.getId(), p.getName()));
+    for (String publisherName : room.getSubscriptions().getPublishers(participant.getName())) {
+      Participant p = room.getParticipantByName(publisherName);
+      if (p != null && participant.isSubscribedTo(publisherName)) {
+        userParts.add(new UserParticipant(p.getId(), p.getName()));
+      }
     }
     return userParts;
   }
@@ -717,10 +1218,6 @@ public class RoomManager {
    */
   public Set<UserParticipant> getPeerSubscribers(String participantId) throws RoomException {
     Participant participant = getParticipant(participantId);
-    if (participant == null) {
-      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
-          "No participant with id '" + participantId + "' was found");
-    }
     if (!participant.isStreaming()) {
       throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
           "Participant with id '" + participantId + "' is not a publisher yet");
@@ -728,18 +1225,105 @@ public class RoomManager {
     Set<UserParticipant> userParts = new HashSet<UserParticipant>();
     Room room = participant.getRoom();
     String endpointName = participant.getName();
-    for (Participant p : room.getParticipants()) {
-      if (p.equals(participant)) {
+    for (String subscriberName : room.getSubscriptions().getSubscribers(endpointName)) {
+      Participant p = room.getParticipantByName(subscriberName);
+      if (p == null || p.equals(participant)) {
         continue;
       }
-      Set<String> subscribedEndpoints = p.getConnectedSubscribedEndpoints();
-      if (subscribedEndpoints.contains(endpointName)) {
+      if (p.isSubscribedTo(endpointName)) {
         userParts.add(new UserParticipant(p.getId(), p.getName()));
       }
     }
     return userParts;
   }
 
+  /**
+   * @param roomName name or identifier of the room
+   * @return a copy of the settings the room was created with
+   * @throws RoomException in case the room doesn't exist
+   */
+  public RoomSettings getRoomSettings(String roomName) throws RoomException {
+    Room room = rooms.get(roomName);
+    if (room == null) {
+      throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE, "Room '" + roomName + "' not found");
+    }
+    return new RoomSettings(room.getSettings());
+  }
+
+  /**
+   * Returns a listing of the room's subscription graph, for debugging purposes: one line per
+   * publisher with the participants that have an endpoint to receive its media.
+   *
+   * @param roomName name or identifier of the room
+   * @return the dump of the graph
+   * @throws RoomException in case the room doesn't exist
+   */
+  public String dumpSubscriptions(String roomName) throws RoomException {
+    Room r = rooms.get(roomName);
+    if (r == null) {
+      throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE, "Room '" + roomName + "' not found");
+    }
+    return r.getSubscriptions().dump();
+  }
+
+  /**
+   * Signals that a participant is speaking. In rooms configured with a Last-N value (see
+   * {@link RoomSettings#getLastN()}), only the video of the N most recently active speakers is
+   * forwarded to the subscribers, so this may switch the video they receive. Their audio is not
+   * affected.
+   *
+   * @param participantId identifier of the speaking participant
+   * @return true if the set of publishers whose video is forwarded has changed
+   * @throws RoomException in case the participant doesn't exist
+   */
+  public boolean onActiveSpeaker(String participantId) throws RoomException {
+    final Participant participant = getParticipant(participantId);
+    final Room room = participant.getRoom();
+    return room.serialize(() -> room.onActiveSpeaker(participant.getName()));
+  }
+
+  /**
+   * Reports the audio level of a publisher's stream, used to detect the dominant speaker of its
+   * room. When it changes (at most once per {@link RoomSettings#getDominantSpeakerInterval()}),
+   * the room handler is notified and the speaker becomes the most recently active one (see
+   * {@link #onActiveSpeaker(String)}).
+   *
+   * The level is reported by the participant's client and can't be verified, so it's only
+   * advisory: it's clamped to the valid range and the samples of each publisher are rate-limited,
+   * but a client can still claim to be speaking when it isn't (see
+   * {@link RoomSettings#getSpeakerThreshold()}).
+   *
+   * @param participantId identifier of the publisher
+   * @param level         audio level, in dBov (0 is the loudest, -127 silence)
+   * @throws RoomException in case the participant doesn't exist or isn't publishing
+   */
+  public void updateAudioLevel(String participantId, double level) throws RoomException {
+    final Participant participant = getParticipant(participantId);
+    final Room room = participant.getRoom();
+    room.serialize(() -> {
+      if (!participant.isStreaming()) {
+        throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
+            "Participant '" + participant.getName() + "' is not streaming media");
+      }
+      room.updateAudioLevel(participant.getName(), level);
+      return null;
+    });
+  }
+
+  /**
+   * @param roomName name or identifier of the room
+   * @return true if the room's participants still exchange their media directly
+   * @throws RoomException in case the room doesn't exist
+   * @see RoomSettings#isPeerToPeer()
+   */
+  public boolean isPeerToPeer(String roomName) throws RoomException {
+    Room room = rooms.get(roomName);
+    if (room == null) {
+      throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE, "Room '" + roomName + "' not found");
+    }
+    return room.isPeerToPeer();
+  }
+
   /**
    * Checks if a participant is currently streaming media.
    *
@@ -749,10 +1333,6 @@ public class RoomManager {
    */
   public boolean isPublisherStreaming(String participantId) throws RoomException {
     Participant participant = getParticipant(participantId);
-    if (participant == null) {
-      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
-          "No participant with id '" + participantId + "' was found");
-    }
     if (participant.isClosed()) {
       throw new RoomException(Code.USER_CLOSED_ERROR_CODE,
           "Participant '" + participant.getName() + "' has been closed");
@@ -770,32 +1350,50 @@ public class RoomManager {
    * @throws RoomException in case of error while creating the room
    */
   public void createRoom(KurentoClientSessionInfo kcSessionInfo) throws RoomException {
+    createRoom(kcSessionInfo, defaultRoomSettings);
+  }
+
+  /**
+   * Same as {@link #createRoom(KurentoClientSessionInfo)}, but the room will be configured using
+   * the provided settings instead of the default ones.
+   *
+   * @param kcSessionInfo bean that will be passed to the {@link KurentoClientProvider} in order
+   *                      to obtain the
+   *                      {@link KurentoClient} that will be used by the room
+   * @param settings      the room's configuration
+   * @throws RoomException in case of error while creating the room, or if it's being created at
+   *                       the same time with different settings
+   */
+  public void createRoom(KurentoClientSessionInfo kcSessionInfo, RoomSettings settings)
+      throws RoomException {
     String roomName = kcSessionInfo.getRoomName();
-    Room room = rooms.get(kcSessionInfo);
+    Room room = rooms.get(roomName);
     if (room != null) {
       throw new RoomException(Code.ROOM_CANNOT_BE_CREATED_ERROR_CODE,
           "Room '" + roomName + "' already exists");
     }
-    KurentoClient kurentoClient = kcProvider.getKurentoClient(kcSessionInfo);
+    room = getOrCreateRoom(kcSessionInfo, settings);
+    if (!room.getSettings().equals(settings)) {
+      throw new RoomException(Code.ROOM_CANNOT_BE_CREATED_ERROR_CODE, "Room '" + roomName
+          + "' has been created at the same time with different settings " + room.getSettings());
+    }
+  }
 
-    room = new Room(roomName, kurentoClient, roomHandler, kcProvider.destroyWhenUnused());
+  /**
+   * @return the settings used for the rooms that are created without explicit configuration
+   */
+  public RoomSettings getDefaultRoomSettings() {
+    return defaultRoomSettings;
+  }
 
-    Room oldRoom = rooms.putIfAbsent(roomName, room);
-    if (oldRoom != null) {
-      log.warn("Room '{}' has just been created by another thread", roomName);
-      return;
-      // throw new RoomException(
-      // Code.ROOM_CANNOT_BE_CREATED_ERROR_CODE,
-      // "Room '"
-      // + roomName
-      // + "' already exists (has just been created by another thread)");
-    }
-    String kcName = "[NAME NOT AVAILABLE]";
-    if (kurentoClient.getServerManager() != null) {
-      kcName = kurentoClient.getServerManager().getName();
-    }
-    log.warn("No room '{}' exists yet. Created one " + "using KurentoClient '{}'.", roomName,
-        kcName);
+  /**
+   * Sets the configuration of the rooms that will be created from now on without explicit
+   * settings (including those created when the first participant joins).
+   *
+   * @param defaultRoomSettings the room settings
+   */
+  public void setDefaultRoomSettings(RoomSettings defaultRoomSettings) {
+    this.defaultRoomSettings = defaultRoomSettings;
   }
 
   /**
@@ -806,7 +1404,7 @@ public class RoomManager {
    * participants in the room to inform that the room was forcibly closed.
    *
    * @param roomName name or identifier of the room
-   * @return set of {@link UserParticipant} POJOS representing the room's participants
+   * @return set of {@link UserParticipant} POJOS representing the room's participants and viewers
    * @throws RoomException in case the room doesn't exist or has been already closed
    */
   public Set<UserParticipant> closeRoom(String roomName) throws RoomException {
@@ -814,24 +1412,28 @@ public class RoomManager {
     if (room == null) {
       throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE, "Room '" + roomName + "' not found");
     }
-    if (room.isClosed()) {
-      throw new RoomException(Code.ROOM_CLOSED_ERROR_CODE,
-          "Room '" + roomName + "' already closed");
-    }
-    Set<UserParticipant> participants = getParticipants(roomName);
-    // copy the ids as they will be removed from the map
-    Set<String> pids = new HashSet<String>(room.getParticipantIds());
-    for (String pid : pids) {
-      try {
-        room.leave(pid);
-      } catch (RoomException e) {
-        log.warn("Error evicting participant with id '{}' from room '{}'", pid, roomName, e);
+    // the teardown is queued behind the requests already accepted by the room's mailbox
+    return room.serialize(() -> {
+      if (room.isClosed()) {
+        throw new RoomException(Code.ROOM_CLOSED_ERROR_CODE,
+            "Room '" + roomName + "' already closed");
       }
-    }
-    room.close();
-    rooms.remove(roomName);
-    log.warn("Room '{}' removed and closed", roomName);
-    return participants;
+      Set<UserParticipant> participants = new HashSet<UserParticipant>(getParticipants(roomName));
+      Set<UserParticipant> viewers = room.getViewers();
+      participants.addAll(viewers);
+      // copy the ids as they will be removed from the map
+      Set<String> pids = new HashSet<String>(room.getParticipantIds());
+      for (UserParticipant viewer : viewers) {
+        pids.add(viewer.getParticipantId());
+      }
+      // no need to disconnect the participants one by one, releasing the pipeline frees all the
+      // media elements in a single request
+      room.close();
+      removeParticipants(room, pids);
+      rooms.remove(roomName, room);
+      log.warn("Room '{}' removed and closed", roomName);
+      return participants;
+    });
   }
 
   /**
@@ -843,10 +1445,6 @@ public class RoomManager {
    */
   public MediaPipeline getPipeline(String participantId) throws RoomException {
     Participant participant = getParticipant(participantId);
-    if (participant == null) {
-      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
-          "No participant with id '" + participantId + "' was found");
-    }
     return participant.getPipeline();
   }
 
@@ -887,18 +1485,182 @@ public class RoomManager {
     return new UserParticipant(participantId, participant.getName());
   }
 
+  /**
+   * Checks whether a participant is currently inside the given room.
+   *
+   * @param roomName      name or identifier of the room
+   * @param participantId identifier of the participant
+   * @return true if the participant was found in the room, false otherwise
+   */
+  public boolean containsParticipant(String roomName, String participantId) {
+    Participant participant = participants.get(participantId);
+    if (participant == null || participant.getRoom().isClosed()) {
+      return false;
+    }
+    return participant.getRoom().getName().equals(roomName);
+  }
+
   // ------------------ HELPERS ------------------------------------------
 
+  private Room getOrCreateRoom(String userName, String roomName,
+      KurentoClientSessionInfo kcSessionInfo) throws RoomException {
+    Room room = rooms.get(roomName);
+    if (room == null && kcSessionInfo != null) {
+      room = getOrCreateRoom(kcSessionInfo, defaultRoomSettings);
+    }
+    if (room == null) {
+      log.warn("Room '{}' not found");
+      throw new RoomException(Code.ROOM_NOT_FOUND_ERROR_CODE,
+          "Room '" + roomName + "' was not found, must be created before '" + userName
+              + "' can join");
+    }
+    if (room.isClosed()) {
+      log.warn("'{}' is trying to join room '{}' but it is closing", userName, roomName);
+      throw new RoomException(Code.ROOM_CLOSED_ERROR_CODE,
+          "'" + userName + "' is trying to join room '" + roomName + "' but it is closing");
+    }
+    return room;
+  }
+
+  /**
+   * Waits for the outcome of an asynchronous operation.
+   */
+  private static <T> T await(CompletableFuture<T> future) throws RoomException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      throw ContinuationFutures.toRoomException(e);
+    }
+  }
+
+  /**
+   * Returns the room named by the session info bean, creating it if needed. Concurrent calls for
+   * the same room are collapsed into a single creation, so that the {@link KurentoClient} is
+   * obtained (and the room instantiated) only once while the other callers wait for its outcome.
+   */
+  private Room getOrCreateRoom(KurentoClientSessionInfo kcSessionInfo, RoomSettings settings)
+      throws RoomException {
+    String roomName = kcSessionInfo.getRoomName();
+    CompletableFuture<Room> creation = new CompletableFuture<Room>();
+    CompletableFuture<Room> inFlight = roomCreations.putIfAbsent(roomName, creation);
+    if (inFlight != null) {
+      log.debug("Room '{}' is being created by another thread, waiting for it", roomName);
+      try {
+        return inFlight.join();
+      } catch (CompletionException e) {
+        throw ContinuationFutures.toRoomException(e);
+      }
+    }
+    try {
+      Room room = rooms.get(roomName);
+      if (room != null) {
+        log.debug("Room '{}' has just been created by another thread", roomName);
+      } else {
+        room = createRoomInstance(kcSessionInfo, settings);
+      }
+      creation.complete(room);
+      return room;
+    } catch (RuntimeException e) {
+      creation.completeExceptionally(e);
+      throw e;
+    } finally {
+      roomCreations.remove(roomName, creation);
+    }
+  }
+
+  private Room createRoomInstance(KurentoClientSessionInfo kcSessionInfo, RoomSettings settings) {
+    String roomName = kcSessionInfo.getRoomName();
+    KurentoClient kurentoClient = kcProvider.getKurentoClient(kcSessionInfo);
+
+    Room room = new Room(roomName, kurentoClient, roomHandler, kcProvider.destroyWhenUnused(),
+        new RoomSettings(settings));
+    room.setFanOutExecutor(this::fanOut, fanOutStats);
+    room.setMailboxExecutor(roomExecutor);
+    room.setClock(clock);
+    // a peer-to-peer room only creates its pipeline if it grows beyond two participants
+    MediaPipeline idlePipeline = room.isPeerToPeer() ? null
+        : kcProvider.getIdlePipeline(kurentoClient);
+    if (idlePipeline != null) {
+      room.usePipeline(idlePipeline);
+    }
+
+    Room oldRoom = rooms.putIfAbsent(roomName, room);
+    if (oldRoom != null) {
+      log.warn("Room '{}' has just been created by another thread", roomName);
+      if (idlePipeline != null) {
+        idlePipeline.release();
+      }
+      if (kcProvider.destroyWhenUnused()) {
+        kurentoClient.destroy();
+      }
+      return oldRoom;
+    }
+    String kcName = "[NAME NOT AVAILABLE]";
+    if (kurentoClient.getServerManager() != null) {
+      kcName = kurentoClient.getServerManager().getName();
+    }
+    log.warn("No room '{}' exists yet. Created one " + "using KurentoClient '{}'.", roomName,
+        kcName);
+    return room;
+  }
+
+  /**
+   * @return the media server where the new participant should be placed, null for the room's main
+   *         one
+   */
+  private KurentoClient placeParticipant(Room room, KurentoClientSessionInfo kcSessionInfo) {
+    if (!room.isCascaded()) {
+      return null;
+    }
+    return kcProvider.getKurentoClient(kcSessionInfo, room.getParticipantsPerKms(),
+        room.getSettings().getParticipantsPerKms());
+  }
+
+  private boolean isMix(Room room, String remoteName) {
+    return room.isMixed() && Room.MIX_NAME.equals(remoteName);
+  }
+
+  private Participant getStreamingSender(Participant participant, String remoteName)
+      throws RoomException {
+    String name = participant.getName();
+    Room room = participant.getRoom();
+    if (room.getSettings().getMode() == RoomSettings.Mode.COMPOSITE) {
+      throw new RoomException(Code.ROOM_GENERIC_ERROR_CODE, "Room '" + room.getName()
+          + "' mixes the media of its publishers, its participants can only receive '"
+          + Room.MIX_NAME + "'");
+    }
+    Participant senderParticipant = room.getParticipantByName(remoteName);
+    if (senderParticipant == null) {
+      log.warn("PARTICIPANT {}: Requesting to recv media from user {} "
+          + "in room {} but user could not be found", name, remoteName, room.getName());
+      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
+          "User '" + remoteName + " not found in room '" + room.getName() + "'");
+    }
+    if (!senderParticipant.isStreaming()) {
+      log.warn("PARTICIPANT {}: Requesting to recv media from user {} "
+          + "in room {} but user is not streaming media", name, remoteName, room.getName());
+      throw new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
+          "User '" + remoteName + " not streaming media in room '" + room.getName() + "'");
+    }
+    return senderParticipant;
+  }
+
   private Participant getParticipant(String pid) throws RoomException {
-    for (Room r : rooms.values()) {
-      if (!r.isClosed()) {
-        if (r.getParticipantIds().contains(pid) && r.getParticipant(pid) != null) {
-          return r.getParticipant(pid);
-        }
+    Participant participant = participants.get(pid);
+    if (participant == null || participant.getRoom().isClosed()) {
+      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
+          "No participant with id '" + pid + "' was found");
+    }
+    return participant;
+  }
+
+  private void removeParticipants(Room room, Set<String> pids) {
+    for (String pid : pids) {
+      Participant participant = participants.get(pid);
+      if (participant != null && participant.getRoom() == room) {
+        participants.remove(pid, participant);
       }
     }
-    throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
-        "No participant with id '" + pid + "' was found");
   }
 
   public void updateFilter(String roomId, String filterId) {
@@ -16,7 +16,10 @@
 
 package org.kurento.room.api;
 
+import java.util.Map;
+
 import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
 import org.kurento.room.exception.RoomException;
 
 /**
@@ -41,4 +44,42 @@ public interface KurentoClientProvider {
   KurentoClient getKurentoClient(KurentoClientSessionInfo sessionInfo) throws RoomException;
 
   boolean destroyWhenUnused();
+
+  /**
+   * Obtains an idle {@link MediaPipeline} that was created beforehand using the given client, so
+   * that a new room can start hosting participants without waiting for the media server. Once
+   * returned, the pipeline belongs to the room and will be released when the room is closed. If
+   * the pipeline was registered with a {@link PipelineErrorForwarder} when created, the room
+   * doesn't need to add its error listener.
+   *
+   * @param kurentoClient
+   *          the client returned by {@link #getKurentoClient(KurentoClientSessionInfo)} for the
+   *          room
+   * @return the pipeline or null if there is none available (the room will create its own)
+   */
+  default MediaPipeline getIdlePipeline(KurentoClient kurentoClient) {
+    return null;
+  }
+
+  /**
+   * Chooses the media server of a new participant of a room that can be spread over several
+   * servers. Placing it in a server that already hosts the room avoids relaying the media of the
+   * room's publishers to one more server.
+   *
+   * @param sessionInfo
+   *          the participant's session information (might be null)
+   * @param roomLoad
+   *          the clients of the servers that host the room (the first one is the room's main
+   *          server), with the number of the room's participants placed in each of them
+   * @param participantsPerClient
+   *          maximum number of the room's participants that should be placed in the same server
+   * @return the client of the chosen server, or null to place the participant in the room's main
+   *         server
+   * @throws RoomException
+   *           in case there is an error obtaining a {@link KurentoClient} instance
+   */
+  default KurentoClient getKurentoClient(KurentoClientSessionInfo sessionInfo,
+      Map<KurentoClient, Integer> roomLoad, int participantsPerClient) throws RoomException {
+    return null;
+  }
 }
@@ -16,12 +16,16 @@
 
 package org.kurento.room.api;
 
+import java.util.List;
 import java.util.Set;
 
 import org.kurento.client.MediaElement;
 import org.kurento.room.NotificationRoomManager;
 import org.kurento.room.api.pojo.ParticipantRequest;
+import org.kurento.room.api.pojo.RoomSettings;
+import org.kurento.room.api.pojo.RosterChange;
 import org.kurento.room.api.pojo.UserParticipant;
+import org.kurento.room.endpoint.SdpType;
 import org.kurento.room.exception.RoomException;
 
 /**
@@ -60,6 +64,45 @@ public interface NotificationRoomHandler extends RoomHandler {
   void onParticipantJoined(ParticipantRequest request, String roomName, String newUserName,
       Set<UserParticipant> existingParticipants, RoomException error);
 
+  /**
+   * Same as {@link #onParticipantJoined(ParticipantRequest, String, String, Set, RoomException)},
+   * also providing the version of the room's roster, which allows the new participant to be sent
+   * only part of the roster and to request later the rest of it or its changes (see
+   * {@link #onGetParticipants(ParticipantRequest, String, Set, long, List, RoomException)}). By
+   * default, the version is ignored.
+   *
+   * @param rosterVersion
+   *          the roster version from which the changes have to be applied to the existing
+   *          participants (the changes are idempotent, so it can be older than the given set)
+   */
+  default void onParticipantJoined(ParticipantRequest request, String roomName, String newUserName,
+      Set<UserParticipant> existingParticipants, long rosterVersion, RoomException error) {
+    onParticipantJoined(request, roomName, newUserName, existingParticipants, error);
+  }
+
+  /**
+   * Called as a result of
+   * {@link NotificationRoomManager#joinRoomAsViewer(String, String, ParticipantRequest)}. The
+   * viewer should be responded with the room's publishers, so that it can subscribe to their
+   * streams. The other participants aren't notified individually, they're informed about the
+   * number of viewers instead.
+   *
+   * @param request
+   *          instance of {@link ParticipantRequest} POJO to identify the user and the request
+   * @param roomName
+   *          the room's name
+   * @param userName
+   *          the viewer's name
+   * @param publishers
+   *          instances of {@link UserParticipant} POJO representing the room's publishers
+   * @param error
+   *          instance of {@link RoomException} POJO, includes a code and error message. If not
+   *          null, then the join was unsuccessful and the user should be responded accordingly.
+   * @see #onViewerCountChanged(String, int, java.util.function.Supplier)
+   */
+  void onViewerJoined(ParticipantRequest request, String roomName, String userName,
+      Set<UserParticipant> publishers, RoomException error);
+
   /**
    * Called as a result of
    * {@link NotificationRoomManager#leaveRoom(String, String, ParticipantRequest)} . The user should
@@ -207,6 +250,72 @@ public interface NotificationRoomHandler extends RoomHandler {
    */
   void onRecvIceCandidate(ParticipantRequest request, RoomException error);
 
+  /**
+   * Called as a result of
+   * {@link NotificationRoomManager#sendPeerSdp(String, SdpType, String, ParticipantRequest)}. The
+   * user should receive an acknowledgement if the operation completed successfully (no error),
+   * and the peer a notification with the SDP and the name of the sender.
+   *
+   * @param request
+   *          instance of {@link ParticipantRequest} POJO to identify the user and the request
+   * @param senderName
+   *          name of the participant that sent the SDP
+   * @param peer
+   *          instance of {@link UserParticipant} POJO representing the peer that has to receive it
+   * @param type
+   *          whether the SDP is an offer or an answer
+   * @param sdp
+   *          the SDP
+   * @param error
+   *          instance of {@link RoomException} POJO, includes a code and error message. If not
+   *          null, then the operation was unsuccessful and the user should be responded
+   *          accordingly.
+   */
+  void onPeerSdp(ParticipantRequest request, String senderName, UserParticipant peer,
+      SdpType type, String sdp, RoomException error);
+
+  /**
+   * Called as a result of {@link NotificationRoomManager#updateAudioLevel(double,
+   * ParticipantRequest)}. The user should receive an acknowledgement if the operation completed
+   * successfully (no error).
+   *
+   * @param request
+   *          instance of {@link ParticipantRequest} POJO to identify the user and the request
+   * @param error
+   *          instance of {@link RoomException} POJO, includes a code and error message. If not
+   *          null, then the operation was unsuccessful and the user should be responded
+   *          accordingly.
+   */
+  void onRecvAudioLevel(ParticipantRequest request, RoomException error);
+
+  /**
+   * Called as a result of
+   * {@link NotificationRoomManager#getParticipants(String, long, ParticipantRequest)}. The user
+   * should be responded with either the changes in the roster since the version it knows of or, if
+   * these aren't available, with the requested page of the roster.
+   *
+   * @param request
+   *          instance of {@link ParticipantRequest} POJO to identify the user and the request
+   * @param after
+   *          name of the last peer of the previous page, the page starts with the peers named
+   *          after it (null for the first page)
+   * @param participants
+   *          instances of {@link UserParticipant} POJO representing all the peers in the room (the
+   *          requester included), null if the changes are provided instead
+   * @param rosterVersion
+   *          version of the roster after the changes or of the participants set
+   * @param changes
+   *          ordered list of {@link RosterChange} POJOs done after the version known by the user,
+   *          null if not available
+   * @param error
+   *          instance of {@link RoomException} POJO, includes a code and error message. If not
+   *          null, then the operation was unsuccessful and the user should be responded
+   *          accordingly.
+   */
+  void onGetParticipants(ParticipantRequest request, String after,
+      Set<UserParticipant> participants, long rosterVersion, List<RosterChange> changes,
+      RoomException error);
+
   /**
    * Called as a result of {@link NotificationRoomManager#closeRoom(String)} -
    * application-originated method, not as a consequence of a client request. All resources on the
@@ -229,4 +338,38 @@ public interface NotificationRoomHandler extends RoomHandler {
    *          instance of {@link UserParticipant} POJO representing the evicted peer
    */
   void onParticipantEvicted(UserParticipant participant);
+
+  /**
+   * Called when a participant joins a room that mixes its media on the server, before the
+   * response to its join request. The participant should be notified as if the mix was the stream
+   * of a publisher with the given name, so that it subscribes to it.
+   *
+   * @param participantId
+   *          identifier of the new participant
+   * @param mixName
+   *          name of the virtual publisher of the mix
+   * @param mode
+   *          the room's mode (what the mix carries)
+   */
+  void onMixPublished(String participantId, String mixName, RoomSettings.Mode mode);
+
+  /**
+   * Called when a participant joins a peer-to-peer room, before the response to its join request.
+   * The participant shouldn't publish through the server, and if there's already another
+   * participant it should connect to it, sending it an SDP offer (the other one waits for it).
+   *
+   * @param participantId
+   *          identifier of the new participant
+   * @param peerName
+   *          name of the participant it has to connect to, null if it's alone in the room
+   */
+  void onPeerToPeer(String participantId, String peerName);
+
+  /**
+   * Called when the {@link NotificationRoomManager} is closed, after the participants have been
+   * notified that their rooms are closed. Should send what's still pending and release the
+   * handler's resources (e.g. its threads). Does nothing by default.
+   */
+  default void close() {
+  }
 }
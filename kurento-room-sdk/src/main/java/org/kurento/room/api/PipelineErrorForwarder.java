@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.kurento.client.ErrorEvent;
+import org.kurento.client.EventListener;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Error listener added to a {@link MediaPipeline} as soon as it's created, before knowing which
+ * room will use it (see {@link KurentoClientProvider#getIdlePipeline(KurentoClient)}). The room
+ * that adopts the pipeline only sets where the errors are forwarded to, without requesting
+ * anything to the media server. The errors raised while the pipeline is idle are just logged.
+ */
+public class PipelineErrorForwarder implements EventListener<ErrorEvent> {
+  private static final Logger log = LoggerFactory.getLogger(PipelineErrorForwarder.class);
+
+  // idle pipeline -> its forwarder, until a room adopts it
+  private static final ConcurrentMap<MediaPipeline, PipelineErrorForwarder> idle =
+      new ConcurrentHashMap<MediaPipeline, PipelineErrorForwarder>();
+
+  private final String pipelineId;
+  private volatile EventListener<ErrorEvent> target;
+
+  private PipelineErrorForwarder(String pipelineId) {
+    this.pipelineId = pipelineId;
+  }
+
+  /**
+   * Creates the forwarder of a new idle pipeline. It has to be added as the pipeline's error
+   * listener, and then registered with {@link #register(MediaPipeline, PipelineErrorForwarder)}.
+   */
+  public static PipelineErrorForwarder create(MediaPipeline pipeline) {
+    return new PipelineErrorForwarder(pipeline.getId());
+  }
+
+  /**
+   * Makes the forwarder, already added as the pipeline's error listener, available to the room
+   * that adopts the pipeline.
+   */
+  public static void register(MediaPipeline pipeline, PipelineErrorForwarder forwarder) {
+    idle.put(pipeline, forwarder);
+  }
+
+  /**
+   * Forgets the forwarder of an idle pipeline that's being released.
+   */
+  public static void unregister(MediaPipeline pipeline) {
+    idle.remove(pipeline);
+  }
+
+  /**
+   * Forwards the errors of an adopted pipeline to its room.
+   *
+   * @param pipeline
+   *          the pipeline taken from the idle ones
+   * @param target
+   *          the room's error listener
+   * @return false if the pipeline has no forwarder (its room has to add its own listener)
+   */
+  public static boolean forward(MediaPipeline pipeline, EventListener<ErrorEvent> target) {
+    PipelineErrorForwarder forwarder = idle.remove(pipeline);
+    if (forwarder == null) {
+      return false;
+    }
+    forwarder.target = target;
+    return true;
+  }
+
+  @Override
+  public void onEvent(ErrorEvent event) {
+    EventListener<ErrorEvent> target = this.target;
+    if (target != null) {
+      target.onEvent(event);
+    } else {
+      log.warn("Error in idle MediaPipeline #{}: {} ({})", pipelineId, event.getDescription(),
+          event.getErrorCode());
+    }
+  }
+}
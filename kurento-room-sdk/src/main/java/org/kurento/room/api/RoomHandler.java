@@ -17,8 +17,10 @@
 package org.kurento.room.api;
 
 import java.util.Set;
+import java.util.function.Supplier;
 
 import org.kurento.client.IceCandidate;
+import org.kurento.room.api.pojo.UserParticipant;
 import org.kurento.room.internal.Participant;
 
 /**
@@ -61,6 +63,44 @@ public interface RoomHandler {
    */
   void onPipelineError(String roomName, Set<String> participantIds, String errorDescription);
 
+  /**
+   * Called when the server detects a new dominant speaker in a room, at most once per the
+   * interval configured for the room. The participants should be notified. Ignored by default.
+   *
+   * @param roomName        the room
+   * @param speakerName     name of the participant that's now the dominant speaker
+   * @param participants    the participants of the room
+   */
+  default void onDominantSpeakerChanged(String roomName, String speakerName,
+      Set<UserParticipant> participants) {
+  }
+
+  /**
+   * Called when a viewer joins or leaves a room. Viewers don't receive the roster of the room, the
+   * participants (and the viewers) should only be informed about how many they are, and not more
+   * often than needed when lots of viewers come and go. Ignored by default.
+   *
+   * @param roomName    the room
+   * @param viewerCount current number of viewers in the room
+   * @param recipients  provides the participants and viewers of the room when the count is sent
+   *                    (might throw a {@link org.kurento.room.exception.RoomException} once the
+   *                    room is closed)
+   */
+  default void onViewerCountChanged(String roomName, int viewerCount,
+      Supplier<Set<UserParticipant>> recipients) {
+  }
+
+  /**
+   * Called when a peer-to-peer room creates its pipeline because a third participant (or a
+   * viewer) is joining. The peers should close their direct connection, then publish and
+   * subscribe through the server as in any other room. Ignored by default.
+   *
+   * @param roomName the room
+   * @param peers    the participants whose media was exchanged peer-to-peer
+   */
+  default void onPeerToPeerEnded(String roomName, Set<UserParticipant> peers) {
+  }
+
   /**
    * Called when a new participant joins the conference and there are filters configured
    *
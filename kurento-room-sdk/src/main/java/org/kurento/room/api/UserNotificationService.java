@@ -16,6 +16,8 @@
 
 package org.kurento.room.api;
 
+import java.util.Collection;
+
 import org.kurento.room.api.pojo.ParticipantRequest;
 import org.kurento.room.exception.RoomException;
 import org.kurento.room.internal.DefaultNotificationRoomHandler;
@@ -77,6 +79,26 @@ public interface UserNotificationService {
    */
   void sendNotification(String participantId, String method, Object params);
 
+  /**
+   * Sends the same notification to several remote peers, so that implementations can share the
+   * work needed for all of them. By default,
+   * {@link #sendNotification(String, String, Object)} is invoked for each participant.
+   *
+   * @param participantIds
+   *          identifiers of the targeted participants
+   * @param method
+   *          String with the name of the method or event to be invoked on the clients
+   * @param params
+   *          Object containing information that depends on the invoked method. It'd normally be a
+   *          JSON element-type object.
+   */
+  default void sendNotificationToMany(Collection<String> participantIds, String method,
+      Object params) {
+    for (String participantId : participantIds) {
+      sendNotification(participantId, method, params);
+    }
+  }
+
   /**
    * Notifies that any information associated with the provided request should be cleaned up (the
    * participant has left).
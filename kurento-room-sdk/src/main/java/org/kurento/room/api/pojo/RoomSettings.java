@@ -0,0 +1,259 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.api.pojo;
+
+/**
+ * This POJO holds the configuration used when creating a room.
+ */
+public class RoomSettings {
+
+  /**
+   * How the media of the room's publishers reaches its participants.
+   */
+  public enum Mode {
+    /** each participant receives the stream of every publisher through its own endpoint */
+    SFU,
+    /**
+     * all the publishers are mixed by the server into a single stream (a grid of the videos and
+     * the mixed audio), each participant receives it through one endpoint
+     */
+    COMPOSITE,
+    /**
+     * the video is forwarded as in {@link #SFU} (only the Last-N, if enabled) while the audio of
+     * all the publishers is mixed by the server, each participant receives a single audio track
+     */
+    MIXED_AUDIO
+  }
+
+  private Mode mode = Mode.SFU;
+  private boolean lazySubscribers = false;
+  private int webRtcEndpointPoolSize = 0;
+  private boolean serialExecution = false;
+  private int lastN = 0;
+  private int speakerThreshold = -50;
+  private int dominantSpeakerInterval = 1000;
+  private int participantsPerKms = 0;
+  private int relayFanOut = 0;
+  private boolean peerToPeer = false;
+
+  public RoomSettings() {
+    super();
+  }
+
+  public RoomSettings(RoomSettings other) {
+    super();
+    this.mode = other.mode;
+    this.lazySubscribers = other.lazySubscribers;
+    this.webRtcEndpointPoolSize = other.webRtcEndpointPoolSize;
+    this.serialExecution = other.serialExecution;
+    this.lastN = other.lastN;
+    this.speakerThreshold = other.speakerThreshold;
+    this.dominantSpeakerInterval = other.dominantSpeakerInterval;
+    this.participantsPerKms = other.participantsPerKms;
+    this.relayFanOut = other.relayFanOut;
+    this.peerToPeer = other.peerToPeer;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public void setMode(Mode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * @return true if the subscriber endpoints are only allocated when a participant requests to
+   *         receive media from a publisher (or sends the first ICE candidate for it), false if they
+   *         are pre-created for every pair of participants
+   */
+  public boolean isLazySubscribers() {
+    return lazySubscribers;
+  }
+
+  public void setLazySubscribers(boolean lazySubscribers) {
+    this.lazySubscribers = lazySubscribers;
+  }
+
+  /**
+   * @return maximum number of idle WebRTC endpoints that the room builds in advance for its
+   *         publishers and subscribers (the actual number depends on the count of publishers), 0 if
+   *         the endpoints are always built on demand
+   */
+  public int getWebRtcEndpointPoolSize() {
+    return webRtcEndpointPoolSize;
+  }
+
+  public void setWebRtcEndpointPoolSize(int webRtcEndpointPoolSize) {
+    this.webRtcEndpointPoolSize = webRtcEndpointPoolSize;
+  }
+
+  /**
+   * @return true if the requests that modify the room are run one at a time, in arrival order, by
+   *         the room's own mailbox (actor model) instead of concurrently by the callers' threads
+   */
+  public boolean isSerialExecution() {
+    return serialExecution;
+  }
+
+  public void setSerialExecution(boolean serialExecution) {
+    this.serialExecution = serialExecution;
+  }
+
+  /**
+   * @return number of publishers (the most recently active speakers) whose video is forwarded to
+   *         the subscribers, 0 if the video of all the publishers is forwarded. The audio is always
+   *         forwarded.
+   */
+  public int getLastN() {
+    return lastN;
+  }
+
+  public void setLastN(int lastN) {
+    this.lastN = lastN;
+  }
+
+  /**
+   * @return audio level (in dBov) above which a publisher is considered to be speaking. The levels
+   *         are self-reported by the clients, so a dishonest one can claim to be the loudest (up
+   *         to 0 dBov) and take the floor: the dominant speaker, and the Last-N video selection
+   *         driven by it, are advisory and mustn't be used to grant any permission.
+   */
+  public int getSpeakerThreshold() {
+    return speakerThreshold;
+  }
+
+  public void setSpeakerThreshold(int speakerThreshold) {
+    this.speakerThreshold = speakerThreshold;
+  }
+
+  /**
+   * @return minimum time (in milliseconds) between two changes of the room's dominant speaker. The
+   *         audio levels of each publisher are also accepted at most 4 times per interval, the
+   *         rest are ignored.
+   */
+  public int getDominantSpeakerInterval() {
+    return dominantSpeakerInterval;
+  }
+
+  public void setDominantSpeakerInterval(int dominantSpeakerInterval) {
+    this.dominantSpeakerInterval = dominantSpeakerInterval;
+  }
+
+  /**
+   * @return maximum number of the room's participants placed in the same media server before the
+   *         room spreads to another one, 0 if the room is hosted by a single server. Ignored in
+   *         rooms that mix their media.
+   * @see org.kurento.room.api.KurentoClientProvider#getKurentoClient(
+   *      org.kurento.room.api.KurentoClientSessionInfo, java.util.Map, int)
+   */
+  public int getParticipantsPerKms() {
+    return participantsPerKms;
+  }
+
+  public void setParticipantsPerKms(int participantsPerKms) {
+    this.participantsPerKms = participantsPerKms;
+  }
+
+  /**
+   * @return maximum number of servers a pipeline of the room relays a publisher's media to, the
+   *         others receive it from the relays (forming a tree), 0 for no limit. Only used when the
+   *         room spreads over several servers: the tree is made of the room's pipelines in the
+   *         other servers, so in a room held by a single server (see
+   *         {@link #getParticipantsPerKms()}) every viewer is connected directly to the
+   *         presenter's pipeline and the audience is bounded by that server's capacity
+   * @see #getParticipantsPerKms()
+   */
+  public int getRelayFanOut() {
+    return relayFanOut;
+  }
+
+  public void setRelayFanOut(int relayFanOut) {
+    this.relayFanOut = relayFanOut;
+  }
+
+  /**
+   * @return true if a room with up to two participants doesn't use the media server, its peers
+   *         exchange their media directly and the server only relays their SDPs and ICE
+   *         candidates. The room moves to the server (see {@link Mode#SFU}) once a third
+   *         participant or a viewer joins. Ignored in rooms that mix their media or that spread
+   *         over several servers.
+   */
+  public boolean isPeerToPeer() {
+    return peerToPeer;
+  }
+
+  public void setPeerToPeer(boolean peerToPeer) {
+    this.peerToPeer = peerToPeer;
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + (mode == null ? 0 : mode.hashCode());
+    result = prime * result + (lazySubscribers ? 1231 : 1237);
+    result = prime * result + webRtcEndpointPoolSize;
+    result = prime * result + (serialExecution ? 1231 : 1237);
+    result = prime * result + lastN;
+    result = prime * result + speakerThreshold;
+    result = prime * result + dominantSpeakerInterval;
+    result = prime * result + participantsPerKms;
+    result = prime * result + relayFanOut;
+    result = prime * result + (peerToPeer ? 1231 : 1237);
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null) {
+      return false;
+    }
+    if (!(obj instanceof RoomSettings)) {
+      return false;
+    }
+    RoomSettings other = (RoomSettings) obj;
+    return mode == other.mode && lazySubscribers == other.lazySubscribers
+        && webRtcEndpointPoolSize == other.webRtcEndpointPoolSize
+        && serialExecution == other.serialExecution && lastN == other.lastN
+        && speakerThreshold == other.speakerThreshold
+        && dominantSpeakerInterval == other.dominantSpeakerInterval
+        && participantsPerKms == other.participantsPerKms && relayFanOut == other.relayFanOut
+        && peerToPeer == other.peerToPeer;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("[");
+    builder.append("mode=").append(mode);
+    builder.append(", lazySubscribers=").append(lazySubscribers);
+    builder.append(", webRtcEndpointPoolSize=").append(webRtcEndpointPoolSize);
+    builder.append(", serialExecution=").append(serialExecution);
+    builder.append(", lastN=").append(lastN);
+    builder.append(", speakerThreshold=").append(speakerThreshold);
+    builder.append(", dominantSpeakerInterval=").append(dominantSpeakerInterval);
+    builder.append(", participantsPerKms=").append(participantsPerKms);
+    builder.append(", relayFanOut=").append(relayFanOut);
+    builder.append(", peerToPeer=").append(peerToPeer);
+    builder.append("]");
+    return builder.toString();
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.api.pojo;
+
+/**
+ * This POJO holds a change in the roster of a room: a participant that joined or left it, or that
+ * started or stopped publishing media. Each change increments the room's roster version.
+ */
+public class RosterChange {
+
+  public enum Type {
+    JOINED, LEFT, PUBLISHED, UNPUBLISHED
+  }
+
+  private final long version;
+  private final Type type;
+  private final String userName;
+
+  public RosterChange(long version, Type type, String userName) {
+    this.version = version;
+    this.type = type;
+    this.userName = userName;
+  }
+
+  /**
+   * @return the roster version that resulted from this change
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getUserName() {
+    return userName;
+  }
+
+  @Override
+  public String toString() {
+    return "[v" + version + " " + type + " " + userName + "]";
+  }
+}
@@ -17,6 +17,8 @@
 package org.kurento.room.endpoint;
 
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 
 import org.kurento.client.Continuation;
@@ -33,6 +35,7 @@ import org.kurento.client.WebRtcEndpoint;
 import org.kurento.room.api.MutedMediaType;
 import org.kurento.room.exception.RoomException;
 import org.kurento.room.exception.RoomException.Code;
+import org.kurento.room.internal.ContinuationFutures;
 import org.kurento.room.internal.Participant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,6 +64,9 @@ public abstract class MediaEndpoint {
 
   private LinkedList<IceCandidate> candidates = new LinkedList<IceCandidate>();
 
+  private final CompletableFuture<SdpEndpoint> endpointFuture =
+      new CompletableFuture<SdpEndpoint>();
+
   private MutedMediaType muteType;
 
   /**
@@ -131,18 +137,35 @@ public abstract class MediaEndpoint {
   public synchronized SdpEndpoint createEndpoint(CountDownLatch endpointLatch) {
     SdpEndpoint old = this.getEndpoint();
     if (old == null) {
+      ContinuationFutures.withTimeout(endpointFuture, getEndpointErrorCode(),
+          "Timeout reached when creating the endpoint (ep: " + endpointName + ")");
       internalEndpointInitialization(endpointLatch);
     } else {
       endpointLatch.countDown();
     }
-    if (this.isWeb()) {
-      while (!candidates.isEmpty()) {
-        internalAddIceCandidate(candidates.removeFirst());
-      }
-    }
+    flushIceCandidates();
     return old;
   }
 
+  /**
+   * Non-blocking version of {@link #createEndpoint(CountDownLatch)}.
+   *
+   * @return a future completed with the internal endpoint once it's been built
+   * @see #getEndpointFuture()
+   */
+  public CompletableFuture<SdpEndpoint> createEndpointAsync() {
+    createEndpoint(new CountDownLatch(1));
+    return endpointFuture;
+  }
+
+  /**
+   * @return future that will be completed with the internal endpoint when it's created (or
+   *         exceptionally if its creation fails)
+   */
+  public CompletableFuture<SdpEndpoint> getEndpointFuture() {
+    return endpointFuture;
+  }
+
   /**
    * @return the pipeline
    */
@@ -235,6 +258,16 @@ public abstract class MediaEndpoint {
    */
   protected void internalEndpointInitialization(final CountDownLatch endpointLatch) {
     if (this.isWeb()) {
+      WebRtcEndpoint idleEndpoint = null;
+      // the pool is kept in the room's main pipeline
+      if (!this.dataChannels && owner.getRoom().isMainPipeline(pipeline)) {
+        idleEndpoint = owner.getRoom().pollIdleWebRtcEndpoint();
+      }
+      if (idleEndpoint != null) {
+        log.trace("EP {}: Using an idle WebRtcEndpoint", endpointName);
+        webEndpointReady(idleEndpoint, endpointLatch);
+        return;
+      }
       WebRtcEndpoint.Builder builder = new WebRtcEndpoint.Builder(pipeline);
       if (this.dataChannels) {
         builder.useDataChannels();
@@ -242,22 +275,28 @@ public abstract class MediaEndpoint {
       builder.buildAsync(new Continuation<WebRtcEndpoint>() {
         @Override
         public void onSuccess(WebRtcEndpoint result) throws Exception {
-          webEndpoint = result;
-
-          webEndpoint.setMaxVideoRecvBandwidth(600);
-          webEndpoint.setMinVideoRecvBandwidth(300);
-          webEndpoint.setMaxVideoSendBandwidth(600);
-          webEndpoint.setMinVideoSendBandwidth(300);
-
-          endpointLatch.countDown();
-          log.trace("EP {}: Created a new WebRtcEndpoint", endpointName);
-          endpointSubscription = registerElemErrListener(webEndpoint);
+          try {
+            configureWebEndpoint(result);
+            log.trace("EP {}: Created a new WebRtcEndpoint", endpointName);
+            webEndpointReady(result, endpointLatch);
+          } catch (Exception e) {
+            log.error("EP {}: Failed to set up the new WebRtcEndpoint", endpointName, e);
+            if (webEndpoint != result) {
+              releaseUnused(result);
+            }
+            endpointCreationFailed(endpointLatch, new RoomException(
+                Code.MEDIA_WEBRTC_ENDPOINT_ERROR_CODE,
+                "Unable to create WebRtcEndpoint (ep: " + endpointName + ")"));
+          }
         }
 
         @Override
         public void onError(Throwable cause) throws Exception {
           endpointLatch.countDown();
           log.error("EP {}: Failed to create a new WebRtcEndpoint", endpointName, cause);
+          endpointFuture.completeExceptionally(new RoomException(
+              Code.MEDIA_WEBRTC_ENDPOINT_ERROR_CODE,
+              "Unable to create WebRtcEndpoint (ep: " + endpointName + ")"));
         }
       });
     } else {
@@ -267,18 +306,79 @@ public abstract class MediaEndpoint {
           endpoint = result;
           endpointLatch.countDown();
           log.trace("EP {}: Created a new RtpEndpoint", endpointName);
-          endpointSubscription = registerElemErrListener(endpoint);
+          try {
+            endpointSubscription = registerElemErrListener(endpoint);
+          } catch (Exception e) {
+            log.error("EP {}: Failed to set up the new RtpEndpoint", endpointName, e);
+            endpointCreationFailed(endpointLatch, new RoomException(
+                Code.MEDIA_RTP_ENDPOINT_ERROR_CODE,
+                "Unable to create RtpEndpoint (ep: " + endpointName + ")"));
+            return;
+          }
+          endpointFuture.complete(endpoint);
         }
 
         @Override
         public void onError(Throwable cause) throws Exception {
           endpointLatch.countDown();
           log.error("EP {}: Failed to create a new RtpEndpoint", endpointName, cause);
+          endpointFuture.completeExceptionally(new RoomException(
+              Code.MEDIA_RTP_ENDPOINT_ERROR_CODE,
+              "Unable to create RtpEndpoint (ep: " + endpointName + ")"));
         }
       });
     }
   }
 
+  /**
+   * Releases the threads waiting for the internal endpoint when it can't be created.
+   *
+   * @param endpointLatch
+   *          latch of the creation request
+   * @param error
+   *          used to complete the endpoint's future
+   */
+  protected void endpointCreationFailed(CountDownLatch endpointLatch, RoomException error) {
+    endpointLatch.countDown();
+    endpointFuture.completeExceptionally(error);
+  }
+
+  private void webEndpointReady(WebRtcEndpoint result, CountDownLatch endpointLatch) {
+    webEndpoint = result;
+    endpointLatch.countDown();
+    endpointSubscription = registerElemErrListener(webEndpoint);
+    flushIceCandidates();
+    endpointFuture.complete(webEndpoint);
+  }
+
+  private void releaseUnused(final WebRtcEndpoint unused) {
+    unused.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("EP {}: Released the WebRtcEndpoint that couldn't be set up", endpointName);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("EP {}: Could not release the WebRtcEndpoint that couldn't be set up",
+            endpointName, cause);
+      }
+    });
+  }
+
+  /**
+   * Applies the video bandwidth limits used for the rooms' {@link WebRtcEndpoint}s.
+   *
+   * @param webEndpoint
+   *          the newly built endpoint
+   */
+  public static void configureWebEndpoint(WebRtcEndpoint webEndpoint) {
+    webEndpoint.setMaxVideoRecvBandwidth(600);
+    webEndpoint.setMinVideoRecvBandwidth(300);
+    webEndpoint.setMaxVideoSendBandwidth(600);
+    webEndpoint.setMinVideoSendBandwidth(300);
+  }
+
   /**
    * Add a new {@link IceCandidate} received gathered by the remote peer of this
    * {@link WebRtcEndpoint}.
@@ -297,6 +397,26 @@ public abstract class MediaEndpoint {
     }
   }
 
+  /**
+   * Adds several {@link IceCandidate}s at once, gathered by the remote peer of this
+   * {@link WebRtcEndpoint}.
+   *
+   * @param candidates
+   *          the remote candidates, in the order they were gathered
+   */
+  public synchronized void addIceCandidates(List<IceCandidate> candidates) throws RoomException {
+    if (!this.isWeb()) {
+      throw new RoomException(Code.MEDIA_NOT_A_WEB_ENDPOINT_ERROR_CODE, "Operation not supported");
+    }
+    if (webEndpoint == null) {
+      this.candidates.addAll(candidates);
+    } else {
+      for (IceCandidate candidate : candidates) {
+        internalAddIceCandidate(candidate);
+      }
+    }
+  }
+
   /**
    * Registers a listener for when the {@link MediaElement} triggers an {@link ErrorEvent}. Notifies
    * the owner with the error.
@@ -355,6 +475,44 @@ public abstract class MediaEndpoint {
     }
   }
 
+  /**
+   * Non-blocking version of {@link #processOffer(String)}.
+   *
+   * @param offer
+   *          String with the Sdp offer
+   * @return future completed with the Sdp answer
+   */
+  protected CompletableFuture<String> processOfferAsync(String offer) {
+    SdpEndpoint sdpEndpoint = getEndpoint();
+    if (sdpEndpoint == null) {
+      return ContinuationFutures.failed(new RoomException(getEndpointErrorCode(),
+          "Can't process offer when endpoint is null (ep: " + endpointName + ")"));
+    }
+    CompletableFuture<String> future = new CompletableFuture<String>();
+    sdpEndpoint.processOffer(offer, ContinuationFutures.toContinuation(future,
+        Code.MEDIA_SDP_ERROR_CODE, "Error processing SDP offer (ep: " + endpointName + ")"));
+    return future;
+  }
+
+  /**
+   * Non-blocking version of {@link #processAnswer(String)}.
+   *
+   * @param answer
+   *          String with the Sdp answer from remote
+   * @return future completed with the updated Sdp offer
+   */
+  protected CompletableFuture<String> processAnswerAsync(String answer) {
+    SdpEndpoint sdpEndpoint = getEndpoint();
+    if (sdpEndpoint == null) {
+      return ContinuationFutures.failed(new RoomException(getEndpointErrorCode(),
+          "Can't process answer when endpoint is null (ep: " + endpointName + ")"));
+    }
+    CompletableFuture<String> future = new CompletableFuture<String>();
+    sdpEndpoint.processAnswer(answer, ContinuationFutures.toContinuation(future,
+        Code.MEDIA_SDP_ERROR_CODE, "Error processing SDP answer (ep: " + endpointName + ")"));
+    return future;
+  }
+
   /**
    * Orders the internal endpoint ({@link RtpEndpoint} or {@link WebRtcEndpoint}) to generate the
    * offer String that can be used to initiate a connection.
@@ -378,6 +536,23 @@ public abstract class MediaEndpoint {
     }
   }
 
+  /**
+   * Non-blocking version of {@link #generateOffer()}.
+   *
+   * @return future completed with the Sdp offer
+   */
+  protected CompletableFuture<String> generateOfferAsync() {
+    SdpEndpoint sdpEndpoint = getEndpoint();
+    if (sdpEndpoint == null) {
+      return ContinuationFutures.failed(new RoomException(getEndpointErrorCode(),
+          "Can't generate offer when endpoint is null (ep: " + endpointName + ")"));
+    }
+    CompletableFuture<String> future = new CompletableFuture<String>();
+    sdpEndpoint.generateOffer(ContinuationFutures.toContinuation(future,
+        Code.MEDIA_SDP_ERROR_CODE, "Error generating SDP offer (ep: " + endpointName + ")"));
+    return future;
+  }
+
   /**
    * Orders the internal endpoint ({@link RtpEndpoint} or {@link WebRtcEndpoint}) to process the
    * answer String.
@@ -421,12 +596,36 @@ public abstract class MediaEndpoint {
       throw new RoomException(Code.MEDIA_WEBRTC_ENDPOINT_ERROR_CODE,
           "Can't register event listener for null WebRtcEndpoint (ep: " + endpointName + ")");
     }
-    webEndpoint.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
+    webEndpoint.addOnIceCandidateListener(newIceCandidateListener());
+  }
+
+  /**
+   * Non-blocking version of {@link #registerOnIceCandidateEventListener()}.
+   *
+   * @return future completed once the listener has been registered
+   */
+  protected CompletableFuture<Void> registerOnIceCandidateEventListenerAsync() {
+    if (!this.isWeb()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    if (webEndpoint == null) {
+      return ContinuationFutures.failed(new RoomException(Code.MEDIA_WEBRTC_ENDPOINT_ERROR_CODE,
+          "Can't register event listener for null WebRtcEndpoint (ep: " + endpointName + ")"));
+    }
+    CompletableFuture<ListenerSubscription> future = new CompletableFuture<ListenerSubscription>();
+    webEndpoint.addOnIceCandidateListener(newIceCandidateListener(),
+        ContinuationFutures.toContinuation(future, Code.MEDIA_WEBRTC_ENDPOINT_ERROR_CODE,
+            "Can't register event listener (ep: " + endpointName + ")"));
+    return future.thenApply(subscription -> null);
+  }
+
+  private EventListener<OnIceCandidateEvent> newIceCandidateListener() {
+    return new EventListener<OnIceCandidateEvent>() {
       @Override
       public void onEvent(OnIceCandidateEvent event) {
         owner.sendIceCandidate(endpointName, event.getCandidate());
       }
-    });
+    };
   }
 
   /**
@@ -454,6 +653,22 @@ public abstract class MediaEndpoint {
     });
   }
 
+  private Code getEndpointErrorCode() {
+    return isWeb() ? Code.MEDIA_WEBRTC_ENDPOINT_ERROR_CODE : Code.MEDIA_RTP_ENDPOINT_ERROR_CODE;
+  }
+
+  /**
+   * Passes the candidates that were buffered until the {@link WebRtcEndpoint} was ready.
+   */
+  private synchronized void flushIceCandidates() {
+    if (!this.isWeb() || webEndpoint == null) {
+      return;
+    }
+    while (!candidates.isEmpty()) {
+      internalAddIceCandidate(candidates.removeFirst());
+    }
+  }
+
   private void internalAddIceCandidate(IceCandidate candidate) throws RoomException {
     if (webEndpoint == null) {
       throw new RoomException(Code.MEDIA_WEBRTC_ENDPOINT_ERROR_CODE,
@@ -20,6 +20,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 
 import org.kurento.client.Continuation;
@@ -32,6 +33,7 @@ import org.kurento.client.WebRtcEndpoint;
 import org.kurento.room.api.MutedMediaType;
 import org.kurento.room.exception.RoomException;
 import org.kurento.room.exception.RoomException.Code;
+import org.kurento.room.internal.ContinuationFutures;
 import org.kurento.room.internal.Participant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,11 +61,35 @@ public class PublisherEndpoint extends MediaEndpoint {
     super(web, dataChannels, owner, endpointName, pipeline, log);
   }
 
+  /**
+   * The {@link PassThrough} is built first, the internal endpoint is ready only when both
+   * elements have been created.
+   */
   @Override
   protected void internalEndpointInitialization(final CountDownLatch endpointLatch) {
-    super.internalEndpointInitialization(endpointLatch);
-    passThru = new PassThrough.Builder(getPipeline()).build();
-    passThruSubscription = registerElemErrListener(passThru);
+    new PassThrough.Builder(getPipeline()).buildAsync(new Continuation<PassThrough>() {
+      @Override
+      public void onSuccess(PassThrough result) throws Exception {
+        try {
+          synchronized (PublisherEndpoint.this) {
+            passThru = result;
+            passThruSubscription = registerElemErrListener(passThru);
+          }
+          PublisherEndpoint.super.internalEndpointInitialization(endpointLatch);
+        } catch (Exception e) {
+          log.error("EP {}: Failed to set up the new PassThrough", getEndpointName(), e);
+          endpointCreationFailed(endpointLatch, new RoomException(Code.MEDIA_ENDPOINT_ERROR_CODE,
+              "Unable to create PassThrough (ep: " + getEndpointName() + ")"));
+        }
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.error("EP {}: Failed to create a new PassThrough", getEndpointName(), cause);
+        endpointCreationFailed(endpointLatch, new RoomException(Code.MEDIA_ENDPOINT_ERROR_CODE,
+            "Unable to create PassThrough (ep: " + getEndpointName() + ")"));
+      }
+    });
   }
 
   @Override
@@ -128,10 +154,57 @@ public class PublisherEndpoint extends MediaEndpoint {
     return sdpResponse;
   }
 
+  /**
+   * Non-blocking version of {@link #publish(SdpType, String, boolean, MediaElement, MediaType)},
+   * the ICE listener is registered and the SDP processed asynchronously by the internal endpoint.
+   * The media elements are connected without waiting for the media server's response.
+   *
+   * @return future completed with the SDP response
+   */
+  public synchronized CompletableFuture<String> publishAsync(SdpType sdpType, String sdpString,
+      boolean doLoopback, MediaElement loopbackAlternativeSrc, MediaType loopbackConnectionType) {
+    try {
+      if (doLoopback) {
+        if (loopbackAlternativeSrc == null) {
+          connect(this.getEndpoint(), loopbackConnectionType);
+        } else {
+          connectAltLoopbackSrc(loopbackAlternativeSrc, loopbackConnectionType);
+        }
+      } else {
+        innerConnect();
+      }
+    } catch (RoomException e) {
+      return ContinuationFutures.failed(e);
+    }
+    return registerOnIceCandidateEventListenerAsync().thenCompose(registered -> {
+      switch (sdpType) {
+        case ANSWER:
+          return processAnswerAsync(sdpString);
+        case OFFER:
+          return processOfferAsync(sdpString);
+        default:
+          return ContinuationFutures.<String> failed(
+              new RoomException(Code.MEDIA_SDP_ERROR_CODE, "Sdp type not supported: " + sdpType));
+      }
+    }).thenApply(response -> {
+      gatherCandidates();
+      return response;
+    });
+  }
+
   public synchronized String preparePublishConnection() {
     return generateOffer();
   }
 
+  /**
+   * Non-blocking version of {@link #preparePublishConnection()}.
+   *
+   * @return future completed with the SDP offer
+   */
+  public CompletableFuture<String> preparePublishConnectionAsync() {
+    return generateOfferAsync();
+  }
+
   public synchronized void connect(MediaElement sink) {
     if (!connected) {
       innerConnect();
@@ -146,6 +219,30 @@ public class PublisherEndpoint extends MediaEndpoint {
     internalSinkConnect(passThru, sink, type);
   }
 
+  /**
+   * Non-blocking version of {@link #connect(MediaElement, MediaType)}.
+   *
+   * @param type
+   *          the type of media to send, null for all of them
+   * @return future completed once the media server has connected the sink
+   */
+  public synchronized CompletableFuture<Void> connectAsync(final MediaElement sink,
+      MediaType type) {
+    if (!connected) {
+      innerConnect();
+    }
+    CompletableFuture<Void> future = new CompletableFuture<Void>();
+    Continuation<Void> continuation = ContinuationFutures.toContinuation(future,
+        Code.MEDIA_ENDPOINT_ERROR_CODE, "Unable to connect the publisher (ep: " + getEndpointName()
+            + ") to " + sink.getId());
+    if (type == null) {
+      passThru.connect(sink, continuation);
+    } else {
+      passThru.connect(sink, type, continuation);
+    }
+    return future;
+  }
+
   public synchronized void disconnectFrom(MediaElement sink) {
     internalSinkDisconnect(passThru, sink);
   }
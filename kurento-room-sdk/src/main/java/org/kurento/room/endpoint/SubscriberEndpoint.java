@@ -16,6 +16,11 @@
 
 package org.kurento.room.endpoint;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.MediaType;
 import org.kurento.room.api.MutedMediaType;
@@ -37,6 +42,10 @@ public class SubscriberEndpoint extends MediaEndpoint {
 
   private PublisherEndpoint publisher = null;
 
+  private boolean videoForwarded = true;
+
+  private boolean audioMixed = false;
+
   public SubscriberEndpoint(boolean web, Participant owner, String endpointName,
       MediaPipeline pipeline) {
     super(web, false, owner, endpointName, pipeline, log);
@@ -46,12 +55,95 @@ public class SubscriberEndpoint extends MediaEndpoint {
     registerOnIceCandidateEventListener();
     String sdpAnswer = processOffer(sdpOffer);
     gatherCandidates();
-    publisher.connect(this.getEndpoint());
+    connectToPublisher(publisher);
     setConnectedToPublisher(true);
     setPublisher(publisher);
     return sdpAnswer;
   }
 
+  /**
+   * Non-blocking version of {@link #subscribe(String, PublisherEndpoint)}, the ICE listener is
+   * registered and the SDP offer processed asynchronously by the internal endpoint. The connection
+   * to the publisher doesn't wait for the media server's response either.
+   *
+   * @return future completed with the SDP answer
+   */
+  public CompletableFuture<String> subscribeAsync(String sdpOffer,
+      final PublisherEndpoint publisher) {
+    return registerOnIceCandidateEventListenerAsync()
+        .thenCompose(registered -> processOfferAsync(sdpOffer)).thenApply(sdpAnswer -> {
+          synchronized (SubscriberEndpoint.this) {
+            gatherCandidates();
+            connectToPublisher(publisher);
+            setConnectedToPublisher(true);
+            setPublisher(publisher);
+          }
+          return sdpAnswer;
+        });
+  }
+
+  /**
+   * Same as {@link #subscribe(String, PublisherEndpoint)}, but the media is received from an
+   * element that isn't a publisher (e.g. the port of the room's mix). This endpoint can't be muted.
+   *
+   * @param source
+   *          the element that feeds the endpoint
+   * @param type
+   *          the type of media to receive, null for all of them
+   */
+  public synchronized String subscribe(String sdpOffer, final MediaElement source,
+      final MediaType type) {
+    registerOnIceCandidateEventListener();
+    String sdpAnswer = processOffer(sdpOffer);
+    gatherCandidates();
+    connectToSource(source, type);
+    return sdpAnswer;
+  }
+
+  /**
+   * Non-blocking version of {@link #subscribe(String, MediaElement, MediaType)}.
+   *
+   * @param source
+   *          provides the element that feeds the endpoint, once the SDP offer has been processed
+   * @param type
+   *          the type of media to receive, null for all of them
+   * @return future completed with the SDP answer
+   */
+  public CompletableFuture<String> subscribeAsync(String sdpOffer,
+      final Supplier<MediaElement> source, final MediaType type) {
+    return registerOnIceCandidateEventListenerAsync()
+        .thenCompose(registered -> processOfferAsync(sdpOffer)).thenApply(sdpAnswer -> {
+          MediaElement element = source.get();
+          synchronized (SubscriberEndpoint.this) {
+            gatherCandidates();
+            connectToSource(element, type);
+          }
+          return sdpAnswer;
+        });
+  }
+
+  private void connectToSource(final MediaElement source, MediaType type) {
+    Continuation<Void> continuation = new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.debug("EP {}: Elements have been connected (source {} -> sink {})", getEndpointName(),
+            source.getId(), getEndpoint().getId());
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("EP {}: Failed to connect media elements (source {} -> sink {})",
+            getEndpointName(), source.getId(), getEndpoint().getId(), cause);
+      }
+    };
+    if (type == null) {
+      source.connect(getEndpoint(), continuation);
+    } else {
+      source.connect(getEndpoint(), type, continuation);
+    }
+    setConnectedToPublisher(true);
+  }
+
   public boolean isConnectedToPublisher() {
     return connectedToPublisher;
   }
@@ -89,7 +181,69 @@ public class SubscriberEndpoint extends MediaEndpoint {
 
   @Override
   public synchronized void unmute() {
-    this.publisher.connect(this.getEndpoint());
+    connectToPublisher(this.publisher);
     setMuteType(null);
   }
+
+  /**
+   * Connects or disconnects the video of the publisher (the audio is not affected), e.g. to
+   * forward only the video of the last active speakers. The SDP session isn't renegotiated, the
+   * video track just stops receiving media. If the subscriber hasn't connected yet, the setting is
+   * applied when it does. A video muted by the user is kept muted.
+   *
+   * @param videoForwarded
+   *          whether the publisher's video should reach this subscriber
+   */
+  public void setVideoForwarded(boolean videoForwarded) {
+    PublisherEndpoint publisher;
+    // the media server isn't requested while holding the endpoint's lock
+    synchronized (this) {
+      if (this.videoForwarded == videoForwarded) {
+        return;
+      }
+      this.videoForwarded = videoForwarded;
+      if (this.publisher == null || !isConnectedToPublisher()) {
+        return;
+      }
+      MutedMediaType muteType = getMuteType();
+      if (muteType == MutedMediaType.ALL || muteType == MutedMediaType.VIDEO) {
+        return;
+      }
+      publisher = this.publisher;
+    }
+    if (videoForwarded) {
+      publisher.connect(this.getEndpoint(), MediaType.VIDEO);
+    } else {
+      publisher.disconnectFrom(this.getEndpoint(), MediaType.VIDEO);
+    }
+  }
+
+  public synchronized boolean isVideoForwarded() {
+    return videoForwarded;
+  }
+
+  /**
+   * Must be set before subscribing, when the owner receives the publisher's audio through the
+   * room's audio mix. Only the video is then connected to this endpoint.
+   *
+   * @param audioMixed
+   *          whether the publisher's audio is left out of this endpoint
+   */
+  public synchronized void setAudioMixed(boolean audioMixed) {
+    this.audioMixed = audioMixed;
+  }
+
+  public synchronized boolean isAudioMixed() {
+    return audioMixed;
+  }
+
+  private void connectToPublisher(PublisherEndpoint publisher) {
+    if (videoForwarded && !audioMixed) {
+      publisher.connect(this.getEndpoint());
+    } else if (videoForwarded) {
+      publisher.connect(this.getEndpoint(), MediaType.VIDEO);
+    } else if (!audioMixed) {
+      publisher.connect(this.getEndpoint(), MediaType.AUDIO);
+    }
+  }
 }
@@ -0,0 +1,118 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the publishers of a room ordered by their last speech activity, and which of them are the
+ * N most recently active speakers (Last-N). A new publisher is placed after the ones that have
+ * already spoken. Not thread-safe, the room synchronizes its use.
+ */
+public class ActiveSpeakers {
+
+  private final int lastN;
+
+  // most recently active first
+  private final LinkedList<String> speakers = new LinkedList<String>();
+  private Set<String> forwarded = new HashSet<String>();
+
+  /**
+   * @param lastN
+   *          number of speakers whose video is forwarded
+   */
+  public ActiveSpeakers(int lastN) {
+    this.lastN = lastN;
+  }
+
+  /**
+   * @return the publishers whose forwarding has changed (true if they have entered the Last-N)
+   */
+  public Map<String, Boolean> added(String publisherName) {
+    if (!speakers.contains(publisherName)) {
+      speakers.addLast(publisherName);
+    }
+    return update();
+  }
+
+  /**
+   * @return the other publishers whose forwarding has changed
+   */
+  public Map<String, Boolean> removed(String publisherName) {
+    if (!speakers.remove(publisherName)) {
+      return new LinkedHashMap<String, Boolean>();
+    }
+    Map<String, Boolean> changes = update();
+    changes.remove(publisherName);
+    return changes;
+  }
+
+  /**
+   * @return the publishers whose forwarding has changed, empty if the speaker was already among
+   *         the Last-N (or isn't a known publisher)
+   */
+  public Map<String, Boolean> spoke(String publisherName) {
+    if (!speakers.remove(publisherName)) {
+      return new LinkedHashMap<String, Boolean>();
+    }
+    speakers.addFirst(publisherName);
+    return update();
+  }
+
+  /**
+   * @return true if the publisher's video is forwarded (unknown publishers are)
+   */
+  public boolean isForwarded(String publisherName) {
+    return forwarded.contains(publisherName) || !speakers.contains(publisherName);
+  }
+
+  /**
+   * @return the publishers, most recently active first
+   */
+  public List<String> getSpeakers() {
+    return new ArrayList<String>(speakers);
+  }
+
+  private Map<String, Boolean> update() {
+    Set<String> current = new HashSet<String>();
+    for (String speaker : speakers) {
+      if (current.size() >= lastN) {
+        break;
+      }
+      current.add(speaker);
+    }
+    Map<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+    for (String speaker : forwarded) {
+      if (!current.contains(speaker)) {
+        changes.put(speaker, false);
+      }
+    }
+    for (String speaker : current) {
+      if (!forwarded.contains(speaker)) {
+        changes.put(speaker, true);
+      }
+    }
+    forwarded = current;
+    return changes;
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.Continuation;
+import org.kurento.room.exception.RoomException;
+import org.kurento.room.exception.RoomException.Code;
+
+/**
+ * Helpers to bridge the {@link Continuation} callbacks of the Kurento Client with
+ * {@link CompletableFuture}s.
+ */
+public class ContinuationFutures {
+
+  // fails the futures whose media server reply doesn't arrive in time
+  private static final ScheduledThreadPoolExecutor timeouts =
+      new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "room-async-timeouts");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  static {
+    timeouts.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Creates a {@link Continuation} that completes the given future with the result of the
+   * asynchronous operation.
+   *
+   * @param future
+   *          the future to be completed
+   * @param errorCode
+   *          code of the {@link RoomException} used to complete the future in case of error
+   * @param errorMessage
+   *          message of the {@link RoomException} used to complete the future in case of error
+   * @return the continuation
+   */
+  public static <F> Continuation<F> toContinuation(final CompletableFuture<F> future,
+      final Code errorCode, final String errorMessage) {
+    withTimeout(future, errorCode, errorMessage + ": timeout reached");
+    return new Continuation<F>() {
+      @Override
+      public void onSuccess(F result) throws Exception {
+        future.complete(result);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        future.completeExceptionally(
+            new RoomException(errorCode, errorMessage + ": " + cause.getMessage()));
+      }
+    };
+  }
+
+  /**
+   * Completes the future exceptionally if it hasn't been completed after
+   * {@link Room#ASYNC_LATCH_TIMEOUT} seconds, the same time the blocking calls wait for the media
+   * server.
+   *
+   * @param future
+   *          the future to be bounded
+   * @param errorCode
+   *          code of the {@link RoomException} used to complete the future on timeout
+   * @param errorMessage
+   *          message of the {@link RoomException} used to complete the future on timeout
+   * @return the same future
+   */
+  public static <F> CompletableFuture<F> withTimeout(final CompletableFuture<F> future,
+      final Code errorCode, final String errorMessage) {
+    if (future.isDone()) {
+      return future;
+    }
+    final ScheduledFuture<?> timeout = timeouts.schedule(new Runnable() {
+      @Override
+      public void run() {
+        future.completeExceptionally(new RoomException(errorCode, errorMessage));
+      }
+    }, Room.ASYNC_LATCH_TIMEOUT, TimeUnit.SECONDS);
+    future.whenComplete((result, error) -> timeout.cancel(false));
+    return future;
+  }
+
+  /**
+   * @return a future that has already been completed with the given exception
+   */
+  public static <F> CompletableFuture<F> failed(Throwable cause) {
+    CompletableFuture<F> future = new CompletableFuture<F>();
+    future.completeExceptionally(cause);
+    return future;
+  }
+
+  /**
+   * Removes the {@link CompletionException} or {@link ExecutionException} wrappers added by the
+   * futures' machinery.
+   *
+   * @param t
+   *          the exception thrown by the future
+   * @return the original cause
+   */
+  public static Throwable unwrap(Throwable t) {
+    while ((t instanceof CompletionException || t instanceof ExecutionException)
+        && t.getCause() != null) {
+      t = t.getCause();
+    }
+    return t;
+  }
+
+  /**
+   * Converts the result of a failed future into a {@link RoomException} (if it isn't already one).
+   *
+   * @param t
+   *          the exception thrown by the future
+   * @return the {@link RoomException}
+   */
+  public static RoomException toRoomException(Throwable t) {
+    Throwable cause = unwrap(t);
+    if (cause instanceof RoomException) {
+      return (RoomException) cause;
+    }
+    return new RoomException(Code.GENERIC_ERROR_CODE, String.valueOf(cause.getMessage()));
+  }
+}
@@ -16,13 +16,30 @@
 
 package org.kurento.room.internal;
 
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import org.kurento.client.IceCandidate;
 import org.kurento.room.api.NotificationRoomHandler;
 import org.kurento.room.api.UserNotificationService;
 import org.kurento.room.api.pojo.ParticipantRequest;
+import org.kurento.room.api.pojo.RoomSettings;
+import org.kurento.room.api.pojo.RosterChange;
 import org.kurento.room.api.pojo.UserParticipant;
+import org.kurento.room.endpoint.SdpType;
 import org.kurento.room.exception.RoomException;
 
 import com.google.gson.JsonArray;
@@ -38,19 +55,156 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
 
   private UserNotificationService notifService;
 
+  private volatile IceCandidateBatcher iceCandidateBatcher = null;
+
+  private volatile RosterChangeBatcher rosterChangeBatcher = null;
+
+  private ScheduledExecutorService scheduler = null;
+
+  private boolean closed = false;
+
+  private volatile boolean broadcastNotifications = false;
+
+  private volatile int rosterPageSize = 0;
+
+  private volatile long viewerCountInterval = 1000;
+
+  private static class ViewerCount {
+    final int count;
+    final Supplier<Set<UserParticipant>> recipients;
+
+    ViewerCount(int count, Supplier<Set<UserParticipant>> recipients) {
+      this.count = count;
+      this.recipients = recipients;
+    }
+  }
+
+  // latest count of each room waiting to be sent
+  private final ConcurrentMap<String, ViewerCount> viewerCounts =
+      new ConcurrentHashMap<String, ViewerCount>();
+
   public DefaultNotificationRoomHandler(UserNotificationService notifService) {
     this.notifService = notifService;
   }
 
+  /**
+   * Groups the ICE candidates sent to each participant into
+   * {@link ProtocolElements#ICECANDIDATES_METHOD} notifications instead of sending one notification
+   * per candidate. The clients must support this notification.
+   *
+   * @param window
+   *          maximum time (in milliseconds) a candidate is delayed
+   * @param maxCandidates
+   *          number of candidates that causes a batch to be sent before its window expires
+   */
+  public void enableIceCandidateBatching(long window, int maxCandidates) {
+    this.iceCandidateBatcher = new IceCandidateBatcher(notifService, this::flushRosterChanges,
+        getScheduler(), window, maxCandidates);
+  }
+
+  /**
+   * Merges the joins and departures notified to each participant during the given window into
+   * {@link ProtocolElements#PARTICIPANTSCHANGED_METHOD} notifications, instead of sending a
+   * {@link ProtocolElements#PARTICIPANTJOINED_METHOD} or
+   * {@link ProtocolElements#PARTICIPANTLEFT_METHOD} notification for each one. Pending changes are
+   * sent before any other notification to the same participant. The clients must support this
+   * notification.
+   *
+   * @param window
+   *          maximum time (in milliseconds) a change is delayed
+   */
+  public void enableRosterChangeBatching(long window) {
+    this.rosterChangeBatcher = new RosterChangeBatcher(notifService, getScheduler(), window);
+  }
+
+  private synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      if (closed) {
+        throw new RejectedExecutionException("The notification handler is closed");
+      }
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "notification-batcher");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return scheduler;
+  }
+
+  /**
+   * Sends the notifications addressed to several participants using
+   * {@link UserNotificationService#sendNotificationToMany(java.util.Collection, String, Object)}
+   * instead of one {@link UserNotificationService#sendNotification(String, String, Object)} call per
+   * recipient.
+   *
+   * @param broadcastNotifications
+   *          true to send each notification to all its recipients at once
+   */
+  public void setBroadcastNotifications(boolean broadcastNotifications) {
+    this.broadcastNotifications = broadcastNotifications;
+  }
+
+  /**
+   * Limits the number of existing peers included in the response to a join request, so that the
+   * first render in very large rooms isn't delayed by the whole roster. The response becomes an
+   * object with the first page of peers (sorted by name) in its
+   * {@link ProtocolElements#JOINROOM_PEERS_PARAM} field, the roster version and, if there are more
+   * peers, the name of the last one listed. The clients can request the next pages (the peers
+   * named after the last one they received), or the roster changes since that version, using
+   * {@link ProtocolElements#GETPARTICIPANTS_METHOD}.
+   *
+   * @param rosterPageSize
+   *          maximum number of peers in a page of the roster, 0 (default) to respond to the join
+   *          requests with all the existing peers
+   */
+  public void setRosterPageSize(int rosterPageSize) {
+    this.rosterPageSize = rosterPageSize;
+  }
+
+  /**
+   * Sets the minimum time between two {@link ProtocolElements#VIEWERCOUNT_METHOD} notifications
+   * for the same room, the changes done meanwhile are merged into the last count.
+   *
+   * @param viewerCountInterval
+   *          time in milliseconds (1000 by default), 0 to notify every change
+   */
+  public void setViewerCountInterval(long viewerCountInterval) {
+    this.viewerCountInterval = viewerCountInterval;
+  }
+
+  /**
+   * Sends the roster changes and ICE candidates that are still buffered and stops the thread used
+   * to delay the batched notifications. The notifications handled afterwards are sent right away.
+   */
+  @Override
+  @PreDestroy
+  public void close() {
+    ScheduledExecutorService scheduler;
+    synchronized (this) {
+      closed = true;
+      scheduler = this.scheduler;
+    }
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+    RosterChangeBatcher rosterChangeBatcher = this.rosterChangeBatcher;
+    if (rosterChangeBatcher != null) {
+      rosterChangeBatcher.flushAll();
+    }
+    IceCandidateBatcher iceCandidateBatcher = this.iceCandidateBatcher;
+    if (iceCandidateBatcher != null) {
+      iceCandidateBatcher.flushAll();
+    }
+  }
+
   @Override
   public void onRoomClosed(String roomName, Set<UserParticipant> participants) {
     JsonObject notifParams = new JsonObject();
     notifParams.addProperty(ProtocolElements.ROOMCLOSED_ROOM_PARAM, roomName);
-    for (UserParticipant participant : participants) {
-      notifService
-          .sendNotification(participant.getParticipantId(), ProtocolElements.ROOMCLOSED_METHOD,
-              notifParams);
-    }
+    notifyParticipants(participants, null, ProtocolElements.ROOMCLOSED_METHOD, notifParams);
   }
 
   @Override
@@ -63,23 +217,77 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
 
     JsonArray result = new JsonArray();
     for (UserParticipant participant : existingParticipants) {
-      JsonObject participantJson = new JsonObject();
-      participantJson
-          .addProperty(ProtocolElements.JOINROOM_PEERID_PARAM, participant.getUserName());
-      if (participant.isStreaming()) {
-        JsonObject stream = new JsonObject();
-        stream.addProperty(ProtocolElements.JOINROOM_PEERSTREAMID_PARAM, "webcam");
-        JsonArray streamsArray = new JsonArray();
-        streamsArray.add(stream);
-        participantJson.add(ProtocolElements.JOINROOM_PEERSTREAMS_PARAM, streamsArray);
-      }
-      result.add(participantJson);
+      result.add(toJson(participant));
+    }
+
+    notifyParticipantJoined(newUserName, existingParticipants);
+    notifService.sendResponse(request, result);
+  }
+
+  @Override
+  public void onParticipantJoined(ParticipantRequest request, String roomName, String newUserName,
+      Set<UserParticipant> existingParticipants, long rosterVersion, RoomException error) {
+    int pageSize = rosterPageSize;
+    if (error != null || pageSize <= 0) {
+      onParticipantJoined(request, roomName, newUserName, existingParticipants, error);
+      return;
+    }
 
-      JsonObject notifParams = new JsonObject();
-      notifParams.addProperty(ProtocolElements.PARTICIPANTJOINED_USER_PARAM, newUserName);
-      notifService.sendNotification(participant.getParticipantId(),
-          ProtocolElements.PARTICIPANTJOINED_METHOD, notifParams);
+    JsonObject result = toJson(sortByName(existingParticipants, null, null), pageSize);
+    result.addProperty(ProtocolElements.JOINROOM_ROSTERVERSION_PARAM, rosterVersion);
+
+    notifyParticipantJoined(newUserName, existingParticipants);
+    notifService.sendResponse(request, result);
+  }
+
+  @Override
+  public void onViewerJoined(ParticipantRequest request, String roomName, String userName,
+      Set<UserParticipant> publishers, RoomException error) {
+    if (error != null) {
+      notifService.sendErrorResponse(request, null, error);
+      return;
+    }
+
+    JsonArray result = new JsonArray();
+    for (UserParticipant publisher : publishers) {
+      result.add(toJson(publisher));
+    }
+    notifService.sendResponse(request, result);
+  }
+
+  @Override
+  public void onGetParticipants(ParticipantRequest request, String after,
+      Set<UserParticipant> participants, long rosterVersion, List<RosterChange> changes,
+      RoomException error) {
+    if (error != null) {
+      notifService.sendErrorResponse(request, null, error);
+      return;
+    }
+
+    JsonObject result;
+    if (changes != null) {
+      JsonArray changesArray = new JsonArray();
+      for (RosterChange change : changes) {
+        JsonObject changeJson = new JsonObject();
+        changeJson.addProperty(ProtocolElements.GETPARTICIPANTS_CHANGEVERSION_PARAM,
+            change.getVersion());
+        changeJson.addProperty(ProtocolElements.GETPARTICIPANTS_CHANGETYPE_PARAM,
+            change.getType().name().toLowerCase(Locale.ROOT));
+        changeJson.addProperty(ProtocolElements.GETPARTICIPANTS_CHANGENAME_PARAM,
+            change.getUserName());
+        changesArray.add(changeJson);
+      }
+      result = new JsonObject();
+      result.add(ProtocolElements.GETPARTICIPANTS_CHANGES_PARAM, changesArray);
+    } else {
+      List<UserParticipant> roster = sortByName(participants, request.getParticipantId(), after);
+      int pageSize = rosterPageSize;
+      if (pageSize <= 0) {
+        pageSize = Math.max(1, roster.size());
+      }
+      result = toJson(roster, pageSize);
     }
+    result.addProperty(ProtocolElements.GETPARTICIPANTS_ROSTERVERSION_PARAM, rosterVersion);
     notifService.sendResponse(request, result);
   }
 
@@ -91,12 +299,10 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
       return;
     }
 
-    JsonObject params = new JsonObject();
-    params.addProperty(ProtocolElements.PARTICIPANTLEFT_NAME_PARAM, userName);
-    for (UserParticipant participant : remainingParticipants) {
-      notifService
-          .sendNotification(participant.getParticipantId(), ProtocolElements.PARTICIPANTLEFT_METHOD,
-              params);
+    notifyParticipantLeft(userName, remainingParticipants);
+    RosterChangeBatcher batcher = rosterChangeBatcher;
+    if (batcher != null) {
+      batcher.discard(request.getParticipantId());
     }
 
     notifService.sendResponse(request, new JsonObject());
@@ -122,14 +328,8 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
     streamsArray.add(stream);
     params.add(ProtocolElements.PARTICIPANTPUBLISHED_STREAMS_PARAM, streamsArray);
 
-    for (UserParticipant participant : participants) {
-      if (participant.getParticipantId().equals(request.getParticipantId())) {
-        continue;
-      } else {
-        notifService.sendNotification(participant.getParticipantId(),
-            ProtocolElements.PARTICIPANTPUBLISHED_METHOD, params);
-      }
-    }
+    notifyParticipants(participants, request.getParticipantId(),
+        ProtocolElements.PARTICIPANTPUBLISHED_METHOD, params);
   }
 
   @Override
@@ -144,14 +344,8 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
     JsonObject params = new JsonObject();
     params.addProperty(ProtocolElements.PARTICIPANTUNPUBLISHED_NAME_PARAM, publisherName);
 
-    for (UserParticipant participant : participants) {
-      if (participant.getParticipantId().equals(request.getParticipantId())) {
-        continue;
-      } else {
-        notifService.sendNotification(participant.getParticipantId(),
-            ProtocolElements.PARTICIPANTUNPUBLISHED_METHOD, params);
-      }
-    }
+    notifyParticipants(participants, request.getParticipantId(),
+        ProtocolElements.PARTICIPANTUNPUBLISHED_METHOD, params);
   }
 
   @Override
@@ -188,10 +382,7 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
     params.addProperty(ProtocolElements.PARTICIPANTSENDMESSAGE_USER_PARAM, userName);
     params.addProperty(ProtocolElements.PARTICIPANTSENDMESSAGE_MESSAGE_PARAM, message);
 
-    for (UserParticipant participant : participants) {
-      notifService.sendNotification(participant.getParticipantId(),
-          ProtocolElements.PARTICIPANTSENDMESSAGE_METHOD, params);
-    }
+    notifyParticipants(participants, null, ProtocolElements.PARTICIPANTSENDMESSAGE_METHOD, params);
   }
 
   @Override
@@ -205,20 +396,70 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
   }
 
   @Override
-  public void onParticipantLeft(String userName, Set<UserParticipant> remainingParticipants) {
+  public void onPeerSdp(ParticipantRequest request, String senderName, UserParticipant peer,
+      SdpType type, String sdp, RoomException error) {
+    if (error != null) {
+      notifService.sendErrorResponse(request, null, error);
+      return;
+    }
+
     JsonObject params = new JsonObject();
-    params.addProperty(ProtocolElements.PARTICIPANTLEFT_NAME_PARAM, userName);
-    for (UserParticipant participant : remainingParticipants) {
-      notifService
-          .sendNotification(participant.getParticipantId(), ProtocolElements.PARTICIPANTLEFT_METHOD,
-              params);
+    params.addProperty(ProtocolElements.PEERSDP_NAME_PARAM, senderName);
+    params.addProperty(ProtocolElements.PEERSDP_TYPE_PARAM, type.name().toLowerCase(Locale.ROOT));
+    params.addProperty(ProtocolElements.PEERSDP_SDP_PARAM, sdp);
+    notifyParticipant(peer.getParticipantId(), ProtocolElements.PEERSDP_METHOD, params);
+    notifService.sendResponse(request, new JsonObject());
+  }
+
+  @Override
+  public void onRecvAudioLevel(ParticipantRequest request, RoomException error) {
+    if (error != null) {
+      notifService.sendErrorResponse(request, null, error);
+      return;
     }
+
+    notifService.sendResponse(request, new JsonObject());
+  }
+
+  @Override
+  public void onParticipantLeft(String userName, Set<UserParticipant> remainingParticipants) {
+    notifyParticipantLeft(userName, remainingParticipants);
   }
 
   @Override
   public void onParticipantEvicted(UserParticipant participant) {
-    notifService.sendNotification(participant.getParticipantId(),
-        ProtocolElements.PARTICIPANTEVICTED_METHOD, new JsonObject());
+    RosterChangeBatcher batcher = rosterChangeBatcher;
+    if (batcher != null) {
+      batcher.discard(participant.getParticipantId());
+    }
+    notifyParticipant(participant.getParticipantId(), ProtocolElements.PARTICIPANTEVICTED_METHOD,
+        new JsonObject());
+  }
+
+  @Override
+  public void onMixPublished(String participantId, String mixName, RoomSettings.Mode mode) {
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.PARTICIPANTPUBLISHED_USER_PARAM, mixName);
+    params.addProperty(ProtocolElements.PARTICIPANTPUBLISHED_MIX_PARAM,
+        mode.name().toLowerCase(Locale.ROOT));
+    JsonObject stream = new JsonObject();
+    stream.addProperty(ProtocolElements.PARTICIPANTPUBLISHED_STREAMID_PARAM, "webcam");
+    if (mode == RoomSettings.Mode.MIXED_AUDIO) {
+      stream.addProperty(ProtocolElements.PARTICIPANTPUBLISHED_RECVVIDEO_PARAM, false);
+    }
+    JsonArray streamsArray = new JsonArray();
+    streamsArray.add(stream);
+    params.add(ProtocolElements.PARTICIPANTPUBLISHED_STREAMS_PARAM, streamsArray);
+    notifyParticipant(participantId, ProtocolElements.PARTICIPANTPUBLISHED_METHOD, params);
+  }
+
+  @Override
+  public void onPeerToPeer(String participantId, String peerName) {
+    JsonObject params = new JsonObject();
+    if (peerName != null) {
+      params.addProperty(ProtocolElements.PEERTOPEER_PEER_PARAM, peerName);
+    }
+    notifyParticipant(participantId, ProtocolElements.PEERTOPEER_METHOD, params);
   }
 
   // ------------ EVENTS FROM ROOM HANDLER -----
@@ -232,7 +473,12 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
         candidate.getSdpMLineIndex());
     params.addProperty(ProtocolElements.ICECANDIDATE_SDPMID_PARAM, candidate.getSdpMid());
     params.addProperty(ProtocolElements.ICECANDIDATE_CANDIDATE_PARAM, candidate.getCandidate());
-    notifService.sendNotification(participantId, ProtocolElements.ICECANDIDATE_METHOD, params);
+    IceCandidateBatcher batcher = iceCandidateBatcher;
+    if (batcher != null) {
+      batcher.add(participantId, params);
+      return;
+    }
+    notifyParticipant(participantId, ProtocolElements.ICECANDIDATE_METHOD, params);
   }
 
   @Override
@@ -240,7 +486,7 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
     JsonObject notifParams = new JsonObject();
     notifParams.addProperty(ProtocolElements.MEDIAERROR_ERROR_PARAM, description);
     for (String pid : participantIds) {
-      notifService.sendNotification(pid, ProtocolElements.MEDIAERROR_METHOD, notifParams);
+      notifyParticipant(pid, ProtocolElements.MEDIAERROR_METHOD, notifParams);
     }
   }
 
@@ -248,7 +494,50 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
   public void onMediaElementError(String roomName, String participantId, String description) {
     JsonObject notifParams = new JsonObject();
     notifParams.addProperty(ProtocolElements.MEDIAERROR_ERROR_PARAM, description);
-    notifService.sendNotification(participantId, ProtocolElements.MEDIAERROR_METHOD, notifParams);
+    notifyParticipant(participantId, ProtocolElements.MEDIAERROR_METHOD, notifParams);
+  }
+
+  @Override
+  public void onDominantSpeakerChanged(String roomName, String speakerName,
+      Set<UserParticipant> participants) {
+    JsonObject notifParams = new JsonObject();
+    notifParams.addProperty(ProtocolElements.DOMINANTSPEAKERCHANGED_NAME_PARAM, speakerName);
+    notifyParticipants(participants, null, ProtocolElements.DOMINANTSPEAKERCHANGED_METHOD,
+        notifParams);
+  }
+
+  @Override
+  public void onViewerCountChanged(final String roomName, int viewerCount,
+      Supplier<Set<UserParticipant>> recipients) {
+    long interval = viewerCountInterval;
+    if (interval <= 0) {
+      notifyViewerCount(roomName, new ViewerCount(viewerCount, recipients));
+      return;
+    }
+    if (viewerCounts.put(roomName, new ViewerCount(viewerCount, recipients)) == null) {
+      // first change since the last notification, the latest count will be sent
+      Runnable sendLatest = new Runnable() {
+        @Override
+        public void run() {
+          ViewerCount latest = viewerCounts.remove(roomName);
+          if (latest != null) {
+            notifyViewerCount(roomName, latest);
+          }
+        }
+      };
+      try {
+        getScheduler().schedule(sendLatest, interval, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        sendLatest.run();
+      }
+    }
+  }
+
+  @Override
+  public void onPeerToPeerEnded(String roomName, Set<UserParticipant> peers) {
+    JsonObject notifParams = new JsonObject();
+    notifParams.addProperty(ProtocolElements.PEERTOPEERENDED_ROOM_PARAM, roomName);
+    notifyParticipants(peers, null, ProtocolElements.PEERTOPEERENDED_METHOD, notifParams);
   }
 
   @Override
@@ -260,4 +549,165 @@ public class DefaultNotificationRoomHandler implements NotificationRoomHandler {
   public String getNextFilterState(String filterId, String state) {
     return null;
   }
+
+  private void notifyViewerCount(String roomName, ViewerCount viewerCount) {
+    Set<UserParticipant> recipients;
+    try {
+      recipients = viewerCount.recipients.get();
+    } catch (RoomException e) {
+      // closed meanwhile
+      return;
+    }
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.VIEWERCOUNT_ROOM_PARAM, roomName);
+    params.addProperty(ProtocolElements.VIEWERCOUNT_COUNT_PARAM, viewerCount.count);
+    notifyParticipants(recipients, null, ProtocolElements.VIEWERCOUNT_METHOD, params);
+  }
+
+  private void notifyParticipantJoined(String newUserName,
+      Set<UserParticipant> existingParticipants) {
+    RosterChangeBatcher batcher = rosterChangeBatcher;
+    if (batcher != null) {
+      for (UserParticipant participant : existingParticipants) {
+        batcher.joined(participant.getParticipantId(), newUserName);
+      }
+      return;
+    }
+    JsonObject notifParams = new JsonObject();
+    notifParams.addProperty(ProtocolElements.PARTICIPANTJOINED_USER_PARAM, newUserName);
+    notifyParticipants(existingParticipants, null, ProtocolElements.PARTICIPANTJOINED_METHOD,
+        notifParams);
+  }
+
+  private void notifyParticipantLeft(String userName, Set<UserParticipant> remainingParticipants) {
+    RosterChangeBatcher batcher = rosterChangeBatcher;
+    if (batcher != null) {
+      for (UserParticipant participant : remainingParticipants) {
+        batcher.left(participant.getParticipantId(), userName);
+      }
+      return;
+    }
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.PARTICIPANTLEFT_NAME_PARAM, userName);
+    notifyParticipants(remainingParticipants, null, ProtocolElements.PARTICIPANTLEFT_METHOD,
+        params);
+  }
+
+  private static JsonObject toJson(UserParticipant participant) {
+    JsonObject participantJson = new JsonObject();
+    participantJson.addProperty(ProtocolElements.JOINROOM_PEERID_PARAM, participant.getUserName());
+    if (participant.isStreaming()) {
+      JsonObject stream = new JsonObject();
+      stream.addProperty(ProtocolElements.JOINROOM_PEERSTREAMID_PARAM, "webcam");
+      JsonArray streamsArray = new JsonArray();
+      streamsArray.add(stream);
+      participantJson.add(ProtocolElements.JOINROOM_PEERSTREAMS_PARAM, streamsArray);
+    }
+    return participantJson;
+  }
+
+  /**
+   * @return the first page of the roster and, if there are more peers, the name of the last one
+   *         listed (the cursor to request the next page)
+   */
+  private static JsonObject toJson(List<UserParticipant> roster, int pageSize) {
+    JsonArray peers = new JsonArray();
+    int to = Math.min(pageSize, roster.size());
+    for (UserParticipant participant : roster.subList(0, to)) {
+      peers.add(toJson(participant));
+    }
+    JsonObject result = new JsonObject();
+    result.add(ProtocolElements.GETPARTICIPANTS_PEERS_PARAM, peers);
+    if (to < roster.size()) {
+      result.addProperty(ProtocolElements.GETPARTICIPANTS_NEXT_PARAM,
+          roster.get(to - 1).getUserName());
+    }
+    return result;
+  }
+
+  /**
+   * Pages are delimited by the name of their last peer instead of by their position, so that
+   * nobody is skipped when peers of the previous pages leave between requests.
+   *
+   * @param after
+   *          only the peers named after it are included, null to include all
+   */
+  private static List<UserParticipant> sortByName(Set<UserParticipant> participants,
+      String excludedId, String after) {
+    List<UserParticipant> roster = new ArrayList<UserParticipant>(participants.size());
+    for (UserParticipant participant : participants) {
+      if (!participant.getParticipantId().equals(excludedId)
+          && (after == null || participant.getUserName().compareTo(after) > 0)) {
+        roster.add(participant);
+      }
+    }
+    Collections.sort(roster, new Comparator<UserParticipant>() {
+      @Override
+      public int compare(UserParticipant p1, UserParticipant p2) {
+        return p1.getUserName().compareTo(p2.getUserName());
+      }
+    });
+    return roster;
+  }
+
+  /**
+   * Sends a notification to one participant, after the roster changes still pending for it.
+   *
+   * @param participantId
+   *          the recipient
+   * @param method
+   *          the notification's method
+   * @param params
+   *          the notification's parameters
+   */
+  protected void notifyParticipant(String participantId, String method, Object params) {
+    flushRosterChanges(participantId);
+    notifService.sendNotification(participantId, method, params);
+  }
+
+  /**
+   * The recipients must know about the roster changes before any other notification.
+   */
+  private void flushRosterChanges(String participantId) {
+    RosterChangeBatcher batcher = rosterChangeBatcher;
+    if (batcher != null) {
+      batcher.flush(participantId);
+    }
+  }
+
+  /**
+   * Sends the same notification to all the given participants.
+   *
+   * @param participants
+   *          the recipients
+   * @param excludedId
+   *          id of a participant that won't be notified (nullable)
+   * @param method
+   *          the notification's method
+   * @param params
+   *          the notification's parameters
+   */
+  protected void notifyParticipants(Set<UserParticipant> participants, String excludedId,
+      String method, Object params) {
+    for (UserParticipant participant : participants) {
+      flushRosterChanges(participant.getParticipantId());
+    }
+    if (!broadcastNotifications) {
+      for (UserParticipant participant : participants) {
+        if (!participant.getParticipantId().equals(excludedId)) {
+          notifService.sendNotification(participant.getParticipantId(), method, params);
+        }
+      }
+      return;
+    }
+    List<String> participantIds = new ArrayList<String>(participants.size());
+    for (UserParticipant participant : participants) {
+      if (!participant.getParticipantId().equals(excludedId)) {
+        participantIds.add(participant.getParticipantId());
+      }
+    }
+    if (!participantIds.isEmpty()) {
+      notifService.sendNotificationToMany(participantIds, method, params);
+    }
+  }
 }
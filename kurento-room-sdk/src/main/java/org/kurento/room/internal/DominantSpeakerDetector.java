@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks the dominant speaker of a room from the audio levels of its publishers. Each level is
+ * smoothed, so that short noises don't steal the floor, and the dominant speaker changes at most
+ * once per interval. Not thread-safe, the room synchronizes its use.
+ * <p/>
+ * The levels are reported by the clients and can't be verified, so they're only advisory: they're
+ * clamped to the valid range and each publisher's samples are rate-limited, so that a client
+ * flooding the server with the loudest level weighs no more than one reporting honestly.
+ */
+public class DominantSpeakerDetector {
+
+  // weight of a new sample in the smoothed level
+  private static final double SMOOTHING = 0.3;
+
+  // samples accepted from each publisher per interval, the others are ignored
+  private static final int SAMPLES_PER_INTERVAL = 4;
+
+  private static final double MIN_LEVEL = -127;
+  private static final double MAX_LEVEL = 0;
+
+  private static class Level {
+    double smoothed;
+    long time;
+  }
+
+  private final double threshold;
+  private final long interval;
+
+  private final Map<String, Level> levels = new HashMap<String, Level>();
+  private String dominantSpeaker = null;
+  private long lastChange = Long.MIN_VALUE;
+
+  /**
+   * @param threshold
+   *          audio level (dBov) above which a publisher is speaking
+   * @param interval
+   *          minimum time (in milliseconds) between two changes of the dominant speaker, the
+   *          levels not updated during twice this time are ignored and each publisher's samples
+   *          are accepted at most 4 times per interval
+   */
+  public DominantSpeakerDetector(double threshold, long interval) {
+    this.threshold = threshold;
+    this.interval = interval;
+  }
+
+  /**
+   * @param publisherName
+   *          the publisher whose audio was measured
+   * @param level
+   *          the audio level, in dBov
+   * @param now
+   *          time of the measure, in milliseconds
+   * @return the new dominant speaker, or null if it hasn't changed (or the sample was ignored)
+   */
+  public String update(String publisherName, double level, long now) {
+    level = Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+    Level l = levels.get(publisherName);
+    if (l == null) {
+      l = new Level();
+      l.smoothed = level;
+      levels.put(publisherName, l);
+    } else if (now - l.time < interval / SAMPLES_PER_INTERVAL) {
+      return null;
+    } else {
+      l.smoothed = (1 - SMOOTHING) * l.smoothed + SMOOTHING * level;
+    }
+    l.time = now;
+
+    if (dominantSpeaker != null && now - lastChange < interval) {
+      return null;
+    }
+    String loudest = null;
+    double loudestLevel = threshold;
+    for (Map.Entry<String, Level> entry : levels.entrySet()) {
+      Level candidate = entry.getValue();
+      if (now - candidate.time <= 2 * interval && candidate.smoothed > loudestLevel) {
+        loudest = entry.getKey();
+        loudestLevel = candidate.smoothed;
+      }
+    }
+    if (loudest == null || loudest.equals(dominantSpeaker)) {
+      return null;
+    }
+    dominantSpeaker = loudest;
+    lastChange = now;
+    return loudest;
+  }
+
+  /**
+   * @param publisherName
+   *          a publisher that has stopped sending media
+   */
+  public void removed(String publisherName) {
+    levels.remove(publisherName);
+    if (publisherName.equals(dominantSpeaker)) {
+      dominantSpeaker = null;
+    }
+  }
+
+  /**
+   * @return the current dominant speaker, null if no one has spoken yet
+   */
+  public String getDominantSpeaker() {
+    return dominantSpeaker;
+  }
+}
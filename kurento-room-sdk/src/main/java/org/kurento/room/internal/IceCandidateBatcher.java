@@ -0,0 +1,188 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.kurento.room.api.UserNotificationService;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Buffers the ICE candidates addressed to each participant and sends them together in a single
+ * {@link ProtocolElements#ICECANDIDATES_METHOD} notification, either when the batching window
+ * expires or when the maximum number of candidates is reached. A batch with only one candidate is
+ * sent as a regular {@link ProtocolElements#ICECANDIDATE_METHOD} notification.
+ */
+public class IceCandidateBatcher {
+
+  private static class Batch {
+    final JsonArray candidates = new JsonArray();
+    boolean sent = false;
+  }
+
+  private final UserNotificationService notifService;
+  private final Consumer<String> beforeSend;
+  private final ScheduledExecutorService scheduler;
+  private final long window;
+  private final int maxCandidates;
+
+  private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+  /**
+   * @param notifService
+   *          service used to send the notifications
+   * @param scheduler
+   *          executor that sends the batches when their window expires
+   * @param window
+   *          maximum time (in milliseconds) a candidate is kept in the buffer
+   * @param maxCandidates
+   *          number of candidates that causes the batch to be sent immediately
+   */
+  public IceCandidateBatcher(UserNotificationService notifService,
+      ScheduledExecutorService scheduler, long window, int maxCandidates) {
+    this(notifService, participantId -> {
+    }, scheduler, window, maxCandidates);
+  }
+
+  /**
+   * @param notifService
+   *          service used to send the notifications
+   * @param beforeSend
+   *          called with the recipient's id right before a batch is sent (e.g. to send first other
+   *          notifications that must precede the candidates)
+   * @param scheduler
+   *          executor that sends the batches when their window expires
+   * @param window
+   *          maximum time (in milliseconds) a candidate is kept in the buffer
+   * @param maxCandidates
+   *          number of candidates that causes the batch to be sent immediately
+   */
+  public IceCandidateBatcher(UserNotificationService notifService, Consumer<String> beforeSend,
+      ScheduledExecutorService scheduler, long window, int maxCandidates) {
+    this.notifService = notifService;
+    this.beforeSend = beforeSend;
+    this.scheduler = scheduler;
+    this.window = window;
+    this.maxCandidates = Math.max(1, maxCandidates);
+  }
+
+  /**
+   * Adds a candidate to the participant's batch.
+   *
+   * @param participantId
+   *          the recipient
+   * @param candidate
+   *          the candidate, as it'd be sent in an {@link ProtocolElements#ICECANDIDATE_METHOD}
+   *          notification
+   */
+  public void add(final String participantId, JsonObject candidate) {
+    while (true) {
+      Batch batch = batches.get(participantId);
+      if (batch == null) {
+        Batch newBatch = new Batch();
+        batch = batches.putIfAbsent(participantId, newBatch);
+        if (batch == null) {
+          batch = newBatch;
+        }
+      }
+      boolean first;
+      boolean full;
+      synchronized (batch) {
+        if (batch.sent) {
+          // flushed meanwhile, start a new one
+          continue;
+        }
+        batch.candidates.add(candidate);
+        first = batch.candidates.size() == 1;
+        full = batch.candidates.size() >= maxCandidates;
+        if (full) {
+          batch.sent = true;
+          batches.remove(participantId, batch);
+        }
+      }
+      if (full) {
+        send(participantId, batch.candidates);
+      } else if (first) {
+        final Batch scheduled = batch;
+        try {
+          scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+              flush(participantId, scheduled);
+            }
+          }, window, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          // the scheduler has been shut down, don't buffer anymore
+          flush(participantId, scheduled);
+        }
+      }
+      return;
+    }
+  }
+
+  /**
+   * Sends immediately the candidates buffered for the participant, if any.
+   *
+   * @param participantId
+   *          the recipient
+   */
+  public void flush(String participantId) {
+    Batch batch = batches.get(participantId);
+    if (batch != null) {
+      flush(participantId, batch);
+    }
+  }
+
+  /**
+   * Sends immediately all the buffered candidates.
+   */
+  public void flushAll() {
+    for (String participantId : batches.keySet()) {
+      flush(participantId);
+    }
+  }
+
+  private void flush(String participantId, Batch batch) {
+    synchronized (batch) {
+      if (batch.sent) {
+        return;
+      }
+      batch.sent = true;
+      batches.remove(participantId, batch);
+    }
+    send(participantId, batch.candidates);
+  }
+
+  private void send(String participantId, JsonArray candidates) {
+    beforeSend.accept(participantId);
+    if (candidates.size() == 1) {
+      notifService.sendNotification(participantId, ProtocolElements.ICECANDIDATE_METHOD,
+          candidates.get(0));
+      return;
+    }
+    JsonObject params = new JsonObject();
+    params.add(ProtocolElements.ICECANDIDATES_CANDIDATES_PARAM, candidates);
+    notifService.sendNotification(participantId, ProtocolElements.ICECANDIDATES_METHOD, params);
+  }
+}
@@ -17,10 +17,13 @@
 package org.kurento.room.internal;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import org.kurento.client.Continuation;
@@ -33,6 +36,7 @@ import org.kurento.client.MediaType;
 import org.kurento.client.SdpEndpoint;
 import org.kurento.client.internal.server.KurentoServerException;
 import org.kurento.room.api.MutedMediaType;
+import org.kurento.room.api.pojo.RoomSettings;
 import org.kurento.room.endpoint.PublisherEndpoint;
 import org.kurento.room.endpoint.SdpType;
 import org.kurento.room.endpoint.SubscriberEndpoint;
@@ -55,12 +59,14 @@ public class Participant {
   private String name;
   private boolean web = false;
   private boolean dataChannels = false;
+  private final boolean viewer;
 
   private final Room room;
 
-  private final MediaPipeline pipeline;
+  // null while the room's media is exchanged peer-to-peer
+  private volatile MediaPipeline pipeline;
 
-  private PublisherEndpoint publisher;
+  private volatile PublisherEndpoint publisher;
   private CountDownLatch endPointLatch = new CountDownLatch(1);
 
   private final ConcurrentMap<String, Filter> filters = new ConcurrentHashMap<>();
@@ -68,19 +74,47 @@ public class Participant {
   private final ConcurrentMap<String, SubscriberEndpoint> subscribers =
       new ConcurrentHashMap<String, SubscriberEndpoint>();
 
+  // receives the room's mix, if the room mixes its media
+  private volatile SubscriberEndpoint mixSubscriber;
+
   private volatile boolean streaming = false;
   private volatile boolean closed;
 
   public Participant(String id, String name, Room room, MediaPipeline pipeline,
       boolean dataChannels, boolean web) {
+    this(id, name, room, pipeline, dataChannels, web, false);
+  }
+
+  /**
+   * @param pipeline
+   *          the participant's pipeline, null if its media is exchanged directly with its peer
+   *          (see {@link #attachPipeline(MediaPipeline)})
+   * @param viewer
+   *          true if the participant can only receive media, it won't have a publisher endpoint
+   *          and won't get subscriber endpoints in advance
+   */
+  public Participant(String id, String name, Room room, MediaPipeline pipeline,
+      boolean dataChannels, boolean web, boolean viewer) {
     this.id = id;
     this.name = name;
     this.web = web;
     this.dataChannels = dataChannels;
     this.pipeline = pipeline;
     this.room = room;
+    this.viewer = viewer;
+    if (viewer) {
+      endPointLatch.countDown();
+      return;
+    }
+    if (pipeline == null) {
+      return;
+    }
     this.publisher = new PublisherEndpoint(web, dataChannels, this, name, pipeline);
 
+    if (room.getSettings().isLazySubscribers()
+        || room.getSettings().getMode() == RoomSettings.Mode.COMPOSITE) {
+      return;
+    }
     for (Participant other : room.getParticipants()) {
       if (!other.getName().equals(this.name)) {
         getNewOrExistingSubscriber(other.getName());
@@ -88,7 +122,25 @@ public class Participant {
     }
   }
 
+  /**
+   * Moves a participant whose media was exchanged peer-to-peer to the room's pipeline, leaving
+   * its publisher endpoint ready to be created. Its subscriber endpoints are created on demand.
+   *
+   * @param pipeline
+   *          the pipeline the room has just created
+   */
+  public synchronized void attachPipeline(MediaPipeline pipeline) {
+    if (this.pipeline != null) {
+      return;
+    }
+    this.publisher = new PublisherEndpoint(web, dataChannels, this, name, pipeline);
+    this.pipeline = pipeline;
+    log.debug("PARTICIPANT {}: Media moved to the pipeline of room {}", name, room.getName());
+  }
+
   public void createPublishingEndpoint() {
+    checkNotViewer();
+    checkNotPeerToPeer();
     publisher.createEndpoint(endPointLatch);
     if (getPublisher().getEndpoint() == null) {
       throw new RoomException(Code.MEDIA_ENDPOINT_ERROR_CODE,
@@ -96,6 +148,23 @@ public class Participant {
     }
   }
 
+  /**
+   * Non-blocking version of {@link #createPublishingEndpoint()}.
+   *
+   * @return future completed with the publisher once its internal endpoint has been created
+   */
+  public CompletableFuture<PublisherEndpoint> createPublishingEndpointAsync() {
+    if (viewer) {
+      return ContinuationFutures.failed(viewerCannotPublish());
+    }
+    if (isPeerToPeer()) {
+      return ContinuationFutures.failed(peerToPeerException());
+    }
+    final PublisherEndpoint publisher = this.publisher;
+    publisher.createEndpoint(endPointLatch);
+    return publisher.getEndpointFuture().thenApply(endpoint -> publisher);
+  }
+
   public String getId() {
     return id;
   }
@@ -176,6 +245,20 @@ public class Participant {
     return this.publisher;
   }
 
+  /**
+   * Non-blocking version of {@link #getPublisher()}.
+   *
+   * @return future completed with the publisher once its internal endpoint has been created (with
+   *         null if the participant has no publisher endpoint)
+   */
+  public CompletableFuture<PublisherEndpoint> getPublisherAsync() {
+    final PublisherEndpoint publisher = this.publisher;
+    if (publisher == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return publisher.getEndpointFuture().thenApply(endpoint -> publisher);
+  }
+
   public Room getRoom() {
     return this.room;
   }
@@ -192,6 +275,23 @@ public class Participant {
     return streaming;
   }
 
+  /**
+   * @return true if the participant can only receive media
+   * @see Room#joinAsViewer(String, String, org.kurento.client.KurentoClient)
+   */
+  public boolean isViewer() {
+    return viewer;
+  }
+
+  /**
+   * @return true if the participant's media is exchanged directly with its peer, without going
+   *         through the media server
+   * @see Room#isPeerToPeer()
+   */
+  public boolean isPeerToPeer() {
+    return pipeline == null;
+  }
+
   public boolean isSubscribed() {
     for (SubscriberEndpoint se : subscribers.values()) {
       if (se.isConnectedToPublisher()) {
@@ -201,6 +301,30 @@ public class Participant {
     return false;
   }
 
+  /**
+   * @param senderName
+   *          name of the publisher
+   * @param videoForwarded
+   *          whether the publisher's video should reach this participant (its audio always does)
+   * @see SubscriberEndpoint#setVideoForwarded(boolean)
+   */
+  public void setVideoForwarded(String senderName, boolean videoForwarded) {
+    SubscriberEndpoint se = subscribers.get(senderName);
+    if (se != null) {
+      se.setVideoForwarded(videoForwarded);
+    }
+  }
+
+  /**
+   * @param senderName
+   *          name of the publisher
+   * @return true if this participant is receiving the publisher's media
+   */
+  public boolean isSubscribedTo(String senderName) {
+    SubscriberEndpoint se = subscribers.get(senderName);
+    return se != null && se.isConnectedToPublisher();
+  }
+
   public Set<String> getConnectedSubscribedEndpoints() {
     Set<String> subscribedToSet = new HashSet<String>();
     for (SubscriberEndpoint se : subscribers.values()) {
@@ -233,6 +357,7 @@ public class Participant {
     String sdpResponse = this.getPublisher()
         .publish(sdpType, sdpString, doLoopback, loopbackAlternativeSrc, loopbackConnectionType);
     this.streaming = true;
+    rosterStateChanged();
 
     log.trace("USER {}: Publishing Sdp ({}) is {}", this.name, sdpType, sdpResponse);
     log.info("USER {}: Is now publishing video in room {}", this.name, this.room.getName());
@@ -240,6 +365,30 @@ public class Participant {
     return sdpResponse;
   }
 
+  /**
+   * Non-blocking version of
+   * {@link #publishToRoom(SdpType, String, boolean, MediaElement, MediaType)}.
+   *
+   * @return future completed with the SDP response
+   */
+  public CompletableFuture<String> publishToRoomAsync(SdpType sdpType, String sdpString,
+      boolean doLoopback, MediaElement loopbackAlternativeSrc, MediaType loopbackConnectionType) {
+    log.info("USER {}: Request to publish video in room {} (sdp type {})", this.name,
+        this.room.getName(), sdpType);
+    log.trace("USER {}: Publishing Sdp ({}) is {}", this.name, sdpType, sdpString);
+
+    return this.getPublisher()
+        .publishAsync(sdpType, sdpString, doLoopback, loopbackAlternativeSrc,
+            loopbackConnectionType)
+        .thenApply(sdpResponse -> {
+          this.streaming = true;
+          rosterStateChanged();
+          log.trace("USER {}: Publishing Sdp ({}) is {}", this.name, sdpType, sdpResponse);
+          log.info("USER {}: Is now publishing video in room {}", this.name, this.room.getName());
+          return sdpResponse;
+        });
+  }
+
   public void unpublishMedia() {
     log.debug("PARTICIPANT {}: unpublishing media stream from room {}", this.name,
         this.room.getName());
@@ -267,10 +416,12 @@ public class Participant {
           this.name);
       return null;
     }
+    PublisherEndpoint source = room.getSource(sender, this);
 
     log.debug("PARTICIPANT {}: Creating a subscriber endpoint to user {}", this.name, senderName);
 
     SubscriberEndpoint subscriber = getNewOrExistingSubscriber(senderName);
+    room.applyVideoForwarding(this, senderName);
 
     try {
       CountDownLatch subscriberLatch = new CountDownLatch(1);
@@ -294,13 +445,15 @@ public class Participant {
             "Unable to create subscriber endpoint");
       }
     } catch (RoomException e) {
-      this.subscribers.remove(senderName);
+      removeSubscriber(senderName);
       throw e;
     }
 
     log.debug("PARTICIPANT {}: Created subscriber endpoint for user {}", this.name, senderName);
     try {
-      String sdpAnswer = subscriber.subscribe(sdpOffer, sender.getPublisher());
+      String sdpAnswer = subscriber.subscribe(sdpOffer, source);
+      room.getSubscriptions().add(name, senderName);
+      rosterStateChanged();
       log.trace("USER {}: Subscribing SdpAnswer is {}", this.name, sdpAnswer);
       log.info("USER {}: Is now receiving video from {} in room {}", this.name, senderName,
           this.room.getName());
@@ -314,24 +467,241 @@ public class Participant {
       } else {
         log.error("Exception connecting subscriber endpoint " + "to publisher endpoint", e);
       }
-      this.subscribers.remove(senderName);
+      removeSubscriber(senderName);
       releaseSubscriberEndpoint(senderName, subscriber);
     }
     return null;
   }
 
+  /**
+   * Non-blocking version of {@link #receiveMediaFrom(Participant, String)}, neither the creation
+   * of the subscriber endpoint nor the SDP negotiation block the calling thread.
+   *
+   * @return future completed with the SDP answer (or null if the subscription couldn't be done)
+   */
+  public CompletableFuture<String> receiveMediaFromAsync(Participant sender, String sdpOffer) {
+    final String senderName = sender.getName();
+
+    log.info("USER {}: Request to receive media from {} in room {}", this.name, senderName,
+        this.room.getName());
+    log.trace("USER {}: SdpOffer for {} is {}", this.name, senderName, sdpOffer);
+
+    if (senderName.equals(this.name)) {
+      log.warn("PARTICIPANT {}: trying to configure loopback by subscribing", this.name);
+      return ContinuationFutures.failed(new RoomException(Code.USER_NOT_STREAMING_ERROR_CODE,
+          "Can loopback only when publishing media"));
+    }
+
+    return room.getSourceAsync(sender, this).thenCompose(senderPublisher -> {
+      if (senderPublisher == null) {
+        log.warn("PARTICIPANT {}: Trying to connect to a user without " + "a publishing endpoint",
+            this.name);
+        return CompletableFuture.completedFuture(null);
+      }
+      return subscribeAsync(senderName, senderPublisher, sdpOffer);
+    });
+  }
+
+  private CompletableFuture<String> subscribeAsync(final String senderName,
+      final PublisherEndpoint senderPublisher, String sdpOffer) {
+    log.debug("PARTICIPANT {}: Creating a subscriber endpoint to user {}", this.name, senderName);
+
+    final SubscriberEndpoint subscriber = getNewOrExistingSubscriber(senderName);
+    room.applyVideoForwarding(this, senderName);
+    SdpEndpoint oldMediaEndpoint = subscriber.createEndpoint(new CountDownLatch(1));
+    if (oldMediaEndpoint != null) {
+      log.warn("PARTICIPANT {}: Two threads are trying to create at "
+          + "the same time a subscriber endpoint for user {}", this.name, senderName);
+      return CompletableFuture.completedFuture(null);
+    }
+
+    return subscriber.getEndpointFuture().handle((endpoint, error) -> {
+      if (error != null || endpoint == null) {
+        removeSubscriber(senderName);
+        throw new RoomException(Code.MEDIA_ENDPOINT_ERROR_CODE,
+            "Unable to create subscriber endpoint");
+      }
+      log.debug("PARTICIPANT {}: Created subscriber endpoint for user {}", this.name, senderName);
+      return subscriber;
+    }).thenCompose(sub -> sub.subscribeAsync(sdpOffer, senderPublisher)).handle(
+        (sdpAnswer, error) -> {
+          if (error == null) {
+            room.getSubscriptions().add(name, senderName);
+            rosterStateChanged();
+            log.trace("USER {}: Subscribing SdpAnswer is {}", this.name, sdpAnswer);
+            log.info("USER {}: Is now receiving video from {} in room {}", this.name, senderName,
+                this.room.getName());
+            return sdpAnswer;
+          }
+          Throwable cause = ContinuationFutures.unwrap(error);
+          if (cause instanceof RoomException
+              && ((RoomException) cause).getCode() == Code.MEDIA_ENDPOINT_ERROR_CODE) {
+            throw (RoomException) cause;
+          }
+          log.error("Exception connecting subscriber endpoint " + "to publisher endpoint", cause);
+          removeSubscriber(senderName);
+          releaseSubscriberEndpoint(senderName, subscriber);
+          return null;
+        });
+  }
+
+  /**
+   * Negotiates the reception of the room's mix, which is fed by this participant's port of the
+   * mixer (so that its own voice isn't heard). In a {@link RoomSettings.Mode#MIXED_AUDIO} room only
+   * the audio is received.
+   *
+   * @param sdpOffer
+   *          offer from the client
+   * @return the SDP answer
+   * @see Room#getMixer()
+   */
+  public String receiveMix(String sdpOffer) {
+    RoomMixer mixer = room.getMixer();
+    if (mixer == null) {
+      throw new RoomException(Code.ROOM_GENERIC_ERROR_CODE,
+          "Room '" + room.getName() + "' doesn't mix its media");
+    }
+    log.info("USER {}: Request to receive the mix of room {}", this.name, this.room.getName());
+
+    SubscriberEndpoint subscriber = getMixSubscriber();
+    CountDownLatch subscriberLatch = new CountDownLatch(1);
+    SdpEndpoint oldMediaEndpoint = subscriber.createEndpoint(subscriberLatch);
+    try {
+      if (!subscriberLatch.await(Room.ASYNC_LATCH_TIMEOUT, TimeUnit.SECONDS)) {
+        throw new RoomException(Code.MEDIA_ENDPOINT_ERROR_CODE,
+            "Timeout reached when creating the endpoint for the mix");
+      }
+    } catch (InterruptedException e) {
+      throw new RoomException(Code.MEDIA_ENDPOINT_ERROR_CODE,
+          "Interrupted when creating the endpoint for the mix: " + e.getMessage());
+    }
+    if (oldMediaEndpoint != null) {
+      log.warn("PARTICIPANT {}: Two threads are trying to create at "
+          + "the same time the endpoint for the mix", this.name);
+      return null;
+    }
+    if (subscriber.getEndpoint() == null) {
+      throw new RoomException(Code.MEDIA_ENDPOINT_ERROR_CODE,
+          "Unable to create the endpoint for the mix");
+    }
+
+    MediaType type = room.getSettings().getMode() == RoomSettings.Mode.MIXED_AUDIO
+        ? MediaType.AUDIO : null;
+    String sdpAnswer = subscriber.subscribe(sdpOffer, mixer.getPort(name), type);
+    rosterStateChanged();
+    log.info("USER {}: Is now receiving the mix of room {}", this.name, this.room.getName());
+    return sdpAnswer;
+  }
+
+  /**
+   * Non-blocking version of {@link #receiveMix(String)}.
+   *
+   * @return future completed with the SDP answer (or null if the endpoint for the mix is already
+   *         being created)
+   */
+  public CompletableFuture<String> receiveMixAsync(String sdpOffer) {
+    final RoomMixer mixer = room.getMixer();
+    if (mixer == null) {
+      return ContinuationFutures.failed(new RoomException(Code.ROOM_GENERIC_ERROR_CODE,
+          "Room '" + room.getName() + "' doesn't mix its media"));
+    }
+    log.info("USER {}: Request to receive the mix of room {}", this.name, this.room.getName());
+
+    final SubscriberEndpoint subscriber = getMixSubscriber();
+    SdpEndpoint oldMediaEndpoint = subscriber.createEndpoint(new CountDownLatch(1));
+    if (oldMediaEndpoint != null) {
+      log.warn("PARTICIPANT {}: Two threads are trying to create at "
+          + "the same time the endpoint for the mix", this.name);
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final MediaType type = room.getSettings().getMode() == RoomSettings.Mode.MIXED_AUDIO
+        ? MediaType.AUDIO : null;
+    return subscriber.getEndpointFuture().handle((endpoint, error) -> {
+      if (error != null || endpoint == null) {
+        throw new RoomException(Code.MEDIA_ENDPOINT_ERROR_CODE,
+            "Unable to create the endpoint for the mix");
+      }
+      return subscriber;
+    }).thenCompose(sub -> mixer.getPortAsync(name)
+        .thenCompose(port -> sub.subscribeAsync(sdpOffer, () -> port, type)))
+        .thenApply(sdpAnswer -> {
+          rosterStateChanged();
+          log.info("USER {}: Is now receiving the mix of room {}", this.name,
+              this.room.getName());
+          return sdpAnswer;
+        });
+  }
+
+  /**
+   * Stops receiving the room's mix.
+   */
+  public void cancelReceivingMix() {
+    SubscriberEndpoint subscriber;
+    synchronized (this) {
+      subscriber = mixSubscriber;
+      mixSubscriber = null;
+    }
+    if (subscriber == null || subscriber.getEndpoint() == null) {
+      log.warn("PARTICIPANT {}: Trying to cancel receiving the mix, but there is no endpoint",
+          this.name);
+      return;
+    }
+    releaseSubscriberEndpoint(Room.MIX_NAME, subscriber);
+  }
+
+  private synchronized SubscriberEndpoint getMixSubscriber() {
+    if (mixSubscriber == null) {
+      mixSubscriber = new SubscriberEndpoint(web, this, Room.MIX_NAME, pipeline);
+    }
+    return mixSubscriber;
+  }
+
+  private boolean isMixEndpoint(String endpointName) {
+    return Room.MIX_NAME.equals(endpointName) && room.isMixed();
+  }
+
   public void cancelReceivingMedia(String senderName) {
+    SubscriberEndpoint subscriberEndpoint = detachSubscriber(senderName);
+    if (subscriberEndpoint != null) {
+      releaseSubscriberEndpoint(senderName, subscriberEndpoint);
+      room.releaseUnusedRelay(senderName, pipeline);
+    }
+  }
+
+  /**
+   * Same as {@link #cancelReceivingMedia(String)}, but only the subscriber endpoint is removed
+   * from the participant by the calling thread. Its media resources are released using the given
+   * executor.
+   *
+   * @param senderName name of the publisher
+   * @param executor   executor that will release the endpoint
+   * @return future completed once the endpoint has been released
+   */
+  public CompletableFuture<Void> cancelReceivingMediaAsync(final String senderName,
+      Executor executor) {
+    final SubscriberEndpoint subscriberEndpoint = detachSubscriber(senderName);
+    if (subscriberEndpoint == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return CompletableFuture
+        .runAsync(() -> releaseSubscriberEndpoint(senderName, subscriberEndpoint), executor);
+  }
+
+  private SubscriberEndpoint detachSubscriber(String senderName) {
     log.debug("PARTICIPANT {}: cancel receiving media from {}", this.name, senderName);
-    SubscriberEndpoint subscriberEndpoint = subscribers.remove(senderName);
+    SubscriberEndpoint subscriberEndpoint = removeSubscriber(senderName);
+    if (subscriberEndpoint != null && subscriberEndpoint.isConnectedToPublisher()) {
+      rosterStateChanged();
+    }
     if (subscriberEndpoint == null || subscriberEndpoint.getEndpoint() == null) {
       log.warn("PARTICIPANT {}: Trying to cancel receiving video from user {}. "
           + "But there is no such subscriber endpoint.", this.name, senderName);
-    } else {
-      log.debug("PARTICIPANT {}: Cancel subscriber endpoint linked to user {}", this.name,
-          senderName);
-
-      releaseSubscriberEndpoint(senderName, subscriberEndpoint);
+      return null;
     }
+    log.debug("PARTICIPANT {}: Cancel subscriber endpoint linked to user {}", this.name,
+        senderName);
+    return subscriberEndpoint;
   }
 
   public void mutePublishedMedia(MutedMediaType muteType) {
@@ -385,12 +755,32 @@ public class Participant {
   }
 
   public void close() {
+    close(true);
+  }
+
+  /**
+   * Closes the participant.
+   *
+   * @param releaseMedia
+   *          whether the participant's endpoints and filters should be released, can be false when
+   *          the whole pipeline is about to be released
+   */
+  public void close(boolean releaseMedia) {
     log.debug("PARTICIPANT {}: Closing user", this.name);
     if (isClosed()) {
       log.warn("PARTICIPANT {}: Already closed", this.name);
       return;
     }
     this.closed = true;
+    rosterStateChanged();
+    if (!releaseMedia) {
+      this.streaming = false;
+      this.mixSubscriber = null;
+      this.subscribers.clear();
+      this.filters.clear();
+      this.publisher = null;
+      return;
+    }
     for (String remoteParticipantName : subscribers.keySet()) {
       SubscriberEndpoint subscriber = this.subscribers.get(remoteParticipantName);
       if (subscriber != null && subscriber.getEndpoint() != null) {
@@ -402,18 +792,29 @@ public class Participant {
             + "But the endpoint was never instantiated.", this.name, remoteParticipantName);
       }
     }
-    releasePublisherEndpoint();
+    SubscriberEndpoint mixSubscriber = this.mixSubscriber;
+    if (mixSubscriber != null && mixSubscriber.getEndpoint() != null) {
+      releaseSubscriberEndpoint(Room.MIX_NAME, mixSubscriber);
+    }
+    if (!viewer && !isPeerToPeer()) {
+      releasePublisherEndpoint();
+    }
   }
 
   /**
    * Returns a {@link SubscriberEndpoint} for the given username. The endpoint is created if not
-   * found.
+   * found, but it's only added to the room's {@link SubscriptionGraph} once it's subscribed.
    *
    * @param remoteName name of another user
    * @return the endpoint instance
    */
   public SubscriberEndpoint getNewOrExistingSubscriber(String remoteName) {
+    SubscriberEndpoint existing = this.subscribers.get(remoteName);
+    if (existing != null) {
+      return existing;
+    }
     SubscriberEndpoint sendingEndpoint = new SubscriberEndpoint(web, this, remoteName, pipeline);
+    sendingEndpoint.setAudioMixed(room.getSettings().getMode() == RoomSettings.Mode.MIXED_AUDIO);
     SubscriberEndpoint existingSendingEndpoint =
         this.subscribers.putIfAbsent(remoteName, sendingEndpoint);
     if (existingSendingEndpoint != null) {
@@ -428,10 +829,41 @@ public class Participant {
 
   public void addIceCandidate(String endpointName, IceCandidate iceCandidate) {
     if (this.name.equals(endpointName)) {
+      checkNotViewer();
       this.publisher.addIceCandidate(iceCandidate);
+    } else if (isMixEndpoint(endpointName)) {
+      getMixSubscriber().addIceCandidate(iceCandidate);
     } else {
-      this.getNewOrExistingSubscriber(endpointName).addIceCandidate(iceCandidate);
+      getSubscriberForCandidates(endpointName).addIceCandidate(iceCandidate);
+    }
+  }
+
+  public void addIceCandidates(String endpointName, List<IceCandidate> iceCandidates) {
+    if (this.name.equals(endpointName)) {
+      checkNotViewer();
+      this.publisher.addIceCandidates(iceCandidates);
+    } else if (isMixEndpoint(endpointName)) {
+      getMixSubscriber().addIceCandidates(iceCandidates);
+    } else {
+      getSubscriberForCandidates(endpointName).addIceCandidates(iceCandidates);
+    }
+  }
+
+  /**
+   * The candidates can arrive before the subscription request, so the endpoint is created if
+   * needed, but only for a participant of the room that can publish.
+   */
+  private SubscriberEndpoint getSubscriberForCandidates(String remoteName) {
+    SubscriberEndpoint existing = this.subscribers.get(remoteName);
+    if (existing != null) {
+      return existing;
     }
+    Participant sender = room.getParticipantByName(remoteName);
+    if (sender == null || sender.isViewer()) {
+      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE, "No publisher '" + remoteName
+          + "' for the ICE candidates of '" + name + "' in room '" + room.getName() + "'");
+    }
+    return getNewOrExistingSubscriber(remoteName);
   }
 
   public void sendIceCandidate(String endpointName, IceCandidate candidate) {
@@ -445,9 +877,49 @@ public class Participant {
     room.sendMediaError(id, desc);
   }
 
+  /**
+   * The changes of a viewer don't affect the roster, so they don't invalidate its snapshot.
+   */
+  private void rosterStateChanged() {
+    if (!viewer) {
+      room.rosterStateChanged();
+    }
+  }
+
+  private void checkNotViewer() {
+    if (viewer) {
+      throw viewerCannotPublish();
+    }
+  }
+
+  private void checkNotPeerToPeer() {
+    if (isPeerToPeer()) {
+      throw peerToPeerException();
+    }
+  }
+
+  private RoomException peerToPeerException() {
+    return new RoomException(Code.ROOM_GENERIC_ERROR_CODE, "The media of '" + name
+        + "' is exchanged peer-to-peer in room '" + room.getName() + "'");
+  }
+
+  private RoomException viewerCannotPublish() {
+    return new RoomException(Code.USER_GENERIC_ERROR_CODE,
+        "Viewer '" + name + "' can't publish media in room '" + room.getName() + "'");
+  }
+
+  private SubscriberEndpoint removeSubscriber(String senderName) {
+    SubscriberEndpoint subscriberEndpoint = subscribers.remove(senderName);
+    if (subscriberEndpoint != null) {
+      room.getSubscriptions().remove(name, senderName);
+    }
+    return subscriberEndpoint;
+  }
+
   private void releasePublisherEndpoint() {
     if (publisher != null && publisher.getEndpoint() != null) {
       this.streaming = false;
+      rosterStateChanged();
       publisher.unregisterErrorListeners();
       for (MediaElement el : publisher.getMediaElements()) {
         releaseElement(name, el);
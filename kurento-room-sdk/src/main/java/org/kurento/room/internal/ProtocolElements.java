@@ -36,9 +36,24 @@ public class ProtocolElements {
   public static final String JOINROOM_USER_PARAM = "user";
   public static final String JOINROOM_ROOM_PARAM = "room";
   public static final String JOINROOM_DATACHANNELS_PARAM = "dataChannels";
+  public static final String JOINROOM_VIEWER_PARAM = "viewer";
   public static final String JOINROOM_PEERID_PARAM = "id";
   public static final String JOINROOM_PEERSTREAMS_PARAM = "streams";
   public static final String JOINROOM_PEERSTREAMID_PARAM = "id";
+  public static final String JOINROOM_PEERS_PARAM = "value";
+  public static final String JOINROOM_ROSTERVERSION_PARAM = "rosterVersion";
+  public static final String JOINROOM_NEXT_PARAM = "next";
+
+  public static final String GETPARTICIPANTS_METHOD = "getParticipants";
+  public static final String GETPARTICIPANTS_AFTER_PARAM = "after";
+  public static final String GETPARTICIPANTS_SINCEVERSION_PARAM = "sinceVersion";
+  public static final String GETPARTICIPANTS_PEERS_PARAM = "value";
+  public static final String GETPARTICIPANTS_NEXT_PARAM = "next";
+  public static final String GETPARTICIPANTS_ROSTERVERSION_PARAM = "rosterVersion";
+  public static final String GETPARTICIPANTS_CHANGES_PARAM = "changes";
+  public static final String GETPARTICIPANTS_CHANGEVERSION_PARAM = "version";
+  public static final String GETPARTICIPANTS_CHANGETYPE_PARAM = "type";
+  public static final String GETPARTICIPANTS_CHANGENAME_PARAM = "name";
 
   public static final String PUBLISHVIDEO_METHOD = "publishVideo";
   public static final String PUBLISHVIDEO_SDPOFFER_PARAM = "sdpOffer";
@@ -61,22 +76,58 @@ public class ProtocolElements {
   public static final String ONICECANDIDATE_SDPMIDPARAM = "sdpMid";
   public static final String ONICECANDIDATE_SDPMLINEINDEX_PARAM = "sdpMLineIndex";
 
+  public static final String ONICECANDIDATES_METHOD = "onIceCandidates";
+  public static final String ONICECANDIDATES_CANDIDATES_PARAM = "candidates";
+
   public static final String CUSTOMREQUEST_METHOD = "customRequest";
 
+  // self-reported by the publishers, so the server treats it as advisory and rate-limits it
+  public static final String AUDIOLEVEL_METHOD = "audioLevel";
+  public static final String AUDIOLEVEL_LEVEL_PARAM = "level";
+
+  public static final String SENDPEERSDP_METHOD = "sendPeerSdp";
+  public static final String SENDPEERSDP_PEER_PARAM = "peer";
+  public static final String SENDPEERSDP_TYPE_PARAM = "type";
+  public static final String SENDPEERSDP_SDP_PARAM = "sdp";
+
   // ---------------------------- SERVER RESPONSES & EVENTS -----------------
 
   public static final String PARTICIPANTJOINED_METHOD = "participantJoined";
   public static final String PARTICIPANTJOINED_USER_PARAM = "id";
 
+  public static final String PARTICIPANTSCHANGED_METHOD = "participantsChanged";
+  public static final String PARTICIPANTSCHANGED_ADDED_PARAM = "added";
+  public static final String PARTICIPANTSCHANGED_REMOVED_PARAM = "removed";
+
   public static final String PARTICIPANTLEFT_METHOD = "participantLeft";
   public static final String PARTICIPANTLEFT_NAME_PARAM = "name";
 
   public static final String PARTICIPANTEVICTED_METHOD = "participantEvicted";
 
+  public static final String DOMINANTSPEAKERCHANGED_METHOD = "dominantSpeakerChanged";
+  public static final String DOMINANTSPEAKERCHANGED_NAME_PARAM = "name";
+
+  public static final String VIEWERCOUNT_METHOD = "viewerCount";
+  public static final String VIEWERCOUNT_ROOM_PARAM = "room";
+  public static final String VIEWERCOUNT_COUNT_PARAM = "count";
+
+  public static final String PEERTOPEER_METHOD = "peerToPeer";
+  public static final String PEERTOPEER_PEER_PARAM = "peer";
+
+  public static final String PEERSDP_METHOD = "peerSdp";
+  public static final String PEERSDP_NAME_PARAM = "name";
+  public static final String PEERSDP_TYPE_PARAM = "type";
+  public static final String PEERSDP_SDP_PARAM = "sdp";
+
+  public static final String PEERTOPEERENDED_METHOD = "peerToPeerEnded";
+  public static final String PEERTOPEERENDED_ROOM_PARAM = "room";
+
   public static final String PARTICIPANTPUBLISHED_METHOD = "participantPublished";
   public static final String PARTICIPANTPUBLISHED_USER_PARAM = "id";
   public static final String PARTICIPANTPUBLISHED_STREAMS_PARAM = "streams";
   public static final String PARTICIPANTPUBLISHED_STREAMID_PARAM = "id";
+  public static final String PARTICIPANTPUBLISHED_MIX_PARAM = "mix";
+  public static final String PARTICIPANTPUBLISHED_RECVVIDEO_PARAM = "recvVideo";
 
   public static final String PARTICIPANTUNPUBLISHED_METHOD = "participantUnpublished";
   public static final String PARTICIPANTUNPUBLISHED_NAME_PARAM = "name";
@@ -98,5 +149,8 @@ public class ProtocolElements {
   public static final String ICECANDIDATE_SDPMID_PARAM = "sdpMid";
   public static final String ICECANDIDATE_SDPMLINEINDEX_PARAM = "sdpMLineIndex";
 
+  public static final String ICECANDIDATES_METHOD = "iceCandidates";
+  public static final String ICECANDIDATES_CANDIDATES_PARAM = "candidates";
+
   public static final String CUSTOM_NOTIFICATION = "custonNotification";
 }
@@ -16,13 +16,29 @@
 
 package org.kurento.room.internal;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 import org.kurento.client.Continuation;
 import org.kurento.client.ErrorEvent;
@@ -30,7 +46,14 @@ import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaType;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.room.api.PipelineErrorForwarder;
 import org.kurento.room.api.RoomHandler;
+import org.kurento.room.api.pojo.RosterChange;
+import org.kurento.room.api.pojo.RoomSettings;
+import org.kurento.room.api.pojo.UserParticipant;
+import org.kurento.room.endpoint.PublisherEndpoint;
 import org.kurento.room.exception.RoomException;
 import org.kurento.room.exception.RoomException.Code;
 import org.slf4j.Logger;
@@ -45,14 +68,29 @@ import org.slf4j.LoggerFactory;
 public class Room {
   public static final int ASYNC_LATCH_TIMEOUT = 30;
 
+  /** Number of roster changes kept to be served incrementally. */
+  public static final int ROSTER_CHANGES_KEPT = 1000;
+
+  /** Name of the virtual publisher whose stream is the mix, in rooms that mix their media. */
+  public static final String MIX_NAME = "mix";
+
   private final static Logger log = LoggerFactory.getLogger(Room.class);
 
   private final ConcurrentMap<String, Participant> participants =
       new ConcurrentHashMap<String, Participant>();
+  private final ConcurrentMap<String, Participant> participantsByName =
+      new ConcurrentHashMap<String, Participant>();
+  // receive-only participants, kept out of the roster
+  private final ConcurrentMap<String, Participant> viewers =
+      new ConcurrentHashMap<String, Participant>();
+  // reserved while a participant is being added, before its media elements are created
+  private final Set<String> joiningIds = ConcurrentHashMap.newKeySet();
+  private final Set<String> joiningNames = ConcurrentHashMap.newKeySet();
   private final String name;
 
-  private MediaPipeline pipeline;
+  private volatile MediaPipeline pipeline;
   private CountDownLatch pipelineLatch = new CountDownLatch(1);
+  private CompletableFuture<MediaPipeline> pipelineFuture;
 
   private KurentoClient kurentoClient;
 
@@ -69,19 +107,74 @@ public class Room {
 
   private final ConcurrentHashMap<String, String> filterStates = new ConcurrentHashMap<>();
 
+  private final RoomSettings settings;
+
+  private volatile WebRtcEndpointPool endpointPool;
+  private volatile RoomMixer mixer;
+  private final RoomCascade cascade;
+  // true until the room needs its pipeline, see RoomSettings#isPeerToPeer()
+  private volatile boolean peerToPeer;
+
+  private volatile Executor fanOutExecutor = Runnable::run;
+  private volatile SerialExecutor mailbox;
+  // connects and disconnects the forwarded video in the order of the Last-N changes
+  private final SerialExecutor videoForwarding;
+  private volatile LatencyStats fanOutStats = new LatencyStats("fanOut");
+  private volatile LongSupplier clock = System::currentTimeMillis;
+
+  private volatile long rosterVersion = 0;
+  private final Deque<RosterChange> rosterChanges = new ArrayDeque<RosterChange>();
+
+  private final AtomicLong rosterState = new AtomicLong(0);
+
+  private final SubscriptionGraph subscriptions = new SubscriptionGraph();
+
+  private final ActiveSpeakers activeSpeakers;
+  private final DominantSpeakerDetector speakerDetector;
+  private volatile RosterSnapshot rosterSnapshot;
+
   public Room(String roomName, KurentoClient kurentoClient, RoomHandler roomHandler,
       boolean destroyKurentoClient) {
+    this(roomName, kurentoClient, roomHandler, destroyKurentoClient, new RoomSettings());
+  }
+
+  public Room(String roomName, KurentoClient kurentoClient, RoomHandler roomHandler,
+      boolean destroyKurentoClient, RoomSettings settings) {
     this.name = roomName;
     this.kurentoClient = kurentoClient;
     this.destroyKurentoClient = destroyKurentoClient;
     this.roomHandler = roomHandler;
-    log.debug("New ROOM instance, named '{}'", roomName);
+    this.settings = settings;
+    this.activeSpeakers = settings.getLastN() > 0 ? new ActiveSpeakers(settings.getLastN()) : null;
+    this.videoForwarding = new SerialExecutor("ROOM " + roomName + " video",
+        task -> getFanOutExecutor().execute(task));
+    this.speakerDetector = new DominantSpeakerDetector(settings.getSpeakerThreshold(),
+        settings.getDominantSpeakerInterval());
+    if (settings.getParticipantsPerKms() > 0 && !isMixed()) {
+      this.cascade = new RoomCascade(roomName, settings.getRelayFanOut());
+    } else {
+      if (settings.getParticipantsPerKms() > 0) {
+        log.warn("ROOM {}: The media of a mixed room can't be spread over several servers",
+            roomName);
+      }
+      this.cascade = null;
+    }
+    this.peerToPeer = settings.isPeerToPeer() && !isMixed() && cascade == null;
+    if (settings.isPeerToPeer() && !peerToPeer) {
+      log.warn("ROOM {}: Only rooms that forward the media through a single server can start "
+          + "peer-to-peer", roomName);
+    }
+    log.debug("New ROOM instance, named '{}' {}", roomName, settings);
   }
 
   public String getName() {
     return name;
   }
 
+  public RoomSettings getSettings() {
+    return settings;
+  }
+
   public MediaPipeline getPipeline() {
     try {
       pipelineLatch.await(Room.ASYNC_LATCH_TIMEOUT, TimeUnit.SECONDS);
@@ -91,64 +184,485 @@ public class Room {
     return this.pipeline;
   }
 
-  public synchronized void join(String participantId, String userName, boolean dataChannels,
+  /**
+   * Unlike {@link #getPipeline()}, doesn't wait for the room's pipeline to be created.
+   *
+   * @return true if the given pipeline is the room's main one
+   */
+  public boolean isMainPipeline(MediaPipeline pipeline) {
+    return pipeline != null && pipeline == this.pipeline;
+  }
+
+  public void join(String participantId, String userName, boolean dataChannels,
       boolean webParticipant) throws RoomException {
+    join(participantId, userName, dataChannels, webParticipant, null);
+  }
+
+  /**
+   * Same as {@link #join(String, String, boolean, boolean)}, but the participant's media will be
+   * handled by the given media server, if the room can spread over several servers.
+   *
+   * @param participantKurentoClient
+   *          client of the participant's server, null for the room's main one
+   * @see #getParticipantsPerKms()
+   */
+  public void join(String participantId, String userName, boolean dataChannels,
+      boolean webParticipant, KurentoClient participantKurentoClient) throws RoomException {
+
+    reserveId(participantId);
+    try {
+      Participant participant = newParticipant(participantId, userName, dataChannels,
+          webParticipant, participantKurentoClient, false);
+
+      synchronized (this) {
+        participants.put(participantId, participant);
+        recordRosterChange(RosterChange.Type.JOINED, userName);
+
+        filterStates.forEach((filterId, state) -> {
+          log.info("Adding filter {}", filterId);
+          roomHandler.updateFilter(name, participant, filterId, state);
+        });
+      }
+    } finally {
+      joiningIds.remove(participantId);
+    }
+
+    log.info("ROOM {}: Added participant {}", name, userName);
+  }
+
+  /**
+   * Adds a viewer to the room, a participant that can only receive media. It has no publisher
+   * endpoint, no subscriber endpoints are created for it in advance and it's not part of the
+   * roster, the room handler is only informed about the number of viewers.
+   *
+   * @param participantKurentoClient
+   *          client of the viewer's server, null for the room's main one
+   * @see RoomHandler#onViewerCountChanged(String, int, Supplier)
+   */
+  public void joinAsViewer(String participantId, String userName,
+      KurentoClient participantKurentoClient) throws RoomException {
+    reserveId(participantId);
+    try {
+      Participant viewer = newParticipant(participantId, userName, false, true,
+          participantKurentoClient, true);
+      viewers.put(participantId, viewer);
+    } finally {
+      joiningIds.remove(participantId);
+    }
+    log.info("ROOM {}: Added viewer {}", name, userName);
+    viewerCountChanged();
+  }
+
+  private Participant newParticipant(String participantId, String userName,
+      boolean dataChannels, boolean webParticipant, KurentoClient participantKurentoClient,
+      boolean viewer) {
 
     checkClosed();
 
     if (userName == null || userName.isEmpty()) {
       throw new RoomException(Code.GENERIC_ERROR_CODE, "Empty user name is not allowed");
     }
-    for (Participant p : participants.values()) {
-      if (p.getName().equals(userName)) {
-        throw new RoomException(Code.EXISTING_USER_IN_ROOM_ERROR_CODE,
-            "User '" + userName + "' already exists in room '" + name + "'");
+    if (isMixed() && MIX_NAME.equals(userName)) {
+      throw existingUserException(userName);
+    }
+    // the name is reserved before creating any endpoint, so that a concurrent join with the same
+    // name fails without leaking media elements
+    if (!joiningNames.add(userName)) {
+      throw existingUserException(userName);
+    }
+    try {
+      if (participantsByName.containsKey(userName)) {
+        throw existingUserException(userName);
+      }
+      return createParticipant(participantId, userName, dataChannels, webParticipant,
+          participantKurentoClient, viewer);
+    } finally {
+      joiningNames.remove(userName);
+    }
+  }
+
+  private Participant createParticipant(String participantId, String userName,
+      boolean dataChannels, boolean webParticipant, KurentoClient participantKurentoClient,
+      boolean viewer) {
+    if (peerToPeer) {
+      Participant peer = newPeer(participantId, userName, dataChannels, webParticipant, viewer);
+      if (peer != null) {
+        return peer;
       }
     }
 
     createPipeline();
+    // the peer-to-peer mode may have been restored while this request created the pipeline
+    leavePeerToPeer(userName);
 
-    Participant participant =
-        new Participant(participantId, userName, this, getPipeline(), dataChannels, webParticipant);
-    participants.put(participantId, participant);
+    MediaPipeline participantPipeline = getPipeline();
+    if (cascade != null && participantKurentoClient != null
+        && participantKurentoClient != kurentoClient) {
+      participantPipeline = cascade.getPipeline(participantKurentoClient);
+    }
+    Participant participant = new Participant(participantId, userName, this, participantPipeline,
+        dataChannels, webParticipant, viewer);
+    participantsByName.put(userName, participant);
+    return participant;
+  }
 
-    filterStates.forEach((filterId, state) -> {
-      log.info("Adding filter {}", filterId);
-      roomHandler.updateFilter(name, participant, filterId, state);
-    });
+  /**
+   * Adds the participant without media elements while the room stays peer-to-peer, otherwise
+   * leaves the peer-to-peer mode and moves the media of the current peers to the room's pipeline
+   * once it's been created. The pipeline is requested without holding the room's lock, and the
+   * peers are moved by the room's executor (its mailbox in serial execution mode). If the pipeline
+   * can't be created, the joining participant is rejected (it fails to create the same pipeline)
+   * and the room goes back to peer-to-peer mode.
+   *
+   * @return the new participant, null if it has to join the room's pipeline
+   */
+  private Participant newPeer(String participantId, final String userName,
+      boolean dataChannels, boolean webParticipant, boolean viewer) {
+    final List<Participant> peers;
+    synchronized (this) {
+      if (!peerToPeer) {
+        return null;
+      }
+      if (!viewer && participantsByName.size() < 2) {
+        Participant peer = new Participant(participantId, userName, this, null, dataChannels,
+            webParticipant, false);
+        participantsByName.put(userName, peer);
+        log.debug("ROOM {}: Participant {} joins peer-to-peer", name, userName);
+        return peer;
+      }
+      peerToPeer = false;
+      peers = new ArrayList<Participant>(participantsByName.values());
+    }
+    createPipelineAsync().whenComplete((created, error) -> getExecutor().execute(() -> {
+      if (error != null) {
+        restorePeerToPeer(userName, peers, error);
+      } else {
+        movePeers(userName, created, peers);
+      }
+    }));
+    return null;
+  }
 
-    log.info("ROOM {}: Added participant {}", name, userName);
+  /**
+   * Leaves the peer-to-peer mode after the room's pipeline has been created by a request that
+   * didn't see the room as peer-to-peer.
+   */
+  private void leavePeerToPeer(String userName) {
+    final List<Participant> peers;
+    synchronized (this) {
+      if (!peerToPeer) {
+        return;
+      }
+      peerToPeer = false;
+      peers = new ArrayList<Participant>(participantsByName.values());
+    }
+    final MediaPipeline created = getPipeline();
+    getExecutor().execute(() -> movePeers(userName, created, peers));
   }
 
-  public void newPublisher(Participant participant) {
-    registerPublisher();
+  private void restorePeerToPeer(String userName, List<Participant> peers, Throwable error) {
+    synchronized (this) {
+      if (pipeline == null && !closed) {
+        peerToPeer = true;
+        log.warn("ROOM {}: Unable to create the pipeline for {}, the media of {} stays "
+            + "peer-to-peer", name, userName, peers, error);
+        return;
+      }
+    }
+    MediaPipeline created = getPipeline();
+    if (created != null) {
+      // created meanwhile by a later request
+      movePeers(userName, created, peers);
+    }
+  }
 
-    // pre-load endpoints to recv video from the new publisher
-    for (Participant participant1 : participants.values()) {
-      if (participant.equals(participant1)) {
+  private void movePeers(String userName, MediaPipeline pipeline, List<Participant> peers) {
+    Set<UserParticipant> moved = new HashSet<UserParticipant>();
+    for (Participant peer : peers) {
+      if (participantsByName.get(peer.getName()) != peer || !peer.isPeerToPeer()) {
+        // left or moved meanwhile
         continue;
       }
-      participant1.getNewOrExistingSubscriber(participant.getName());
+      peer.attachPipeline(pipeline);
+      moved.add(new UserParticipant(peer.getId(), peer.getName()));
+    }
+    log.info("ROOM {}: {} is joining, the media of {} moves to the server", name, userName,
+        moved);
+    if (!moved.isEmpty()) {
+      roomHandler.onPeerToPeerEnded(name, moved);
     }
+  }
 
-    log.debug("ROOM {}: Virtually subscribed other participants {} to new publisher {}", name,
-        participants.values(), participant.getName());
+  /**
+   * @return true if the room hasn't created its pipeline yet, its (up to two) participants
+   *         exchange their media directly
+   * @see RoomSettings#isPeerToPeer()
+   */
+  public boolean isPeerToPeer() {
+    return peerToPeer;
+  }
+
+  /**
+   * Relays an ICE candidate between the peers of a peer-to-peer room.
+   *
+   * @param sender
+   *          the participant that gathered the candidate
+   * @param peerName
+   *          name of the participant that has to receive it
+   */
+  public void relayIceCandidate(Participant sender, String peerName, IceCandidate candidate) {
+    sendIceCandidate(getPeer(sender, peerName).getId(), sender.getName(), candidate);
+  }
+
+  /**
+   * @return the participant a peer-to-peer sender is connected to
+   * @throws RoomException
+   *           if the sender's media isn't exchanged peer-to-peer or the peer is not found
+   */
+  public Participant getPeer(Participant sender, String peerName) throws RoomException {
+    if (!sender.isPeerToPeer()) {
+      throw new RoomException(Code.ROOM_GENERIC_ERROR_CODE, "The media of '" + sender.getName()
+          + "' goes through the server in room '" + name + "'");
+    }
+    Participant peer = participantsByName.get(peerName);
+    if (peer == null || peer.equals(sender) || !peer.isPeerToPeer()) {
+      throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
+          "Peer '" + peerName + "' not found in room '" + name + "'");
+    }
+    return peer;
+  }
+
+  /**
+   * Enables the serial execution of the room's requests (if configured in the room's settings).
+   *
+   * @param backend
+   *          shared executor whose threads will run the tasks of the room's mailbox
+   * @see RoomSettings#isSerialExecution()
+   */
+  public void setMailboxExecutor(Executor backend) {
+    if (settings.isSerialExecution()) {
+      this.mailbox = new SerialExecutor("ROOM " + name, backend);
+    }
   }
 
-  public void cancelPublisher(Participant participant) {
+  /**
+   * @return the executor that should run the operations that modify this room (its mailbox in
+   *         serial execution mode, otherwise the calling thread)
+   */
+  public Executor getExecutor() {
+    SerialExecutor mailbox = this.mailbox;
+    if (mailbox == null) {
+      return Runnable::run;
+    }
+    return mailbox;
+  }
+
+  /**
+   * Runs the task in the room's mailbox and waits for its result. If the room isn't in serial
+   * execution mode, or this is already a task of its mailbox, the task is run right away by the
+   * calling thread.
+   *
+   * @param task
+   *          the operation
+   * @return the result of the task
+   * @throws RoomException
+   *           if the task fails
+   */
+  public <T> T serialize(Supplier<T> task) throws RoomException {
+    SerialExecutor mailbox = this.mailbox;
+    if (mailbox == null || mailbox.isRunningInCurrentThread()) {
+      return task.get();
+    }
+    try {
+      return CompletableFuture.supplyAsync(task, mailbox).join();
+    } catch (CompletionException e) {
+      throw ContinuationFutures.toRoomException(e);
+    }
+  }
+
+  /**
+   * Asynchronous version of {@link #serialize(Supplier)}: the step is started by the room's
+   * mailbox and the mailbox doesn't run its next task until the returned future is completed, but
+   * no thread is kept waiting for the media server in the meantime. The continuations of the
+   * step's future don't run in the mailbox, so they must not call {@link #serialize(Supplier)}.
+   *
+   * @param step
+   *          starts the operation (using the asynchronous API of the Kurento Client)
+   * @return future completed with the outcome of the step
+   */
+  public <T> CompletableFuture<T> serializeAsync(Supplier<CompletableFuture<T>> step) {
+    SerialExecutor mailbox = this.mailbox;
+    if (mailbox == null || mailbox.isRunningInCurrentThread()) {
+      try {
+        return step.get();
+      } catch (RoomException e) {
+        return ContinuationFutures.failed(e);
+      }
+    }
+    return mailbox.submit(step);
+  }
+
+  /**
+   * @return true if the room's requests are run by its mailbox
+   * @see RoomSettings#isSerialExecution()
+   */
+  public boolean isSerialExecution() {
+    return mailbox != null;
+  }
+
+  /**
+   * Sets the executor used to update the other participants when someone starts or stops
+   * publishing, so that the publisher's request doesn't wait for it. By default, the calling
+   * thread performs these tasks. In serial execution mode they're queued in the room's mailbox
+   * instead.
+   *
+   * @param fanOutExecutor
+   *          the executor (should be bounded, as it's shared by all rooms)
+   * @param fanOutStats
+   *          where the time to complete each fan-out will be recorded
+   */
+  public void setFanOutExecutor(Executor fanOutExecutor, LatencyStats fanOutStats) {
+    this.fanOutExecutor = fanOutExecutor;
+    this.fanOutStats = fanOutStats;
+  }
+
+  /**
+   * @param clock
+   *          source of the current time (in milliseconds) when the audio levels are updated, the
+   *          system's clock by default
+   */
+  public void setClock(LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  private Executor getFanOutExecutor() {
+    SerialExecutor mailbox = this.mailbox;
+    if (mailbox != null) {
+      return mailbox;
+    }
+    return fanOutExecutor;
+  }
+
+  /**
+   * Registers a new publisher: connects it to the room's mix (if any) and prepares the other
+   * participants' subscriber endpoints (unless they're created on demand). Nothing waits for the
+   * media server.
+   *
+   * @return future completed once the publisher is connected to the mix and the subscriber
+   *         endpoints are ready
+   */
+  public CompletableFuture<Void> newPublisher(final Participant participant) {
+    registerPublisher();
+    recordRosterChange(RosterChange.Type.PUBLISHED, participant.getName());
+    if (activeSpeakers != null) {
+      Map<String, Boolean> changes;
+      synchronized (activeSpeakers) {
+        changes = activeSpeakers.added(participant.getName());
+      }
+      forwardVideo(changes);
+    }
+
+    CompletableFuture<Void> mixed = CompletableFuture.completedFuture(null);
+    RoomMixer mixer = getMixer();
+    if (mixer != null) {
+      // the video is still forwarded by the subscriber endpoints in a mixed audio room
+      final MediaType type = settings.getMode() == RoomSettings.Mode.MIXED_AUDIO
+          ? MediaType.AUDIO : null;
+      mixed = mixer.getPortAsync(participant.getName())
+          .thenCompose(port -> participant.getPublisher().connectAsync(port, type))
+          .whenComplete((result, error) -> {
+            if (error != null) {
+              log.warn("ROOM {}: Could not connect publisher {} to the mix", name,
+                  participant.getName(), error);
+            } else {
+              log.debug("ROOM {}: Publisher {} connected to the mix", name,
+                  participant.getName());
+            }
+          });
+      if (settings.getMode() == RoomSettings.Mode.COMPOSITE) {
+        // the other participants only receive the mix
+        return mixed;
+      }
+    }
+
+    if (settings.isLazySubscribers()) {
+      log.debug("ROOM {}: Subscriber endpoints to new publisher {} will be created on demand",
+          name, participant.getName());
+      return mixed;
+    }
+
+    final long start = System.nanoTime();
+    // pre-load endpoints to recv video from the new publisher (in-memory only, a single task is
+    // enough)
+    CompletableFuture<Void> fanOut = CompletableFuture.runAsync(() -> {
+      for (Participant participant1 : participants.values()) {
+        if (participant.equals(participant1)) {
+          continue;
+        }
+        participant1.getNewOrExistingSubscriber(participant.getName());
+      }
+      log.debug("ROOM {}: Virtually subscribed other participants {} to new publisher {}", name,
+          participants.values(), participant.getName());
+    }, getFanOutExecutor());
+    return CompletableFuture.allOf(mixed, recordFanOut(fanOut, start, participant));
+  }
+
+  public CompletableFuture<Void> cancelPublisher(Participant participant) {
     deregisterPublisher();
+    recordRosterChange(RosterChange.Type.UNPUBLISHED, participant.getName());
+    removeSpeaker(participant.getName());
+    if (cascade != null) {
+      cascade.releaseRelays(participant.getName());
+    }
 
+    final long start = System.nanoTime();
     // cancel recv video from this publisher
-    for (Participant subscriber : participants.values()) {
+    CompletableFuture<Void> fanOut = cancelReceivingMedia(participant);
+
+    log.debug("ROOM {}: Unsubscribed other participants {} from the publisher {}", name,
+        participants.values(), participant.getName());
+    return recordFanOut(fanOut, start, participant);
+  }
+
+  /**
+   * Removes the other participants' subscriptions to the given one, found using the subscription
+   * graph. The endpoints are detached right away, their release is done by the fan-out executor.
+   * If the room preloads the subscriber endpoints, which aren't in the graph until they're
+   * subscribed, all the participants are visited.
+   */
+  private CompletableFuture<Void> cancelReceivingMedia(Participant participant) {
+    Collection<Participant> subscribers;
+    if (settings.isLazySubscribers()) {
+      subscribers = new ArrayList<Participant>();
+      for (String subscriberName : subscriptions.getSubscribers(participant.getName())) {
+        Participant subscriber = participantsByName.get(subscriberName);
+        if (subscriber != null) {
+          subscribers.add(subscriber);
+        }
+      }
+    } else {
+      subscribers = participants.values();
+    }
+    List<CompletableFuture<Void>> releases = new ArrayList<CompletableFuture<Void>>();
+    for (Participant subscriber : subscribers) {
       if (participant.equals(subscriber)) {
         continue;
       }
-      subscriber.cancelReceivingMedia(participant.getName());
+      releases.add(
+          subscriber.cancelReceivingMediaAsync(participant.getName(), getFanOutExecutor()));
     }
+    return CompletableFuture.allOf(releases.toArray(new CompletableFuture<?>[releases.size()]));
+  }
 
-    log.debug("ROOM {}: Unsubscribed other participants {} from the publisher {}", name,
-        participants.values(), participant.getName());
-
+  private CompletableFuture<Void> recordFanOut(CompletableFuture<Void> fanOut, final long start,
+      final Participant participant) {
+    return fanOut.whenComplete((result, error) -> {
+      fanOutStats.recordSince(start);
+      if (error != null) {
+        log.warn("ROOM {}: Error updating the participants after changes in publisher {}", name,
+            participant.getName(), error);
+      }
+    });
   }
 
   public void leave(String participantId) throws RoomException {
@@ -157,6 +671,13 @@ public class Room {
 
     Participant participant = participants.get(participantId);
     if (participant == null) {
+      Participant viewer = viewers.get(participantId);
+      if (viewer != null) {
+        log.info("VIEWER {}: Leaving room {}", viewer.getName(), this.name);
+        this.removeViewer(viewer);
+        viewer.close();
+        return;
+      }
       throw new RoomException(Code.USER_NOT_FOUND_ERROR_CODE,
           "User #" + participantId + " not found in room '" + name + "'");
     }
@@ -184,34 +705,74 @@ public class Room {
     return participants.keySet();
   }
 
+  /**
+   * @return the participant or viewer with the given id, null if not found
+   */
   public Participant getParticipant(String participantId) {
 
     checkClosed();
 
-    return participants.get(participantId);
+    Participant participant = participants.get(participantId);
+    if (participant == null) {
+      participant = viewers.get(participantId);
+    }
+    return participant;
   }
 
-  public Participant getParticipantByName(String userName) {
+  /**
+   * @return the room's viewers
+   * @see #joinAsViewer(String, String, KurentoClient)
+   */
+  public Set<UserParticipant> getViewers() {
 
     checkClosed();
 
-    for (Participant p : participants.values()) {
-      if (p.getName().equals(userName)) {
-        return p;
-      }
+    Set<UserParticipant> userParts = new HashSet<UserParticipant>();
+    for (Participant viewer : viewers.values()) {
+      userParts.add(new UserParticipant(viewer.getId(), viewer.getName()));
     }
+    return userParts;
+  }
 
-    return null;
+  public int getViewerCount() {
+    return viewers.size();
+  }
+
+  public Participant getParticipantByName(String userName) {
+
+    checkClosed();
+
+    return participantsByName.get(userName);
   }
 
   public void close() {
     if (!closed) {
 
+      // the participants' media elements are released together with the pipeline
       for (Participant user : participants.values()) {
-        user.close();
+        user.close(false);
+      }
+      for (Participant viewer : viewers.values()) {
+        viewer.close(false);
       }
 
       participants.clear();
+      viewers.clear();
+      participantsByName.clear();
+      subscriptions.clear();
+      rosterStateChanged();
+
+      WebRtcEndpointPool pool = endpointPool;
+      if (pool != null) {
+        pool.close();
+      }
+      RoomMixer mixer = this.mixer;
+      if (mixer != null) {
+        mixer.close();
+      }
+      if (cascade != null) {
+        cascade.close();
+      }
 
       closePipeline();
 
@@ -245,72 +806,630 @@ public class Room {
     }
   }
 
+  /**
+   * Reserves the identifier of a participant that is joining, until it's added to the room.
+   *
+   * @throws RoomException
+   *           if a participant (or viewer) with the same identifier is in the room or joining it
+   */
+  private void reserveId(String participantId) {
+    if (!joiningIds.add(participantId)) {
+      throw existingIdException(participantId);
+    }
+    if (participants.containsKey(participantId) || viewers.containsKey(participantId)) {
+      joiningIds.remove(participantId);
+      throw existingIdException(participantId);
+    }
+  }
+
+  private RoomException existingIdException(String participantId) {
+    return new RoomException(Code.EXISTING_USER_IN_ROOM_ERROR_CODE,
+        "Participant with id '" + participantId + "' already exists in room '" + name + "'");
+  }
+
+  private RoomException existingUserException(String userName) {
+    return new RoomException(Code.EXISTING_USER_IN_ROOM_ERROR_CODE,
+        "User '" + userName + "' already exists in room '" + name + "'");
+  }
+
   private void removeParticipant(Participant participant) {
 
     checkClosed();
 
-    participants.remove(participant.getId());
+    if (participants.remove(participant.getId()) != null) {
+      recordRosterChange(RosterChange.Type.LEFT, participant.getName());
+    }
+    participantsByName.remove(participant.getName(), participant);
 
     log.debug("ROOM {}: Cancel receiving media from user '{}' for other users", this.name,
         participant.getName());
-    for (Participant other : participants.values()) {
-      other.cancelReceivingMedia(participant.getName());
+    final long start = System.nanoTime();
+    recordFanOut(cancelReceivingMedia(participant), start, participant);
+    if (cascade != null) {
+      cascade.releaseRelays(participant.getName());
+      for (String publisherName : subscriptions.getPublishers(participant.getName())) {
+        releaseUnusedRelay(publisherName, participant.getPipeline());
+      }
+    }
+    subscriptions.removeParticipant(participant.getName());
+    removeSpeaker(participant.getName());
+    RoomMixer mixer = this.mixer;
+    if (mixer != null) {
+      mixer.releasePort(participant.getName());
+    }
+  }
+
+  private void removeViewer(Participant viewer) {
+    if (viewers.remove(viewer.getId()) == null) {
+      return;
+    }
+    participantsByName.remove(viewer.getName(), viewer);
+    if (cascade != null) {
+      for (String publisherName : subscriptions.getPublishers(viewer.getName())) {
+        releaseUnusedRelay(publisherName, viewer.getPipeline());
+      }
+    }
+    subscriptions.removeParticipant(viewer.getName());
+    viewerCountChanged();
+  }
+
+  private void viewerCountChanged() {
+    roomHandler.onViewerCountChanged(name, viewers.size(), () -> {
+      // everyone in the room, resolved when the handler sends the count
+      Set<UserParticipant> recipients =
+          new HashSet<UserParticipant>(getRosterSnapshot().getParticipants());
+      recipients.addAll(getViewers());
+      return recipients;
+    });
+  }
+
+  /**
+   * Records speech activity from a publisher. In Last-N rooms, the publisher becomes the most
+   * recently active speaker and the video forwarded to the subscribers is switched if needed.
+   *
+   * @param publisherName
+   *          name of the participant that's speaking
+   * @return true if the set of publishers whose video is forwarded has changed
+   * @see RoomSettings#getLastN()
+   */
+  public boolean onActiveSpeaker(String publisherName) {
+    if (activeSpeakers == null) {
+      return false;
+    }
+    Map<String, Boolean> changes;
+    synchronized (activeSpeakers) {
+      changes = activeSpeakers.spoke(publisherName);
+    }
+    return forwardVideo(changes);
+  }
+
+  /**
+   * @return the publishers ordered by their last speech activity (most recent first), empty if
+   *         the room isn't in Last-N mode
+   */
+  public List<String> getActiveSpeakers() {
+    if (activeSpeakers == null) {
+      return new ArrayList<String>();
+    }
+    synchronized (activeSpeakers) {
+      return activeSpeakers.getSpeakers();
+    }
+  }
+
+  /**
+   * Configures whether a subscriber endpoint that's about to connect has to receive the video of
+   * its publisher, as decided by the Last-N selection.
+   *
+   * @param subscriber
+   *          owner of the subscriber endpoint
+   * @param publisherName
+   *          name of the publisher
+   */
+  public void applyVideoForwarding(Participant subscriber, String publisherName) {
+    if (activeSpeakers == null) {
+      return;
+    }
+    subscriber.setVideoForwarded(publisherName, isVideoForwarded(publisherName));
+  }
+
+  private boolean isVideoForwarded(String publisherName) {
+    synchronized (activeSpeakers) {
+      return activeSpeakers.isForwarded(publisherName);
+    }
+  }
+
+  /**
+   * Updates the audio level of a publisher. If a new dominant speaker is detected, the handler is
+   * notified and, in Last-N rooms, its video is forwarded.
+   *
+   * @param publisherName
+   *          name of the publisher
+   * @param level
+   *          audio level of the publisher's stream, in dBov, as reported by its client (advisory,
+   *          see {@link DominantSpeakerDetector})
+   * @see RoomHandler#onDominantSpeakerChanged(String, String, Set)
+   */
+  public void updateAudioLevel(String publisherName, double level) {
+    checkClosed();
+    String dominantSpeaker;
+    synchronized (speakerDetector) {
+      dominantSpeaker = speakerDetector.update(publisherName, level, clock.getAsLong());
+    }
+    if (dominantSpeaker == null) {
+      return;
+    }
+    log.debug("ROOM {}: Dominant speaker is now {}", name, dominantSpeaker);
+    onActiveSpeaker(dominantSpeaker);
+    roomHandler.onDominantSpeakerChanged(name, dominantSpeaker,
+        getRosterSnapshot().getParticipants());
+  }
+
+  /**
+   * @return the name of the room's dominant speaker, null if not known
+   */
+  public String getDominantSpeaker() {
+    synchronized (speakerDetector) {
+      return speakerDetector.getDominantSpeaker();
+    }
+  }
+
+  private void removeSpeaker(String publisherName) {
+    synchronized (speakerDetector) {
+      speakerDetector.removed(publisherName);
+    }
+    if (activeSpeakers != null) {
+      Map<String, Boolean> changes;
+      synchronized (activeSpeakers) {
+        changes = activeSpeakers.removed(publisherName);
+      }
+      forwardVideo(changes);
     }
   }
 
+  /**
+   * Connects or disconnects the video of the given publishers to their subscribers. Must be called
+   * after releasing the lock of the active speakers, the media server is requested later by the
+   * fan-out executor. Each task applies the current selection instead of the given changes, so
+   * the last task leaves the video as selected by the last changes.
+   */
+  private boolean forwardVideo(Map<String, Boolean> changes) {
+    if (changes.isEmpty()) {
+      return false;
+    }
+    log.debug("ROOM {}: Video forwarding changes {}, active speakers {}", name, changes,
+        getActiveSpeakers());
+    final Set<String> publisherNames = new HashSet<String>(changes.keySet());
+    videoForwarding.execute(() -> {
+      for (String publisherName : publisherNames) {
+        boolean forwarded = isVideoForwarded(publisherName);
+        for (String subscriberName : subscriptions.getSubscribers(publisherName)) {
+          Participant subscriber = participantsByName.get(subscriberName);
+          if (subscriber != null) {
+            subscriber.setVideoForwarded(publisherName, forwarded);
+          }
+        }
+      }
+    });
+    return true;
+  }
+
+  /**
+   * @return the current version of the room's roster, incremented with every participant that
+   *         joins or leaves the room or that starts or stops publishing
+   */
+  public long getRosterVersion() {
+    return rosterVersion;
+  }
+
+  /**
+   * Returns the roster changes done after the given version, in order. Only the last
+   * {@link #ROSTER_CHANGES_KEPT} changes are available, older versions require fetching the whole
+   * roster again.
+   *
+   * @param sinceVersion
+   *          a roster version previously obtained from this room
+   * @return the list of changes (empty if the version is current), or null if the changes since
+   *         that version are no longer available
+   */
+  public synchronized List<RosterChange> getRosterChanges(long sinceVersion) {
+    if (sinceVersion < 0 || sinceVersion > rosterVersion) {
+      return null;
+    }
+    List<RosterChange> changes = new ArrayList<RosterChange>();
+    if (sinceVersion == rosterVersion) {
+      return changes;
+    }
+    RosterChange oldest = rosterChanges.peekFirst();
+    if (oldest == null || oldest.getVersion() > sinceVersion + 1) {
+      return null;
+    }
+    for (RosterChange change : rosterChanges) {
+      if (change.getVersion() > sinceVersion) {
+        changes.add(change);
+      }
+    }
+    return changes;
+  }
+
+  private synchronized void recordRosterChange(RosterChange.Type type, String userName) {
+    RosterChange change = new RosterChange(rosterVersion + 1, type, userName);
+    rosterChanges.addLast(change);
+    if (rosterChanges.size() > ROSTER_CHANGES_KEPT) {
+      rosterChanges.removeFirst();
+    }
+    rosterVersion = change.getVersion();
+    rosterStateChanged();
+  }
+
+  /**
+   * Returns the participants, publishers and subscribers of the room. The snapshot is rebuilt only
+   * if the room's membership or the media state of its participants has changed since it was last
+   * requested, otherwise the same instance is returned without locking or allocating.
+   *
+   * @return an immutable snapshot of the room's roster
+   */
+  public RosterSnapshot getRosterSnapshot() {
+
+    checkClosed();
+
+    RosterSnapshot snapshot = rosterSnapshot;
+    long state = rosterState.get();
+    if (snapshot == null || snapshot.getVersion() != state) {
+      // a change done while building it makes the versions differ, and it will be rebuilt
+      snapshot = new RosterSnapshot(state, participants.values());
+      rosterSnapshot = snapshot;
+    }
+    return snapshot;
+  }
+
+  /**
+   * @return the index of the subscriber endpoints of the room's participants
+   */
+  public SubscriptionGraph getSubscriptions() {
+    return subscriptions;
+  }
+
+  /**
+   * Invalidates the roster snapshot, has to be called after a participant changes its publishing
+   * or subscribing state (changes of membership are tracked by the room itself).
+   */
+  public void rosterStateChanged() {
+    rosterState.incrementAndGet();
+  }
+
   public int getActivePublishers() {
     return activePublishers.get();
   }
 
   public void registerPublisher() {
-    this.activePublishers.incrementAndGet();
+    resizeEndpointPool(this.activePublishers.incrementAndGet());
   }
 
   public void deregisterPublisher() {
-    this.activePublishers.decrementAndGet();
+    resizeEndpointPool(this.activePublishers.decrementAndGet());
+  }
+
+  /**
+   * @return an idle {@link WebRtcEndpoint} (without data channels) built in this room's pipeline,
+   *         or null if there is none available or the room doesn't keep a pool of endpoints
+   * @see RoomSettings#getWebRtcEndpointPoolSize()
+   */
+  public WebRtcEndpoint pollIdleWebRtcEndpoint() {
+    WebRtcEndpointPool pool = endpointPool;
+    if (pool == null) {
+      return null;
+    }
+    return pool.take();
+  }
+
+  /**
+   * @return the number of participants (viewers included) placed in each of the room's media
+   *         servers, starting with
+   *         the room's main one (the only one if the room can't spread over several servers)
+   */
+  public Map<KurentoClient, Integer> getParticipantsPerKms() {
+    Map<MediaPipeline, KurentoClient> clients = new HashMap<MediaPipeline, KurentoClient>();
+    Map<KurentoClient, Integer> load = new LinkedHashMap<KurentoClient, Integer>();
+    load.put(kurentoClient, 0);
+    if (cascade != null) {
+      for (Map.Entry<KurentoClient, MediaPipeline> entry : cascade.getPipelines().entrySet()) {
+        clients.put(entry.getValue(), entry.getKey());
+        load.put(entry.getKey(), 0);
+      }
+    }
+    List<Participant> placed = new ArrayList<Participant>(participants.values());
+    placed.addAll(viewers.values());
+    for (Participant participant : placed) {
+      KurentoClient client = clients.get(participant.getPipeline());
+      if (client == null) {
+        client = kurentoClient;
+      }
+      load.put(client, load.get(client) + 1);
+    }
+    return load;
+  }
+
+  /**
+   * @return true if the room's participants can be placed in several media servers
+   * @see RoomSettings#getParticipantsPerKms()
+   */
+  public boolean isCascaded() {
+    return cascade != null;
+  }
+
+  /**
+   * @return the cascade of the room's media over several servers, null if disabled
+   */
+  public RoomCascade getCascade() {
+    return cascade;
+  }
+
+  /**
+   * @param publisher
+   *          the participant whose media is requested
+   * @param subscriber
+   *          the participant that will receive it
+   * @return the endpoint the subscriber must connect to, the publisher's own endpoint unless they
+   *         are placed in different servers (then it's a relay of the publisher's media)
+   */
+  public PublisherEndpoint getSource(Participant publisher, Participant subscriber) {
+    if (cascade == null) {
+      return publisher.getPublisher();
+    }
+    return cascade.getSource(publisher, subscriber.getPipeline());
+  }
+
+  /**
+   * Non-blocking version of {@link #getSource(Participant, Participant)}. In a cascaded room, the
+   * relay towards the subscriber's server is negotiated asynchronously too the first time it's
+   * needed.
+   *
+   * @return future completed with the endpoint the subscriber must connect to (null if the
+   *         publisher has no publisher endpoint)
+   */
+  public CompletableFuture<PublisherEndpoint> getSourceAsync(Participant publisher,
+      Participant subscriber) {
+    if (cascade == null) {
+      return publisher.getPublisherAsync();
+    }
+    if (publisher.getPublisher() == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return cascade.getSourceAsync(publisher, subscriber.getPipeline());
+  }
+
+  /**
+   * Releases the relay of the publisher's media to the given pipeline if none of the participants
+   * placed in it is receiving that media anymore (nor relaying it to another pipeline). The relays
+   * that fed it are released too if they're no longer used.
+   *
+   * @param publisherName
+   *          the publisher
+   * @param pipeline
+   *          the pipeline of a participant that has stopped receiving its media
+   */
+  public void releaseUnusedRelay(String publisherName, MediaPipeline pipeline) {
+    if (cascade == null) {
+      return;
+    }
+    cascade.releaseUnusedRelays(publisherName, pipeline,
+        relayPipeline -> hasSubscribers(publisherName, relayPipeline));
+  }
+
+  private boolean hasSubscribers(String publisherName, MediaPipeline pipeline) {
+    for (String subscriberName : subscriptions.getSubscribers(publisherName)) {
+      Participant subscriber = participantsByName.get(subscriberName);
+      if (subscriber != null && subscriber.getPipeline() == pipeline
+          && subscriber.isSubscribedTo(publisherName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the room's media is mixed by the server
+   * @see RoomSettings#getMode()
+   */
+  public boolean isMixed() {
+    return settings.getMode() != RoomSettings.Mode.SFU;
+  }
+
+  /**
+   * @return the mix of the room's media, null if the room doesn't mix its media (or if the
+   *         pipeline hasn't been created)
+   */
+  public RoomMixer getMixer() {
+    return mixer;
+  }
+
+  /**
+   * @return the pool of idle endpoints, null if disabled or if the pipeline hasn't been created
+   */
+  public WebRtcEndpointPool getEndpointPool() {
+    return endpointPool;
+  }
+
+  private void startMixer(MediaPipeline pipeline) {
+    if (isMixed()) {
+      mixer = new RoomMixer(name, pipeline);
+    }
+  }
+
+  private void startEndpointPool(MediaPipeline pipeline) {
+    int poolSize = settings.getWebRtcEndpointPoolSize();
+    if (poolSize <= 0) {
+      return;
+    }
+    WebRtcEndpointPool pool = new WebRtcEndpointPool(name, pipeline, poolSize);
+    endpointPool = pool;
+    pool.resize(activePublishers.get());
+  }
+
+  private void resizeEndpointPool(int publishers) {
+    WebRtcEndpointPool pool = endpointPool;
+    if (pool != null) {
+      pool.resize(publishers);
+    }
   }
 
   private void createPipeline() {
+    try {
+      createPipelineAsync().get(ASYNC_LATCH_TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw pipelineCreationException();
+    } catch (ExecutionException | TimeoutException e) {
+      throw pipelineCreationException();
+    }
+  }
+
+  /**
+   * Starts the creation of the room's {@link MediaPipeline}, unless it's been already requested.
+   * Doesn't block the calling thread. If the creation fails or the media server doesn't answer in
+   * {@link #ASYNC_LATCH_TIMEOUT} seconds, the next call requests the pipeline again.
+   *
+   * @return future completed with the pipeline once it's been created and configured
+   */
+  public CompletableFuture<MediaPipeline> createPipelineAsync() {
     synchronized (pipelineCreateLock) {
-      if (pipeline != null) {
-        return;
+      if (pipelineFuture != null) {
+        return pipelineFuture;
       }
+      final CompletableFuture<MediaPipeline> future = new CompletableFuture<MediaPipeline>();
+      pipelineFuture = future;
+      ContinuationFutures.withTimeout(future, Code.ROOM_CANNOT_BE_CREATED_ERROR_CODE,
+          "Timeout reached when creating the media pipeline for room '" + name + "'");
+      future.whenComplete((created, error) -> {
+        if (error != null) {
+          pipelineCreationFailed(future);
+        }
+      });
       log.info("ROOM {}: Creating MediaPipeline", name);
       try {
         kurentoClient.createMediaPipeline(new Continuation<MediaPipeline>() {
           @Override
           public void onSuccess(MediaPipeline result) throws Exception {
-            pipeline = result;
-            pipelineLatch.countDown();
-            log.debug("ROOM {}: Created MediaPipeline", name);
+            pipelineCreated(result, future);
           }
 
           @Override
           public void onError(Throwable cause) throws Exception {
-            pipelineLatch.countDown();
             log.error("ROOM {}: Failed to create MediaPipeline", name, cause);
+            future.completeExceptionally(pipelineCreationException());
           }
         });
       } catch (Exception e) {
         log.error("Unable to create media pipeline for room '{}'", name, e);
-        pipelineLatch.countDown();
-      }
-      if (getPipeline() == null) {
-        throw new RoomException(Code.ROOM_CANNOT_BE_CREATED_ERROR_CODE,
-            "Unable to create media pipeline for room '" + name + "'");
+        future.completeExceptionally(pipelineCreationException());
       }
+      return future;
+    }
+  }
 
-      pipeline.addErrorListener(new EventListener<ErrorEvent>() {
-        @Override
-        public void onEvent(ErrorEvent event) {
-          String desc =
-              event.getType() + ": " + event.getDescription() + "(errCode=" + event.getErrorCode()
-                  + ")";
-          log.warn("ROOM {}: Pipeline error encountered: {}", name, desc);
-          roomHandler.onPipelineError(name, getParticipantIds(), desc);
+  private void pipelineCreated(MediaPipeline result, CompletableFuture<MediaPipeline> future) {
+    synchronized (pipelineCreateLock) {
+      if (future.isDone()) {
+        log.warn("ROOM {}: MediaPipeline created after the timeout, releasing it", name);
+        releasePipeline(result);
+        return;
+      }
+      try {
+        registerPipelineErrorListener(result);
+        startEndpointPool(result);
+        startMixer(result);
+      } catch (Exception e) {
+        log.error("ROOM {}: Failed to configure the new MediaPipeline", name, e);
+        WebRtcEndpointPool pool = endpointPool;
+        endpointPool = null;
+        if (pool != null) {
+          pool.close();
         }
-      });
+        mixer = null;
+        releasePipeline(result);
+        future.completeExceptionally(pipelineCreationException());
+        return;
+      }
+      pipeline = result;
+      pipelineLatch.countDown();
+    }
+    log.debug("ROOM {}: Created MediaPipeline", name);
+    future.complete(result);
+  }
+
+  private void pipelineCreationFailed(CompletableFuture<MediaPipeline> future) {
+    synchronized (pipelineCreateLock) {
+      if (pipelineFuture == future) {
+        // so that a later join requests a new pipeline
+        pipelineFuture = null;
+      }
     }
+    pipelineLatch.countDown();
+  }
+
+  private void releasePipeline(final MediaPipeline unused) {
+    unused.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.debug("ROOM {}: Released unused MediaPipeline", name);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("ROOM {}: Could not release unused MediaPipeline", name, cause);
+      }
+    });
+  }
+
+  /**
+   * Makes the room use a {@link MediaPipeline} that has been created beforehand, instead of
+   * requesting a new one when the first participant joins.
+   *
+   * @param idlePipeline
+   *          the pipeline, which will be released when the room is closed
+   * @return true if the pipeline was adopted, false if the room had already started the creation
+   *         of its own pipeline
+   */
+  public boolean usePipeline(MediaPipeline idlePipeline) {
+    synchronized (pipelineCreateLock) {
+      if (pipelineFuture != null) {
+        return false;
+      }
+      pipeline = idlePipeline;
+      if (!PipelineErrorForwarder.forward(idlePipeline, newPipelineErrorListener())) {
+        registerPipelineErrorListener(idlePipeline);
+      }
+      startEndpointPool(idlePipeline);
+      startMixer(idlePipeline);
+      pipelineLatch.countDown();
+      pipelineFuture = CompletableFuture.completedFuture(idlePipeline);
+      log.debug("ROOM {}: Using idle MediaPipeline", name);
+      return true;
+    }
+  }
+
+  private RoomException pipelineCreationException() {
+    return new RoomException(Code.ROOM_CANNOT_BE_CREATED_ERROR_CODE,
+        "Unable to create media pipeline for room '" + name + "'");
+  }
+
+  private void registerPipelineErrorListener(MediaPipeline pipeline) {
+    pipeline.addErrorListener(newPipelineErrorListener());
+  }
+
+  private EventListener<ErrorEvent> newPipelineErrorListener() {
+    return new EventListener<ErrorEvent>() {
+      @Override
+      public void onEvent(ErrorEvent event) {
+        String desc =
+            event.getType() + ": " + event.getDescription() + "(errCode=" + event.getErrorCode()
+                + ")";
+        log.warn("ROOM {}: Pipeline error encountered: {}", name, desc);
+        Set<String> pids = new HashSet<String>(getParticipantIds());
+        pids.addAll(viewers.keySet());
+        roomHandler.onPipelineError(name, pids, desc);
+      }
+    };
   }
 
   private void closePipeline() {
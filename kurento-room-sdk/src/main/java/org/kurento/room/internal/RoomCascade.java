@@ -0,0 +1,460 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.kurento.room.endpoint.PublisherEndpoint;
+import org.kurento.room.endpoint.SdpType;
+import org.kurento.room.endpoint.SubscriberEndpoint;
+import org.kurento.room.exception.RoomException;
+import org.kurento.room.exception.RoomException.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads a room over several media servers. Besides the room's main pipeline, there is one
+ * pipeline in each other server that hosts some of its participants. A publisher's media reaches
+ * the subscribers of another server through a relay, a pair of RTP endpoints: a non-web
+ * {@link SubscriberEndpoint} in the publisher's pipeline and a non-web {@link PublisherEndpoint}
+ * in the remote one, which the remote subscribers connect to as if it was the actual publisher.
+ * Relays are created when the first subscriber of a server connects and released when the last
+ * one leaves. Neither the relays nor the cascaded pipelines are created while holding the
+ * cascade's lock: they're registered first and then built, the requests for them meanwhile wait
+ * for the same future.
+ * <p/>
+ * With a limited fan-out, a pipeline relays each publisher's media to a bounded number of other
+ * pipelines. Once the publisher's own pipeline is saturated, new relays are fed by the shallowest
+ * relay with room for another one, so the media is distributed over a tree of pipelines and the
+ * cost of reaching a new server never falls on the publisher's one.
+ */
+public class RoomCascade {
+  private final static Logger log = LoggerFactory.getLogger(RoomCascade.class);
+
+  private static class Relay {
+    final SubscriberEndpoint egress;
+    final PublisherEndpoint ingress;
+    // the pipeline feeding this relay, and its distance to the publisher's pipeline
+    final MediaPipeline parent;
+    final int depth;
+    // the relay feeding this one, null if fed by the publisher's own endpoint
+    Relay feeder;
+    // relays fed by this one
+    int children = 0;
+    // completed with the ingress once the relay has been negotiated
+    final CompletableFuture<PublisherEndpoint> ready = new CompletableFuture<PublisherEndpoint>();
+
+    Relay(SubscriberEndpoint egress, PublisherEndpoint ingress, MediaPipeline parent, int depth) {
+      this.egress = egress;
+      this.ingress = ingress;
+      this.parent = parent;
+      this.depth = depth;
+    }
+  }
+
+  private final String roomName;
+  private final int fanOut;
+
+  // the pipelines of the room in the servers other than the main one (being created or ready)
+  private final Map<KurentoClient, CompletableFuture<MediaPipeline>> pipelines =
+      new LinkedHashMap<KurentoClient, CompletableFuture<MediaPipeline>>();
+  // publisher name -> (remote pipeline -> relay)
+  private final Map<String, Map<MediaPipeline, Relay>> relays =
+      new HashMap<String, Map<MediaPipeline, Relay>>();
+
+  /**
+   * @param roomName
+   *          name of the room (for logging)
+   * @param fanOut
+   *          maximum number of relays fed by a pipeline for each publisher, 0 for no limit
+   */
+  public RoomCascade(String roomName, int fanOut) {
+    this.roomName = roomName;
+    this.fanOut = fanOut;
+  }
+
+  /**
+   * Blocking version of {@link #getPipelineAsync(KurentoClient)}.
+   *
+   * @param kurentoClient
+   *          client of a server other than the room's main one
+   * @return the room's pipeline in that server, created if needed
+   */
+  public MediaPipeline getPipeline(KurentoClient kurentoClient) {
+    try {
+      return getPipelineAsync(kurentoClient).get(Room.ASYNC_LATCH_TIMEOUT, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      throw new RoomException(Code.ROOM_CANNOT_BE_CREATED_ERROR_CODE,
+          "Timeout reached when creating media pipeline for room '" + roomName
+              + "' in another server");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RoomException(Code.ROOM_CANNOT_BE_CREATED_ERROR_CODE,
+          "Interrupted when creating media pipeline for room '" + roomName
+              + "' in another server: " + e.getMessage());
+    } catch (ExecutionException e) {
+      throw ContinuationFutures.toRoomException(e);
+    }
+  }
+
+  /**
+   * Returns the room's pipeline in another server. The first request registers the pipeline's
+   * future and creates it after releasing the cascade's lock, the requests made meanwhile wait for
+   * the same future. If the creation fails, the next request tries again.
+   *
+   * @param kurentoClient
+   *          client of a server other than the room's main one
+   * @return future completed with the room's pipeline in that server
+   */
+  public CompletableFuture<MediaPipeline> getPipelineAsync(final KurentoClient kurentoClient) {
+    final CompletableFuture<MediaPipeline> pipeline;
+    synchronized (this) {
+      CompletableFuture<MediaPipeline> existing = pipelines.get(kurentoClient);
+      if (existing != null) {
+        return existing;
+      }
+      pipeline = new CompletableFuture<MediaPipeline>();
+      pipelines.put(kurentoClient, pipeline);
+    }
+    pipeline.whenComplete((created, error) -> {
+      if (error != null) {
+        log.error("ROOM {}: Unable to create a cascaded MediaPipeline", roomName, error);
+        synchronized (RoomCascade.this) {
+          pipelines.remove(kurentoClient, pipeline);
+        }
+      } else {
+        log.info("ROOM {}: Cascaded to a new media server (pipeline #{})", roomName,
+            created.getId());
+      }
+    });
+    String errorMessage = "Unable to create media pipeline for room '" + roomName
+        + "' in another server";
+    try {
+      kurentoClient.createMediaPipeline(ContinuationFutures.toContinuation(pipeline,
+          Code.ROOM_CANNOT_BE_CREATED_ERROR_CODE, errorMessage));
+    } catch (Exception e) {
+      pipeline.completeExceptionally(
+          new RoomException(Code.ROOM_CANNOT_BE_CREATED_ERROR_CODE, errorMessage));
+    }
+    return pipeline;
+  }
+
+  /**
+   * @return the clients of the servers hosting the room's cascaded pipelines, with their pipeline
+   *         (those still being created are not included)
+   */
+  public synchronized Map<KurentoClient, MediaPipeline> getPipelines() {
+    Map<KurentoClient, MediaPipeline> created = new LinkedHashMap<KurentoClient, MediaPipeline>();
+    for (Map.Entry<KurentoClient, CompletableFuture<MediaPipeline>> entry : pipelines.entrySet()) {
+      CompletableFuture<MediaPipeline> pipeline = entry.getValue();
+      if (pipeline.isDone() && !pipeline.isCompletedExceptionally()) {
+        created.put(entry.getKey(), pipeline.join());
+      }
+    }
+    return created;
+  }
+
+  /**
+   * @return number of relays between the room's pipelines
+   */
+  public synchronized int getRelayCount() {
+    int count = 0;
+    for (Map<MediaPipeline, Relay> publisherRelays : relays.values()) {
+      count += publisherRelays.size();
+    }
+    return count;
+  }
+
+  /**
+   * @return depth of the tree that distributes the publisher's media, 0 if it isn't relayed
+   */
+  public synchronized int getRelayDepth(String publisherName) {
+    int depth = 0;
+    Map<MediaPipeline, Relay> publisherRelays = relays.get(publisherName);
+    if (publisherRelays != null) {
+      for (Relay relay : publisherRelays.values()) {
+        depth = Math.max(depth, relay.depth);
+      }
+    }
+    return depth;
+  }
+
+  /**
+   * Returns the endpoint the subscribers of the given pipeline should connect to in order to
+   * receive the publisher's media: its own publisher endpoint if it's in the same pipeline,
+   * otherwise a relay (created and negotiated if it didn't exist, fed by the closest pipeline to
+   * the publisher that hasn't reached the fan-out limit). Waits for the relay to be negotiated.
+   *
+   * @param publisher
+   *          the participant whose media is requested
+   * @param pipeline
+   *          the subscriber's pipeline
+   * @return the publisher endpoint
+   */
+  public PublisherEndpoint getSource(Participant publisher, MediaPipeline pipeline) {
+    try {
+      return getSourceAsync(publisher, pipeline).get(Room.ASYNC_LATCH_TIMEOUT, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      throw new RoomException(Code.MEDIA_RTP_ENDPOINT_ERROR_CODE,
+          "Timeout reached when relaying the media of " + publisher.getName());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RoomException(Code.MEDIA_RTP_ENDPOINT_ERROR_CODE,
+          "Interrupted when relaying the media of " + publisher.getName() + ": "
+              + e.getMessage());
+    } catch (ExecutionException e) {
+      throw ContinuationFutures.toRoomException(e);
+    }
+  }
+
+  /**
+   * Non-blocking version of {@link #getSource(Participant, MediaPipeline)}.
+   *
+   * @return future completed with the publisher endpoint once the relay (if needed) is ready
+   */
+  public CompletableFuture<PublisherEndpoint> getSourceAsync(Participant publisher,
+      MediaPipeline pipeline) {
+    if (publisher.getPipeline() == pipeline) {
+      return CompletableFuture.completedFuture(publisher.getPublisher());
+    }
+    Relay relay;
+    CompletableFuture<PublisherEndpoint> feed;
+    synchronized (this) {
+      Map<MediaPipeline, Relay> publisherRelays = relays.get(publisher.getName());
+      if (publisherRelays == null) {
+        publisherRelays = new HashMap<MediaPipeline, Relay>();
+        relays.put(publisher.getName(), publisherRelays);
+      }
+      relay = publisherRelays.get(pipeline);
+      if (relay != null) {
+        return relay.ready;
+      }
+      relay = newRelay(publisher, pipeline, publisherRelays);
+      publisherRelays.put(pipeline, relay);
+      relay.feeder = publisherRelays.get(relay.parent);
+      if (relay.feeder != null) {
+        relay.feeder.children++;
+        feed = relay.feeder.ready;
+      } else {
+        feed = CompletableFuture.completedFuture(publisher.getPublisher());
+      }
+    }
+    negotiate(publisher.getName(), pipeline, relay, feed);
+    return relay.ready;
+  }
+
+  /**
+   * Releases the relay of the publisher's media to the given pipeline, and then the relays that
+   * fed it, while they aren't used by any subscriber nor feeding other relays. Relays still being
+   * negotiated are kept. The checks and the removal from the cascade are done holding the same
+   * lock as {@link #getSourceAsync(Participant, MediaPipeline)}, the relays are released after it.
+   *
+   * @param inUse
+   *          tells if a pipeline has subscribers of the publisher's media
+   */
+  public void releaseUnusedRelays(String publisherName, MediaPipeline pipeline,
+      Predicate<MediaPipeline> inUse) {
+    List<Relay> released = new ArrayList<Relay>();
+    synchronized (this) {
+      while (pipeline != null && !inUse.test(pipeline)) {
+        Map<MediaPipeline, Relay> publisherRelays = relays.get(publisherName);
+        if (publisherRelays == null) {
+          break;
+        }
+        Relay relay = publisherRelays.get(pipeline);
+        if (relay == null || relay.children > 0 || !relay.ready.isDone()) {
+          break;
+        }
+        detach(publisherName, pipeline, relay);
+        released.add(relay);
+        log.debug("ROOM {}: Releasing the relay of {} (no more subscribers in pipeline #{})",
+            roomName, publisherName, pipeline.getId());
+        pipeline = relay.parent;
+      }
+    }
+    for (Relay relay : released) {
+      release(relay);
+    }
+  }
+
+  /**
+   * Releases all the relays of a publisher that has stopped sending media.
+   */
+  public void releaseRelays(String publisherName) {
+    Map<MediaPipeline, Relay> publisherRelays;
+    synchronized (this) {
+      publisherRelays = relays.remove(publisherName);
+    }
+    if (publisherRelays != null) {
+      for (Relay relay : publisherRelays.values()) {
+        release(relay);
+      }
+    }
+  }
+
+  /**
+   * Releases the cascaded pipelines (the relays are released with them). The pipelines still being
+   * created are released once created.
+   */
+  public void close() {
+    List<CompletableFuture<MediaPipeline>> released;
+    synchronized (this) {
+      relays.clear();
+      released = new ArrayList<CompletableFuture<MediaPipeline>>(pipelines.values());
+      pipelines.clear();
+    }
+    for (CompletableFuture<MediaPipeline> pipeline : released) {
+      pipeline.thenAccept(this::releaseElement);
+    }
+  }
+
+  private Relay newRelay(Participant publisher, MediaPipeline pipeline,
+      Map<MediaPipeline, Relay> publisherRelays) {
+    MediaPipeline parent = publisher.getPipeline();
+    int depth = 1;
+    if (fanOut > 0 && countChildren(publisherRelays, parent) >= fanOut) {
+      Relay feeder = null;
+      for (Map.Entry<MediaPipeline, Relay> entry : publisherRelays.entrySet()) {
+        Relay candidate = entry.getValue();
+        if (candidate.children < fanOut && (feeder == null || candidate.depth < feeder.depth)) {
+          feeder = candidate;
+          parent = entry.getKey();
+        }
+      }
+      if (feeder != null) {
+        depth = feeder.depth + 1;
+      } else {
+        parent = publisher.getPipeline();
+      }
+    }
+
+    String relayName = publisher.getName() + "-relay";
+    PublisherEndpoint ingress = new PublisherEndpoint(false, false, publisher, relayName, pipeline);
+    SubscriberEndpoint egress = new SubscriberEndpoint(false, publisher, relayName, parent);
+    return new Relay(egress, ingress, parent, depth);
+  }
+
+  /**
+   * Creates the endpoints of a registered relay and connects them, once its source is ready. If
+   * anything fails, or the relay is released meanwhile, its endpoints are released.
+   */
+  private void negotiate(final String publisherName, final MediaPipeline pipeline,
+      final Relay relay, CompletableFuture<PublisherEndpoint> feed) {
+    CompletableFuture
+        .allOf(relay.ingress.createEndpointAsync(), relay.egress.createEndpointAsync())
+        .thenCompose(created -> relay.ingress.preparePublishConnectionAsync())
+        .thenCompose(
+            sdpOffer -> feed.thenCompose(source -> relay.egress.subscribeAsync(sdpOffer, source)))
+        .thenCompose(
+            sdpAnswer -> relay.ingress.publishAsync(SdpType.ANSWER, sdpAnswer, false, null, null))
+        .whenComplete((result, error) -> {
+          boolean registered;
+          synchronized (this) {
+            registered = isRegistered(publisherName, pipeline, relay);
+            if (error != null && registered) {
+              detach(publisherName, pipeline, relay);
+            }
+          }
+          if (error == null && registered) {
+            log.info("ROOM {}: Relaying the media of {} from pipeline #{} to pipeline #{} "
+                + "(depth {})", roomName, publisherName, relay.parent.getId(), pipeline.getId(),
+                relay.depth);
+            relay.ready.complete(relay.ingress);
+            return;
+          }
+          RoomException cause = error != null ? ContinuationFutures.toRoomException(error)
+              : new RoomException(Code.MEDIA_RTP_ENDPOINT_ERROR_CODE,
+                  "The relay of " + publisherName + " was released while being negotiated");
+          log.warn("ROOM {}: Unable to relay the media of {} to pipeline #{}", roomName,
+              publisherName, pipeline.getId(), cause);
+          release(relay);
+          relay.ready.completeExceptionally(cause);
+        });
+  }
+
+  private boolean isRegistered(String publisherName, MediaPipeline pipeline, Relay relay) {
+    Map<MediaPipeline, Relay> publisherRelays = relays.get(publisherName);
+    return publisherRelays != null && publisherRelays.get(pipeline) == relay;
+  }
+
+  /**
+   * Removes a relay from the cascade, must be called holding its lock.
+   */
+  private void detach(String publisherName, MediaPipeline pipeline, Relay relay) {
+    Map<MediaPipeline, Relay> publisherRelays = relays.get(publisherName);
+    publisherRelays.remove(pipeline);
+    if (relay.feeder != null) {
+      relay.feeder.children--;
+    }
+    if (publisherRelays.isEmpty()) {
+      relays.remove(publisherName);
+    }
+  }
+
+  private static int countChildren(Map<MediaPipeline, Relay> publisherRelays,
+      MediaPipeline pipeline) {
+    int children = 0;
+    for (Relay relay : publisherRelays.values()) {
+      if (relay.parent == pipeline) {
+        children++;
+      }
+    }
+    return children;
+  }
+
+  private void release(Relay relay) {
+    relay.egress.unregisterErrorListeners();
+    relay.ingress.unregisterErrorListeners();
+    releaseElement(relay.egress.getEndpoint());
+    for (MediaElement element : relay.ingress.getMediaElements()) {
+      releaseElement(element);
+    }
+    releaseElement(relay.ingress.getEndpoint());
+  }
+
+  private void releaseElement(final MediaObject element) {
+    if (element == null) {
+      return;
+    }
+    final String eid = element.getId();
+    element.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.debug("ROOM {}: Released cascade element #{}", roomName, eid);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("ROOM {}: Could not release cascade element #{}", roomName, eid, cause);
+      }
+    });
+  }
+}
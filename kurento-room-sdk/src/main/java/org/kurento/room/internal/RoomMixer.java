@@ -0,0 +1,192 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.room.exception.RoomException;
+import org.kurento.room.exception.RoomException.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-side mix of a room's media, a {@link Composite} with one {@link HubPort} per participant.
+ * The publisher's media is sent to its port and the participant receives the mix from the same
+ * port, so that its own voice is excluded from the audio it receives. The composite is built with
+ * the first port. Both are built asynchronously, the mixer's lock is never held while waiting for
+ * the media server.
+ */
+public class RoomMixer {
+  private final static Logger log = LoggerFactory.getLogger(RoomMixer.class);
+
+  private final String roomName;
+  private final MediaPipeline pipeline;
+
+  private CompletableFuture<Composite> composite;
+  private final Map<String, CompletableFuture<HubPort>> ports =
+      new HashMap<String, CompletableFuture<HubPort>>();
+
+  /**
+   * @param roomName
+   *          name of the room (for logging)
+   * @param pipeline
+   *          the room's pipeline
+   */
+  public RoomMixer(String roomName, MediaPipeline pipeline) {
+    this.roomName = roomName;
+    this.pipeline = pipeline;
+  }
+
+  /**
+   * Blocking version of {@link #getPortAsync(String)}.
+   *
+   * @param participantName
+   *          name of the participant
+   * @return the participant's port, created if it didn't have one
+   * @throws RoomException
+   *           if the port couldn't be created
+   */
+  public HubPort getPort(String participantName) {
+    try {
+      return getPortAsync(participantName).get(Room.ASYNC_LATCH_TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RoomException(Code.ROOM_GENERIC_ERROR_CODE,
+          "Interrupted when creating the mixer port for " + participantName);
+    } catch (ExecutionException e) {
+      throw ContinuationFutures.toRoomException(e);
+    } catch (TimeoutException e) {
+      throw new RoomException(Code.ROOM_GENERIC_ERROR_CODE,
+          "Timeout reached when creating the mixer port for " + participantName);
+    }
+  }
+
+  /**
+   * @param participantName
+   *          name of the participant
+   * @return future completed with the participant's port, created if it didn't have one (or if
+   *         its creation failed)
+   */
+  public CompletableFuture<HubPort> getPortAsync(final String participantName) {
+    final CompletableFuture<HubPort> port;
+    final CompletableFuture<Composite> mix;
+    boolean buildComposite = false;
+    synchronized (this) {
+      CompletableFuture<HubPort> existing = ports.get(participantName);
+      if (existing != null && !existing.isCompletedExceptionally()) {
+        return existing;
+      }
+      if (composite == null || composite.isCompletedExceptionally()) {
+        composite = new CompletableFuture<Composite>();
+        buildComposite = true;
+      }
+      mix = composite;
+      port = new CompletableFuture<HubPort>();
+      ports.put(participantName, port);
+    }
+    if (buildComposite) {
+      mix.thenAccept(created -> log.debug("ROOM {}: Created composite #{}", roomName,
+          created.getId()));
+      new Composite.Builder(pipeline).buildAsync(ContinuationFutures.toContinuation(mix,
+          Code.ROOM_GENERIC_ERROR_CODE, "Unable to create the composite of room " + roomName));
+    }
+    mix.whenComplete((created, error) -> {
+      if (error != null) {
+        port.completeExceptionally(error);
+        return;
+      }
+      new HubPort.Builder(created).buildAsync(ContinuationFutures.toContinuation(port,
+          Code.ROOM_GENERIC_ERROR_CODE, "Unable to create the mixer port for " + participantName));
+    });
+    port.whenComplete((created, error) -> {
+      if (error != null) {
+        log.warn("ROOM {}: Could not create mixer port for {}", roomName, participantName, error);
+        synchronized (RoomMixer.this) {
+          ports.remove(participantName, port);
+        }
+      } else {
+        log.debug("ROOM {}: Created mixer port #{} for {}", roomName, created.getId(),
+            participantName);
+      }
+    });
+    return port;
+  }
+
+  /**
+   * Releases the participant's port, if it had one.
+   *
+   * @param participantName
+   *          name of the participant
+   */
+  public void releasePort(String participantName) {
+    CompletableFuture<HubPort> port;
+    synchronized (this) {
+      port = ports.remove(participantName);
+    }
+    if (port != null) {
+      // a port still being built is released once created
+      port.thenAccept(this::release);
+    }
+  }
+
+  /**
+   * @return the number of ports of the mix
+   */
+  public synchronized int getPortCount() {
+    return ports.size();
+  }
+
+  /**
+   * Releases the composite and all its ports.
+   */
+  public void close() {
+    CompletableFuture<Composite> composite;
+    synchronized (this) {
+      ports.clear();
+      composite = this.composite;
+      this.composite = null;
+    }
+    if (composite != null) {
+      composite.thenAccept(this::release);
+    }
+  }
+
+  private void release(final MediaElement element) {
+    final String eid = element.getId();
+    element.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.debug("ROOM {}: Released mixer element #{}", roomName, eid);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("ROOM {}: Could not release mixer element #{}", roomName, eid, cause);
+      }
+    });
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.room.api.UserNotificationService;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Merges the joins and departures notified to each participant during a short window into a single
+ * {@link ProtocolElements#PARTICIPANTSCHANGED_METHOD} notification, listing the users that were
+ * removed from and added to the room. A user that joins and leaves within the same window is not
+ * notified at all.
+ */
+public class RosterChangeBatcher {
+
+  private static class Delta {
+    final Set<String> added = new LinkedHashSet<String>();
+    final Set<String> removed = new LinkedHashSet<String>();
+    boolean sent = false;
+  }
+
+  private final UserNotificationService notifService;
+  private final ScheduledExecutorService scheduler;
+  private final long window;
+
+  private final ConcurrentMap<String, Delta> deltas = new ConcurrentHashMap<String, Delta>();
+
+  /**
+   * @param notifService
+   *          service used to send the notifications
+   * @param scheduler
+   *          executor that sends the changes when their window expires
+   * @param window
+   *          maximum time (in milliseconds) a change is delayed
+   */
+  public RosterChangeBatcher(UserNotificationService notifService,
+      ScheduledExecutorService scheduler, long window) {
+    this.notifService = notifService;
+    this.scheduler = scheduler;
+    this.window = window;
+  }
+
+  /**
+   * @param participantId
+   *          the recipient
+   * @param userName
+   *          the user that joined the room
+   */
+  public void joined(String participantId, String userName) {
+    change(participantId, userName, true);
+  }
+
+  /**
+   * @param participantId
+   *          the recipient
+   * @param userName
+   *          the user that left the room
+   */
+  public void left(String participantId, String userName) {
+    change(participantId, userName, false);
+  }
+
+  /**
+   * Sends immediately the changes pending for the participant, if any. Used to keep the order of
+   * the roster changes with respect to other notifications.
+   *
+   * @param participantId
+   *          the recipient
+   */
+  public void flush(String participantId) {
+    Delta delta = deltas.get(participantId);
+    if (delta != null) {
+      flush(participantId, delta);
+    }
+  }
+
+  /**
+   * Sends immediately all the pending changes.
+   */
+  public void flushAll() {
+    for (String participantId : deltas.keySet()) {
+      flush(participantId);
+    }
+  }
+
+  /**
+   * Drops the changes pending for the participant (e.g. it has left the room).
+   *
+   * @param participantId
+   *          the recipient
+   */
+  public void discard(String participantId) {
+    Delta delta = deltas.remove(participantId);
+    if (delta != null) {
+      synchronized (delta) {
+        delta.sent = true;
+      }
+    }
+  }
+
+  private void change(final String participantId, String userName, boolean joined) {
+    while (true) {
+      Delta delta = deltas.get(participantId);
+      if (delta == null) {
+        Delta newDelta = new Delta();
+        delta = deltas.putIfAbsent(participantId, newDelta);
+        if (delta == null) {
+          delta = newDelta;
+        }
+      }
+      boolean first;
+      synchronized (delta) {
+        if (delta.sent) {
+          // flushed meanwhile, start a new one
+          continue;
+        }
+        first = delta.added.isEmpty() && delta.removed.isEmpty();
+        if (joined) {
+          delta.added.add(userName);
+        } else if (!delta.added.remove(userName)) {
+          // if it joined during this window, both changes cancel out
+          delta.removed.add(userName);
+        }
+      }
+      if (first) {
+        final Delta scheduled = delta;
+        try {
+          scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+              flush(participantId, scheduled);
+            }
+          }, window, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          // the scheduler has been shut down, don't delay the changes anymore
+          flush(participantId, scheduled);
+        }
+      }
+      return;
+    }
+  }
+
+  /**
+   * The changes are sent while holding the delta's lock, and the delta is only marked as sent
+   * afterwards, so that a concurrent flush for the same participant waits until the changes are
+   * out before sending its own notification.
+   */
+  private void flush(String participantId, Delta delta) {
+    synchronized (delta) {
+      if (delta.sent) {
+        return;
+      }
+      try {
+        if (!delta.added.isEmpty() || !delta.removed.isEmpty()) {
+          JsonArray added = new JsonArray();
+          JsonArray removed = new JsonArray();
+          for (String userName : delta.removed) {
+            removed.add(new JsonPrimitive(userName));
+          }
+          for (String userName : delta.added) {
+            added.add(new JsonPrimitive(userName));
+          }
+          JsonObject params = new JsonObject();
+          params.add(ProtocolElements.PARTICIPANTSCHANGED_REMOVED_PARAM, removed);
+          params.add(ProtocolElements.PARTICIPANTSCHANGED_ADDED_PARAM, added);
+          notifService.sendNotification(participantId,
+              ProtocolElements.PARTICIPANTSCHANGED_METHOD, params);
+        }
+      } finally {
+        delta.sent = true;
+        deltas.remove(participantId, delta);
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.kurento.room.api.pojo.UserParticipant;
+
+/**
+ * Immutable view of the participants of a room, of its publishers and of its subscribers. It's
+ * shared by all the readers until the room's membership or the media state of its participants
+ * changes, so the returned sets must not be modified.
+ *
+ * @see Room#getRosterSnapshot()
+ */
+public class RosterSnapshot {
+
+  private final long version;
+  private final Set<UserParticipant> participants;
+  private final Set<UserParticipant> publishers;
+  private final Set<UserParticipant> subscribers;
+
+  RosterSnapshot(long version, Collection<Participant> roomParticipants) {
+    this.version = version;
+    Set<UserParticipant> participants = new HashSet<UserParticipant>();
+    Set<UserParticipant> publishers = new HashSet<UserParticipant>();
+    Set<UserParticipant> subscribers = new HashSet<UserParticipant>();
+    for (Participant p : roomParticipants) {
+      if (p.isClosed()) {
+        continue;
+      }
+      boolean streaming = p.isStreaming();
+      UserParticipant userParticipant = new UserParticipant(p.getId(), p.getName(), streaming);
+      participants.add(userParticipant);
+      if (streaming) {
+        publishers.add(userParticipant);
+      }
+      if (p.isSubscribed()) {
+        subscribers.add(userParticipant);
+      }
+    }
+    this.participants = Collections.unmodifiableSet(participants);
+    this.publishers = Collections.unmodifiableSet(publishers);
+    this.subscribers = Collections.unmodifiableSet(subscribers);
+  }
+
+  /**
+   * @return the room's state version this snapshot was built from
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public Set<UserParticipant> getParticipants() {
+    return participants;
+  }
+
+  public Set<UserParticipant> getPublishers() {
+    return publishers;
+  }
+
+  public Set<UserParticipant> getSubscribers() {
+    return subscribers;
+  }
+}
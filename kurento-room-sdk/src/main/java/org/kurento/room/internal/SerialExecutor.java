@@ -0,0 +1,182 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.kurento.room.exception.RoomException.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Mailbox that runs its tasks one at a time and in submission order, borrowing the threads of a
+ * shared executor. Tasks from different mailboxes can run in parallel.
+ * <p/>
+ * A task can also be an asynchronous step (see {@link #submit(Supplier)}): the mailbox doesn't
+ * start its next task until the step's future is completed, but the thread is given back to the
+ * shared executor in the meantime, so a room waiting for the media server doesn't hold up the
+ * mailboxes of the other rooms.
+ */
+public class SerialExecutor implements Executor {
+
+  private static final Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+
+  // tasks run before yielding the thread to other mailboxes
+  private static final int MAX_BATCH = 64;
+
+  private final String name;
+  private final Executor backend;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  private volatile Thread runner;
+  // set by the running task when it's a step that hasn't completed yet
+  private CompletableFuture<?> pendingStep;
+
+  public SerialExecutor(String name, Executor backend) {
+    this.name = name;
+    this.backend = backend;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    tasks.add(task);
+    schedule();
+  }
+
+  /**
+   * Queues an asynchronous step. The step is started when the previous tasks are done, and the
+   * following tasks wait for the future it returns. The continuations of that future don't run in
+   * the mailbox, they must not wait for its other tasks. The wait is bounded: if the step isn't
+   * completed after {@link Room#ASYNC_LATCH_TIMEOUT} seconds, the returned future fails and the
+   * mailbox runs its next task, so a reply of the media server that never arrives doesn't stall
+   * the mailbox for good.
+   *
+   * @param step
+   *          starts the operation, should only make non-blocking calls
+   * @return future completed with the outcome of the step
+   */
+  public <T> CompletableFuture<T> submit(final Supplier<CompletableFuture<T>> step) {
+    final CompletableFuture<T> result = new CompletableFuture<T>();
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        CompletableFuture<T> future;
+        try {
+          future = step.get();
+        } catch (RuntimeException e) {
+          result.completeExceptionally(e);
+          return;
+        }
+        if (!future.isDone()) {
+          ContinuationFutures.withTimeout(result, Code.ROOM_GENERIC_ERROR_CODE,
+              "Timeout reached waiting for an asynchronous step (" + name + ")");
+          pendingStep = result;
+        }
+        future.whenComplete((value, error) -> {
+          if (error != null) {
+            result.completeExceptionally(error);
+          } else {
+            result.complete(value);
+          }
+        });
+      }
+    });
+    return result;
+  }
+
+  /**
+   * @return true if called from a task of this mailbox
+   */
+  public boolean isRunningInCurrentThread() {
+    return runner == Thread.currentThread();
+  }
+
+  /**
+   * @return number of tasks waiting to be run
+   */
+  public int getQueueSize() {
+    return tasks.size();
+  }
+
+  private void schedule() {
+    if (!scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      backend.execute(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      scheduled.set(false);
+      throw e;
+    }
+  }
+
+  private void drain() {
+    CompletableFuture<?> step = null;
+    runner = Thread.currentThread();
+    try {
+      Runnable task;
+      for (int i = 0; i < MAX_BATCH && (task = tasks.poll()) != null; i++) {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          log.warn("{}: Error running task", name, e);
+        }
+        step = pendingStep;
+        if (step != null) {
+          pendingStep = null;
+          break;
+        }
+      }
+    } finally {
+      runner = null;
+      if (step == null) {
+        scheduled.set(false);
+      }
+    }
+    if (step != null) {
+      // the mailbox stays scheduled (no other task can start) until the step is done
+      step.whenComplete((result, error) -> resume());
+    } else if (!tasks.isEmpty()) {
+      schedule();
+    }
+  }
+
+  private void resume() {
+    try {
+      backend.execute(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      log.warn("{}: Unable to resume the mailbox after an asynchronous step", name, e);
+      scheduled.set(false);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Two-way index of the subscriber endpoints of a room: for each publisher, the participants that
+ * have an endpoint to receive its media and, for each participant, the publishers it has an
+ * endpoint for. Both directions are updated together, so that the queries and the fan-outs after
+ * a publisher's changes cost O(degree) instead of walking the whole room.
+ * <p/>
+ * An edge exists from the moment the subscriber endpoint is subscribed to the publisher until
+ * it's removed from its owner. Endpoints that are still negotiating, preloaded or only created to
+ * add ICE candidates have no edge.
+ */
+public class SubscriptionGraph {
+
+  private final Map<String, Set<String>> subscribersByPublisher =
+      new HashMap<String, Set<String>>();
+  private final Map<String, Set<String>> publishersBySubscriber =
+      new HashMap<String, Set<String>>();
+
+  /**
+   * @param subscriberName
+   *          the participant that owns the subscriber endpoint
+   * @param publisherName
+   *          the publisher whose media is received
+   */
+  public synchronized void add(String subscriberName, String publisherName) {
+    link(subscribersByPublisher, publisherName, subscriberName);
+    link(publishersBySubscriber, subscriberName, publisherName);
+  }
+
+  /**
+   * @param subscriberName
+   *          the participant that owns the subscriber endpoint
+   * @param publisherName
+   *          the publisher whose media is received
+   */
+  public synchronized void remove(String subscriberName, String publisherName) {
+    unlink(subscribersByPublisher, publisherName, subscriberName);
+    unlink(publishersBySubscriber, subscriberName, publisherName);
+  }
+
+  /**
+   * Removes all the edges of a participant that's leaving the room, in both directions.
+   *
+   * @param name
+   *          the participant's name
+   */
+  public synchronized void removeParticipant(String name) {
+    Set<String> publishers = publishersBySubscriber.remove(name);
+    if (publishers != null) {
+      for (String publisherName : publishers) {
+        unlink(subscribersByPublisher, publisherName, name);
+      }
+    }
+    Set<String> subscribers = subscribersByPublisher.remove(name);
+    if (subscribers != null) {
+      for (String subscriberName : subscribers) {
+        unlink(publishersBySubscriber, subscriberName, name);
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    subscribersByPublisher.clear();
+    publishersBySubscriber.clear();
+  }
+
+  /**
+   * @return a copy of the names of the participants with an endpoint to receive the publisher's
+   *         media
+   */
+  public synchronized Set<String> getSubscribers(String publisherName) {
+    return copy(subscribersByPublisher.get(publisherName));
+  }
+
+  /**
+   * @return a copy of the names of the publishers the participant has an endpoint for
+   */
+  public synchronized Set<String> getPublishers(String subscriberName) {
+    return copy(publishersBySubscriber.get(subscriberName));
+  }
+
+  /**
+   * @return a human-readable listing of the graph, one publisher per line followed by its
+   *         subscribers (sorted by name)
+   */
+  public synchronized String dump() {
+    Map<String, Set<String>> sorted = new TreeMap<String, Set<String>>();
+    for (Map.Entry<String, Set<String>> entry : subscribersByPublisher.entrySet()) {
+      sorted.put(entry.getKey(), new TreeSet<String>(entry.getValue()));
+    }
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Set<String>> entry : sorted.entrySet()) {
+      sb.append(entry.getKey()).append(" -> ").append(entry.getValue()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return dump();
+  }
+
+  private static void link(Map<String, Set<String>> map, String from, String to) {
+    Set<String> set = map.get(from);
+    if (set == null) {
+      set = new HashSet<String>();
+      map.put(from, set);
+    }
+    set.add(to);
+  }
+
+  private static void unlink(Map<String, Set<String>> map, String from, String to) {
+    Set<String> set = map.get(from);
+    if (set != null && set.remove(to) && set.isEmpty()) {
+      map.remove(from);
+    }
+  }
+
+  private static Set<String> copy(Set<String> set) {
+    if (set == null) {
+      return Collections.emptySet();
+    }
+    return new HashSet<String>(set);
+  }
+}
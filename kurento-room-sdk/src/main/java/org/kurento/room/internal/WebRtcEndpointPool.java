@@ -0,0 +1,195 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.room.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.room.endpoint.MediaEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Idle {@link WebRtcEndpoint}s (without data channels) built in advance in a room's pipeline and
+ * already configured with the room's bandwidth limits. The pool tries to keep enough endpoints for
+ * a newcomer to publish and to subscribe to every existing publisher, within a configured maximum.
+ */
+public class WebRtcEndpointPool {
+
+  private static final Logger log = LoggerFactory.getLogger(WebRtcEndpointPool.class);
+
+  private final String roomName;
+  private final MediaPipeline pipeline;
+  private final int maxSize;
+
+  private final Deque<WebRtcEndpoint> idle = new ArrayDeque<WebRtcEndpoint>();
+  private int pending = 0;
+  private int target;
+  private boolean closed = false;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public WebRtcEndpointPool(String roomName, MediaPipeline pipeline, int maxSize) {
+    this.roomName = roomName;
+    this.pipeline = pipeline;
+    this.maxSize = maxSize;
+    this.target = Math.min(1, maxSize);
+  }
+
+  /**
+   * Takes an idle endpoint and starts building its replacement.
+   *
+   * @return the endpoint or null if there are none available
+   */
+  public WebRtcEndpoint take() {
+    WebRtcEndpoint endpoint;
+    synchronized (this) {
+      endpoint = idle.pollLast();
+    }
+    if (endpoint == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    refill();
+    return endpoint;
+  }
+
+  /**
+   * Adapts the number of idle endpoints to the number of publishers in the room, releasing the
+   * surplus ones.
+   *
+   * @param publishers
+   *          current number of publishers
+   */
+  public void resize(int publishers) {
+    List<WebRtcEndpoint> surplus = new ArrayList<WebRtcEndpoint>();
+    synchronized (this) {
+      target = Math.min(maxSize, publishers + 1);
+      while (idle.size() > target) {
+        surplus.add(idle.pollFirst());
+      }
+    }
+    for (WebRtcEndpoint endpoint : surplus) {
+      release(endpoint);
+    }
+    refill();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public synchronized int getIdleCount() {
+    return idle.size();
+  }
+
+  /**
+   * Stops building endpoints. The idle ones are discarded, they'll be released together with the
+   * pipeline.
+   */
+  public synchronized void close() {
+    closed = true;
+    idle.clear();
+  }
+
+  private void refill() {
+    int toCreate;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      toCreate = target - idle.size() - pending;
+      if (toCreate <= 0) {
+        return;
+      }
+      pending += toCreate;
+    }
+    for (int i = 0; i < toCreate; i++) {
+      build();
+    }
+  }
+
+  private void build() {
+    try {
+      new WebRtcEndpoint.Builder(pipeline).buildAsync(new Continuation<WebRtcEndpoint>() {
+        @Override
+        public void onSuccess(WebRtcEndpoint result) throws Exception {
+          try {
+            MediaEndpoint.configureWebEndpoint(result);
+          } catch (Exception e) {
+            synchronized (WebRtcEndpointPool.this) {
+              pending--;
+            }
+            log.warn("ROOM {}: Unable to configure idle WebRtcEndpoint", roomName, e);
+            release(result);
+            return;
+          }
+          boolean release;
+          synchronized (WebRtcEndpointPool.this) {
+            pending--;
+            release = closed || idle.size() >= target;
+            if (!release) {
+              idle.addLast(result);
+            }
+          }
+          if (release) {
+            release(result);
+          }
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          synchronized (WebRtcEndpointPool.this) {
+            pending--;
+          }
+          log.warn("ROOM {}: Unable to create idle WebRtcEndpoint", roomName, cause);
+        }
+      });
+    } catch (Exception e) {
+      synchronized (this) {
+        pending--;
+      }
+      log.warn("ROOM {}: Unable to create idle WebRtcEndpoint", roomName, e);
+    }
+  }
+
+  private void release(WebRtcEndpoint endpoint) {
+    endpoint.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("ROOM {}: Released idle WebRtcEndpoint", roomName);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("ROOM {}: Could not release idle WebRtcEndpoint", roomName, cause);
+      }
+    });
+  }
+}
@@ -28,6 +28,9 @@ import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -36,6 +39,7 @@ import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -62,12 +66,14 @@ import org.kurento.room.api.KurentoClientProvider;
 import org.kurento.room.api.KurentoClientSessionInfo;
 import org.kurento.room.api.UserNotificationService;
 import org.kurento.room.api.pojo.ParticipantRequest;
+import org.kurento.room.api.pojo.RosterChange;
 import org.kurento.room.api.pojo.UserParticipant;
 import org.kurento.room.exception.RoomException;
 import org.kurento.room.internal.DefaultNotificationRoomHandler;
 import org.kurento.room.internal.ProtocolElements;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
@@ -114,6 +120,8 @@ public class NotificationRoomManagerWithDefaultHandlerTest {
   private WebRtcEndpoint.Builder webRtcBuilder;
   @Captor
   private ArgumentCaptor<Continuation<WebRtcEndpoint>> webRtcCaptor;
+  @Captor
+  private ArgumentCaptor<Continuation<PassThrough>> passThruCaptor;
 
   @Mock
   private PassThrough.Builder passThruBuilder;
@@ -183,8 +191,13 @@ public class NotificationRoomManagerWithDefaultHandlerTest {
     // not used anymore, replaced by the Continuation version
     // when(webRtcBuilder.build()).thenReturn(endpoint);
 
-    // still using the sync version
-    when(passThruBuilder.build()).thenReturn(passThru);
+    doAnswer(new Answer<Continuation<PassThrough>>() {
+      @Override
+      public Continuation<PassThrough> answer(InvocationOnMock invocation) throws Throwable {
+        passThruCaptor.getValue().onSuccess(passThru);
+        return null;
+      }
+    }).when(passThruBuilder).buildAsync(passThruCaptor.capture());
 
     try { // mock the constructor for the endpoint builder
       whenNew(WebRtcEndpoint.Builder.class).withArguments(pipeline).thenAnswer(
@@ -641,6 +654,240 @@ public class NotificationRoomManagerWithDefaultHandlerTest {
     verifyNotificationService(3 * users.length, 0, -1, null);
   }
 
+  @Test
+  public void iceCandidatesBatch() {
+    DefaultNotificationRoomHandler handler = new DefaultNotificationRoomHandler(
+        notificationService);
+    handler.enableIceCandidateBatching(100, 3);
+
+    for (int i = 0; i < 4; i++) {
+      handler.onIceCandidate(roomx, users[1], users[0], new IceCandidate(i + " candidate test",
+          "audio", 1));
+    }
+
+    // the first three are sent together as soon as the batch is full
+    ArgumentCaptor<JsonObject> batchCaptor = ArgumentCaptor.forClass(JsonObject.class);
+    verify(notificationService, times(1)).sendNotification(eq(users[1]),
+        eq(ProtocolElements.ICECANDIDATES_METHOD), batchCaptor.capture());
+    JsonArray candidates = batchCaptor.getValue()
+        .getAsJsonArray(ProtocolElements.ICECANDIDATES_CANDIDATES_PARAM);
+    assertThat(candidates.size(), is(3));
+    for (int i = 0; i < 3; i++) {
+      JsonObject candidate = candidates.get(i).getAsJsonObject();
+      assertThat(candidate.get(ProtocolElements.ICECANDIDATE_EPNAME_PARAM).getAsString(),
+          is(users[0]));
+      assertThat(candidate.get(ProtocolElements.ICECANDIDATE_CANDIDATE_PARAM).getAsString(),
+          is(i + " candidate test"));
+    }
+
+    // the last one is sent alone when the window expires
+    ArgumentCaptor<JsonObject> singleCaptor = ArgumentCaptor.forClass(JsonObject.class);
+    verify(notificationService, timeout(2000).times(1)).sendNotification(eq(users[1]),
+        eq(ProtocolElements.ICECANDIDATE_METHOD), singleCaptor.capture());
+    assertThat(singleCaptor.getValue().get(ProtocolElements.ICECANDIDATE_CANDIDATE_PARAM)
+        .getAsString(), is("3 candidate test"));
+  }
+
+  @Test
+  public void iceCandidatesSentWhenClosed() {
+    DefaultNotificationRoomHandler handler = new DefaultNotificationRoomHandler(
+        notificationService);
+    handler.enableIceCandidateBatching(60000, 3);
+
+    handler.onIceCandidate(roomx, users[1], users[0], new IceCandidate("0 candidate test",
+        "audio", 1));
+    verify(notificationService, never()).sendNotification(eq(users[1]),
+        eq(ProtocolElements.ICECANDIDATE_METHOD), any());
+
+    // the buffered candidate doesn't wait for its window
+    handler.close();
+    verify(notificationService, times(1)).sendNotification(eq(users[1]),
+        eq(ProtocolElements.ICECANDIDATE_METHOD), any());
+
+    // and the next ones aren't buffered anymore
+    handler.onIceCandidate(roomx, users[1], users[0], new IceCandidate("1 candidate test",
+        "audio", 1));
+    verify(notificationService, times(2)).sendNotification(eq(users[1]),
+        eq(ProtocolElements.ICECANDIDATE_METHOD), any());
+  }
+
+  @Test
+  public void broadcastNotifications() {
+    DefaultNotificationRoomHandler handler = new DefaultNotificationRoomHandler(
+        notificationService);
+    handler.setBroadcastNotifications(true);
+
+    ParticipantRequest participantRequest0 = usersParticipantRequests.get(users[0]);
+    Set<UserParticipant> participants = new HashSet<UserParticipant>(usersParticipants.values());
+    handler.onPublishMedia(participantRequest0, users[0], SDP_ANSWER, participants, null);
+
+    // a single call for all the participants but the publisher
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Collection<String>> idsCaptor = ArgumentCaptor.forClass(Collection.class);
+    verify(notificationService, times(1)).sendNotificationToMany(idsCaptor.capture(),
+        eq(ProtocolElements.PARTICIPANTPUBLISHED_METHOD), Matchers.isA(JsonObject.class));
+    assertThat(idsCaptor.getValue().size(), is(users.length - 1));
+    assertThat(idsCaptor.getValue(), not(hasItem(users[0])));
+    verify(notificationService, times(0)).sendNotification(anyString(),
+        eq(ProtocolElements.PARTICIPANTPUBLISHED_METHOD), any());
+  }
+
+  @Test
+  public void rosterChangesMerged() {
+    DefaultNotificationRoomHandler handler = new DefaultNotificationRoomHandler(
+        notificationService);
+    handler.enableRosterChangeBatching(100);
+
+    Set<UserParticipant> participants = new HashSet<UserParticipant>();
+    participants.add(usersParticipants.get(users[0]));
+    participants.add(usersParticipants.get(users[1]));
+
+    handler.onParticipantJoined(usersParticipantRequests.get(users[2]), roomx, users[2],
+        new HashSet<UserParticipant>(participants), null);
+    participants.add(usersParticipants.get(users[2]));
+    handler.onParticipantJoined(usersParticipantRequests.get(users[3]), roomx, users[3],
+        new HashSet<UserParticipant>(participants), null);
+    // joins and leaves within the window
+    handler.onParticipantLeft(usersParticipantRequests.get(users[3]), users[3],
+        new HashSet<UserParticipant>(participants), null);
+
+    for (int i = 0; i < 2; i++) {
+      ArgumentCaptor<JsonObject> captor = ArgumentCaptor.forClass(JsonObject.class);
+      verify(notificationService, timeout(2000).times(1)).sendNotification(eq(users[i]),
+          eq(ProtocolElements.PARTICIPANTSCHANGED_METHOD), captor.capture());
+      JsonObject params = captor.getValue();
+      JsonArray added = params.getAsJsonArray(ProtocolElements.PARTICIPANTSCHANGED_ADDED_PARAM);
+      assertThat(added.size(), is(1));
+      assertThat(added.get(0).getAsString(), is(users[2]));
+      assertThat(params.getAsJsonArray(ProtocolElements.PARTICIPANTSCHANGED_REMOVED_PARAM).size(),
+          is(0));
+    }
+    // user3's join and departure cancel out
+    verify(notificationService, times(0)).sendNotification(eq(users[2]),
+        eq(ProtocolElements.PARTICIPANTSCHANGED_METHOD), any());
+    verify(notificationService, times(0)).sendNotification(anyString(),
+        eq(ProtocolElements.PARTICIPANTJOINED_METHOD), any());
+    verify(notificationService, times(0)).sendNotification(anyString(),
+        eq(ProtocolElements.PARTICIPANTLEFT_METHOD), any());
+  }
+
+  @Test
+  public void rosterChangesSentFirst() {
+    DefaultNotificationRoomHandler handler = new DefaultNotificationRoomHandler(
+        notificationService);
+    handler.enableRosterChangeBatching(60000);
+    String participantId0 = usersParticipants.get(users[0]).getParticipantId();
+
+    Set<UserParticipant> participants = new HashSet<UserParticipant>();
+    participants.add(usersParticipants.get(users[0]));
+    handler.onParticipantJoined(usersParticipantRequests.get(users[1]), roomx, users[1],
+        participants, null);
+    verify(notificationService, never()).sendNotification(eq(participantId0),
+        eq(ProtocolElements.PARTICIPANTSCHANGED_METHOD), any());
+
+    // notifications sent to a single participant don't overtake its pending roster changes
+    handler.onMediaElementError(roomx, participantId0, "error");
+    handler.onPeerToPeer(participantId0, users[1]);
+
+    InOrder inOrder = inOrder(notificationService);
+    inOrder.verify(notificationService).sendNotification(eq(participantId0),
+        eq(ProtocolElements.PARTICIPANTSCHANGED_METHOD), any());
+    inOrder.verify(notificationService).sendNotification(eq(participantId0),
+        eq(ProtocolElements.MEDIAERROR_METHOD), any());
+    inOrder.verify(notificationService).sendNotification(eq(participantId0),
+        eq(ProtocolElements.PEERTOPEER_METHOD), any());
+    verify(notificationService, times(1)).sendNotification(eq(participantId0),
+        eq(ProtocolElements.PARTICIPANTSCHANGED_METHOD), any());
+    handler.close();
+  }
+
+  @Test
+  public void rosterPaged() {
+    DefaultNotificationRoomHandler handler = new DefaultNotificationRoomHandler(
+        notificationService);
+    handler.setRosterPageSize(2);
+
+    Set<UserParticipant> participants = new HashSet<UserParticipant>();
+    for (int i = 0; i < 3; i++) {
+      participants.add(usersParticipants.get(users[i]));
+    }
+    ParticipantRequest request = usersParticipantRequests.get(users[3]);
+    handler.onParticipantJoined(request, roomx, users[3], participants, 3, null);
+
+    ArgumentCaptor<JsonObject> captor = ArgumentCaptor.forClass(JsonObject.class);
+    verify(notificationService, times(1)).sendResponse(eq(request), captor.capture());
+    JsonObject result = captor.getValue();
+    JsonArray peers = result.getAsJsonArray(ProtocolElements.JOINROOM_PEERS_PARAM);
+    assertThat(peers.size(), is(2));
+    assertThat(peers.get(0).getAsJsonObject().get(ProtocolElements.JOINROOM_PEERID_PARAM)
+        .getAsString(), is(users[0]));
+    assertThat(result.get(ProtocolElements.JOINROOM_NEXT_PARAM).getAsString(), is(users[1]));
+    assertThat(result.get(ProtocolElements.JOINROOM_ROSTERVERSION_PARAM).getAsLong(), is(3L));
+    // the existing peers are still notified of the join
+    verify(notificationService, times(3)).sendNotification(anyString(),
+        eq(ProtocolElements.PARTICIPANTJOINED_METHOD), any());
+
+    // second page, the requester is not listed
+    participants.add(usersParticipants.get(users[3]));
+    handler.onGetParticipants(request, users[1], participants, 4, null, null);
+    verify(notificationService, times(2)).sendResponse(eq(request), captor.capture());
+    result = captor.getValue();
+    peers = result.getAsJsonArray(ProtocolElements.GETPARTICIPANTS_PEERS_PARAM);
+    assertThat(peers.size(), is(1));
+    assertThat(peers.get(0).getAsJsonObject().get(ProtocolElements.JOINROOM_PEERID_PARAM)
+        .getAsString(), is(users[2]));
+    assertThat(result.has(ProtocolElements.GETPARTICIPANTS_NEXT_PARAM), is(false));
+
+    // only the changes
+    List<RosterChange> changes = new ArrayList<RosterChange>();
+    changes.add(new RosterChange(5, RosterChange.Type.LEFT, users[1]));
+    handler.onGetParticipants(request, null, null, 5, changes, null);
+    verify(notificationService, times(3)).sendResponse(eq(request), captor.capture());
+    result = captor.getValue();
+    assertThat(result.has(ProtocolElements.GETPARTICIPANTS_PEERS_PARAM), is(false));
+    JsonObject change = result.getAsJsonArray(ProtocolElements.GETPARTICIPANTS_CHANGES_PARAM)
+        .get(0).getAsJsonObject();
+    assertThat(change.get(ProtocolElements.GETPARTICIPANTS_CHANGETYPE_PARAM).getAsString(),
+        is("left"));
+    assertThat(change.get(ProtocolElements.GETPARTICIPANTS_CHANGENAME_PARAM).getAsString(),
+        is(users[1]));
+    assertThat(result.get(ProtocolElements.GETPARTICIPANTS_ROSTERVERSION_PARAM).getAsLong(),
+        is(5L));
+  }
+
+  @Test
+  public void rosterPageAfterLeave() {
+    DefaultNotificationRoomHandler handler = new DefaultNotificationRoomHandler(
+        notificationService);
+    handler.setRosterPageSize(2);
+
+    Set<UserParticipant> participants = new HashSet<UserParticipant>();
+    for (int i = 0; i < 4; i++) {
+      participants.add(usersParticipants.get(users[i]));
+    }
+    ParticipantRequest request = usersParticipantRequests.get(users[4]);
+    handler.onParticipantJoined(request, roomx, users[4], participants, 4, null);
+
+    ArgumentCaptor<JsonObject> captor = ArgumentCaptor.forClass(JsonObject.class);
+    verify(notificationService, times(1)).sendResponse(eq(request), captor.capture());
+    String next = captor.getValue().get(ProtocolElements.JOINROOM_NEXT_PARAM).getAsString();
+    assertThat(next, is(users[1]));
+
+    // a peer of the first page leaves before the second one is requested
+    participants.remove(usersParticipants.get(users[0]));
+    participants.add(usersParticipants.get(users[4]));
+    handler.onGetParticipants(request, next, participants, 5, null, null);
+    verify(notificationService, times(2)).sendResponse(eq(request), captor.capture());
+    JsonArray peers = captor.getValue().getAsJsonArray(
+        ProtocolElements.GETPARTICIPANTS_PEERS_PARAM);
+    assertThat(peers.size(), is(2));
+    assertThat(peers.get(0).getAsJsonObject().get(ProtocolElements.JOINROOM_PEERID_PARAM)
+        .getAsString(), is(users[2]));
+    assertThat(peers.get(1).getAsJsonObject().get(ProtocolElements.JOINROOM_PEERID_PARAM)
+        .getAsString(), is(users[3]));
+    assertThat(captor.getValue().has(ProtocolElements.GETPARTICIPANTS_NEXT_PARAM), is(false));
+  }
+
   @Test
   public void mediaError() {
 
@@ -27,11 +27,15 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -45,10 +49,19 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import org.hamcrest.CoreMatchers;
 import org.junit.After;
@@ -57,6 +70,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.kurento.client.Composite;
 import org.kurento.client.Continuation;
 import org.kurento.client.ErrorEvent;
 import org.kurento.client.EventListener;
@@ -64,6 +78,7 @@ import org.kurento.client.FaceOverlayFilter;
 import org.kurento.client.HubPort;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
+import org.kurento.client.ListenerSubscription;
 import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.MediaType;
@@ -77,9 +92,13 @@ import org.kurento.room.api.KurentoClientProvider;
 import org.kurento.room.api.KurentoClientSessionInfo;
 import org.kurento.room.api.MutedMediaType;
 import org.kurento.room.api.RoomHandler;
+import org.kurento.room.api.pojo.RoomSettings;
+import org.kurento.room.api.pojo.RosterChange;
 import org.kurento.room.api.pojo.UserParticipant;
+import org.kurento.room.endpoint.SdpType;
 import org.kurento.room.exception.RoomException;
 import org.kurento.room.exception.RoomException.Code;
+import org.kurento.room.internal.Room;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Matchers;
@@ -100,10 +119,14 @@ public class RoomManagerTest {
 
   private static final String SDP_WEB_OFFER = "peer sdp web offer";
   private static final String SDP_WEB_ANSWER = "endpoint sdp web answer";
+  private static final String SDP_SLOW_OFFER = "peer sdp web offer (unanswered)";
   private static final String SDP_WEB_SERVER_OFFER = "server sdp web offer";
   private static final String SDP_WEB_PEER_ANSWER = "peer sdp web answer";
   private static final String SDP_WEB_SERVER_UPDATED_OFFER = "server sdp updated web offer";
 
+  // the benchmarks only run with -Droom.benchmarks=true
+  private static final boolean BENCHMARKS = Boolean.getBoolean("room.benchmarks");
+
   private static final String SDP_RTP_OFFER = "peer sdp rtp offer";
   private static final String SDP_RTP_ANSWER = "endpoint sdp rtp answer";
   // private static final String SDP_WEB_SERVER_OFFER = "server sdp offer";
@@ -131,6 +154,10 @@ public class RoomManagerTest {
   @Mock
   private MediaPipeline pipeline;
   @Mock
+  private KurentoClient kurentoClient2;
+  @Mock
+  private MediaPipeline pipeline2;
+  @Mock
   private WebRtcEndpoint endpoint;
   @Mock
   private PassThrough passThru;
@@ -149,6 +176,8 @@ public class RoomManagerTest {
   @Mock
   private PassThrough.Builder passThruBuilder;
   @Captor
+  private ArgumentCaptor<Continuation<PassThrough>> passThruCaptor;
+  @Captor
   private ArgumentCaptor<Continuation<Void>> passThruConnectCaptor;
   @Captor
   private ArgumentCaptor<Continuation<Void>> passThruDisconnectCaptor;
@@ -167,6 +196,11 @@ public class RoomManagerTest {
   @Mock
   private Mixer.Builder mixerBuilder;
 
+  @Mock
+  private Composite composite;
+  @Mock
+  private Composite.Builder compositeBuilder;
+
   @Mock
   private HubPort hubPort;
   @Mock
@@ -242,8 +276,13 @@ public class RoomManagerTest {
       }
     }).when(rtpBuilder).buildAsync(rtpCaptor.capture());
 
-    // still using the sync version
-    when(passThruBuilder.build()).thenReturn(passThru);
+    doAnswer(new Answer<Continuation<PassThrough>>() {
+      @Override
+      public Continuation<PassThrough> answer(InvocationOnMock invocation) throws Throwable {
+        passThruCaptor.getValue().onSuccess(passThru);
+        return null;
+      }
+    }).when(passThruBuilder).buildAsync(passThruCaptor.capture());
 
     try { // mock the constructor for the endpoint builder
       whenNew(WebRtcEndpoint.Builder.class).withArguments(pipeline).thenReturn(webRtcBuilder);
@@ -348,14 +387,42 @@ public class RoomManagerTest {
     // using the sync version to build the mixer
     when(mixerBuilder.build()).thenReturn(mixer);
 
+    try { // mock the constructor for the composite builder
+      whenNew(Composite.Builder.class).withArguments(pipeline).thenReturn(compositeBuilder);
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail(e.getMessage());
+    }
+    // using the sync version to build the composite
+    when(compositeBuilder.build()).thenReturn(composite);
+    // call onSuccess when building the composite asynchronously
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((Continuation<Composite>) invocation.getArguments()[0]).onSuccess(composite);
+        return null;
+      }
+    }).when(compositeBuilder).buildAsync(Matchers.<Continuation<Composite>> any());
+
     try { // mock the constructor for the hubPort builder
       whenNew(HubPort.Builder.class).withArguments(mixer).thenReturn(hubPortBuilder);
+      whenNew(HubPort.Builder.class).withArguments(composite).thenReturn(hubPortBuilder);
     } catch (Exception e) {
       e.printStackTrace();
       fail(e.getMessage());
     }
     // using the sync version to build the hubPort
     when(hubPortBuilder.build()).thenReturn(hubPort);
+    // call onSuccess when building the hubPort asynchronously
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((Continuation<HubPort>) invocation.getArguments()[0]).onSuccess(hubPort);
+        return null;
+      }
+    }).when(hubPortBuilder).buildAsync(Matchers.<Continuation<HubPort>> any());
 
     // call onSuccess when connecting the hubPort to any media element
     doAnswer(new Answer<Continuation<Void>>() {
@@ -527,6 +594,208 @@ public class RoomManagerTest {
         kurentoClientCaptor.capture());
   }
 
+  @Test
+  public void joinExistingUserName() {
+    joinManyUsersOneRoom();
+
+    exception.expect(RoomException.class);
+    exception.expectMessage(containsString("already exists in room"));
+    userJoinRoom(roomx, users[0], pidx, false);
+  }
+
+  @Test
+  public void joinExistingParticipantId() {
+    joinManyUsersOneRoom();
+
+    exception.expect(RoomException.class);
+    exception.expectMessage(containsString("Participant with id '"
+        + usersParticipantIds.get(users[0]) + "' already exists"));
+    userJoinRoom(roomx, userx, usersParticipantIds.get(users[0]), false);
+  }
+
+  @Test
+  public void rejoinAfterLeave() {
+    joinManyUsersOneRoom();
+    String pid0 = usersParticipantIds.get(users[0]);
+    manager.leaveRoom(pid0);
+    assertThat(manager.getParticipants(roomx), not(hasItem(usersParticipants.get(users[0]))));
+
+    assertFalse(userJoinRoom(roomx, users[0], pidx, false).isEmpty());
+    assertThat(manager.getParticipants(roomx), hasItem(new UserParticipant(pidx, users[0])));
+  }
+
+  @Test
+  public void rosterChanges() {
+    joinManyUsersOneRoom();
+    long joinedVersion = manager.getRosterVersion(roomx);
+    assertEquals(users.length, joinedVersion);
+
+    List<RosterChange> changes = manager.getRosterChanges(roomx, 0);
+    assertEquals(users.length, changes.size());
+    for (RosterChange change : changes) {
+      assertThat(change.getType(), is(RosterChange.Type.JOINED));
+    }
+    assertTrue(manager.getRosterChanges(roomx, joinedVersion).isEmpty());
+
+    String pid0 = usersParticipantIds.get(users[0]);
+    manager.leaveRoom(pid0);
+
+    changes = manager.getRosterChanges(roomx, joinedVersion);
+    assertEquals(1, changes.size());
+    assertThat(changes.get(0).getType(), is(RosterChange.Type.LEFT));
+    assertThat(changes.get(0).getUserName(), is(users[0]));
+    assertEquals(joinedVersion + 1, changes.get(0).getVersion());
+    assertEquals(joinedVersion + 1, manager.getRosterVersion(roomx));
+
+    // unknown version, the whole roster is needed
+    assertEquals(null, manager.getRosterChanges(roomx, joinedVersion + 10));
+  }
+
+  @Test
+  public void concurrentFirstJoinersCreateOneRoom() throws InterruptedException,
+  ExecutionException {
+    // slow down the KMS selection so that the joiners overlap
+    when(kcProvider.getKurentoClient(any(KurentoClientSessionInfo.class))).thenAnswer(
+        new Answer<KurentoClient>() {
+          @Override
+          public KurentoClient answer(InvocationOnMock invocation) throws Throwable {
+            Thread.sleep(100);
+            return kurentoClient;
+          }
+        });
+    final KurentoClientSessionInfo kcsi = new KurentoClientSessionInfo() {
+      @Override
+      public String getRoomName() {
+        return roomx;
+      }
+    };
+
+    ExecutorService threadPool = Executors.newFixedThreadPool(users.length);
+    ExecutorCompletionService<Set<UserParticipant>> exec = new ExecutorCompletionService<>(
+        threadPool);
+    try {
+      for (int i = 0; i < users.length; i++) {
+        final String user = users[i];
+        final String pid = "pid" + i;
+        exec.submit(new Callable<Set<UserParticipant>>() {
+          @Override
+          public Set<UserParticipant> call() throws Exception {
+            return manager.joinRoom(user, roomx, false, true, kcsi, pid);
+          }
+        });
+      }
+      for (int i = 0; i < users.length; i++) {
+        exec.take().get();
+      }
+    } finally {
+      threadPool.shutdownNow();
+    }
+
+    assertThat(manager.getRooms(), hasItem(roomx));
+    assertThat(manager.getParticipants(roomx).size(), is(users.length));
+    verify(kcProvider, times(1)).getKurentoClient(any(KurentoClientSessionInfo.class));
+    verify(kurentoClient, times(1)).createMediaPipeline(kurentoClientCaptor.capture());
+  }
+
+  @Test
+  public void concurrentCreationWithOtherSettings() throws Exception {
+    final CountDownLatch creating = new CountDownLatch(1);
+    final CountDownLatch created = new CountDownLatch(1);
+    when(kcProvider.getKurentoClient(any(KurentoClientSessionInfo.class))).thenAnswer(
+        new Answer<KurentoClient>() {
+          @Override
+          public KurentoClient answer(InvocationOnMock invocation) throws Throwable {
+            creating.countDown();
+            created.await();
+            return kurentoClient;
+          }
+        });
+    final KurentoClientSessionInfo kcsi = new KurentoClientSessionInfo() {
+      @Override
+      public String getRoomName() {
+        return roomx;
+      }
+    };
+    final RoomSettings lazySettings = new RoomSettings();
+    lazySettings.setLazySubscribers(true);
+
+    ExecutorService threadPool = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> first = threadPool.submit(() -> manager.createRoom(kcsi, new RoomSettings()));
+      creating.await();
+      Future<?> second = threadPool.submit(() -> manager.createRoom(kcsi, lazySettings));
+      // let the second creation find the first one in flight
+      Thread.sleep(100);
+      created.countDown();
+      first.get();
+      try {
+        second.get();
+        fail("Creating the room with other settings at the same time should fail");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause(), instanceOf(RoomException.class));
+        assertThat(e.getCause().getMessage(), containsString("with different settings"));
+      }
+    } finally {
+      threadPool.shutdownNow();
+    }
+    assertFalse(manager.getRoomSettings(roomx).isLazySubscribers());
+    verify(kcProvider, times(1)).getKurentoClient(any(KurentoClientSessionInfo.class));
+  }
+
+  @Test
+  public void joinNewRoomWithIdlePipeline() {
+    when(kcProvider.getIdlePipeline(kurentoClient)).thenReturn(pipeline);
+
+    Set<UserParticipant> peers = manager.joinRoom(users[0], roomx, false, true,
+        new KurentoClientSessionInfo() {
+          @Override
+          public String getRoomName() {
+            return roomx;
+          }
+        }, "pid0");
+    assertTrue(peers.isEmpty());
+    assertThat(manager.getPipeline("pid0"), is(pipeline));
+    verify(kcProvider, times(1)).getIdlePipeline(kurentoClient);
+    verify(kurentoClient, never())
+        .createMediaPipeline(Matchers.<Continuation<MediaPipeline>> any());
+
+    manager.closeRoom(roomx);
+    verify(pipeline, times(1)).release(Matchers.<Continuation<Void>> any());
+  }
+
+  @Test
+  public void pipelineCreationRetried() {
+    final AtomicInteger attempts = new AtomicInteger();
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Continuation<MediaPipeline> continuation =
+            (Continuation<MediaPipeline>) invocation.getArguments()[0];
+        if (attempts.getAndIncrement() == 0) {
+          continuation.onError(new Exception("media server unavailable"));
+        } else {
+          continuation.onSuccess(pipeline);
+        }
+        return null;
+      }
+    }).when(kurentoClient).createMediaPipeline(Matchers.<Continuation<MediaPipeline>> any());
+
+    try {
+      manager.joinRoom(users[0], roomx, false, true, newSessionInfo(roomx), "pid0");
+      fail("Joining should fail when the pipeline can't be created");
+    } catch (RoomException e) {
+      assertThat(e.getMessage(), containsString("Unable to create media pipeline"));
+    }
+
+    // the failure isn't cached, the next join requests the pipeline again
+    assertTrue(manager.joinRoom(users[1], roomx, false, true, newSessionInfo(roomx), "pid1")
+        .isEmpty());
+    assertThat(manager.getPipeline("pid1"), is(pipeline));
+    verify(kurentoClient, times(2))
+        .createMediaPipeline(Matchers.<Continuation<MediaPipeline>> any());
+  }
+
   @Test
   public void leaveRoom() {
     joinManyUsersOneRoom();
@@ -576,6 +845,477 @@ public class RoomManagerTest {
     assertThat(manager.getSubscribers(roomx).size(), is(0));
   }
 
+  @Test
+  public void rosterSnapshotShared() {
+    joinManyUsersOneRoom();
+
+    Set<UserParticipant> participants = manager.getParticipants(roomx);
+    assertTrue(participants == manager.getParticipants(roomx));
+    try {
+      participants.clear();
+      fail("The roster should be read-only");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+
+    String participantId0 = usersParticipantIds.get(users[0]);
+    manager.publishMedia(participantId0, true, SDP_WEB_OFFER, false);
+
+    // rebuilt after the change of streaming state
+    Set<UserParticipant> publishers = manager.getPublishers(roomx);
+    assertThat(publishers.size(), is(1));
+    assertTrue(participants != manager.getParticipants(roomx));
+    assertThat(manager.getParticipants(roomx),
+        hasItem(new UserParticipant(participantId0, users[0], true)));
+    assertTrue(publishers == manager.getPublishers(roomx));
+
+    manager.subscribe(users[0], SDP_WEB_OFFER, usersParticipantIds.get(users[1]));
+    assertThat(manager.getSubscribers(roomx).size(), is(1));
+
+    manager.leaveRoom(usersParticipantIds.get(users[1]));
+    assertThat(manager.getSubscribers(roomx).size(), is(0));
+    assertThat(manager.getParticipants(roomx).size(), is(users.length - 1));
+  }
+
+  @Test
+  public void subscriptionGraph() {
+    joinManyUsersOneRoom();
+
+    String pid0 = usersParticipantIds.get(users[0]);
+    String pid1 = usersParticipantIds.get(users[1]);
+    String pid2 = usersParticipantIds.get(users[2]);
+    manager.publishMedia(pid0, true, SDP_WEB_OFFER, false);
+    // neither the preloaded endpoints nor the early ICE candidates are subscriptions
+    manager.onIceCandidate(users[0], "candidate", 0, "audio", usersParticipantIds.get(users[3]));
+    assertEquals("", manager.dumpSubscriptions(roomx));
+
+    manager.subscribe(users[0], SDP_WEB_OFFER, pid1);
+    manager.subscribe(users[0], SDP_WEB_OFFER, pid2);
+
+    Set<UserParticipant> expected = new HashSet<UserParticipant>();
+    expected.add(new UserParticipant(pid1, users[1]));
+    expected.add(new UserParticipant(pid2, users[2]));
+    assertEquals(expected, manager.getPeerSubscribers(pid0));
+    assertThat(manager.getPeerPublishers(pid1), hasItem(new UserParticipant(pid0, users[0])));
+    assertTrue(manager.getPeerPublishers(pid0).isEmpty());
+    assertThat(manager.dumpSubscriptions(roomx), containsString(users[0] + " -> ["));
+
+    manager.leaveRoom(pid1);
+    expected.remove(new UserParticipant(pid1, users[1]));
+    assertEquals(expected, manager.getPeerSubscribers(pid0));
+
+    manager.unpublishMedia(pid0);
+    assertTrue(manager.getPeerPublishers(pid2).isEmpty());
+    assertEquals("", manager.dumpSubscriptions(roomx));
+  }
+
+  @Test
+  public void iceCandidateForUnknownPublisher() {
+    joinManyUsersOneRoom();
+
+    exception.expect(RoomException.class);
+    exception.expectMessage(containsString("No publisher '" + userx + "'"));
+    manager.onIceCandidate(userx, "candidate", 0, "audio", usersParticipantIds.get(users[0]));
+  }
+
+  @Test
+  public void lastN() {
+    RoomSettings settings = new RoomSettings();
+    settings.setLastN(1);
+    manager.setDefaultRoomSettings(settings);
+    joinManyUsersOneRoom();
+
+    String pid0 = usersParticipantIds.get(users[0]);
+    String pid1 = usersParticipantIds.get(users[1]);
+    String pid2 = usersParticipantIds.get(users[2]);
+    manager.publishMedia(pid0, true, SDP_WEB_OFFER, false);
+    manager.publishMedia(pid1, true, SDP_WEB_OFFER, false);
+
+    // only the first publisher fits in the Last-N, the other one just sends its audio
+    manager.subscribe(users[0], SDP_WEB_OFFER, pid2);
+    manager.subscribe(users[1], SDP_WEB_OFFER, pid2);
+    verify(passThru).connect(any(MediaElement.class), passThruConnectCaptor.capture());
+    verify(passThru).connect(any(MediaElement.class), eq(MediaType.AUDIO),
+        Matchers.<Continuation<Void>> any());
+
+    // the second publisher speaks, the video is switched without renegotiating (by the fan-out
+    // executor)
+    assertTrue(manager.onActiveSpeaker(pid1));
+    verify(passThru, timeout(1000)).disconnect(any(MediaElement.class), eq(MediaType.VIDEO),
+        Matchers.<Continuation<Void>> any());
+    verify(passThru, timeout(1000)).connect(any(MediaElement.class), eq(MediaType.VIDEO),
+        Matchers.<Continuation<Void>> any());
+
+    // already forwarded, nothing changes
+    assertFalse(manager.onActiveSpeaker(pid1));
+
+    // the speaker stops publishing, the video of the other one is forwarded again
+    manager.unpublishMedia(pid1);
+    verify(passThru, timeout(1000).times(2)).connect(any(MediaElement.class),
+        eq(MediaType.VIDEO), Matchers.<Continuation<Void>> any());
+  }
+
+  @Test
+  public void dominantSpeaker() {
+    RoomSettings settings = new RoomSettings();
+    settings.setDominantSpeakerInterval(200);
+    manager.setDefaultRoomSettings(settings);
+    AtomicLong now = new AtomicLong();
+    manager.setClock(now::get);
+    joinManyUsersOneRoom();
+
+    String pid0 = usersParticipantIds.get(users[0]);
+    String pid1 = usersParticipantIds.get(users[1]);
+    manager.publishMedia(pid0, true, SDP_WEB_OFFER, false);
+    manager.publishMedia(pid1, true, SDP_WEB_OFFER, false);
+
+    // below the threshold
+    manager.updateAudioLevel(pid0, -70);
+    verify(roomHandler, never()).onDominantSpeakerChanged(anyString(), anyString(),
+        Matchers.<Set<UserParticipant>> any());
+
+    manager.updateAudioLevel(pid1, -45);
+    verify(roomHandler).onDominantSpeakerChanged(eq(roomx), eq(users[1]),
+        Matchers.<Set<UserParticipant>> any());
+
+    // a flood of the loudest level is rate-limited, only the first sample after 200 ms counts
+    now.set(10);
+    for (int i = 0; i < 10; i++) {
+      manager.updateAudioLevel(pid0, 0);
+    }
+    now.set(200);
+    manager.updateAudioLevel(pid0, 0);
+    verify(roomHandler, never()).onDominantSpeakerChanged(eq(roomx), eq(users[0]),
+        Matchers.<Set<UserParticipant>> any());
+
+    // louder once its level is smoothed
+    now.set(250);
+    manager.updateAudioLevel(pid0, 0);
+    verify(roomHandler).onDominantSpeakerChanged(eq(roomx), eq(users[0]),
+        Matchers.<Set<UserParticipant>> any());
+
+    // louder, but too soon to change
+    now.set(300);
+    manager.updateAudioLevel(pid1, 0);
+    verify(roomHandler, times(1)).onDominantSpeakerChanged(eq(roomx), eq(users[1]),
+        Matchers.<Set<UserParticipant>> any());
+
+    exception.expect(RoomException.class);
+    exception.expectMessage(containsString("is not streaming media"));
+    manager.updateAudioLevel(usersParticipantIds.get(users[2]), -10);
+  }
+
+  @Test
+  public void composite() {
+    RoomSettings settings = new RoomSettings();
+    settings.setMode(RoomSettings.Mode.COMPOSITE);
+    manager.setDefaultRoomSettings(settings);
+    joinManyUsersOneRoom();
+    assertEquals(RoomSettings.Mode.COMPOSITE, manager.getRoomSettings(roomx).getMode());
+
+    String pid0 = usersParticipantIds.get(users[0]);
+    String pid1 = usersParticipantIds.get(users[1]);
+    manager.publishMedia(pid0, true, SDP_WEB_OFFER, false);
+    // the publisher is sent to its port of the mix, built without blocking
+    verify(passThru).connect(eq(hubPort), Matchers.<Continuation<Void>> any());
+    verify(compositeBuilder).buildAsync(Matchers.<Continuation<Composite>> any());
+    verify(hubPortBuilder).buildAsync(Matchers.<Continuation<HubPort>> any());
+    verify(hubPortBuilder, never()).build();
+
+    // the mix is received from the subscriber's own port
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.subscribe(Room.MIX_NAME, SDP_WEB_OFFER, pid1));
+    verify(hubPort).connect(any(MediaElement.class), hubPortConnectCaptor.capture());
+    manager.unsubscribe(Room.MIX_NAME, pid1);
+
+    try {
+      manager.subscribe(users[0], SDP_WEB_OFFER, pid1);
+      fail("Subscribing to a publisher of a composite room should fail");
+    } catch (RoomException e) {
+      assertThat(e.getCodeValue(), is(Code.ROOM_GENERIC_ERROR_CODE.getValue()));
+    }
+
+    exception.expect(RoomException.class);
+    exception.expectMessage(containsString("already exists"));
+    userJoinRoom(roomx, Room.MIX_NAME, "pidmix", false);
+  }
+
+  @Test
+  public void mixedAudio() {
+    RoomSettings settings = new RoomSettings();
+    settings.setMode(RoomSettings.Mode.MIXED_AUDIO);
+    manager.setDefaultRoomSettings(settings);
+    joinManyUsersOneRoom();
+
+    String pid0 = usersParticipantIds.get(users[0]);
+    String pid1 = usersParticipantIds.get(users[1]);
+    manager.publishMedia(pid0, true, SDP_WEB_OFFER, false);
+    // only the audio goes to the mix
+    verify(passThru).connect(eq(hubPort), eq(MediaType.AUDIO),
+        Matchers.<Continuation<Void>> any());
+
+    // the video is still forwarded, without the audio
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.subscribe(users[0], SDP_WEB_OFFER, pid1));
+    verify(passThru).connect(eq(endpoint), eq(MediaType.VIDEO),
+        Matchers.<Continuation<Void>> any());
+    verify(passThru, never()).connect(eq(endpoint), Matchers.<Continuation<Void>> any());
+
+    // and the audio of everyone else is received from the subscriber's port
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.subscribe(Room.MIX_NAME, SDP_WEB_OFFER, pid1));
+    verify(hubPort).connect(any(MediaElement.class), eq(MediaType.AUDIO),
+        hubPortConnectCaptor.capture());
+  }
+
+  @Test
+  public void cascade() throws Exception {
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((Continuation<MediaPipeline>) invocation.getArguments()[0]).onSuccess(pipeline2);
+        return null;
+      }
+    }).when(kurentoClient2).createMediaPipeline(Matchers.<Continuation<MediaPipeline>> any());
+    when(pipeline2.getId()).thenReturn("mocked-pipeline-2");
+    whenNew(WebRtcEndpoint.Builder.class).withArguments(pipeline2).thenReturn(webRtcBuilder);
+    whenNew(RtpEndpoint.Builder.class).withArguments(pipeline2).thenReturn(rtpBuilder);
+    whenNew(PassThrough.Builder.class).withArguments(pipeline2).thenReturn(passThruBuilder);
+    mockAsyncRelay();
+
+    // the first participant is placed in the room's server, the others in the second one
+    when(kcProvider.getKurentoClient(any(KurentoClientSessionInfo.class),
+        Matchers.<Map<KurentoClient, Integer>> any(), eq(1))).thenReturn(null, kurentoClient2);
+    RoomSettings settings = new RoomSettings();
+    settings.setParticipantsPerKms(1);
+    manager.setDefaultRoomSettings(settings);
+    joinManyUsersOneRoom();
+    verify(kurentoClient2).createMediaPipeline(Matchers.<Continuation<MediaPipeline>> any());
+    verify(kurentoClient2, never()).createMediaPipeline();
+
+    String pid0 = usersParticipantIds.get(users[0]);
+    String pid1 = usersParticipantIds.get(users[1]);
+    String pid2 = usersParticipantIds.get(users[2]);
+    manager.publishMedia(pid0, true, SDP_WEB_OFFER, false);
+    // no subscribers in the second server yet
+    verify(rtpBuilder, never()).buildAsync(Matchers.<Continuation<RtpEndpoint>> any());
+
+    // the publisher is relayed to the second server by a pair of RTP endpoints
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.subscribe(users[0], SDP_WEB_OFFER, pid1));
+    verify(rtpBuilder, times(2)).buildAsync(Matchers.<Continuation<RtpEndpoint>> any());
+    verify(rtpEndpoint).processOffer(eq(SDP_RTP_OFFER), Matchers.<Continuation<String>> any());
+    verify(rtpEndpoint).processAnswer(eq(SDP_RTP_ANSWER), Matchers.<Continuation<String>> any());
+
+    // and the relay is shared by the subscribers of that server
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.subscribe(users[0], SDP_WEB_OFFER, pid2));
+    verify(rtpEndpoint, times(1)).generateOffer(Matchers.<Continuation<String>> any());
+
+    manager.unsubscribe(users[0], pid1);
+    verify(rtpEndpoint, never()).release(Matchers.<Continuation<Void>> any());
+    // released with its last subscriber
+    manager.unsubscribe(users[0], pid2);
+    verify(rtpEndpoint, times(2)).release(Matchers.<Continuation<Void>> any());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void viewer() {
+    joinManyUsersOneRoom();
+    String pid0 = usersParticipantIds.get(users[0]);
+    manager.publishMedia(pid0, true, SDP_WEB_OFFER, false);
+    long rosterVersion = manager.getRosterVersion(roomx);
+
+    Set<UserParticipant> publishers = manager.joinRoomAsViewer(userx, roomx, null, pidx);
+    assertThat(publishers, hasItem(new UserParticipant(pid0, users[0], true)));
+    assertThat(publishers.size(), is(1));
+
+    // the viewer isn't part of the roster, only counted
+    UserParticipant viewer = new UserParticipant(pidx, userx);
+    assertThat(manager.getParticipants(roomx), not(hasItem(viewer)));
+    assertThat(manager.getViewers(roomx), hasItem(viewer));
+    assertEquals(rosterVersion, manager.getRosterVersion(roomx));
+    ArgumentCaptor<Supplier<Set<UserParticipant>>> recipients =
+        (ArgumentCaptor<Supplier<Set<UserParticipant>>>) (ArgumentCaptor<?>) ArgumentCaptor
+            .forClass(Supplier.class);
+    verify(roomHandler).onViewerCountChanged(eq(roomx), eq(1), recipients.capture());
+    assertThat(recipients.getValue().get(), hasItem(viewer));
+    assertThat(recipients.getValue().get().size(), is(users.length + 1));
+
+    // no subscriber endpoints were created in advance for it
+    assertThat(manager.dumpSubscriptions(roomx), not(containsString(userx)));
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.subscribe(users[0], SDP_WEB_OFFER, pidx));
+    assertThat(manager.getPeerSubscribers(pid0), hasItem(viewer));
+
+    String pidv = "pidv";
+    manager.joinRoomAsViewer("viewer", roomx, null, pidv);
+    verify(roomHandler).onViewerCountChanged(eq(roomx), eq(2),
+        Matchers.<Supplier<Set<UserParticipant>>> any());
+    manager.leaveRoom(pidx);
+    verify(roomHandler, times(2)).onViewerCountChanged(eq(roomx), eq(1),
+        Matchers.<Supplier<Set<UserParticipant>>> any());
+    assertThat(manager.getPeerSubscribers(pid0), not(hasItem(viewer)));
+
+    exception.expect(RoomException.class);
+    exception.expectMessage(containsString("can't publish"));
+    manager.publishMedia(pidv, true, SDP_WEB_OFFER, false);
+  }
+
+  @Test
+  public void viewersKeepRoomOpen() {
+    joinManyUsersOneRoom();
+    manager.joinRoomAsViewer(userx, roomx, null, pidx);
+    for (String pid : usersParticipantIds.values()) {
+      manager.leaveRoom(pid);
+    }
+    // the viewers wait in the room for a presenter
+    assertThat(manager.getRooms(), hasItem(roomx));
+    assertThat(manager.getViewers(roomx), hasItem(new UserParticipant(pidx, userx)));
+
+    // closed when the last viewer leaves too
+    assertTrue(manager.leaveRoom(pidx).isEmpty());
+    assertThat(manager.getRooms(), not(hasItem(roomx)));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void peerToPeer() {
+    RoomSettings settings = new RoomSettings();
+    settings.setPeerToPeer(true);
+    manager.setDefaultRoomSettings(settings);
+    KurentoClientSessionInfo kcsi = new KurentoClientSessionInfo() {
+      @Override
+      public String getRoomName() {
+        return roomx;
+      }
+    };
+    String pid0 = usersParticipantIds.get(users[0]);
+    String pid1 = usersParticipantIds.get(users[1]);
+    String pid2 = usersParticipantIds.get(users[2]);
+
+    // two participants don't need a pipeline, the server only relays their signaling
+    assertTrue(manager.joinRoom(users[0], roomx, false, true, kcsi, pid0).isEmpty());
+    manager.joinRoom(users[1], roomx, false, true, kcsi, pid1);
+    verify(kurentoClient, never()).createMediaPipeline(
+        Matchers.<Continuation<MediaPipeline>> any());
+    assertTrue(manager.isPeerToPeer(roomx));
+
+    UserParticipant peer1 = new UserParticipant(pid1, users[1]);
+    assertEquals(peer1, manager.relayPeerSdp(users[1], SdpType.OFFER, SDP_WEB_OFFER, pid0));
+    manager.onIceCandidate(users[1], "candidate", 0, "audio", pid0);
+    verify(roomHandler).onIceCandidate(eq(roomx), eq(pid1), eq(users[0]),
+        any(IceCandidate.class));
+    try {
+      manager.publishMedia(pid0, true, SDP_WEB_OFFER, false);
+      fail("Publishing through the server should fail in a peer-to-peer room");
+    } catch (RoomException e) {
+      assertThat(e.getMessage(), containsString("peer-to-peer"));
+    }
+
+    // the third participant moves the media of the peers to the server
+    manager.joinRoom(users[2], roomx, false, true, kcsi, pid2);
+    verify(kurentoClient, times(1)).createMediaPipeline(kurentoClientCaptor.capture());
+    assertFalse(manager.isPeerToPeer(roomx));
+    ArgumentCaptor<Set<UserParticipant>> peers =
+        (ArgumentCaptor<Set<UserParticipant>>) (ArgumentCaptor<?>) ArgumentCaptor
+            .forClass(Set.class);
+    verify(roomHandler).onPeerToPeerEnded(eq(roomx), peers.capture());
+    assertThat(peers.getValue(), hasItem(new UserParticipant(pid0, users[0])));
+    assertThat(peers.getValue(), hasItem(peer1));
+    assertThat(peers.getValue().size(), is(2));
+
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.publishMedia(pid0, true, SDP_WEB_OFFER, false));
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.subscribe(users[0], SDP_WEB_OFFER, pid1));
+    assertThat(manager.getPeerSubscribers(pid0), hasItem(peer1));
+
+    exception.expect(RoomException.class);
+    exception.expectMessage(containsString("goes through the server"));
+    manager.relayPeerSdp(users[1], SdpType.ANSWER, SDP_WEB_ANSWER, pid0);
+  }
+
+  @Test
+  public void peerToPeerPipelineFailure() {
+    RoomSettings settings = new RoomSettings();
+    settings.setPeerToPeer(true);
+    manager.setDefaultRoomSettings(settings);
+    String pid0 = usersParticipantIds.get(users[0]);
+    String pid1 = usersParticipantIds.get(users[1]);
+    String pid2 = usersParticipantIds.get(users[2]);
+    manager.joinRoom(users[0], roomx, false, true, newSessionInfo(roomx), pid0);
+    manager.joinRoom(users[1], roomx, false, true, newSessionInfo(roomx), pid1);
+
+    final AtomicBoolean serverDown = new AtomicBoolean(true);
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Continuation<MediaPipeline> continuation =
+            (Continuation<MediaPipeline>) invocation.getArguments()[0];
+        if (serverDown.get()) {
+          continuation.onError(new Exception("media server unavailable"));
+        } else {
+          continuation.onSuccess(pipeline);
+        }
+        return null;
+      }
+    }).when(kurentoClient).createMediaPipeline(Matchers.<Continuation<MediaPipeline>> any());
+
+    // the third participant is rejected and the peers keep exchanging their media directly
+    try {
+      manager.joinRoom(users[2], roomx, false, true, newSessionInfo(roomx), pid2);
+      fail("Joining should fail when the pipeline can't be created");
+    } catch (RoomException e) {
+      assertThat(e.getMessage(), containsString("Unable to create media pipeline"));
+    }
+    assertTrue(manager.isPeerToPeer(roomx));
+    assertThat(manager.getParticipants(roomx).size(), is(2));
+    verify(roomHandler, never()).onPeerToPeerEnded(anyString(),
+        Matchers.<Set<UserParticipant>> any());
+    assertEquals(new UserParticipant(pid1, users[1]),
+        manager.relayPeerSdp(users[1], SdpType.OFFER, SDP_WEB_OFFER, pid0));
+
+    // and move to the server with the next participant once it's back
+    serverDown.set(false);
+    manager.joinRoom(users[2], roomx, false, true, newSessionInfo(roomx), pid2);
+    assertFalse(manager.isPeerToPeer(roomx));
+    verify(roomHandler).onPeerToPeerEnded(eq(roomx), Matchers.<Set<UserParticipant>> any());
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.publishMedia(pid0, true, SDP_WEB_OFFER, false));
+  }
+
+  @Test
+  public void unpublishFanOut() throws InterruptedException {
+    joinManyUsersOneRoom();
+    ExecutorService fanOutExecutor = Executors.newSingleThreadExecutor();
+    manager.setFanOutExecutor(fanOutExecutor);
+
+    String participantId0 = usersParticipantIds.get(users[0]);
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.publishMedia(participantId0, true, SDP_WEB_OFFER, false));
+    for (String pid : usersParticipantIds.values()) {
+      if (!pid.equals(participantId0)) {
+        assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+            manager.subscribe(users[0], SDP_WEB_OFFER, pid));
+      }
+    }
+    long fanOuts = manager.getFanOutStats().getCount();
+
+    manager.unpublishMedia(participantId0);
+    // the subscriptions are gone by the time the publisher is answered
+    assertThat(manager.getSubscribers(roomx).size(), is(0));
+
+    // while their endpoints are released in the background
+    fanOutExecutor.shutdown();
+    assertTrue(fanOutExecutor.awaitTermination(2, TimeUnit.SECONDS));
+    verify(endpoint, atLeast(users.length - 1)).release(Matchers.<Continuation<Void>> any());
+    assertThat(manager.getFanOutStats().getCount(), is(fanOuts + 1));
+  }
+
   @Test
   public void rtpPublisherLifecycle() {
     joinManyWebUsersAndOneRTP();
@@ -669,11 +1409,194 @@ public class RoomManagerTest {
     assertThat(manager.getSubscribers(roomx).size(), is(0));
   }
 
+  @Test
+  public void publishAndCloseRoom() {
+    joinManyUsersOneRoom();
+
+    String participantId0 = usersParticipantIds.get(users[0]);
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.publishMedia(participantId0, true, SDP_WEB_OFFER, false));
+    for (String pid : usersParticipantIds.values()) {
+      if (!pid.equals(participantId0)) {
+        assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+            manager.subscribe(users[0], SDP_WEB_OFFER, pid));
+      }
+    }
+
+    Set<UserParticipant> closedParticipants = manager.closeRoom(roomx);
+    assertThat(closedParticipants.size(), is(users.length));
+    assertThat(manager.getRooms(), not(hasItem(roomx)));
+    assertFalse(manager.containsParticipant(roomx, participantId0));
+
+    // the media elements go away with the pipeline
+    verify(endpoint, never()).release(Matchers.<Continuation<Void>> any());
+    verify(passThru, never()).release(Matchers.<Continuation<Void>> any());
+    verify(pipeline, times(1)).release(Matchers.<Continuation<Void>> any());
+  }
+
+  @Test
+  public void closeManyRooms() {
+    final int roomCount = 20;
+    for (int i = 0; i < roomCount; i++) {
+      final String room = "closeRoom" + i;
+      manager.joinRoom("closeUser" + i, room, false, true, new KurentoClientSessionInfo() {
+        @Override
+        public String getRoomName() {
+          return room;
+        }
+      }, "closePid" + i);
+    }
+    manager.setCloseRoomsConcurrency(4);
+
+    final Map<String, Set<UserParticipant>> closedRooms =
+        new ConcurrentHashMap<String, Set<UserParticipant>>();
+    manager.close((roomName, participants) -> closedRooms.put(roomName, participants));
+
+    assertTrue(manager.isClosed());
+    assertThat(manager.getRooms().size(), is(0));
+    assertThat(closedRooms.size(), is(roomCount));
+    assertThat(closedRooms.get("closeRoom0"),
+        hasItem(new UserParticipant("closePid0", "closeUser0")));
+  }
+
+  @Test
+  public void asyncPublishAndSubscribe() throws InterruptedException, ExecutionException {
+    mockAsyncNegotiation();
+
+    joinManyUsersOneRoom();
+
+    String participantId0 = usersParticipantIds.get(users[0]);
+
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.publishMediaAsync(participantId0, true, SDP_WEB_OFFER, null, null, false).get());
+
+    assertThat(manager.getPublishers(roomx).size(), is(1));
+
+    for (String pid : usersParticipantIds.values()) {
+      if (!pid.equals(participantId0)) {
+        assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+            manager.subscribeAsync(users[0], SDP_WEB_OFFER, pid).get());
+      }
+    }
+    assertThat(manager.getSubscribers(roomx).size(), is(users.length - 1));
+
+    try {
+      manager.subscribeAsync(userx, SDP_WEB_OFFER, participantId0).get();
+      fail("Subscribing to a non-existing user should fail");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(RoomException.class));
+    }
+  }
+
+  private void mockAsyncRelay() {
+    // call onSuccess when generating the offer of the relay's ingress
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((Continuation<String>) invocation.getArguments()[0]).onSuccess(SDP_RTP_OFFER);
+        return null;
+      }
+    }).when(rtpEndpoint).generateOffer(Matchers.<Continuation<String>> any());
+    // call onSuccess when the relay's egress processes that offer
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((Continuation<String>) invocation.getArguments()[1]).onSuccess(SDP_RTP_ANSWER);
+        return null;
+      }
+    }).when(rtpEndpoint).processOffer(eq(SDP_RTP_OFFER), Matchers.<Continuation<String>> any());
+    // call onSuccess when the relay's ingress processes the answer
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((Continuation<String>) invocation.getArguments()[1]).onSuccess(SDP_RTP_OFFER);
+        return null;
+      }
+    }).when(rtpEndpoint).processAnswer(eq(SDP_RTP_ANSWER), Matchers.<Continuation<String>> any());
+  }
+
+  private void mockAsyncNegotiation() {
+    // call onSuccess when processing the offer asynchronously
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((Continuation<String>) invocation.getArguments()[1]).onSuccess(SDP_WEB_ANSWER);
+        return null;
+      }
+    }).when(endpoint).processOffer(Matchers.eq(SDP_WEB_OFFER),
+        Matchers.<Continuation<String>> any());
+    // call onSuccess when registering the ICE candidates listener asynchronously
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((Continuation<ListenerSubscription>) invocation.getArguments()[1]).onSuccess(null);
+        return null;
+      }
+    }).when(endpoint).addOnIceCandidateListener(
+        Matchers.<EventListener<OnIceCandidateEvent>> any(),
+        Matchers.<Continuation<ListenerSubscription>> any());
+  }
+
   /**
    * Tests publishing (w/o loopback) when the SDP offer is generated on the server-side.
    *
    * @throws AdminException
    */
+  @Test
+  public void publishAndSubscribeWithIdleEndpoints() {
+    RoomSettings settings = new RoomSettings();
+    settings.setWebRtcEndpointPoolSize(users.length);
+    manager.createRoom(new KurentoClientSessionInfo() {
+      @Override
+      public String getRoomName() {
+        return roomx;
+      }
+    }, settings);
+    for (int i = 0; i < users.length; i++) {
+      manager.joinRoom(users[i], roomx, false, true, null, "pid" + i);
+    }
+    // one endpoint is kept ready while there are no publishers
+    verify(webRtcBuilder, times(1)).buildAsync(Matchers.<Continuation<WebRtcEndpoint>> any());
+    verify(endpoint, times(1)).setMaxVideoRecvBandwidth(600);
+
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.publishMedia("pid0", true, SDP_WEB_OFFER, false));
+    // the publisher took the idle endpoint, which is replaced, and the pool grew by one
+    verify(webRtcBuilder, times(3)).buildAsync(Matchers.<Continuation<WebRtcEndpoint>> any());
+
+    for (int i = 1; i < users.length; i++) {
+      assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+          manager.subscribe(users[0], SDP_WEB_OFFER, "pid" + i));
+    }
+    assertThat(manager.getSubscribers(roomx).size(), is(users.length - 1));
+    // every endpoint was built by the pool and configured once
+    verify(webRtcBuilder, never()).useDataChannels();
+    verify(endpoint, times(users.length + 2)).setMaxVideoRecvBandwidth(600);
+  }
+
+  @Test
+  public void idleEndpointConfigurationFails() {
+    doThrow(new RuntimeException("media server error")).doNothing().when(endpoint)
+        .setMaxVideoRecvBandwidth(600);
+    RoomSettings settings = new RoomSettings();
+    settings.setWebRtcEndpointPoolSize(users.length);
+    manager.createRoom(newSessionInfo(roomx), settings);
+    manager.joinRoom(users[0], roomx, false, true, null, "pid0");
+    // the endpoint that couldn't be configured is released
+    verify(webRtcBuilder, times(1)).buildAsync(Matchers.<Continuation<WebRtcEndpoint>> any());
+    verify(endpoint, times(1)).release(Matchers.<Continuation<Void>> any());
+
+    // and the pool keeps refilling
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.publishMedia("pid0", true, SDP_WEB_OFFER, false));
+    verify(webRtcBuilder, times(4)).buildAsync(Matchers.<Continuation<WebRtcEndpoint>> any());
+  }
+
   @Test
   public void invertedPublishAndLeave() {
     joinManyUsersOneRoom();
@@ -1198,6 +2121,36 @@ public class RoomManagerTest {
         Matchers.any(IceCandidate.class));
   }
 
+  @Test
+  public void remoteIceCandidatesBatch() {
+    joinManyUsersOneRoom();
+
+    final String participantId0 = usersParticipantIds.get(users[0]);
+    final String participantId1 = usersParticipantIds.get(users[1]);
+
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.publishMedia(participantId0, true, SDP_WEB_OFFER, false));
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.subscribe(users[0], SDP_WEB_OFFER, participantId1));
+
+    List<IceCandidate> publisherCandidates = new ArrayList<IceCandidate>();
+    publisherCandidates.add(new IceCandidate("1 candidate test", "audio", 0));
+    Map<String, List<IceCandidate>> candidates = new HashMap<String, List<IceCandidate>>();
+    candidates.put(users[0], publisherCandidates);
+    manager.onIceCandidates(candidates, participantId0);
+
+    List<IceCandidate> subscriberCandidates = new ArrayList<IceCandidate>();
+    subscriberCandidates.add(new IceCandidate("2 candidate test", "audio", 0));
+    subscriberCandidates.add(new IceCandidate("3 candidate test", "video", 1));
+    candidates = new HashMap<String, List<IceCandidate>>();
+    candidates.put(users[0], subscriberCandidates);
+    manager.onIceCandidates(candidates, participantId1);
+
+    // every candidate reaches the endpoints
+    verify(endpoint, times(3)).addIceCandidate(Matchers.any(IceCandidate.class),
+        Matchers.<Continuation<Void>> any());
+  }
+
   @Test
   public void mediaError() {
     joinManyUsersOneRoom();
@@ -1337,6 +2290,251 @@ public class RoomManagerTest {
         anyString());;
   }
 
+  @Test
+  public void participantLookupWithManyRooms() {
+    int roomCount = 100;
+    for (int i = 0; i < roomCount; i++) {
+      final String room = "lookupRoom" + i;
+      manager.joinRoom("lookupUser" + i, room, false, true, new KurentoClientSessionInfo() {
+        @Override
+        public String getRoomName() {
+          return room;
+        }
+      }, "lookupPid" + i);
+    }
+    for (int i = 0; i < roomCount; i++) {
+      assertEquals("lookupRoom" + i, manager.getRoomName("lookupPid" + i));
+      assertEquals("lookupUser" + i, manager.getParticipantName("lookupPid" + i));
+    }
+
+    assertTrue(manager.containsParticipant("lookupRoom0", "lookupPid0"));
+    assertFalse(manager.containsParticipant("lookupRoom1", "lookupPid0"));
+
+    manager.leaveRoom("lookupPid0");
+    assertFalse(manager.containsParticipant("lookupRoom0", "lookupPid0"));
+    exception.expect(RoomException.class);
+    exception.expectMessage(containsString("No participant with id 'lookupPid0'"));
+    manager.getRoomName("lookupPid0");
+  }
+
+  /**
+   * Prints the average cost of looking up a participant by its id as the number of rooms grows,
+   * which should stay flat.
+   */
+  @Test
+  public void participantLookupBenchmark() {
+    assumeTrue(BENCHMARKS);
+    int[] roomCounts = { 10, 100, 1000 };
+    int lookups = 20000;
+    int created = 0;
+    for (int roomCount : roomCounts) {
+      for (; created < roomCount; created++) {
+        manager.joinRoom("lookupUser" + created, "lookupRoom" + created, false, true,
+            newSessionInfo("lookupRoom" + created), "lookupPid" + created);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < lookups; i++) {
+        int idx = i % roomCount;
+        assertEquals("lookupRoom" + idx, manager.getRoomName("lookupPid" + idx));
+      }
+      long avgNanos = (System.nanoTime() - start) / lookups;
+      System.out.println("Participant lookup with " + roomCount + " rooms: " + avgNanos
+          + " ns/lookup");
+    }
+  }
+
+  @Test
+  public void lazySubscribers() {
+    joinAndPublishAll("lazyRoom", 5, true);
+    assertThat(manager.getPublishers("lazyRoom").size(), is(5));
+
+    // subscriber endpoints are still created on demand
+    assertThat(manager.getSubscribers("lazyRoom").size(), is(0));
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.subscribe("lazyRoomUser0", SDP_WEB_OFFER, "lazyRoomPid1"));
+    assertThat(manager.getSubscribers("lazyRoom").size(), is(1));
+    assertThat(manager.getPeerPublishers("lazyRoomPid1"),
+        hasItem(new UserParticipant("lazyRoomPid0", "lazyRoomUser0")));
+  }
+
+  /**
+   * Prints the heap used by a room whose publishers get their subscriber endpoints in advance, and
+   * by the same room with lazy subscribers.
+   */
+  @Test
+  public void lazySubscribersHeapBenchmark() {
+    assumeTrue(BENCHMARKS);
+    int roomUsers = 50;
+    long eagerHeap = usedHeapAfter(() -> joinAndPublishAll("eagerRoom", roomUsers, false));
+    long lazyHeap = usedHeapAfter(() -> joinAndPublishAll("lazyRoom", roomUsers, true));
+    System.out.println("Heap used by a room of " + roomUsers + " publishers: eager subscribers "
+        + eagerHeap / 1024 + " KB, lazy subscribers " + lazyHeap / 1024 + " KB");
+  }
+
+  private static long usedHeapAfter(Runnable task) {
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    long before = runtime.totalMemory() - runtime.freeMemory();
+    task.run();
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory() - before;
+  }
+
+  @Test
+  public void serialRoomsDontWaitForEachOther() throws Exception {
+    mockAsyncNegotiation();
+    // the media server doesn't answer these offers until the end of the test
+    final List<Continuation<String>> pendingOffers = new ArrayList<Continuation<String>>();
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        synchronized (pendingOffers) {
+          pendingOffers.add((Continuation<String>) invocation.getArguments()[1]);
+        }
+        return null;
+      }
+    }).when(endpoint).processOffer(Matchers.eq(SDP_SLOW_OFFER),
+        Matchers.<Continuation<String>> any());
+
+    RoomSettings settings = new RoomSettings();
+    settings.setSerialExecution(true);
+    manager.setDefaultRoomSettings(settings);
+
+    // more rooms waiting for the media server than threads running the mailboxes
+    int slowRooms = Math.max(4, 2 * Runtime.getRuntime().availableProcessors()) + 1;
+    List<CompletableFuture<String>> slowPublications = new ArrayList<CompletableFuture<String>>();
+    for (int r = 0; r < slowRooms; r++) {
+      manager.joinRoom("slowUser" + r, "slowRoom" + r, false, true,
+          newSessionInfo("slowRoom" + r), "slowPid" + r);
+      slowPublications.add(
+          manager.publishMediaAsync("slowPid" + r, true, SDP_SLOW_OFFER, null, null, false));
+      awaitPendingOffers(pendingOffers, r + 1);
+    }
+    // the next request of a slow room waits for the pending one
+    CompletableFuture<Set<UserParticipant>> lateJoin = manager.joinRoomAsync("lateUser",
+        "slowRoom0", false, true, null, "latePid");
+
+    manager.joinRoom("fastUser", "fastRoom", false, true, newSessionInfo("fastRoom"), "fastPid");
+    assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+        manager.publishMedia("fastPid", true, SDP_WEB_OFFER, false));
+    assertFalse("Request run before the pending one of its room", lateJoin.isDone());
+
+    synchronized (pendingOffers) {
+      for (Continuation<String> offer : pendingOffers) {
+        offer.onSuccess(SDP_WEB_ANSWER);
+      }
+    }
+    for (CompletableFuture<String> publication : slowPublications) {
+      assertEquals("SDP answer doesn't match", SDP_WEB_ANSWER,
+          publication.get(5, TimeUnit.SECONDS));
+    }
+    assertThat(lateJoin.get(5, TimeUnit.SECONDS),
+        hasItem(new UserParticipant("slowPid0", "slowUser0", true)));
+  }
+
+  /**
+   * Prints the join/publish/leave throughput of several rooms when their requests take the rooms'
+   * locks and when they're run by the rooms' mailboxes.
+   */
+  @Test
+  public void serialExecutionThroughputBenchmark() throws Exception {
+    assumeTrue(BENCHMARKS);
+    mockAsyncNegotiation();
+    int roomCount = 10;
+    int roomUsers = 10;
+    double lockingOps = roomsThroughput("lockingRoom", roomCount, roomUsers, false);
+    double serialOps = roomsThroughput("serialRoom", roomCount, roomUsers, true);
+    System.out.println("Join/publish/leave throughput with " + roomCount + " rooms of "
+        + roomUsers + " users: " + (long) lockingOps + " ops/s (locks), " + (long) serialOps
+        + " ops/s (serial execution)");
+  }
+
+  private double roomsThroughput(final String roomPrefix, int roomCount, int roomUsers,
+      boolean serialExecution) throws InterruptedException, ExecutionException {
+    RoomSettings settings = new RoomSettings();
+    settings.setSerialExecution(serialExecution);
+    manager.setDefaultRoomSettings(settings);
+    // keeps each room open while the other users come and go
+    for (int r = 0; r < roomCount; r++) {
+      String room = roomPrefix + r;
+      manager.joinRoom(room + "Host", room, false, true, newSessionInfo(room), room + "HostPid");
+    }
+    ExecutorService threadPool = Executors.newFixedThreadPool(8);
+    ExecutorCompletionService<Void> exec = new ExecutorCompletionService<Void>(threadPool);
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < roomUsers; i++) {
+        for (int r = 0; r < roomCount; r++) {
+          final String room = roomPrefix + r;
+          final String user = room + "User" + i;
+          final String pid = room + "Pid" + i;
+          exec.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              manager.joinRoom(user, room, false, true, null, pid);
+              manager.publishMedia(pid, true, SDP_WEB_OFFER, false);
+              manager.leaveRoom(pid);
+              return null;
+            }
+          });
+        }
+      }
+      for (int i = 0; i < roomCount * roomUsers; i++) {
+        exec.take().get();
+      }
+    } finally {
+      threadPool.shutdownNow();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    for (int r = 0; r < roomCount; r++) {
+      assertThat(manager.getParticipants(roomPrefix + r).size(), is(1));
+      manager.leaveRoom(roomPrefix + r + "HostPid");
+      assertThat(manager.getRooms(), not(hasItem(roomPrefix + r)));
+    }
+    return 3 * roomCount * roomUsers / seconds;
+  }
+
+  private void awaitPendingOffers(List<Continuation<String>> pendingOffers, int count)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (true) {
+      synchronized (pendingOffers) {
+        if (pendingOffers.size() >= count) {
+          return;
+        }
+      }
+      if (System.currentTimeMillis() > deadline) {
+        fail("The media server wasn't asked to process the offer");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private KurentoClientSessionInfo newSessionInfo(final String room) {
+    return new KurentoClientSessionInfo() {
+      @Override
+      public String getRoomName() {
+        return room;
+      }
+    };
+  }
+
+  private void joinAndPublishAll(final String room, int roomUsers, boolean lazySubscribers) {
+    RoomSettings settings = new RoomSettings();
+    settings.setLazySubscribers(lazySubscribers);
+    manager.createRoom(new KurentoClientSessionInfo() {
+      @Override
+      public String getRoomName() {
+        return room;
+      }
+    }, settings);
+    for (int i = 0; i < roomUsers; i++) {
+      manager.joinRoom(room + "User" + i, room, false, true, null, room + "Pid" + i);
+      manager.publishMedia(room + "Pid" + i, true, SDP_WEB_OFFER, false);
+    }
+  }
+
   private Set<UserParticipant> userJoinRoom(final String room, String user, String pid,
       boolean joinMustSucceed) {
     return userJoinRoom(room, user, pid, joinMustSucceed, true);
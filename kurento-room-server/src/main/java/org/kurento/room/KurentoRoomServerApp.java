@@ -15,18 +15,25 @@
  */
 package org.kurento.room;
 
+import static org.kurento.commons.PropertiesManager.getProperty;
 import static org.kurento.commons.PropertiesManager.getPropertyJson;
 
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
 
 import org.kurento.jsonrpc.JsonUtils;
 import org.kurento.jsonrpc.internal.server.config.JsonRpcConfiguration;
 import org.kurento.jsonrpc.server.JsonRpcConfigurer;
 import org.kurento.jsonrpc.server.JsonRpcHandlerRegistry;
 import org.kurento.room.api.KurentoClientProvider;
+import org.kurento.room.api.pojo.RoomSettings;
+import org.kurento.room.internal.DefaultNotificationRoomHandler;
 import org.kurento.room.kms.FixedOneKmsManager;
+import org.kurento.room.kms.KmsManager;
 import org.kurento.room.rpc.JsonRpcNotificationService;
 import org.kurento.room.rpc.JsonRpcUserControl;
+import org.kurento.room.rpc.SessionRequestQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
@@ -54,6 +61,63 @@ public class KurentoRoomServerApp implements JsonRpcConfigurer {
   public static final String KMSS_URIS_PROPERTY = "kms.uris";
   public static final String KMSS_URIS_DEFAULT = "[ \"ws://localhost:8888/kurento\" ]";
 
+  public static final String PIPELINE_POOL_MIN_IDLE_PROPERTY = "kms.pipelinePool.minIdle";
+  public static final int PIPELINE_POOL_MIN_IDLE_DEFAULT = 0;
+  public static final String PIPELINE_POOL_MAX_IDLE_PROPERTY = "kms.pipelinePool.maxIdle";
+  public static final int PIPELINE_POOL_MAX_IDLE_DEFAULT = 10;
+  public static final String PIPELINE_POOL_IDLE_TTL_PROPERTY = "kms.pipelinePool.idleTtl";
+  public static final int PIPELINE_POOL_IDLE_TTL_DEFAULT = 300000; // ms
+
+  public static final String LAZY_SUBSCRIBERS_PROPERTY = "room.lazySubscribers";
+  public static final boolean LAZY_SUBSCRIBERS_DEFAULT = false;
+
+  public static final String WEBRTC_ENDPOINT_POOL_SIZE_PROPERTY = "room.webRtcEndpointPoolSize";
+  public static final int WEBRTC_ENDPOINT_POOL_SIZE_DEFAULT = 0;
+
+  public static final String RPC_EXECUTOR_PROPERTY = "room.rpc.executor";
+  public static final String RPC_EXECUTOR_DEFAULT = "direct"; // direct, virtual or pool
+  public static final String RPC_THREADS_PROPERTY = "room.rpc.threads";
+  public static final int RPC_THREADS_DEFAULT = 2 * Runtime.getRuntime().availableProcessors();
+  public static final String RPC_QUEUE_SIZE_PROPERTY = "room.rpc.queueSize";
+  public static final int RPC_QUEUE_SIZE_DEFAULT = 10000;
+
+  public static final String ICE_CANDIDATE_BATCH_WINDOW_PROPERTY = "room.iceCandidates.batchWindow";
+  public static final int ICE_CANDIDATE_BATCH_WINDOW_DEFAULT = 0; // ms, disabled
+  public static final String ICE_CANDIDATE_BATCH_SIZE_PROPERTY = "room.iceCandidates.batchSize";
+  public static final int ICE_CANDIDATE_BATCH_SIZE_DEFAULT = 20;
+
+  public static final String ROSTER_CHANGES_WINDOW_PROPERTY = "room.notifications.rosterWindow";
+  public static final int ROSTER_CHANGES_WINDOW_DEFAULT = 0; // ms, disabled
+
+  public static final String ROSTER_PAGE_SIZE_PROPERTY = "room.rosterPageSize";
+  public static final int ROSTER_PAGE_SIZE_DEFAULT = 0; // whole roster in the join response
+
+  public static final String VIEWER_COUNT_INTERVAL_PROPERTY =
+      "room.notifications.viewerCountInterval";
+  public static final int VIEWER_COUNT_INTERVAL_DEFAULT = 1000; // ms
+
+  public static final String LAST_N_PROPERTY = "room.lastN";
+  public static final int LAST_N_DEFAULT = 0; // forward the video of all the publishers
+
+  public static final String SPEAKER_THRESHOLD_PROPERTY = "room.dominantSpeaker.threshold";
+  public static final int SPEAKER_THRESHOLD_DEFAULT = -50; // dBov
+  public static final String DOMINANT_SPEAKER_INTERVAL_PROPERTY = "room.dominantSpeaker.interval";
+  public static final int DOMINANT_SPEAKER_INTERVAL_DEFAULT = 1000; // ms
+
+  public static final String PARTICIPANTS_PER_KMS_PROPERTY = "room.cascade.participantsPerKms";
+  public static final int PARTICIPANTS_PER_KMS_DEFAULT = 0; // each room in a single KMS
+  public static final String RELAY_FAN_OUT_PROPERTY = "room.cascade.relayFanOut";
+  public static final int RELAY_FAN_OUT_DEFAULT = 0; // no limit, all relays fed by the publisher's KMS
+
+  public static final String PEER_TO_PEER_PROPERTY = "room.peerToPeer";
+  public static final boolean PEER_TO_PEER_DEFAULT = false; // two-party rooms also use the KMS
+
+  public static final String MODE_PROPERTY = "room.mode";
+  public static final String MODE_DEFAULT = "sfu"; // or composite, mixed_audio
+
+  public static final String SERIAL_EXECUTION_PROPERTY = "room.serialExecution";
+  public static final boolean SERIAL_EXECUTION_DEFAULT = false;
+
   private static final Logger log = LoggerFactory.getLogger(KurentoRoomServerApp.class);
 
   @Bean
@@ -75,10 +139,23 @@ public class KurentoRoomServerApp implements JsonRpcConfigurer {
       return new AutodiscoveryKurentoClientProvider();
     } else {
       log.info("Configuring Kurento Room Server to use first of the following kmss: " + kmsWsUris);
-      return new FixedOneKmsManager(firstKmsWsUri);
+      return configurePipelinePools(new FixedOneKmsManager(firstKmsWsUri));
     }
   }
 
+  /**
+   * Enables the pools of idle pipelines if configured (disabled by default).
+   */
+  protected <T extends KmsManager> T configurePipelinePools(T kmsManager) {
+    int minIdle = getProperty(PIPELINE_POOL_MIN_IDLE_PROPERTY, PIPELINE_POOL_MIN_IDLE_DEFAULT);
+    if (minIdle > 0) {
+      kmsManager.enablePipelinePools(minIdle,
+          getProperty(PIPELINE_POOL_MAX_IDLE_PROPERTY, PIPELINE_POOL_MAX_IDLE_DEFAULT),
+          getProperty(PIPELINE_POOL_IDLE_TTL_PROPERTY, PIPELINE_POOL_IDLE_TTL_DEFAULT));
+    }
+    return kmsManager;
+  }
+
   @Bean
   @ConditionalOnMissingBean
   public JsonRpcNotificationService notificationService() {
@@ -88,7 +165,66 @@ public class KurentoRoomServerApp implements JsonRpcConfigurer {
   @Bean
   @ConditionalOnMissingBean
   public NotificationRoomManager roomManager() {
-    return new NotificationRoomManager(notificationService(), kmsManager());
+    DefaultNotificationRoomHandler notificationRoomHandler =
+        configureNotifications(new DefaultNotificationRoomHandler(notificationService()));
+    NotificationRoomManager roomManager =
+        new NotificationRoomManager(notificationRoomHandler, kmsManager());
+    roomManager.getRoomManager().setDefaultRoomSettings(defaultRoomSettings());
+    return roomManager;
+  }
+
+  /**
+   * Configures how the notifications are sent: the batching of the ICE candidates and of the
+   * roster changes (both disabled by default) and the paging of the roster sent to new
+   * participants (disabled by default).
+   */
+  protected <T extends DefaultNotificationRoomHandler> T configureNotifications(
+      T notificationRoomHandler) {
+    int window = getProperty(ICE_CANDIDATE_BATCH_WINDOW_PROPERTY,
+        ICE_CANDIDATE_BATCH_WINDOW_DEFAULT);
+    if (window > 0) {
+      int size = getProperty(ICE_CANDIDATE_BATCH_SIZE_PROPERTY, ICE_CANDIDATE_BATCH_SIZE_DEFAULT);
+      log.info("Sending ICE candidates in batches (window {} ms, max {} candidates)", window, size);
+      notificationRoomHandler.enableIceCandidateBatching(window, size);
+    }
+    int rosterWindow = getProperty(ROSTER_CHANGES_WINDOW_PROPERTY, ROSTER_CHANGES_WINDOW_DEFAULT);
+    if (rosterWindow > 0) {
+      log.info("Merging the roster changes notified within {} ms", rosterWindow);
+      notificationRoomHandler.enableRosterChangeBatching(rosterWindow);
+    }
+    int rosterPageSize = getProperty(ROSTER_PAGE_SIZE_PROPERTY, ROSTER_PAGE_SIZE_DEFAULT);
+    if (rosterPageSize > 0) {
+      log.info("Responding to the join requests with pages of {} peers", rosterPageSize);
+      notificationRoomHandler.setRosterPageSize(rosterPageSize);
+    }
+    notificationRoomHandler.setViewerCountInterval(
+        getProperty(VIEWER_COUNT_INTERVAL_PROPERTY, VIEWER_COUNT_INTERVAL_DEFAULT));
+    return notificationRoomHandler;
+  }
+
+  protected RoomSettings defaultRoomSettings() {
+    RoomSettings settings = new RoomSettings();
+    settings.setLazySubscribers(
+        getProperty(LAZY_SUBSCRIBERS_PROPERTY, LAZY_SUBSCRIBERS_DEFAULT));
+    settings.setWebRtcEndpointPoolSize(
+        getProperty(WEBRTC_ENDPOINT_POOL_SIZE_PROPERTY, WEBRTC_ENDPOINT_POOL_SIZE_DEFAULT));
+    settings.setSerialExecution(getProperty(SERIAL_EXECUTION_PROPERTY, SERIAL_EXECUTION_DEFAULT));
+    settings.setLastN(getProperty(LAST_N_PROPERTY, LAST_N_DEFAULT));
+    settings.setSpeakerThreshold(
+        getProperty(SPEAKER_THRESHOLD_PROPERTY, SPEAKER_THRESHOLD_DEFAULT));
+    settings.setDominantSpeakerInterval(
+        getProperty(DOMINANT_SPEAKER_INTERVAL_PROPERTY, DOMINANT_SPEAKER_INTERVAL_DEFAULT));
+    settings.setParticipantsPerKms(
+        getProperty(PARTICIPANTS_PER_KMS_PROPERTY, PARTICIPANTS_PER_KMS_DEFAULT));
+    settings.setRelayFanOut(getProperty(RELAY_FAN_OUT_PROPERTY, RELAY_FAN_OUT_DEFAULT));
+    settings.setPeerToPeer(getProperty(PEER_TO_PEER_PROPERTY, PEER_TO_PEER_DEFAULT));
+    String mode = getProperty(MODE_PROPERTY, MODE_DEFAULT);
+    try {
+      settings.setMode(RoomSettings.Mode.valueOf(mode.toUpperCase(Locale.ROOT)));
+    } catch (IllegalArgumentException e) {
+      log.warn("Unknown value for {}: '{}', using {}", MODE_PROPERTY, mode, settings.getMode());
+    }
+    return settings;
   }
 
   @Bean
@@ -100,7 +236,34 @@ public class KurentoRoomServerApp implements JsonRpcConfigurer {
   @Bean
   @ConditionalOnMissingBean
   public RoomJsonRpcHandler roomHandler() {
-    return new RoomJsonRpcHandler(userControl(), notificationService());
+    RoomJsonRpcHandler handler = new RoomJsonRpcHandler(userControl(), notificationService());
+    handler.setRequestExecutor(requestExecutor());
+    return handler;
+  }
+
+  /**
+   * @return the executor that will process the clients' requests, or null if they should be
+   *         processed by the WebSocket threads
+   */
+  protected ExecutorService requestExecutor() {
+    String type = getProperty(RPC_EXECUTOR_PROPERTY, RPC_EXECUTOR_DEFAULT);
+    if ("direct".equalsIgnoreCase(type)) {
+      return null;
+    }
+    if ("virtual".equalsIgnoreCase(type)) {
+      ExecutorService executor = SessionRequestQueue.newVirtualThreadExecutor();
+      if (executor != null) {
+        log.info("Processing the requests using virtual threads");
+        return executor;
+      }
+      log.warn("Virtual threads are not available, using a pool of threads instead");
+    } else if (!"pool".equalsIgnoreCase(type)) {
+      log.warn("Unknown value for {}: '{}', using a pool of threads", RPC_EXECUTOR_PROPERTY, type);
+    }
+    int threads = getProperty(RPC_THREADS_PROPERTY, RPC_THREADS_DEFAULT);
+    log.info("Processing the requests using a pool of {} threads", threads);
+    return SessionRequestQueue.newBoundedExecutor(threads,
+        getProperty(RPC_QUEUE_SIZE_PROPERTY, RPC_QUEUE_SIZE_DEFAULT));
   }
 
   @Override
@@ -16,17 +16,30 @@
 package org.kurento.room;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
 
 import org.kurento.jsonrpc.DefaultJsonRpcHandler;
 import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.Transaction;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.room.api.pojo.ParticipantRequest;
+import org.kurento.room.exception.RoomException;
+import org.kurento.room.exception.RoomException.Code;
 import org.kurento.room.internal.ProtocolElements;
 import org.kurento.room.rpc.JsonRpcNotificationService;
 import org.kurento.room.rpc.JsonRpcUserControl;
 import org.kurento.room.rpc.ParticipantSession;
+import org.kurento.room.rpc.SessionRequestQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,10 +57,17 @@ public class RoomJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
 
   private static final String HANDLER_THREAD_NAME = "handler";
 
+  private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
   private JsonRpcUserControl userControl;
 
   private JsonRpcNotificationService notificationService;
 
+  private volatile Executor requestExecutor = null;
+
+  private final ConcurrentMap<String, SessionRequestQueue> requestQueues =
+      new ConcurrentHashMap<String, SessionRequestQueue>();
+
   @Autowired
   public RoomJsonRpcHandler(JsonRpcUserControl userControl,
       JsonRpcNotificationService notificationService) {
@@ -61,7 +81,7 @@ public class RoomJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
   }
 
   @Override
-  public final void handleRequest(Transaction transaction, Request<JsonObject> request)
+  public final void handleRequest(final Transaction transaction, final Request<JsonObject> request)
       throws Exception {
 
     String sessionId = null;
@@ -72,17 +92,50 @@ public class RoomJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
       throw e;
     }
 
-    updateThreadName(HANDLER_THREAD_NAME + "_" + sessionId);
-
     log.debug("Session #{} - request: {}", sessionId, request);
 
     notificationService.addTransaction(transaction, request);
 
-    ParticipantRequest participantRequest = new ParticipantRequest(sessionId,
+    final ParticipantRequest participantRequest = new ParticipantRequest(sessionId,
         Integer.toString(request.getId()));
 
     transaction.startAsync();
 
+    if (requestExecutor == null) {
+      String threadName = updateThreadName(HANDLER_THREAD_NAME + "_" + sessionId);
+      try {
+        dispatchRequest(transaction, request, participantRequest);
+      } finally {
+        Thread.currentThread().setName(threadName);
+      }
+      return;
+    }
+
+    // the receiving thread only hands the request over, it's named by the thread processing it
+    final String sid = sessionId;
+    try {
+      getRequestQueue(sessionId).submit(new Runnable() {
+        @Override
+        public void run() {
+          String threadName = updateThreadName(HANDLER_THREAD_NAME + "_" + sid);
+          try {
+            dispatchRequest(transaction, request, participantRequest);
+          } catch (Exception e) {
+            log.error("Session #{} - error processing request {}", sid, request, e);
+          } finally {
+            Thread.currentThread().setName(threadName);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      log.warn("Session #{} - too many pending requests, rejecting {}", sessionId, request);
+      notificationService.sendErrorResponse(participantRequest, null, new RoomException(
+          Code.TRANSPORT_REQUEST_ERROR_CODE, "Server overloaded, request rejected"));
+    }
+  }
+
+  private void dispatchRequest(Transaction transaction, Request<JsonObject> request,
+      ParticipantRequest participantRequest) {
     switch (request.getMethod()) {
       case ProtocolElements.JOINROOM_METHOD :
         userControl.joinRoom(transaction, request, participantRequest);
@@ -102,9 +155,21 @@ public class RoomJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
       case ProtocolElements.ONICECANDIDATE_METHOD :
         userControl.onIceCandidate(transaction, request, participantRequest);
         break;
+      case ProtocolElements.ONICECANDIDATES_METHOD :
+        userControl.onIceCandidates(transaction, request, participantRequest);
+        break;
       case ProtocolElements.LEAVEROOM_METHOD :
         userControl.leaveRoom(transaction, request, participantRequest);
         break;
+      case ProtocolElements.GETPARTICIPANTS_METHOD :
+        userControl.getParticipants(transaction, request, participantRequest);
+        break;
+      case ProtocolElements.AUDIOLEVEL_METHOD :
+        userControl.audioLevel(transaction, request, participantRequest);
+        break;
+      case ProtocolElements.SENDPEERSDP_METHOD :
+        userControl.sendPeerSdp(transaction, request, participantRequest);
+        break;
       case ProtocolElements.SENDMESSAGE_ROOM_METHOD :
         userControl.sendMessage(transaction, request, participantRequest);
         break;
@@ -115,8 +180,71 @@ public class RoomJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
         log.error("Unrecognized request {}", request);
         break;
     }
+  }
 
-    updateThreadName(HANDLER_THREAD_NAME);
+  /**
+   * Makes the requests to be processed by the given executor instead of the thread that received
+   * them. The requests of each session are still processed one at a time, in the order they
+   * arrived.
+   *
+   * @param requestExecutor
+   *          the executor (null to process the requests in the receiving thread)
+   */
+  public void setRequestExecutor(Executor requestExecutor) {
+    this.requestExecutor = requestExecutor;
+  }
+
+  /**
+   * Stops processing the requests: if they are processed by an {@link ExecutorService}, it's shut
+   * down, waiting a few seconds for the requests that are already queued.
+   */
+  @PreDestroy
+  public void close() {
+    Executor executor = requestExecutor;
+    if (!(executor instanceof ExecutorService)) {
+      return;
+    }
+    ExecutorService executorService = (ExecutorService) executor;
+    executorService.shutdown();
+    try {
+      if (!executorService.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        log.warn("Requests still being processed after {} seconds, interrupting them",
+            CLOSE_TIMEOUT_SECONDS);
+        executorService.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executorService.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @param sessionId
+   *          the session's id
+   * @return the queue of pending requests of the session, or null if there is none (the session
+   *         hasn't sent any request yet or the requests are not processed by an executor)
+   */
+  public SessionRequestQueue getSessionRequestQueue(String sessionId) {
+    return requestQueues.get(sessionId);
+  }
+
+  /**
+   * @return the request queues of the current sessions
+   */
+  public Collection<SessionRequestQueue> getSessionRequestQueues() {
+    return Collections.unmodifiableCollection(requestQueues.values());
+  }
+
+  private SessionRequestQueue getRequestQueue(String sessionId) {
+    SessionRequestQueue queue = requestQueues.get(sessionId);
+    if (queue == null) {
+      SessionRequestQueue newQueue = new SessionRequestQueue(sessionId, requestExecutor);
+      queue = requestQueues.putIfAbsent(sessionId, newQueue);
+      if (queue == null) {
+        queue = newQueue;
+      }
+    }
+    return queue;
   }
 
   @Override
@@ -127,10 +255,36 @@ public class RoomJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
     }
     String sid = session.getSessionId();
     log.debug("CONN_CLOSED: sessionId={}, participant in session: {}", sid, ps);
-    ParticipantRequest preq = new ParticipantRequest(sid, null);
-    updateThreadName(sid + "|wsclosed");
-    userControl.leaveRoom(null, null, preq);
-    updateThreadName(HANDLER_THREAD_NAME);
+    final ParticipantRequest preq = new ParticipantRequest(sid, null);
+    final SessionRequestQueue queue = requestQueues.remove(sid);
+    if (queue == null) {
+      String threadName = updateThreadName(sid + "|wsclosed");
+      try {
+        userControl.leaveRoom(null, null, preq);
+      } finally {
+        Thread.currentThread().setName(threadName);
+      }
+      return;
+    }
+    // leave after the session's pending requests
+    Runnable leave = new Runnable() {
+      @Override
+      public void run() {
+        String threadName = updateThreadName(sid + "|wsclosed");
+        try {
+          userControl.leaveRoom(null, null, preq);
+        } finally {
+          Thread.currentThread().setName(threadName);
+        }
+      }
+    };
+    try {
+      queue.submit(leave);
+    } catch (RejectedExecutionException e) {
+      // no request of the session is being processed, so it can leave right away
+      log.warn("Session #{} - request executor is full, leaving from the closing thread", sid);
+      leave.run();
+    }
   }
 
   @Override
@@ -140,7 +294,15 @@ public class RoomJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
             : "NULL_SESSION", exception);
   }
 
-  private void updateThreadName(String name) {
-    Thread.currentThread().setName("user:" + name);
+  /**
+   * Names the current thread after the session being served.
+   *
+   * @return the previous name of the thread, to be restored once done
+   */
+  private String updateThreadName(String name) {
+    Thread thread = Thread.currentThread();
+    String previousName = thread.getName();
+    thread.setName("user:" + name);
+    return previousName;
   }
 }
@@ -20,8 +20,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
 import org.kurento.room.api.KurentoClientProvider;
 import org.kurento.room.api.KurentoClientSessionInfo;
 import org.kurento.room.exception.RoomException;
@@ -61,6 +68,13 @@ public abstract class KmsManager implements KurentoClientProvider {
   private List<Kms> kmss = new ArrayList<Kms>();
   private Iterator<Kms> usageIterator = null;
 
+  private final ConcurrentMap<KurentoClient, PipelinePool> pipelinePools =
+      new ConcurrentHashMap<KurentoClient, PipelinePool>();
+  private ScheduledExecutorService pipelinePoolScheduler = null;
+  private int pipelinePoolMinIdle;
+  private int pipelinePoolMaxIdle;
+  private long pipelinePoolIdleTtl;
+
   @Override
   public KurentoClient getKurentoClient(KurentoClientSessionInfo sessionInfo) throws RoomException {
     if (!(sessionInfo instanceof DefaultKurentoClientSessionInfo)) {
@@ -85,6 +99,94 @@ public abstract class KmsManager implements KurentoClientProvider {
 
   public synchronized void addKms(Kms kms) {
     this.kmss.add(kms);
+    if (pipelinePoolScheduler != null) {
+      createPipelinePool(kms);
+    }
+  }
+
+  /**
+   * Keeps a pool of idle {@link MediaPipeline}s in each media server (including the ones added
+   * later on), that will be used by the new rooms.
+   *
+   * @param minIdle
+   *          number of pipelines that are always kept ready in each server
+   * @param maxIdle
+   *          maximum number of idle pipelines per server, the pool grows towards this value when
+   *          rooms are created faster than it's refilled
+   * @param idleTtl
+   *          time (in milliseconds) after which the surplus idle pipelines are released
+   */
+  public synchronized void enablePipelinePools(int minIdle, int maxIdle, long idleTtl) {
+    if (pipelinePoolScheduler != null || minIdle <= 0) {
+      return;
+    }
+    this.pipelinePoolMinIdle = minIdle;
+    this.pipelinePoolMaxIdle = maxIdle;
+    this.pipelinePoolIdleTtl = idleTtl;
+    this.pipelinePoolScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "pipeline-pool");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    log.info("Keeping between {} and {} idle pipelines per KMS (idle TTL {} ms)", minIdle,
+        maxIdle, idleTtl);
+    for (Kms kms : kmss) {
+      createPipelinePool(kms);
+    }
+  }
+
+  private void createPipelinePool(Kms kms) {
+    pipelinePools.put(kms.getKurentoClient(), new PipelinePool(kms, pipelinePoolMinIdle,
+        pipelinePoolMaxIdle, pipelinePoolIdleTtl, pipelinePoolScheduler));
+  }
+
+  @Override
+  public MediaPipeline getIdlePipeline(KurentoClient kurentoClient) {
+    PipelinePool pool = pipelinePools.get(kurentoClient);
+    if (pool == null) {
+      return null;
+    }
+    return pool.take();
+  }
+
+  /**
+   * @return number of rooms that were given an idle pipeline
+   */
+  public long getPipelinePoolHits() {
+    long hits = 0;
+    for (PipelinePool pool : pipelinePools.values()) {
+      hits += pool.getHits();
+    }
+    return hits;
+  }
+
+  /**
+   * @return number of rooms that had to create their own pipeline because the pool of the
+   *         selected KMS was empty
+   */
+  public long getPipelinePoolMisses() {
+    long misses = 0;
+    for (PipelinePool pool : pipelinePools.values()) {
+      misses += pool.getMisses();
+    }
+    return misses;
+  }
+
+  /**
+   * Releases the idle pipelines kept by this manager.
+   */
+  public synchronized void close() {
+    for (PipelinePool pool : pipelinePools.values()) {
+      pool.close();
+    }
+    pipelinePools.clear();
+    if (pipelinePoolScheduler != null) {
+      pipelinePoolScheduler.shutdownNow();
+      pipelinePoolScheduler = null;
+    }
   }
 
   public synchronized Kms getLessLoadedKms() {
@@ -116,6 +218,49 @@ public abstract class KmsManager implements KurentoClientProvider {
     return kmsLoads;
   }
 
+  /**
+   * Places the new participants of a cascaded room in the servers that already host the room
+   * while they have room for them (the fullest first, so that the media of the room's publishers
+   * is relayed to as few servers as possible), and then in the less loaded server that doesn't
+   * host the room yet.
+   */
+  @Override
+  public synchronized KurentoClient getKurentoClient(KurentoClientSessionInfo sessionInfo,
+      Map<KurentoClient, Integer> roomLoad, int participantsPerClient) throws RoomException {
+    KurentoClient fullest = null;
+    int fullestCount = -1;
+    for (Map.Entry<KurentoClient, Integer> entry : roomLoad.entrySet()) {
+      int count = entry.getValue();
+      Kms kms = getKms(entry.getKey());
+      if (count < participantsPerClient && count > fullestCount
+          && (kms == null || kms.allowMoreElements())) {
+        fullest = entry.getKey();
+        fullestCount = count;
+      }
+    }
+    if (fullest != null) {
+      return fullest;
+    }
+    for (KmsLoad kmsLoad : getKmssSortedByLoad()) {
+      Kms kms = kmsLoad.getKms();
+      if (!roomLoad.containsKey(kms.getKurentoClient()) && kms.allowMoreElements()) {
+        log.info("Spreading a room over KMS {} (load {})", kms.getUri(), kmsLoad.getLoad());
+        return kms.getKurentoClient();
+      }
+    }
+    log.warn("No KMS can host more participants of a room, using the room's main KMS");
+    return null;
+  }
+
+  private Kms getKms(KurentoClient kurentoClient) {
+    for (Kms kms : kmss) {
+      if (kms.getKurentoClient() == kurentoClient) {
+        return kms;
+      }
+    }
+    return null;
+  }
+
   @Override
   public boolean destroyWhenUnused() {
     return false;
@@ -0,0 +1,279 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.room.kms;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.ListenerSubscription;
+import org.kurento.client.MediaPipeline;
+import org.kurento.room.api.PipelineErrorForwarder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Set of idle {@link MediaPipeline}s created in advance in a {@link Kms}, to be handed to the rooms
+ * when they are created. The pool keeps at least <em>minIdle</em> pipelines ready and grows (up to
+ * <em>maxIdle</em>) every time a room can't be served from it. The surplus pipelines (above
+ * <em>minIdle</em>) are released once they've been idle for longer than the configured TTL. The
+ * pipelines are handed over with a {@link PipelineErrorForwarder} already listening to their
+ * errors.
+ */
+public class PipelinePool {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelinePool.class);
+
+  private static class IdlePipeline {
+    final MediaPipeline pipeline;
+    final long idleSince;
+
+    IdlePipeline(MediaPipeline pipeline) {
+      this.pipeline = pipeline;
+      this.idleSince = System.currentTimeMillis();
+    }
+  }
+
+  private final Kms kms;
+  private final int minIdle;
+  private final int maxIdle;
+  private final long idleTtl;
+  private final ScheduledExecutorService scheduler;
+
+  // newest pipelines at the tail, the oldest ones are the first to expire
+  private final Deque<IdlePipeline> idle = new ArrayDeque<IdlePipeline>();
+  private int pending = 0;
+  private int target;
+  private boolean closed = false;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param kms
+   *          the media server where the pipelines will be created
+   * @param minIdle
+   *          number of pipelines that are always kept ready
+   * @param maxIdle
+   *          maximum number of idle pipelines
+   * @param idleTtl
+   *          time (in milliseconds) after which a surplus idle pipeline will be released
+   * @param scheduler
+   *          executor used to refill the pool and to release the expired pipelines
+   */
+  public PipelinePool(Kms kms, int minIdle, int maxIdle, long idleTtl,
+      ScheduledExecutorService scheduler) {
+    this.kms = kms;
+    this.minIdle = minIdle;
+    this.maxIdle = Math.max(minIdle, maxIdle);
+    this.idleTtl = idleTtl;
+    this.scheduler = scheduler;
+    this.target = minIdle;
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        releaseExpired();
+      }
+    }, idleTtl, Math.max(idleTtl / 2, 1), TimeUnit.MILLISECONDS);
+    refill();
+  }
+
+  /**
+   * Takes an idle pipeline from the pool, triggering its refill in the background.
+   *
+   * @return the pipeline or null if the pool is empty
+   */
+  public MediaPipeline take() {
+    IdlePipeline idlePipeline;
+    synchronized (this) {
+      idlePipeline = idle.pollLast();
+      if (idlePipeline == null && target < maxIdle) {
+        target++;
+      }
+    }
+    if (idlePipeline == null) {
+      misses.incrementAndGet();
+      log.debug("KMS {}: No idle MediaPipeline available", kms.getUri());
+    } else {
+      hits.incrementAndGet();
+    }
+    try {
+      scheduler.execute(new Runnable() {
+        @Override
+        public void run() {
+          refill();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the scheduler has been shut down, the pool isn't refilled anymore
+      log.debug("KMS {}: Pipeline pool closed, not refilling it", kms.getUri());
+    }
+    return idlePipeline == null ? null : idlePipeline.pipeline;
+  }
+
+  public int getIdleCount() {
+    synchronized (this) {
+      return idle.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Releases the idle pipelines. The pool won't create new ones from now on.
+   */
+  public void close() {
+    Deque<IdlePipeline> toRelease;
+    synchronized (this) {
+      closed = true;
+      toRelease = new ArrayDeque<IdlePipeline>(idle);
+      idle.clear();
+    }
+    for (IdlePipeline idlePipeline : toRelease) {
+      release(idlePipeline.pipeline);
+    }
+  }
+
+  private void refill() {
+    int toCreate;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      toCreate = target - idle.size() - pending;
+      if (toCreate <= 0) {
+        return;
+      }
+      pending += toCreate;
+    }
+    for (int i = 0; i < toCreate; i++) {
+      createPipeline();
+    }
+  }
+
+  private void createPipeline() {
+    try {
+      kms.getKurentoClient().createMediaPipeline(new Continuation<MediaPipeline>() {
+        @Override
+        public void onSuccess(MediaPipeline result) throws Exception {
+          addErrorListener(result);
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          creationFailed(cause);
+        }
+      });
+    } catch (Exception e) {
+      creationFailed(e);
+    }
+  }
+
+  /**
+   * Adds the error listener of the rooms to a new pipeline before making it available, so that
+   * the room that takes it doesn't have to.
+   */
+  private void addErrorListener(final MediaPipeline pipeline) {
+    final PipelineErrorForwarder forwarder = PipelineErrorForwarder.create(pipeline);
+    try {
+      pipeline.addErrorListener(forwarder, new Continuation<ListenerSubscription>() {
+        @Override
+        public void onSuccess(ListenerSubscription result) throws Exception {
+          pipelineReady(pipeline, forwarder);
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          release(pipeline);
+          creationFailed(cause);
+        }
+      });
+    } catch (Exception e) {
+      release(pipeline);
+      creationFailed(e);
+    }
+  }
+
+  private void pipelineReady(MediaPipeline pipeline, PipelineErrorForwarder forwarder) {
+    boolean release;
+    synchronized (this) {
+      pending--;
+      release = closed;
+      if (!closed) {
+        PipelineErrorForwarder.register(pipeline, forwarder);
+        idle.addLast(new IdlePipeline(pipeline));
+      }
+    }
+    if (release) {
+      release(pipeline);
+    }
+  }
+
+  private void creationFailed(Throwable cause) {
+    synchronized (this) {
+      pending--;
+    }
+    log.warn("KMS {}: Unable to create idle MediaPipeline", kms.getUri(), cause);
+  }
+
+  private void releaseExpired() {
+    long expiration = System.currentTimeMillis() - idleTtl;
+    Deque<IdlePipeline> expired = new ArrayDeque<IdlePipeline>();
+    synchronized (this) {
+      while (idle.size() > minIdle && idle.peekFirst().idleSince < expiration) {
+        expired.add(idle.pollFirst());
+        if (target > minIdle) {
+          target--;
+        }
+      }
+    }
+    if (!expired.isEmpty()) {
+      log.debug("KMS {}: Releasing {} surplus idle MediaPipelines", kms.getUri(), expired.size());
+    }
+    for (IdlePipeline idlePipeline : expired) {
+      release(idlePipeline.pipeline);
+    }
+    // also retries the creations that might have failed
+    refill();
+  }
+
+  private void release(MediaPipeline pipeline) {
+    PipelineErrorForwarder.unregister(pipeline);
+    pipeline.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("KMS {}: Released idle MediaPipeline", kms.getUri());
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("KMS {}: Could not release idle MediaPipeline", kms.getUri(), cause);
+      }
+    });
+  }
+}
@@ -18,9 +18,16 @@ package org.kurento.room.rest;
 
 import static org.kurento.commons.PropertiesManager.getProperty;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.kurento.room.NotificationRoomManager;
+import org.kurento.room.RoomJsonRpcHandler;
+import org.kurento.room.internal.LatencyStats;
+import org.kurento.room.rpc.SessionRequestQueue;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -38,11 +45,35 @@ public class RoomController {
   @Autowired
   private NotificationRoomManager roomManager;
 
+  @Autowired
+  private RoomJsonRpcHandler rpcHandler;
+
   @RequestMapping("/getAllRooms")
   public Set<String> getAllRooms() {
     return roomManager.getRooms();
   }
 
+  /**
+   * @return the pending requests of each session and the time they waited to be processed (empty
+   *         if the requests are processed by the threads receiving them)
+   */
+  @RequestMapping("/getRequestQueues")
+  public List<Map<String, Object>> getRequestQueues() {
+    List<Map<String, Object>> queues = new ArrayList<Map<String, Object>>();
+    for (SessionRequestQueue queue : rpcHandler.getSessionRequestQueues()) {
+      LatencyStats wait = queue.getWaitStats();
+      Map<String, Object> stats = new LinkedHashMap<String, Object>();
+      stats.put("sessionId", queue.getSessionId());
+      stats.put("queueDepth", queue.getQueueDepth());
+      stats.put("rejected", queue.getRejectedCount());
+      stats.put("processed", wait.getCount());
+      stats.put("avgWaitMillis", wait.getAverageMillis());
+      stats.put("maxWaitMillis", wait.getMaxMillis());
+      queues.add(stats);
+    }
+    return queues;
+  }
+
   @RequestMapping("/getUpdateSpeakerInterval")
   public Integer getUpdateSpeakerInterval() {
     return Integer.valueOf(getProperty("updateSpeakerInterval", UPDATE_SPEAKER_INTERVAL_DEFAULT));
@@ -17,20 +17,28 @@
 package org.kurento.room.rpc;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
+import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.Transaction;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.room.NotificationRoomManager;
 import org.kurento.room.api.pojo.ParticipantRequest;
-import org.kurento.room.api.pojo.UserParticipant;
+import org.kurento.room.endpoint.SdpType;
 import org.kurento.room.exception.RoomException;
 import org.kurento.room.internal.ProtocolElements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 /**
@@ -61,11 +69,20 @@ public class JsonRpcUserControl {
           .getAsBoolean();
     }
 
+    boolean viewer = false;
+    if (request.getParams().has(ProtocolElements.JOINROOM_VIEWER_PARAM)) {
+      viewer = request.getParams().get(ProtocolElements.JOINROOM_VIEWER_PARAM).getAsBoolean();
+    }
+
     ParticipantSession participantSession = getParticipantSession(transaction);
     participantSession.setParticipantName(userName);
     participantSession.setRoomName(roomName);
     participantSession.setDataChannels(dataChannels);
 
+    if (viewer) {
+      roomManager.joinRoomAsViewer(userName, roomName, participantRequest);
+      return;
+    }
     roomManager.joinRoom(userName, roomName, dataChannels, true, participantRequest);
   }
 
@@ -114,7 +131,6 @@ public class JsonRpcUserControl {
 
   public void leaveRoom(Transaction transaction, Request<JsonObject> request,
       ParticipantRequest participantRequest) {
-    boolean exists = false;
     String pid = participantRequest.getParticipantId();
     // trying with room info from session
     String roomName = null;
@@ -127,13 +143,7 @@ public class JsonRpcUserControl {
       leaveRoomAfterConnClosed(pid);
     } else {
       // sanity check, don't call leaveRoom unless the id checks out
-      for (UserParticipant part : roomManager.getParticipants(roomName)) {
-        if (part.getParticipantId().equals(participantRequest.getParticipantId())) {
-          exists = true;
-          break;
-        }
-      }
-      if (exists) {
+      if (roomManager.containsParticipant(roomName, pid)) {
         log.debug("Participant with sessionId {} is leaving room {}", pid, roomName);
         roomManager.leaveRoom(participantRequest);
         log.info("Participant with sessionId {} has left room {}", pid, roomName);
@@ -155,6 +165,36 @@ public class JsonRpcUserControl {
     roomManager.onIceCandidate(endpointName, candidate, sdpMLineIndex, sdpMid, participantRequest);
   }
 
+  public void onIceCandidates(Transaction transaction, Request<JsonObject> request,
+      ParticipantRequest participantRequest) {
+    if (request.getParams() == null
+        || request.getParams().get(ProtocolElements.ONICECANDIDATES_CANDIDATES_PARAM) == null) {
+      throw new RuntimeException("Request element '"
+          + ProtocolElements.ONICECANDIDATES_CANDIDATES_PARAM + "' is missing");
+    }
+    JsonArray jsonCandidates = request.getParams()
+        .getAsJsonArray(ProtocolElements.ONICECANDIDATES_CANDIDATES_PARAM);
+
+    // keeps the order in which the endpoints' candidates were gathered
+    Map<String, List<IceCandidate>> candidates = new LinkedHashMap<String, List<IceCandidate>>();
+    for (JsonElement jsonElement : jsonCandidates) {
+      JsonObject jsonCandidate = jsonElement.getAsJsonObject();
+      String endpointName = jsonCandidate.get(ProtocolElements.ONICECANDIDATE_EPNAME_PARAM)
+          .getAsString();
+      List<IceCandidate> endpointCandidates = candidates.get(endpointName);
+      if (endpointCandidates == null) {
+        endpointCandidates = new ArrayList<IceCandidate>();
+        candidates.put(endpointName, endpointCandidates);
+      }
+      endpointCandidates.add(new IceCandidate(
+          jsonCandidate.get(ProtocolElements.ONICECANDIDATE_CANDIDATE_PARAM).getAsString(),
+          jsonCandidate.get(ProtocolElements.ONICECANDIDATE_SDPMIDPARAM).getAsString(),
+          jsonCandidate.get(ProtocolElements.ONICECANDIDATE_SDPMLINEINDEX_PARAM).getAsInt()));
+    }
+
+    roomManager.onIceCandidates(candidates, participantRequest);
+  }
+
   public void sendMessage(Transaction transaction, Request<JsonObject> request,
       ParticipantRequest participantRequest) {
     String userName = getStringParam(request, ProtocolElements.SENDMESSAGE_USER_PARAM);
@@ -166,6 +206,45 @@ public class JsonRpcUserControl {
     roomManager.sendMessage(message, userName, roomName, participantRequest);
   }
 
+  public void getParticipants(Transaction transaction, Request<JsonObject> request,
+      ParticipantRequest participantRequest) {
+    // both optional: the first page of the roster, or its changes since a known version
+    String after = null;
+    if (request.getParams() != null
+        && request.getParams().has(ProtocolElements.GETPARTICIPANTS_AFTER_PARAM)) {
+      after = getStringParam(request, ProtocolElements.GETPARTICIPANTS_AFTER_PARAM);
+    }
+    long sinceVersion = -1;
+    if (request.getParams() != null
+        && request.getParams().has(ProtocolElements.GETPARTICIPANTS_SINCEVERSION_PARAM)) {
+      sinceVersion = request.getParams().get(ProtocolElements.GETPARTICIPANTS_SINCEVERSION_PARAM)
+          .getAsLong();
+    }
+    roomManager.getParticipants(after, sinceVersion, participantRequest);
+  }
+
+  public void audioLevel(Transaction transaction, Request<JsonObject> request,
+      ParticipantRequest participantRequest) {
+    if (request.getParams() == null
+        || request.getParams().get(ProtocolElements.AUDIOLEVEL_LEVEL_PARAM) == null) {
+      throw new RuntimeException("Request element '" + ProtocolElements.AUDIOLEVEL_LEVEL_PARAM
+          + "' is missing");
+    }
+    double level = request.getParams().get(ProtocolElements.AUDIOLEVEL_LEVEL_PARAM).getAsDouble();
+
+    roomManager.updateAudioLevel(level, participantRequest);
+  }
+
+  public void sendPeerSdp(Transaction transaction, Request<JsonObject> request,
+      ParticipantRequest participantRequest) {
+    String peerName = getStringParam(request, ProtocolElements.SENDPEERSDP_PEER_PARAM);
+    String type = getStringParam(request, ProtocolElements.SENDPEERSDP_TYPE_PARAM);
+    String sdp = getStringParam(request, ProtocolElements.SENDPEERSDP_SDP_PARAM);
+
+    roomManager.sendPeerSdp(peerName, SdpType.valueOf(type.toUpperCase(Locale.ROOT)), sdp,
+        participantRequest);
+  }
+
   public void customRequest(Transaction transaction, Request<JsonObject> request,
       ParticipantRequest participantRequest) {
     throw new RuntimeException("Unsupported method");
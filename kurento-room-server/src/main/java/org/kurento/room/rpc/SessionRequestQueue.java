@@ -0,0 +1,164 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.room.rpc;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.room.internal.LatencyStats;
+import org.kurento.room.internal.SerialExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue of the requests received from a session, processed one at a time (and in order) by the
+ * threads of a shared executor. Keeps track of the number of pending requests and of the time they
+ * wait before being processed.
+ */
+public class SessionRequestQueue {
+
+  private static final Logger log = LoggerFactory.getLogger(SessionRequestQueue.class);
+
+  private final String sessionId;
+  private final SerialExecutor mailbox;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong rejected = new AtomicLong();
+  private final LatencyStats waitStats;
+
+  public SessionRequestQueue(String sessionId, Executor executor) {
+    this.sessionId = sessionId;
+    this.mailbox = new SerialExecutor("SESSION " + sessionId, executor);
+    this.waitStats = new LatencyStats("requestWait#" + sessionId);
+  }
+
+  /**
+   * Queues the processing of a request.
+   *
+   * @param task
+   *          the processing of the request
+   * @throws RejectedExecutionException
+   *           if the shared executor is full, the request won't be processed
+   */
+  public void submit(final Runnable task) throws RejectedExecutionException {
+    final long queuedAt = System.nanoTime();
+    // set by the first of the mailbox (that runs the task) and the rejection (that discards it)
+    final AtomicBoolean claimed = new AtomicBoolean();
+    pending.incrementAndGet();
+    try {
+      mailbox.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (!claimed.compareAndSet(false, true)) {
+            return;
+          }
+          pending.decrementAndGet();
+          waitStats.recordSince(queuedAt);
+          task.run();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      if (claimed.compareAndSet(false, true)) {
+        pending.decrementAndGet();
+        rejected.incrementAndGet();
+        throw e;
+      }
+    }
+  }
+
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * @return number of requests waiting to be processed (not including the one being processed)
+   */
+  public int getQueueDepth() {
+    return pending.get();
+  }
+
+  /**
+   * @return number of requests rejected because the shared executor was full
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return time spent by the requests in the queue
+   */
+  public LatencyStats getWaitStats() {
+    return waitStats;
+  }
+
+  @Override
+  public String toString() {
+    return "[session=" + sessionId + ", queueDepth=" + getQueueDepth() + ", rejected="
+        + getRejectedCount() + ", " + waitStats + "]";
+  }
+
+  /**
+   * Creates an executor that starts a virtual thread for each task, if supported by the JVM (Java
+   * 21 or newer).
+   *
+   * @return the executor, or null if virtual threads are not available
+   */
+  public static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      log.debug("Virtual threads are not supported by this JVM ({})", e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Creates an executor with a fixed number of threads and a bounded queue. When the queue is full,
+   * the new tasks are rejected (see {@link #submit(Runnable)}), the threads receiving the requests
+   * never process them.
+   *
+   * @param threads
+   *          number of threads
+   * @param queueSize
+   *          maximum number of queued tasks
+   * @return the executor
+   */
+  public static ExecutorService newBoundedExecutor(int threads, int queueSize) {
+    return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "rpc-handler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+  }
+}
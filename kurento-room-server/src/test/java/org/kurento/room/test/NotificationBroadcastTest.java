@@ -0,0 +1,195 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kurento.room.test;
+
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.room.internal.ProtocolElements;
+import org.kurento.room.rpc.JsonRpcNotificationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Tests for the notifications sent to many participants at once, and a micro-benchmark of the
+ * encoding cost per broadcast (run with -Droom.benchmarks=true).
+ */
+public class NotificationBroadcastTest {
+
+  private static final boolean BENCHMARKS = Boolean.getBoolean("room.benchmarks");
+
+  private final Logger log = LoggerFactory.getLogger(NotificationBroadcastTest.class);
+
+  private JsonRpcNotificationService notificationService;
+
+  private int sessionCount = 0;
+
+  @Before
+  public void setup() {
+    notificationService = new JsonRpcNotificationService();
+  }
+
+  @Test
+  public void broadcastReachesEverySession() throws Exception {
+    JsonObject params = publishedParams("user0");
+    List<String> ids = new ArrayList<String>();
+    List<Session> sessions = new ArrayList<Session>();
+    for (int i = 0; i < 10; i++) {
+      Session session = mock(Session.class);
+      sessions.add(session);
+      ids.add(register(session));
+    }
+    // not registered (e.g. it has already left)
+    ids.add("broadcast-unknown");
+
+    notificationService.sendNotificationToMany(ids,
+        ProtocolElements.PARTICIPANTPUBLISHED_METHOD, params);
+
+    for (Session session : sessions) {
+      verify(session, times(1)).sendNotification(ProtocolElements.PARTICIPANTPUBLISHED_METHOD,
+          params);
+    }
+  }
+
+  @Test
+  public void broadcastSurvivesFailingSession() throws Exception {
+    JsonObject params = publishedParams("user0");
+    Session failing = mock(Session.class);
+    doThrow(new IllegalStateException("closed")).when(failing)
+        .sendNotification(ProtocolElements.PARTICIPANTPUBLISHED_METHOD, params);
+    Session other = mock(Session.class);
+    List<String> ids = new ArrayList<String>();
+    ids.add(register(failing));
+    ids.add(register(other));
+
+    notificationService.sendNotificationToMany(ids,
+        ProtocolElements.PARTICIPANTPUBLISHED_METHOD, params);
+
+    verify(other, times(1)).sendNotification(ProtocolElements.PARTICIPANTPUBLISHED_METHOD,
+        params);
+  }
+
+  /**
+   * Compares the cost of encoding a notification for every recipient (as done by
+   * {@link Session#sendNotification(String, Object)}, the only way the JSON-RPC sessions can be
+   * sent a notification) with encoding it once for all of them.
+   */
+  @Test
+  public void broadcastEncodingBenchmark() {
+    assumeTrue(BENCHMARKS);
+    JsonObject params = publishedParams("user0");
+    for (int recipients : new int[] { 10, 100, 1000 }) {
+      int broadcasts = Math.max(50, 20000 / recipients);
+
+      // warm up
+      encodePerRecipient(recipients, broadcasts, params);
+      encodeOnce(recipients, broadcasts, params);
+
+      long bytes = allocatedBytes();
+      long start = System.nanoTime();
+      encodePerRecipient(recipients, broadcasts, params);
+      long perRecipientNanos = (System.nanoTime() - start) / broadcasts;
+      long perRecipientBytes = (allocatedBytes() - bytes) / broadcasts;
+
+      bytes = allocatedBytes();
+      start = System.nanoTime();
+      encodeOnce(recipients, broadcasts, params);
+      long onceNanos = (System.nanoTime() - start) / broadcasts;
+      long onceBytes = (allocatedBytes() - bytes) / broadcasts;
+
+      log.info("N={}: per recipient {} us, {} bytes / broadcast; encoded once {} us, {} bytes "
+          + "/ broadcast", recipients, perRecipientNanos / 1000, perRecipientBytes,
+          onceNanos / 1000, onceBytes);
+    }
+  }
+
+  private static int encodePerRecipient(int recipients, int broadcasts, JsonObject params) {
+    int length = 0;
+    for (int b = 0; b < broadcasts; b++) {
+      for (int i = 0; i < recipients; i++) {
+        length += encode(ProtocolElements.PARTICIPANTPUBLISHED_METHOD, params).length();
+      }
+    }
+    return length;
+  }
+
+  private static int encodeOnce(int recipients, int broadcasts, JsonObject params) {
+    int length = 0;
+    for (int b = 0; b < broadcasts; b++) {
+      String encoded = encode(ProtocolElements.PARTICIPANTPUBLISHED_METHOD, params);
+      for (int i = 0; i < recipients; i++) {
+        length += encoded.length();
+      }
+    }
+    return length;
+  }
+
+  private static String encode(String method, Object params) {
+    return JsonUtils.toJson(new Request<Object>(method, params));
+  }
+
+  /**
+   * @return bytes allocated by the current thread, or -1 if the JVM can't tell
+   */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+          Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private String register(Session session) {
+    String sessionId = "broadcast-" + hashCode() + "-" + sessionCount++;
+    when(session.getSessionId()).thenReturn(sessionId);
+    Transaction transaction = mock(Transaction.class);
+    when(transaction.getSession()).thenReturn(session);
+    @SuppressWarnings("unchecked")
+    Request<JsonObject> request = mock(Request.class);
+    when(request.getId()).thenReturn(1);
+    notificationService.addTransaction(transaction, request);
+    return sessionId;
+  }
+
+  private static JsonObject publishedParams(String publisherName) {
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.PARTICIPANTPUBLISHED_USER_PARAM, publisherName);
+    JsonObject stream = new JsonObject();
+    stream.addProperty(ProtocolElements.PARTICIPANTPUBLISHED_STREAMID_PARAM, "webcam");
+    JsonArray streamsArray = new JsonArray();
+    streamsArray.add(stream);
+    params.add(ProtocolElements.PARTICIPANTPUBLISHED_STREAMS_PARAM, streamsArray);
+    return params;
+  }
+}
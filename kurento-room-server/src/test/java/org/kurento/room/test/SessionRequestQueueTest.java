@@ -0,0 +1,243 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kurento.room.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.room.RoomJsonRpcHandler;
+import org.kurento.room.api.pojo.ParticipantRequest;
+import org.kurento.room.exception.RoomException;
+import org.kurento.room.internal.ProtocolElements;
+import org.kurento.room.rpc.JsonRpcNotificationService;
+import org.kurento.room.rpc.JsonRpcUserControl;
+import org.kurento.room.rpc.SessionRequestQueue;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Tests for the processing of the requests by an executor, keeping the order of each session.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SessionRequestQueueTest {
+
+  private static final String SESSION_ID = "session0";
+
+  @Mock
+  private JsonRpcUserControl userControl;
+
+  @Mock
+  private JsonRpcNotificationService notificationService;
+
+  private RoomJsonRpcHandler handler;
+
+  private ExecutorService executor;
+
+  // requests processed, in order
+  private final List<String> processed = new ArrayList<String>();
+
+  // the publication doesn't end until released
+  private final CountDownLatch publishStarted = new CountDownLatch(1);
+  private final CountDownLatch publishReleased = new CountDownLatch(1);
+
+  private int requestId;
+
+  @Before
+  public void init() {
+    handler = new RoomJsonRpcHandler(userControl, notificationService);
+
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        publishStarted.countDown();
+        publishReleased.await(5, TimeUnit.SECONDS);
+        record(ProtocolElements.PUBLISHVIDEO_METHOD);
+        return null;
+      }
+    }).when(userControl).publishVideo(any(Transaction.class),
+        Matchers.<Request<JsonObject>> any(), any(ParticipantRequest.class));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        record(ProtocolElements.ONICECANDIDATE_METHOD);
+        return null;
+      }
+    }).when(userControl).onIceCandidate(any(Transaction.class),
+        Matchers.<Request<JsonObject>> any(), any(ParticipantRequest.class));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        record(ProtocolElements.LEAVEROOM_METHOD);
+        return null;
+      }
+    }).when(userControl).leaveRoom(any(Transaction.class), Matchers.<Request<JsonObject>> any(),
+        any(ParticipantRequest.class));
+  }
+
+  @After
+  public void tearDown() {
+    publishReleased.countDown();
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void iceCandidatesWaitForSlowPublication() throws Exception {
+    executor = Executors.newFixedThreadPool(4);
+    handler.setRequestExecutor(executor);
+
+    String threadName = Thread.currentThread().getName();
+    handler.handleRequest(newTransaction(SESSION_ID),
+        newRequest(SESSION_ID, ProtocolElements.PUBLISHVIDEO_METHOD));
+    assertTrue("Publication not started", publishStarted.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 3; i++) {
+      handler.handleRequest(newTransaction(SESSION_ID),
+          newRequest(SESSION_ID, ProtocolElements.ONICECANDIDATE_METHOD));
+    }
+    // the receiving thread only queues the requests
+    assertEquals(threadName, Thread.currentThread().getName());
+
+    SessionRequestQueue queue = handler.getSessionRequestQueue(SESSION_ID);
+    assertThat(queue.getQueueDepth(), is(3));
+    assertThat(processed(), is(new ArrayList<String>()));
+
+    publishReleased.countDown();
+    verify(userControl, timeout(5000).times(3)).onIceCandidate(any(Transaction.class),
+        Matchers.<Request<JsonObject>> any(), any(ParticipantRequest.class));
+    assertThat(processed(),
+        is(Arrays.asList(ProtocolElements.PUBLISHVIDEO_METHOD,
+            ProtocolElements.ONICECANDIDATE_METHOD, ProtocolElements.ONICECANDIDATE_METHOD,
+            ProtocolElements.ONICECANDIDATE_METHOD)));
+    assertThat(queue.getQueueDepth(), is(0));
+    assertThat(queue.getWaitStats().getCount(), is(4L));
+  }
+
+  @Test
+  public void closeAfterPendingRequests() throws Exception {
+    executor = Executors.newFixedThreadPool(4);
+    handler.setRequestExecutor(executor);
+
+    handler.handleRequest(newTransaction(SESSION_ID),
+        newRequest(SESSION_ID, ProtocolElements.PUBLISHVIDEO_METHOD));
+    assertTrue("Publication not started", publishStarted.await(5, TimeUnit.SECONDS));
+    handler.handleRequest(newTransaction(SESSION_ID),
+        newRequest(SESSION_ID, ProtocolElements.ONICECANDIDATE_METHOD));
+    handler.afterConnectionClosed(newSession(SESSION_ID), "closed");
+    assertThat(processed(), is(new ArrayList<String>()));
+
+    publishReleased.countDown();
+    verify(userControl, timeout(5000)).leaveRoom(any(Transaction.class),
+        Matchers.<Request<JsonObject>> any(), any(ParticipantRequest.class));
+    assertThat(processed(), is(Arrays.asList(ProtocolElements.PUBLISHVIDEO_METHOD,
+        ProtocolElements.ONICECANDIDATE_METHOD, ProtocolElements.LEAVEROOM_METHOD)));
+  }
+
+  @Test
+  public void requestsRejectedWhenExecutorIsFull() throws Exception {
+    executor = SessionRequestQueue.newBoundedExecutor(1, 1);
+    handler.setRequestExecutor(executor);
+
+    // the only thread is busy and the queue holds the mailbox of another session
+    handler.handleRequest(newTransaction(SESSION_ID),
+        newRequest(SESSION_ID, ProtocolElements.PUBLISHVIDEO_METHOD));
+    assertTrue("Publication not started", publishStarted.await(5, TimeUnit.SECONDS));
+    handler.handleRequest(newTransaction("session1"),
+        newRequest("session1", ProtocolElements.ONICECANDIDATE_METHOD));
+
+    String threadName = Thread.currentThread().getName();
+    handler.handleRequest(newTransaction("session2"),
+        newRequest("session2", ProtocolElements.ONICECANDIDATE_METHOD));
+    assertEquals(threadName, Thread.currentThread().getName());
+    verify(notificationService).sendErrorResponse(any(ParticipantRequest.class), isNull(),
+        any(RoomException.class));
+    assertThat(handler.getSessionRequestQueue("session2").getRejectedCount(), is(1L));
+    assertThat(handler.getSessionRequestQueue("session2").getQueueDepth(), is(0));
+
+    publishReleased.countDown();
+    verify(userControl, timeout(5000)).onIceCandidate(any(Transaction.class),
+        Matchers.<Request<JsonObject>> any(), any(ParticipantRequest.class));
+    // the rejected request is never processed, even once the executor has room again
+    handler.handleRequest(newTransaction("session2"),
+        newRequest("session2", ProtocolElements.LEAVEROOM_METHOD));
+    verify(userControl, timeout(5000)).leaveRoom(any(Transaction.class),
+        Matchers.<Request<JsonObject>> any(), any(ParticipantRequest.class));
+    assertThat(processed(), is(Arrays.asList(ProtocolElements.PUBLISHVIDEO_METHOD,
+        ProtocolElements.ONICECANDIDATE_METHOD, ProtocolElements.LEAVEROOM_METHOD)));
+    verify(notificationService).sendErrorResponse(any(ParticipantRequest.class), isNull(),
+        any(RoomException.class));
+  }
+
+  private Transaction newTransaction(String sessionId) {
+    Session session = newSession(sessionId);
+    Transaction transaction = mock(Transaction.class);
+    when(transaction.getSession()).thenReturn(session);
+    return transaction;
+  }
+
+  private Session newSession(String sessionId) {
+    Session session = mock(Session.class);
+    when(session.getSessionId()).thenReturn(sessionId);
+    when(session.getAttributes()).thenReturn(new HashMap<String, Object>());
+    return session;
+  }
+
+  private Request<JsonObject> newRequest(String sessionId, String method) {
+    return new Request<JsonObject>(sessionId, ++requestId, method, new JsonObject());
+  }
+
+  private void record(String method) {
+    synchronized (processed) {
+      processed.add(method);
+    }
+  }
+
+  private List<String> processed() {
+    synchronized (processed) {
+      return new ArrayList<String>(processed);
+    }
+  }
+}